@@ -1,7 +1,7 @@
 package nl.tno.hexabus.driver;
 
 import java.nio.ByteBuffer;
-import java.util.Collection;
+import java.util.List;
 
 import nl.tno.hexabus.api.HexabusControlParameters;
 import nl.tno.hexabus.api.HexabusState;
@@ -21,12 +21,29 @@ import org.osgi.framework.ServiceRegistration;
 public class HexabusDriver extends AbstractResourceDriver<HexabusState, HexabusControlParameters> {
     // private static final Logger log = LoggerFactory.getLogger(HexabusDriver.class);
 
-    private static boolean isSwitch(Endpoint<?> endpoint) {
-        return endpoint.getDescription().contains("Switch") && endpoint.getType() == Data.Bool.class;
-    }
+    /**
+     * The endpoints of the device that the driver uses, derived from the endpoints that were known at a version.
+     */
+    private static final class Capabilities {
+        private final int version;
+        private final Endpoint<Data.Bool> switchEndpoint;
+        private final Endpoint<Data.UInt32> powerEndpoint;
+
+        Capabilities(Device device) {
+            // Read the version first, so endpoints that are added while detecting cause another detection
+            version = device.getEndpointsVersion();
+            switchEndpoint = detect(device.getEndpoints(Data.Bool.class), "Switch");
+            powerEndpoint = detect(device.getEndpoints(Data.UInt32.class), "Power");
+        }
 
-    private static boolean isPower(Endpoint<?> endpoint) {
-        return endpoint.getDescription().contains("Power") && endpoint.getType() == Data.UInt32.class;
+        private static <D extends Data> Endpoint<D> detect(List<Endpoint<D>> endpoints, String description) {
+            for (Endpoint<D> endpoint : endpoints) {
+                if (endpoint.getDescription().contains(description)) {
+                    return endpoint;
+                }
+            }
+            return null;
+        }
     }
 
     private static final class HexabusStateImpl implements HexabusState {
@@ -57,17 +74,20 @@ public class HexabusDriver extends AbstractResourceDriver<HexabusState, HexabusC
 
     private final Device device;
     private final ServiceRegistration<?> serviceRegistration;
+    private volatile Capabilities capabilities;
 
     public HexabusDriver(BundleContext bundleContext, Device device) {
         this.device = device;
+        capabilities = new Capabilities(device);
 
         device.setListener(new Device.Listener() {
             @Override
             public void updated(Endpoint<?> endpoint, final Data data) {
-                if (isPower(endpoint)) {
+                Capabilities capabilities = capabilities();
+                if (endpoint == capabilities.powerEndpoint) {
                     final boolean switchedOn = HexabusDriver.this.isSwitchedOn();
                     publishState(new HexabusStateImpl(true, switchedOn, (Long) data.getValue()));
-                } else if (isSwitch(endpoint)) {
+                } else if (endpoint == capabilities.switchEndpoint) {
                     final long currentPower = HexabusDriver.this.getCurrentPower();
                     publishState(new HexabusStateImpl(true,
                                                       (Boolean) data.getValue(),
@@ -101,26 +121,24 @@ public class HexabusDriver extends AbstractResourceDriver<HexabusState, HexabusC
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private Endpoint<Data.Bool> detectSwitch() {
-        Collection<Endpoint<?>> endpoints = device.getEndpoints();
-        for (Endpoint<?> endpoint : endpoints) {
-            if (isSwitch(endpoint)) {
-                return (Endpoint<Bool>) endpoint;
-            }
+    /**
+     * @return The detected endpoints, which are only detected again when the device has announced new endpoints.
+     */
+    private Capabilities capabilities() {
+        Capabilities current = capabilities;
+        if (current.version != device.getEndpointsVersion()) {
+            current = new Capabilities(device);
+            capabilities = current;
         }
-        return null;
+        return current;
+    }
+
+    private Endpoint<Data.Bool> detectSwitch() {
+        return capabilities().switchEndpoint;
     }
 
-    @SuppressWarnings("unchecked")
     private Endpoint<Data.UInt32> detectPower() {
-        Collection<Endpoint<?>> endpoints = device.getEndpoints();
-        for (Endpoint<?> endpoint : endpoints) {
-            if (isPower(endpoint)) {
-                return (Endpoint<Data.UInt32>) endpoint;
-            }
-        }
-        return null;
+        return capabilities().powerEndpoint;
     }
 
     public long getCurrentPower() {
@@ -3,16 +3,16 @@ package nl.tno.hexabus.protocol;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
@@ -33,9 +33,20 @@ public class Channel implements Closeable {
         }
     }
 
+    // The time in milliseconds between two rounds in which the listeners are asked for requests, which bounds how
+    // late a retransmission or a request that was queued by another thread is sent
+    private static final int ROUND_TIME = 100;
+
     public interface Communicator {
+        /**
+         * @return <code>true</code> when the communicator has new requests that can be sent right away.
+         */
         boolean handlePacket(Packet packet, Channel channel);
 
+        /**
+         * @return The next request that should be sent now, or <code>null</code> when there is none. This is called
+         *         each round until it returns <code>null</code>.
+         */
         Packet getNextRequest();
     }
 
@@ -88,14 +99,15 @@ public class Channel implements Closeable {
 
                 try {
                     pendingRequests.set(false);
-                    for (DatagramPacket p : getPendingPackets()) {
-                        socket.send(p);
-                    }
-
-                    DatagramPacket p = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
-                    while (running.get() && !pendingRequests.get()) {
-                        socket.receive(p);
-                        pendingRequests.set(receivedData(p));
+                    sendPendingPackets(socket);
+
+                    // Also end the round when packets keep coming in, so timed out requests are sent again
+                    long roundEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                    while (running.get() && !pendingRequests.get() && System.nanoTime() - roundEnd < 0) {
+                        // The length is set to that of the received packet, so it has to be reset for the next one
+                        receivePacket.setLength(MAX_PACKET_SIZE);
+                        socket.receive(receivePacket);
+                        pendingRequests.set(receivedData(receivePacket));
                     }
                 } catch (SocketTimeoutException ex) {
                     // Expected, just loop and try again
@@ -159,6 +171,12 @@ public class Channel implements Closeable {
 
     private volatile MulticastSocket socket;
 
+    // Only used by the ChannelThread, so every packet is encoded and decoded in the same buffers
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    private final DatagramPacket sendPacket = new DatagramPacket(sendBuffer.array(), MAX_PACKET_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    private final DatagramPacket receivePacket = new DatagramPacket(receiveBuffer.array(), MAX_PACKET_SIZE);
+
     public Channel(Communicator restListener) {
         codec = new PacketCodec();
         this.restListener = restListener;
@@ -166,7 +184,7 @@ public class Channel implements Closeable {
         running = new AtomicBoolean(true);
         pendingRequests = new AtomicBoolean(false);
 
-        readThread = new ChannelThread(3000);
+        readThread = new ChannelThread(ROUND_TIME);
     }
 
     public void open() {
@@ -192,21 +210,32 @@ public class Channel implements Closeable {
         }
     }
 
-    List<DatagramPacket> getPendingPackets() {
-        List<DatagramPacket> result = new ArrayList<DatagramPacket>();
+    /**
+     * Sends the requests of each listener that are due. The socket copies the packet while sending, so all requests are
+     * encoded in the same buffer.
+     */
+    void sendPendingPackets(DatagramSocket socket) throws IOException {
         for (Communicator c : listeners.values()) {
-            Packet packet = c.getNextRequest();
-            if (packet != null) {
-                ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
-                codec.write(packet, buffer);
-                result.add(new DatagramPacket(buffer.array(), buffer.limit(), packet.getAddress(), packet.getPort()));
+            Packet packet;
+            while ((packet = c.getNextRequest()) != null) {
+                codec.write(packet, sendBuffer);
+                sendPacket.setData(sendBuffer.array(), 0, sendBuffer.limit());
+                sendPacket.setAddress(packet.getAddress());
+                sendPacket.setPort(packet.getPort());
+                socket.send(sendPacket);
             }
         }
-        return result;
     }
 
     boolean receivedData(DatagramPacket dp) {
-        ByteBuffer buffer = ByteBuffer.wrap(dp.getData(), dp.getOffset(), dp.getLength());
+        ByteBuffer buffer;
+        if (dp.getData() == receiveBuffer.array()) {
+            buffer = receiveBuffer;
+            buffer.clear();
+            buffer.limit(dp.getLength());
+        } else {
+            buffer = ByteBuffer.wrap(dp.getData(), dp.getOffset(), dp.getLength());
+        }
         Packet packet = codec.read((Inet6Address) dp.getAddress(), dp.getPort(), buffer);
         if (packet != null) {
             Communicator listener = listeners.get(dp.getAddress());
@@ -1,12 +1,18 @@
 package nl.tno.hexabus.protocol;
 
 import java.net.Inet6Address;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import nl.tno.hexabus.protocol.Channel.Communicator;
 import nl.tno.hexabus.protocol.Packet.EndpointInfo;
@@ -19,9 +25,55 @@ import nl.tno.hexabus.protocol.Packet.Write;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * A {@link Device} keeps track of the endpoints of a single Hexabus device and of the requests that are sent to it.
+ * Up to a window of requests may be outstanding at the same time, so a slow device does not hold up the others and a
+ * device with many endpoints is queried in fewer rounds.
+ *
+ * The Hexabus protocol has no sequence numbers, so a reply is matched on the endpoint it is about: an
+ * {@link EndpointInfo} answers the {@link EndpointQuery} for its eid, and an {@link Info} answers the {@link Query} for
+ * its eid or the {@link Write} of the same data. Only one request per endpoint and reply type is outstanding, so the
+ * match is never ambiguous. An {@link Error} answers the oldest outstanding request. Requests that are not answered
+ * within the timeout are sent again, until the maximum number of attempts has been reached.
+ */
 public class Device implements Communicator {
     static final Logger log = LoggerFactory.getLogger(Device.class);
 
+    public static final int DEFAULT_WINDOW = 4;
+    public static final long DEFAULT_TIMEOUT = 1000;
+    public static final int DEFAULT_ATTEMPTS = 5;
+
+    /**
+     * A request that has been sent and waits for its reply.
+     */
+    private static final class Outstanding {
+        final Packet packet;
+        long sentAt;
+        int attempts;
+
+        Outstanding(Packet packet, long sentAt) {
+            this.packet = packet;
+            this.sentAt = sentAt;
+            attempts = 1;
+        }
+    }
+
+    /**
+     * @return The key on which the reply to the request is matched: the eid, with a bit that tells whether an
+     *         {@link EndpointInfo} or an {@link Info} is expected.
+     */
+    private static int replyKey(Packet request) {
+        if (request instanceof EndpointQuery) {
+            return 0x100 | (((EndpointQuery) request).getEid() & 0xff);
+        } else if (request instanceof Query) {
+            return ((Query) request).getEid() & 0xff;
+        } else if (request instanceof Write) {
+            return ((Write) request).getData().getEid() & 0xff;
+        } else {
+            throw new IllegalArgumentException("Not a request: " + request);
+        }
+    }
+
     public interface Listener {
         void updated(Endpoint<?> endpoint, Data data);
     }
@@ -35,6 +87,7 @@ public class Device implements Communicator {
         private final Class<D> type;
         private final String description;
         private D data;
+        private int updates, failures;
 
         protected Endpoint(int eid, Class<D> type, String description) {
             this.eid = (byte) eid;
@@ -73,6 +126,7 @@ public class Device implements Communicator {
 
             synchronized (this) {
                 this.data = (D) data;
+                updates++;
                 notifyAll();
                 log.debug("Updated {}_{} {}", address, port, this);
 
@@ -86,11 +140,29 @@ public class Device implements Communicator {
             addRequest(new Packet.Query(address, port, eid));
         }
 
+        synchronized void failed() {
+            failures++;
+            notifyAll();
+        }
+
+        /**
+         * Queries the endpoint and waits until it has been updated, or until the query has been given up after the
+         * maximum number of attempts.
+         *
+         * @return The data of the endpoint, which is the old data (or <code>null</code>) when the query failed.
+         */
         public synchronized D queryAndWait() {
+            int updated = updates, failed = failures;
             query();
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout * (maxAttempts + 1));
             try {
-                wait(10000);
+                long remaining;
+                while (updates == updated && failures == failed && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
             } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
             return data;
         }
@@ -113,7 +185,7 @@ public class Device implements Communicator {
 
             for (int i = 1; i < 32; i++) {
                 if (((endpoints >>> (i - 1)) & 1) != 0) {
-                    if (!Device.this.endpoints.containsKey(i + getEid())) {
+                    if (getEndpoint(i + getEid()) == null) {
                         addRequest(new Packet.EndpointQuery(address, port, i + getEid()));
                     }
                 }
@@ -142,18 +214,27 @@ public class Device implements Communicator {
 
     private final Inet6Address address;
     private final int port;
+    // Written by the channel thread only, but read concurrently by the drivers
     private final Map<Byte, Endpoint<?>> endpoints;
+    private final Map<Class<? extends Data>, List<Endpoint<?>>> endpointsByType;
+    private volatile int endpointsVersion;
 
-    private volatile Packet pendingRequest;
-    private final Queue<Packet> sendingQueue;
+    // Guarded by the sendingQueue. The set makes the check for duplicate requests constant time.
+    private final Set<Packet> sendingQueue;
+    private final Map<Integer, Outstanding> outstanding;
+    private int window = DEFAULT_WINDOW;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile int maxAttempts = DEFAULT_ATTEMPTS;
+    private long retransmissions, failedRequests;
 
     public Device(Inet6Address address, int port) {
         this.address = address;
         this.port = port;
-        endpoints = new HashMap<Byte, Device.Endpoint<?>>();
+        endpoints = new ConcurrentHashMap<Byte, Device.Endpoint<?>>();
+        endpointsByType = new ConcurrentHashMap<Class<? extends Data>, List<Endpoint<?>>>();
 
-        pendingRequest = null;
-        sendingQueue = new ConcurrentLinkedQueue<Packet>();
+        sendingQueue = new LinkedHashSet<Packet>();
+        outstanding = new LinkedHashMap<Integer, Outstanding>();
 
         // Start to query for the endpoints on the device
         addRequest(new Packet.EndpointQuery(address, port, 0));
@@ -165,34 +246,164 @@ public class Device implements Communicator {
         this.listener = listener;
     }
 
+    /**
+     * @param window
+     *            The number of requests that may be outstanding at the same time, 1 to wait for each reply before the
+     *            next request is sent.
+     */
+    public void setWindow(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("The window should be at least 1, but got " + window);
+        }
+        synchronized (sendingQueue) {
+            this.window = window;
+        }
+    }
+
+    /**
+     * @param timeout
+     *            The time in milliseconds after which an unanswered request is sent again.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param maxAttempts
+     *            The number of times a request is sent before it is given up.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return The number of requests that have been sent again, because they were not answered in time.
+     */
+    public long getRetransmissions() {
+        synchronized (sendingQueue) {
+            return retransmissions;
+        }
+    }
+
+    /**
+     * @return The number of requests that have been given up, because they were never answered or the device
+     *         answered with an error.
+     */
+    public long getFailedRequests() {
+        synchronized (sendingQueue) {
+            return failedRequests;
+        }
+    }
+
     @Override
     public boolean handlePacket(Packet packet, Channel channel) {
         packet.visit(packetHandler);
-        return pendingRequest != null || !sendingQueue.isEmpty();
+        synchronized (sendingQueue) {
+            return outstanding.size() < window && !sendingQueue.isEmpty();
+        }
     }
 
+    /**
+     * Returns the request that is due first: an outstanding request that timed out, or the next queued request when
+     * the window is not full. Requests that have been given up are dropped. This is called until it returns
+     * <code>null</code>.
+     */
     @Override
     public Packet getNextRequest() {
-        // Resend if we didn't get an answer, otherwise try to determine the next one
-        if (pendingRequest == null) {
-            pendingRequest = sendingQueue.poll();
-            if (pendingRequest != null) {
-                log.trace("Sending next request {}, in queue {}", pendingRequest, sendingQueue);
+        List<Packet> failed = null;
+        try {
+            synchronized (sendingQueue) {
+                long now = System.nanoTime();
+                long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+                for (Iterator<Outstanding> it = outstanding.values().iterator(); it.hasNext();) {
+                    Outstanding request = it.next();
+                    if (now - request.sentAt >= timeoutNanos) {
+                        if (request.attempts >= maxAttempts) {
+                            it.remove();
+                            failedRequests++;
+                            if (failed == null) {
+                                failed = new ArrayList<Packet>();
+                            }
+                            failed.add(request.packet);
+                            log.debug("Giving up request {} after {} attempts", request.packet, request.attempts);
+                            continue;
+                        }
+                        request.attempts++;
+                        request.sentAt = now;
+                        retransmissions++;
+                        log.trace("Resending request {}, attempt {}", request.packet, request.attempts);
+                        return request.packet;
+                    }
+                }
+
+                if (outstanding.size() < window) {
+                    for (Iterator<Packet> it = sendingQueue.iterator(); it.hasNext();) {
+                        Packet packet = it.next();
+                        Integer key = replyKey(packet);
+                        // A request waits while another one for the same endpoint is outstanding, so replies match
+                        if (!outstanding.containsKey(key)) {
+                            it.remove();
+                            outstanding.put(key, new Outstanding(packet, now));
+                            log.trace("Sending next request {}, in queue {}", packet, sendingQueue);
+                            return packet;
+                        }
+                    }
+                }
+                return null;
+            }
+        } finally {
+            if (failed != null) {
+                for (Packet request : failed) {
+                    requestFailed(request);
+                }
             }
-        } else {
-            log.trace("Resending request {}, in queue {}", pendingRequest, sendingQueue);
         }
-        return pendingRequest;
     }
 
     void addRequest(Packet packet) {
         synchronized (sendingQueue) {
-            if (!packet.equals(pendingRequest) && !sendingQueue.contains(packet)) {
+            Outstanding request = outstanding.get(replyKey(packet));
+            if ((request == null || !request.packet.equals(packet)) && !sendingQueue.contains(packet)) {
                 sendingQueue.add(packet);
             }
         }
     }
 
+    /**
+     * Removes the outstanding request that is answered by the reply.
+     *
+     * @param key
+     *            The key of the reply, see {@link #replyKey(Packet)}.
+     * @param data
+     *            The data of the reply, which only answers a {@link Write} of equal data, or <code>null</code> for an
+     *            {@link EndpointInfo}.
+     * @return <code>true</code> when the reply was expected.
+     */
+    private boolean answered(int key, Data data) {
+        synchronized (sendingQueue) {
+            Outstanding request = outstanding.get(key);
+            if (request == null || (request.packet instanceof Write && !((Write) request.packet).getData()
+                                                                                                .equals(data))) {
+                return false;
+            }
+            outstanding.remove(key);
+            return true;
+        }
+    }
+
+    /**
+     * Lets anyone waiting for the endpoint of a failed query know that no answer will come. Must not be called while
+     * holding the lock on the queue, as the endpoint calls the listener while holding its own lock.
+     */
+    private void requestFailed(Packet request) {
+        if (request instanceof Query) {
+            Endpoint<?> endpoint = endpoints.get(((Query) request).getEid());
+            if (endpoint != null) {
+                endpoint.failed();
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "Device on (" + address + " - " + port + ") -> " + endpoints.values();
@@ -202,15 +413,52 @@ public class Device implements Communicator {
         return Collections.unmodifiableCollection(endpoints.values());
     }
 
+    /**
+     * @return The endpoint with the given eid, or <code>null</code> when the device has not announced it (yet).
+     */
+    public Endpoint<?> getEndpoint(int eid) {
+        return endpoints.get((byte) eid);
+    }
+
+    /**
+     * @return The endpoints of which the data has the given type, in the order in which they have been announced.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public <D extends Data> List<Endpoint<D>> getEndpoints(Class<D> type) {
+        List<Endpoint<?>> result = endpointsByType.get(type);
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        return (List) Collections.unmodifiableList(result);
+    }
+
+    /**
+     * @return A number that changes each time an endpoint is added, so users that derive something from the endpoints
+     *         only have to do so again when it has changed.
+     */
+    public int getEndpointsVersion() {
+        return endpointsVersion;
+    }
+
+    private void addEndpoint(Endpoint<?> endpoint) {
+        List<Endpoint<?>> ofType = endpointsByType.get(endpoint.getType());
+        if (ofType == null) {
+            ofType = new CopyOnWriteArrayList<Endpoint<?>>();
+            endpointsByType.put(endpoint.getType(), ofType);
+        }
+        ofType.add(endpoint);
+        endpoints.put(endpoint.getEid(), endpoint);
+        endpointsVersion++;
+    }
+
     private final Packet.Visitor packetHandler = new Packet.Visitor() {
         @Override
         public void visit(EndpointInfo endpointInfo) {
             byte eid = endpointInfo.getData().getEid();
             Data.Text data = endpointInfo.getData();
 
-            if (pendingRequest instanceof EndpointQuery && ((EndpointQuery) pendingRequest).getEid() == data.getEid()) {
+            if (answered(0x100 | (eid & 0xff), null)) {
                 log.trace("Handling expected {}", endpointInfo);
-                pendingRequest = null;
             } else {
                 log.trace("Handling unexpected {}", endpointInfo);
             }
@@ -218,11 +466,11 @@ public class Device implements Communicator {
             if (endpointInfo.getEndpointType() != Data.Unknown.class) {
                 if (!endpoints.containsKey(eid)) {
                     if ((eid & 31) == 0) {
-                        endpoints.put(eid, new DescriptorEndpoint(eid));
+                        addEndpoint(new DescriptorEndpoint(eid));
                     } else if (data.getValue().contains("Pushbutton")) {
-                        endpoints.put(eid, new PushButtonEndpoint(eid, data.getValue()));
+                        addEndpoint(new PushButtonEndpoint(eid, data.getValue()));
                     } else {
-                        endpoints.put(eid, createEndpoint(eid, endpointInfo.getEndpointType(), data.getValue()));
+                        addEndpoint(createEndpoint(eid, endpointInfo.getEndpointType(), data.getValue()));
                     }
                 }
             }
@@ -235,9 +483,22 @@ public class Device implements Communicator {
 
         @Override
         public void visit(Error packet) {
-            log.trace("The packet {} got an error response {}", pendingRequest, packet.getErrorCode());
-            if (packet.getErrorCode() != Error.Code.CRCFAILED) {
-                pendingRequest = null; // Drop the request that causes the error
+            // The error does not tell which request caused it, the device answers in order so it is the oldest
+            Packet request = null;
+            synchronized (sendingQueue) {
+                Iterator<Outstanding> it = outstanding.values().iterator();
+                if (it.hasNext()) {
+                    request = it.next().packet;
+                    // After a CRC failure the request is sent again when it times out, otherwise it is dropped
+                    if (packet.getErrorCode() != Error.Code.CRCFAILED) {
+                        it.remove();
+                        failedRequests++;
+                    }
+                }
+            }
+            log.trace("The packet {} got an error response {}", request, packet.getErrorCode());
+            if (request != null && packet.getErrorCode() != Error.Code.CRCFAILED) {
+                requestFailed(request);
             }
         }
 
@@ -246,12 +507,8 @@ public class Device implements Communicator {
             Data data = packet.getData();
             Endpoint<?> endpoint = endpoints.get(data.getEid());
 
-            if (pendingRequest instanceof Query && ((Query) pendingRequest).getEid() == data.getEid()) {
-                log.trace("Handling expected query {}", packet);
-                pendingRequest = null;
-            } else if (pendingRequest instanceof Write && ((Write) pendingRequest).getData().equals(packet.getData())) {
-                log.trace("Handling expected write {}", packet);
-                pendingRequest = null;
+            if (answered(data.getEid() & 0xff, data)) {
+                log.trace("Handling expected {}", packet);
             } else {
                 log.trace("Handling unexpected {}", packet);
             }
@@ -6,6 +6,8 @@ import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 
@@ -15,6 +17,10 @@ import nl.tno.hexabus.protocol.TypeMap.Coded;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Encodes and decodes Hexabus packets. A codec keeps its encoder state between packets, so it is not thread-safe; each
+ * {@link Channel} has its own.
+ */
 public class PacketCodec {
     public static class HexDumper {
         private static final char[] hex = "0123456789abcdef".toCharArray();
@@ -41,26 +47,43 @@ public class PacketCodec {
 
     public static final Charset ASCII = Charset.forName("US-ASCII");
 
-    public static char crc(byte[] bytes, int offset, int limit) {
-        char crc = 0x00; // char is an unsigned 16 bit value
-        for (int ix = offset; ix < limit; ix++) {
-            byte b = bytes[ix];
-            crc ^= (b & 0xff);
-            crc = (char) ((crc >> 8) | (crc << 8));
+    // The CRC of each byte value, starting from 0. The high byte of the running CRC does not take part in the update of
+    // a byte, so it can be shifted out and XORed with the table entry.
+    private static final char[] CRC_TABLE = new char[256];
+    static {
+        for (int b = 0; b < 256; b++) {
+            char crc = (char) (b << 8); // char is an unsigned 16 bit value
             crc ^= (crc & 0xff00) << 4;
             crc ^= (crc >> 8) >> 4;
             crc ^= (crc & 0xff00) >> 5;
+            CRC_TABLE[b] = crc;
+        }
+    }
+
+    /**
+     * Calculates the CRC-16 (CCITT) of a range of bytes, as used by Contiki, one byte at a time through a lookup table.
+     */
+    public static char crc(byte[] bytes, int offset, int limit) {
+        char crc = 0x00;
+        for (int ix = offset; ix < limit; ix++) {
+            crc = (char) ((crc >> 8) ^ CRC_TABLE[(crc ^ bytes[ix]) & 0xff]);
         }
         return crc;
     }
 
     private static final Logger log = LoggerFactory.getLogger(PacketCodec.class);
 
+    private final CharsetDecoder decoder = ASCII.newDecoder();
+    private final CharsetEncoder encoder = ASCII.newEncoder();
+    private final Writer writer = new Writer();
+
     public Packet read(Inet6Address address, int port, ByteBuffer buffer) {
         buffer.order(ByteOrder.BIG_ENDIAN);
         buffer.rewind();
 
-        log.trace("Decoding packet from {}_{}: {}", address, port, new HexDumper(buffer));
+        if (log.isTraceEnabled()) {
+            log.trace("Decoding packet from {}_{}: {}", address, port, new HexDumper(buffer));
+        }
 
         int header = buffer.getInt();
         if (header != HEADER) {
@@ -146,7 +169,7 @@ public class PacketCodec {
         buffer.limit(buffer.position() + 128);
 
         try {
-            return ASCII.newDecoder().decode(buffer).toString().trim();
+            return decoder.decode(buffer).toString().trim();
         } catch (CharacterCodingException e) {
             return "";
         } finally {
@@ -175,7 +198,7 @@ public class PacketCodec {
         return calendar;
     }
 
-    public void write(final Packet packet, final ByteBuffer buffer) {
+    public void write(Packet packet, ByteBuffer buffer) {
         log.trace("Writing packet {}", packet);
         byte type = getType(packet.getClass());
 
@@ -185,45 +208,15 @@ public class PacketCodec {
         buffer.put(type);
         buffer.put((byte) 0);
 
-        packet.visit(new Packet.Visitor() {
-            @Override
-            public void visit(Packet.EndpointInfo packet) {
-                byte type = getType(packet.getEndpointType());
-                write(type, packet.getData(), buffer);
-            }
-
-            @Override
-            public void visit(Packet.EndpointQuery packet) {
-                buffer.put(packet.getEid());
-            }
-
-            @Override
-            public void visit(Packet.Error packet) {
-                buffer.put(packet.getErrorCode().getValue());
-            }
-
-            @Override
-            public void visit(Packet.Info packet) {
-                byte type = getType(packet.getData().getClass());
-                write(type, packet.getData(), buffer);
-            }
-
-            @Override
-            public void visit(Packet.Query packet) {
-                buffer.put(packet.getEid());
-            }
-
-            @Override
-            public void visit(Write packet) {
-                byte type = getType(packet.getData().getClass());
-                write(type, packet.getData(), buffer);
-            }
-        });
+        writer.buffer = buffer;
+        packet.visit(writer);
 
         buffer.putChar(PacketCodec.crc(buffer.array(), 0, buffer.position()));
         buffer.flip();
 
-        log.trace("Written packet {}", new HexDumper(buffer));
+        if (log.isTraceEnabled()) {
+            log.trace("Written packet {}", new HexDumper(buffer));
+        }
     }
 
     private byte getType(final Class<?> clazz) {
@@ -235,64 +228,104 @@ public class PacketCodec {
         return coded.value();
     }
 
-    void write(byte type, final Data data, final ByteBuffer buffer) {
+    void write(byte type, Data data, ByteBuffer buffer) {
         buffer.put(data.getEid());
         buffer.put(type);
 
-        data.visit(new Data.Visitor<Void>() {
-            @Override
-            public Void visit(Data.Timestamp data) {
-                buffer.putLong(data.get());
-                return null;
-            }
+        writer.buffer = buffer;
+        data.visit(writer);
+    }
 
-            @Override
-            public Void visit(Data.Text data) {
-                int end = buffer.position() + 128;
-                ASCII.newEncoder().encode(CharBuffer.wrap(data.getValue()), buffer, true);
-                while (buffer.position() < end) {
-                    buffer.put((byte) 0);
-                }
-                return null;
-            }
+    /**
+     * Writes the content of packets and data in the buffer of the last {@link PacketCodec#write(Packet, ByteBuffer)}.
+     * A single instance is reused, so writing a packet does not create visitors.
+     */
+    private final class Writer implements Packet.Visitor, Data.Visitor<Void> {
+        ByteBuffer buffer;
 
-            @Override
-            public Void visit(Data.Float data) {
-                buffer.putFloat(data.get());
-                return null;
-            }
+        @Override
+        public void visit(Packet.EndpointInfo packet) {
+            write(getType(packet.getEndpointType()), packet.getData(), buffer);
+        }
 
-            @Override
-            public Void visit(Data.DateTime data) {
-                Calendar c = data.getValue();
-                buffer.put((byte) (c.get(Calendar.HOUR_OF_DAY) & 0xFF));
-                buffer.put((byte) (c.get(Calendar.MINUTE) & 0xFF));
-                buffer.put((byte) (c.get(Calendar.SECOND) & 0xFF));
-                buffer.put((byte) (c.get(Calendar.DAY_OF_MONTH) & 0xFF));
-                buffer.put((byte) ((c.get(Calendar.MONTH) + 1) & 0xFF));
-                buffer.put((byte) ((c.get(Calendar.YEAR) & 0xFF00) >> 8));
-                buffer.put((byte) (c.get(Calendar.YEAR) & 0x00FF));
-                buffer.put((byte) ((c.get(Calendar.DAY_OF_WEEK) - 1) & 0xFF));
-                return null;
-            }
+        @Override
+        public void visit(Packet.EndpointQuery packet) {
+            buffer.put(packet.getEid());
+        }
 
-            @Override
-            public Void visit(Data.UInt32 data) {
-                buffer.putInt((int) data.get());
-                return null;
-            }
+        @Override
+        public void visit(Packet.Error packet) {
+            buffer.put(packet.getErrorCode().getValue());
+        }
 
-            @Override
-            public Void visit(Data.UInt8 data) {
-                buffer.put((byte) data.get());
-                return null;
-            }
+        @Override
+        public void visit(Packet.Info packet) {
+            write(getType(packet.getData().getClass()), packet.getData(), buffer);
+        }
 
-            @Override
-            public Void visit(Data.Bool data) {
-                buffer.put(data.get() ? (byte) 1 : (byte) 0);
-                return null;
+        @Override
+        public void visit(Packet.Query packet) {
+            buffer.put(packet.getEid());
+        }
+
+        @Override
+        public void visit(Write packet) {
+            write(getType(packet.getData().getClass()), packet.getData(), buffer);
+        }
+
+        @Override
+        public Void visit(Data.Timestamp data) {
+            buffer.putLong(data.get());
+            return null;
+        }
+
+        @Override
+        public Void visit(Data.Text data) {
+            int end = buffer.position() + 128;
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(data.getValue()), buffer, true);
+            while (buffer.position() < end) {
+                buffer.put((byte) 0);
             }
-        });
+            return null;
+        }
+
+        @Override
+        public Void visit(Data.Float data) {
+            buffer.putFloat(data.get());
+            return null;
+        }
+
+        @Override
+        public Void visit(Data.DateTime data) {
+            Calendar c = data.getValue();
+            buffer.put((byte) (c.get(Calendar.HOUR_OF_DAY) & 0xFF));
+            buffer.put((byte) (c.get(Calendar.MINUTE) & 0xFF));
+            buffer.put((byte) (c.get(Calendar.SECOND) & 0xFF));
+            buffer.put((byte) (c.get(Calendar.DAY_OF_MONTH) & 0xFF));
+            buffer.put((byte) ((c.get(Calendar.MONTH) + 1) & 0xFF));
+            buffer.put((byte) ((c.get(Calendar.YEAR) & 0xFF00) >> 8));
+            buffer.put((byte) (c.get(Calendar.YEAR) & 0x00FF));
+            buffer.put((byte) ((c.get(Calendar.DAY_OF_WEEK) - 1) & 0xFF));
+            return null;
+        }
+
+        @Override
+        public Void visit(Data.UInt32 data) {
+            buffer.putInt((int) data.get());
+            return null;
+        }
+
+        @Override
+        public Void visit(Data.UInt8 data) {
+            buffer.put((byte) data.get());
+            return null;
+        }
+
+        @Override
+        public Void visit(Data.Bool data) {
+            buffer.put(data.get() ? (byte) 1 : (byte) 0);
+            return null;
+        }
     }
 }
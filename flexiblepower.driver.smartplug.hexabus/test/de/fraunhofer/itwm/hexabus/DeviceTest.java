@@ -0,0 +1,205 @@
+package de.fraunhofer.itwm.hexabus;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import nl.tno.hexabus.protocol.Data;
+import nl.tno.hexabus.protocol.Device;
+import nl.tno.hexabus.protocol.Device.Endpoint;
+import nl.tno.hexabus.protocol.Packet;
+
+public class DeviceTest extends TestCase {
+    private Inet6Address address;
+    private int port;
+    private Device device;
+
+    @Override
+    protected void setUp() throws Exception {
+        address = (Inet6Address) InetAddress.getByName("fe80::1");
+        port = 61616;
+        device = new Device(address, port);
+    }
+
+    private List<Packet> drain() {
+        List<Packet> packets = new ArrayList<Packet>();
+        Packet packet;
+        while ((packet = device.getNextRequest()) != null) {
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    private boolean endpointInfo(int eid, Class<? extends Data> type, String description) {
+        return device.handlePacket(new Packet.EndpointInfo(address, port, type, new Data.Text(eid, description)),
+                                   null);
+    }
+
+    private boolean info(Data data) {
+        return device.handlePacket(new Packet.Info(address, port, data), null);
+    }
+
+    private Endpoint<?> endpoint(int eid) {
+        for (Endpoint<?> endpoint : device.getEndpoints()) {
+            if (endpoint.getEid() == eid) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answers the endpoint query of the constructor and announces a switch and a power endpoint, which are queried.
+     */
+    private void discover() {
+        assertEquals(Arrays.asList(new Packet.EndpointQuery(address, port, 0)), drain());
+        assertTrue(endpointInfo(0, Data.UInt32.class, "Device descriptor"));
+        endpointInfo(1, Data.Bool.class, "Switch");
+        endpointInfo(2, Data.UInt32.class, "Power");
+    }
+
+    public void testWindow() {
+        device.setWindow(2);
+        discover();
+
+        // All three queries are queued, but only two are sent
+        assertEquals(Arrays.asList(new Packet.Query(address, port, 0), new Packet.Query(address, port, 1)), drain());
+        assertTrue(drain().isEmpty());
+
+        // A reply makes room for the third
+        assertTrue(info(new Data.Bool(1, true)));
+        assertEquals(Boolean.TRUE, endpoint(1).getData().getValue());
+        assertEquals(Arrays.asList(new Packet.Query(address, port, 2)), drain());
+
+        // Unexpected info updates the endpoint, but does not answer anything
+        assertFalse(info(new Data.Bool(1, false)));
+        assertEquals(Boolean.FALSE, endpoint(1).getData().getValue());
+        assertTrue(drain().isEmpty());
+    }
+
+    public void testDeduplication() {
+        discover();
+        drain();
+
+        // The query for the switch is outstanding, so querying it again adds nothing
+        endpoint(1).query();
+        endpoint(1).query();
+        assertTrue(drain().isEmpty());
+
+        info(new Data.Bool(1, true));
+        endpoint(1).query();
+        endpoint(1).query();
+        assertEquals(Arrays.asList(new Packet.Query(address, port, 1)), drain());
+    }
+
+    public void testRequestsForTheSameEndpointWait() {
+        discover();
+        drain();
+
+        device.write(new Data.Bool(1, true));
+        assertTrue(drain().isEmpty());
+
+        // The reply to the query does not answer the write, which is only sent now
+        info(new Data.Bool(1, false));
+        assertEquals(Arrays.asList(new Packet.Write(address, port, new Data.Bool(1, true))), drain());
+        info(new Data.Bool(1, false));
+        assertTrue(drain().isEmpty());
+        info(new Data.Bool(1, true));
+        device.write(new Data.Bool(1, false));
+        assertEquals(Arrays.asList(new Packet.Write(address, port, new Data.Bool(1, false))), drain());
+    }
+
+    public void testRetransmission() throws InterruptedException {
+        device.setTimeout(50);
+        device.setMaxAttempts(2);
+        assertEquals(1, drain().size());
+        assertTrue(drain().isEmpty());
+
+        Thread.sleep(70);
+        assertEquals(Arrays.asList(new Packet.EndpointQuery(address, port, 0)), drain());
+        assertEquals(1, device.getRetransmissions());
+
+        Thread.sleep(70);
+        assertTrue(drain().isEmpty());
+        assertEquals(1, device.getFailedRequests());
+    }
+
+    public void testError() {
+        discover();
+        assertEquals(3, drain().size());
+
+        // The error answers the oldest request, the query for the descriptor
+        device.handlePacket(new Packet.Error(address, port, Packet.Error.Code.UNKNOWNEID), null);
+        assertEquals(1, device.getFailedRequests());
+        assertTrue(drain().isEmpty());
+        endpoint(0).query();
+        assertEquals(Arrays.asList(new Packet.Query(address, port, 0)), drain());
+    }
+
+    public void testEndpointIndex() {
+        assertEquals(0, device.getEndpointsVersion());
+        assertTrue(device.getEndpoints(Data.Bool.class).isEmpty());
+        discover();
+        int version = device.getEndpointsVersion();
+        assertEquals(3, version);
+
+        assertEquals("Switch", device.getEndpoint(1).getDescription());
+        assertNull(device.getEndpoint(3));
+        List<Endpoint<Data.UInt32>> counters = device.getEndpoints(Data.UInt32.class);
+        assertEquals(2, counters.size());
+        assertEquals(0, counters.get(0).getEid());
+        assertEquals("Power", counters.get(1).getDescription());
+
+        // Announcing a known endpoint again changes nothing
+        endpointInfo(1, Data.Bool.class, "Switch");
+        assertEquals(version, device.getEndpointsVersion());
+        endpointInfo(3, Data.Float.class, "Temperature");
+        assertEquals(version + 1, device.getEndpointsVersion());
+        assertEquals(1, device.getEndpoints(Data.Float.class).size());
+        assertEquals(4, device.getEndpoints().size());
+    }
+
+    public void testDescriptorOnlyQueriesUnknownEndpoints() {
+        discover();
+        drain();
+        // Endpoints 1 and 2 are known, 3 is not, and the next descriptor is queried as well
+        info(new Data.UInt32(0, 7));
+        assertEquals(Arrays.asList(new Packet.EndpointQuery(address, port, 3),
+                                   new Packet.EndpointQuery(address, port, 32)), drain());
+    }
+
+    public void testQueryAndWait() throws InterruptedException {
+        discover();
+        drain();
+        info(new Data.Bool(1, false));
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                drain();
+                info(new Data.Bool(1, true));
+            }
+        }.start();
+        assertEquals(Boolean.TRUE, endpoint(1).queryAndWait().getValue());
+    }
+
+    public void testQueryAndWaitGivesUp() {
+        device.setTimeout(20);
+        device.setMaxAttempts(2);
+        discover();
+        drain();
+
+        long start = System.nanoTime();
+        assertNull(endpoint(1).queryAndWait());
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("Waited " + elapsed + " ms", elapsed < 1000);
+    }
+}
@@ -4,6 +4,7 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.Random;
 
 import junit.framework.TestCase;
 import nl.tno.hexabus.protocol.Channel;
@@ -33,6 +34,22 @@ public class PacketCodecTest extends TestCase {
         return result;
     }
 
+    /**
+     * The original bit by bit CRC, to check the lookup table against.
+     */
+    static char bitwiseCrc(byte[] bytes, int offset, int limit) {
+        char crc = 0x00;
+        for (int ix = offset; ix < limit; ix++) {
+            byte b = bytes[ix];
+            crc ^= (b & 0xff);
+            crc = (char) ((crc >> 8) | (crc << 8));
+            crc ^= (crc & 0xff00) << 4;
+            crc ^= (crc >> 8) >> 4;
+            crc ^= (crc & 0xff00) >> 5;
+        }
+        return crc;
+    }
+
     private final PacketCodec codec;
     private final Inet6Address address;
     private final int port;
@@ -70,4 +87,28 @@ public class PacketCodecTest extends TestCase {
         performTest("485830420900200000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000050",
                     new Packet.EndpointInfo(address, port, Data.Unknown.class, new Data.Text(32, "")));
     }
+
+    public void testCrcTable() {
+        Random random = new Random(42);
+        byte[] bytes = new byte[Channel.MAX_PACKET_SIZE];
+        for (int i = 0; i < 1000; i++) {
+            random.nextBytes(bytes);
+            int offset = random.nextInt(10);
+            int limit = offset + random.nextInt(bytes.length - offset);
+            assertEquals(bitwiseCrc(bytes, offset, limit), PacketCodec.crc(bytes, offset, limit));
+        }
+    }
+
+    public void testReusedBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(Channel.MAX_PACKET_SIZE);
+        Packet[] packets = { new Packet.EndpointInfo(address, port, Data.Bool.class, new Data.Text(1, "Switch")),
+                            new Packet.Query(address, port, 1),
+                            new Packet.Write(address, port, new Data.Bool(1, true)),
+                            new Packet.Info(address, port, new Data.Float(2, 21.5f)),
+                            new Packet.EndpointInfo(address, port, Data.Float.class, new Data.Text(2, "Power")) };
+        for (Packet packet : packets) {
+            codec.write(packet, buffer);
+            assertEquals(packet, codec.read(address, port, buffer));
+        }
+    }
 }
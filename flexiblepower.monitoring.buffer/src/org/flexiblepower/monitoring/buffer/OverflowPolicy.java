@@ -0,0 +1,11 @@
+package org.flexiblepower.monitoring.buffer;
+
+/**
+ * Determines which records are dropped when a {@link SegmentLog} is full.
+ */
+public enum OverflowPolicy {
+    /** New records are dropped, the buffered records are kept */
+    DROP_NEWEST,
+    /** The oldest buffered records are dropped to make room for the new ones */
+    DROP_OLDEST
+}
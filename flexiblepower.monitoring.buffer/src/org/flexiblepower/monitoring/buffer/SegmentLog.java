@@ -0,0 +1,583 @@
+package org.flexiblepower.monitoring.buffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps records until a writer has delivered them. The records are kept in memory, up to the memory capacity. When
+ * more records arrive, they are appended to segment files on disk, and all new records go to disk until the records on
+ * disk have been read back. This way the records are always handed out in the order in which they arrived.
+ *
+ * The size of the segment files is limited by the disk budget. When the budget has been used, either the new records
+ * are dropped, or the oldest segment file is removed, depending on the {@link OverflowPolicy}. Without a directory only
+ * the memory is used, and the policy decides which records are dropped when the memory is full.
+ *
+ * When the log is closed, the records in memory are written to disk as well. The segment files that are found in the
+ * directory are read back when a new log is created, so no records are lost when the writer is restarted. After the
+ * close the segment files belong to that next log, so nothing is read from them anymore.
+ *
+ * A record can hold more than one observation, so the dropped records are counted in observations.
+ *
+ * @param <T>
+ *            The type of the records
+ */
+public class SegmentLog<T> {
+    /**
+     * Turns records into bytes and back, for the segment files.
+     *
+     * @param <T>
+     *            The type of the records
+     */
+    public interface Codec<T> {
+        /**
+         * Writes a single record.
+         */
+        void write(DataOutputStream out, T record) throws IOException;
+
+        /**
+         * Reads a single record, as it has been written by {@link #write(DataOutputStream, Object)}.
+         */
+        T read(DataInputStream in) throws IOException;
+
+        /**
+         * @return The number of observations in the record
+         */
+        int observations(T record);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentLog.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    /** The maximum size of a single segment file in bytes */
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    /** A segment file with the number of records that have not been read yet */
+    private static final class Segment implements Comparable<Segment> {
+        final long id;
+        final File file;
+        long records;
+        long observations;
+        long bytes;
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        @Override
+        public int compareTo(Segment o) {
+            return id < o.id ? -1 : (id == o.id ? 0 : 1);
+        }
+    }
+
+    private File directory;
+    private final int memoryCapacity;
+    private final long diskBudget;
+    private final long segmentSize;
+    private final OverflowPolicy policy;
+    private final Codec<T> codec;
+
+    /** The records in memory, which are always older than the records on disk */
+    private final Deque<T> memory = new ArrayDeque<T>();
+    /** The segment files, the oldest first */
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private long nextSegmentId = 0;
+    private long diskRecords = 0;
+    private long diskBytes = 0;
+
+    /** The segment to which new records are appended, if any */
+    private Segment writeSegment;
+    private DataOutputStream writer;
+
+    /** The segment from which records are being read, if any */
+    private Segment readSegment;
+    private DataInputStream reader;
+
+    /** Reused for serializing a single record */
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(1024);
+    private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+
+    private boolean closed = false;
+
+    private long storedRecords = 0;
+    private long spilledRecords = 0;
+    private long replayedRecords = 0;
+    private long droppedObservations = 0;
+
+    /**
+     * @param directory
+     *            The directory for the segment files, or <code>null</code> to only keep records in memory
+     * @param memoryCapacity
+     *            The maximum number of records that are kept in memory
+     * @param diskBudget
+     *            The maximum number of bytes of the segment files
+     * @param policy
+     *            Determines which records are dropped when the log is full
+     * @param codec
+     *            Writes and reads the records in the segment files
+     */
+    public SegmentLog(File directory, int memoryCapacity, long diskBudget, OverflowPolicy policy, Codec<T> codec) {
+        if (memoryCapacity < 1) {
+            throw new IllegalArgumentException("The memory capacity should be at least 1, was " + memoryCapacity);
+        }
+        this.directory = diskBudget > 0 ? directory : null;
+        this.memoryCapacity = memoryCapacity;
+        this.diskBudget = diskBudget;
+        segmentSize = Math.max(4096, Math.min(MAX_SEGMENT_SIZE, diskBudget / 4));
+        this.policy = policy;
+        this.codec = codec;
+
+        if (this.directory != null) {
+            recover();
+        }
+    }
+
+    /**
+     * Finds the segment files of a previous log in the directory. A record that has only partly been written (e.g.
+     * because of a crash) is cut off.
+     */
+    private void recover() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("Could not create directory {}, records will only be kept in memory", directory);
+            directory = null;
+            return;
+        }
+
+        List<Segment> found = new ArrayList<Segment>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                                name.length() - SEGMENT_SUFFIX.length()));
+                        found.add(new Segment(id, file));
+                    } catch (NumberFormatException ex) {
+                        logger.warn("Ignoring unknown file {}", file);
+                    }
+                }
+            }
+        }
+        Collections.sort(found);
+
+        for (Segment segment : found) {
+            try {
+                scan(segment);
+            } catch (IOException ex) {
+                logger.error("Could not read " + segment.file + ", it will be removed", ex);
+                segment.records = 0;
+            }
+
+            if (segment.records == 0) {
+                delete(segment.file);
+            } else {
+                segments.addLast(segment);
+                diskRecords += segment.records;
+                diskBytes += segment.bytes;
+            }
+            nextSegmentId = segment.id + 1;
+        }
+
+        if (diskRecords > 0) {
+            logger.info("Found {} buffered records in {}", diskRecords, directory);
+        }
+    }
+
+    /**
+     * Counts the complete records in the segment and cuts off an incomplete record at the end.
+     */
+    private void scan(Segment segment) throws IOException {
+        long length = segment.file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+        try {
+            while (true) {
+                int recordLength;
+                try {
+                    recordLength = in.readInt();
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (recordLength < 0 || segment.bytes + 4 + recordLength > length) {
+                    break;
+                }
+                byte[] data = new byte[recordLength];
+                in.readFully(data);
+                segment.observations += codec.observations(decode(data));
+                segment.bytes += 4 + recordLength;
+                segment.records++;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (segment.bytes < length) {
+            logger.warn("Removing an incomplete record at the end of {}", segment.file);
+            RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+            try {
+                file.setLength(segment.bytes);
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Adds a record at the end of the log.
+     *
+     * @return <code>false</code> when the record has been dropped, because the log is full or closed
+     */
+    public synchronized boolean offer(T record) {
+        if (closed) {
+            droppedObservations += codec.observations(record);
+            return false;
+        } else if (segments.isEmpty() && memory.size() < memoryCapacity) {
+            memory.addLast(record);
+            storedRecords++;
+            return true;
+        } else if (directory == null) {
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                droppedObservations += codec.observations(memory.pollFirst());
+                memory.addLast(record);
+                storedRecords++;
+                return true;
+            }
+            droppedObservations += codec.observations(record);
+            return false;
+        }
+
+        try {
+            return spill(record);
+        } catch (IOException ex) {
+            logger.error("Could not write a record to " + directory, ex);
+            droppedObservations += codec.observations(record);
+            return false;
+        }
+    }
+
+    private boolean spill(T record) throws IOException {
+        recordBytes.reset();
+        codec.write(recordOut, record);
+        long size = 4 + recordBytes.size();
+        int observations = codec.observations(record);
+
+        while (diskBytes + size > diskBudget) {
+            if (policy == OverflowPolicy.DROP_NEWEST || segments.isEmpty()) {
+                droppedObservations += observations;
+                return false;
+            }
+            Segment oldest = segments.peekFirst();
+            logger.warn("The disk buffer in {} is full, dropping {} records", directory, oldest.records);
+            droppedObservations += oldest.observations;
+            remove(oldest);
+        }
+
+        if (writeSegment == null || writeSegment.bytes + size > segmentSize) {
+            closeWriter();
+            Segment segment = new Segment(nextSegmentId, segmentFile(nextSegmentId));
+            nextSegmentId++;
+            writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment.file, true)));
+            writeSegment = segment;
+            segments.addLast(segment);
+        }
+
+        writer.writeInt(recordBytes.size());
+        recordBytes.writeTo(writer);
+        writeSegment.records++;
+        writeSegment.observations += observations;
+        writeSegment.bytes += size;
+        diskRecords++;
+        diskBytes += size;
+        storedRecords++;
+        spilledRecords++;
+        return true;
+    }
+
+    /**
+     * Takes the oldest record from the log.
+     *
+     * @return The record, or <code>null</code> when the log is empty or has been closed
+     */
+    public synchronized T poll() {
+        if (closed) {
+            // The segment files now belong to the next log for the same directory
+            return null;
+        }
+        T record = memory.pollFirst();
+        while (record == null && !segments.isEmpty()) {
+            record = readFromDisk();
+        }
+        return record;
+    }
+
+    /**
+     * Takes records from the start of the log.
+     *
+     * @return The number of records that have been added to the list, 0 when the log has been closed
+     */
+    public synchronized int drainTo(List<? super T> records, int maxRecords) {
+        if (closed) {
+            // The segment files now belong to the next log for the same directory
+            return 0;
+        }
+        int count = 0;
+        while (count < maxRecords && !memory.isEmpty()) {
+            records.add(memory.pollFirst());
+            count++;
+        }
+        while (count < maxRecords && !segments.isEmpty()) {
+            T record = readFromDisk();
+            if (record != null) {
+                records.add(record);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the next record from the oldest segment, and removes the segment when it has been read completely.
+     *
+     * @return The record, or <code>null</code> when the segment could not be read
+     */
+    private T readFromDisk() {
+        Segment segment = segments.peekFirst();
+        try {
+            if (segment == writeSegment) {
+                // Records are not appended to a segment that is being read
+                closeWriter();
+            }
+            if (segment != readSegment) {
+                closeReader();
+                reader = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+                readSegment = segment;
+            }
+
+            byte[] data = new byte[reader.readInt()];
+            reader.readFully(data);
+            T record = decode(data);
+            segment.records--;
+            segment.observations -= codec.observations(record);
+            diskRecords--;
+            replayedRecords++;
+            return record;
+        } catch (IOException ex) {
+            logger.error("Could not read " + segment.file + ", dropping " + segment.records + " records", ex);
+            droppedObservations += segment.observations;
+            diskRecords -= segment.records;
+            segment.records = 0;
+            return null;
+        } finally {
+            if (segment.records == 0) {
+                remove(segment);
+            }
+        }
+    }
+
+    private T decode(byte[] data) throws IOException {
+        return codec.read(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * Puts records that have been taken, but could not be delivered, back at the start of the log. The memory capacity
+     * may be exceeded temporarily by this. The records are dropped when the log has already been closed.
+     */
+    public synchronized void unread(List<? extends T> records) {
+        if (closed) {
+            long observations = 0;
+            for (T record : records) {
+                observations += codec.observations(record);
+            }
+            logger.error("Dropping {} records, the buffer has already been closed", records.size());
+            droppedObservations += observations;
+            return;
+        }
+        for (int i = records.size() - 1; i >= 0; i--) {
+            memory.addFirst(records.get(i));
+        }
+    }
+
+    /**
+     * Makes sure that the records that have been written to disk are not only in the file buffer.
+     */
+    public synchronized void flush() {
+        if (writer != null) {
+            try {
+                writer.flush();
+            } catch (IOException ex) {
+                logger.warn("Could not flush " + writeSegment.file, ex);
+            }
+        }
+    }
+
+    /**
+     * Closes the log. The records that are still in memory are written to disk, if there is a directory, so that they
+     * are found by the next log that uses it.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (directory == null) {
+            if (!memory.isEmpty()) {
+                logger.warn("Dropping {} buffered records", memory.size());
+            }
+            return;
+        }
+
+        List<T> records = new ArrayList<T>(memory);
+        memory.clear();
+        // A partly read segment is read again from the start by the next log, so save the rest of it as well
+        Segment segment = readSegment;
+        while (segment != null && segments.peekFirst() == segment) {
+            T record = readFromDisk();
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        closeWriter();
+        closeReader();
+
+        if (!records.isEmpty()) {
+            // These records are older than the records in the other segments, so they go in a segment before them
+            long id = segments.isEmpty() ? nextSegmentId : segments.peekFirst().id - 1;
+            File file = segmentFile(id);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                try {
+                    for (T record : records) {
+                        recordBytes.reset();
+                        codec.write(recordOut, record);
+                        out.writeInt(recordBytes.size());
+                        recordBytes.writeTo(out);
+                    }
+                } finally {
+                    out.close();
+                }
+                logger.info("Saved {} buffered records in {}", records.size() + diskRecords, directory);
+            } catch (IOException ex) {
+                logger.error("Could not save " + records.size() + " buffered records in " + file, ex);
+            }
+        }
+    }
+
+    private void remove(Segment segment) {
+        if (segment == readSegment) {
+            closeReader();
+        }
+        if (segment == writeSegment) {
+            closeWriter();
+        }
+        segments.remove(segment);
+        diskRecords -= segment.records;
+        diskBytes -= segment.bytes;
+        delete(segment.file);
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                logger.warn("Could not close " + writeSegment.file, ex);
+            }
+            writer = null;
+            writeSegment = null;
+        }
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                logger.debug("Could not close " + readSegment.file, ex);
+            }
+            reader = null;
+            readSegment = null;
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.warn("Could not delete {}", file);
+        }
+    }
+
+    /** @return The number of records in the log, in memory and on disk */
+    public synchronized long size() {
+        return memory.size() + diskRecords;
+    }
+
+    /** @return The number of records on disk */
+    public synchronized long getDiskRecords() {
+        return diskRecords;
+    }
+
+    /** @return The number of bytes of the segment files */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /** @return The number of records that have been added to the log */
+    public synchronized long getStoredRecords() {
+        return storedRecords;
+    }
+
+    /** @return The number of records that have been written to disk */
+    public synchronized long getSpilledRecords() {
+        return spilledRecords;
+    }
+
+    /** @return The number of records that have been read back from disk */
+    public synchronized long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    /** @return The number of observations in the records that have been dropped because the log was full or closed */
+    public synchronized long getDroppedObservations() {
+        return droppedObservations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + " [memory="
+               + memory.size()
+               + ", diskRecords="
+               + diskRecords
+               + ", diskBytes="
+               + diskBytes
+               + ", spilled="
+               + spilledRecords
+               + ", replayed="
+               + replayedRecords
+               + ", dropped="
+               + droppedObservations
+               + "]";
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * This package contains the buffer in which the monitoring writers keep their observations, in memory and on disk,
+ * until they have been delivered.
+ */
+@aQute.bnd.annotation.Version("1.0.0.${qualifier}")
+package org.flexiblepower.monitoring.buffer;
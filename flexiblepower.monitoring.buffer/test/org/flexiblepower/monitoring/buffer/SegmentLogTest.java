@@ -0,0 +1,224 @@
+package org.flexiblepower.monitoring.buffer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SegmentLogTest extends TestCase {
+    /** Every record holds two observations, so the dropped observations are not the same as the dropped records */
+    private static class RecordCodec implements SegmentLog.Codec<String> {
+        @Override
+        public void write(DataOutputStream out, String record) throws IOException {
+            out.writeUTF(record);
+        }
+
+        @Override
+        public String read(DataInputStream in) throws IOException {
+            return in.readUTF();
+        }
+
+        @Override
+        public int observations(String record) {
+            return 2;
+        }
+    }
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("segment-log", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private SegmentLog<String> log(File directory, int memoryCapacity, long diskBudget, OverflowPolicy policy) {
+        return new SegmentLog<String>(directory, memoryCapacity, diskBudget, policy, new RecordCodec());
+    }
+
+    private static String record(long i) {
+        return "record " + i;
+    }
+
+    private static void offer(SegmentLog<String> log, long from, long to) {
+        for (long i = from; i < to; i++) {
+            assertTrue(log.offer(record(i)));
+        }
+    }
+
+    /**
+     * Drains the log in small batches and checks that the records follow each other
+     */
+    private static void assertDrains(SegmentLog<String> log, long from, long to) {
+        List<String> records = new ArrayList<String>();
+        while (log.drainTo(records, 7) > 0) {
+            // continue
+        }
+        assertEquals(to - from, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(record(from + i), records.get(i));
+        }
+        assertNull(log.poll());
+        assertEquals(0, log.size());
+    }
+
+    public void testMemoryOnly() {
+        SegmentLog<String> log = log(null, 10, 0, OverflowPolicy.DROP_NEWEST);
+        offer(log, 0, 10);
+        assertFalse(log.offer(record(10)));
+        assertEquals(2, log.getDroppedObservations());
+        assertEquals(10, log.getStoredRecords());
+        assertDrains(log, 0, 10);
+    }
+
+    public void testMemoryOnlyDropOldest() {
+        SegmentLog<String> log = log(null, 10, 0, OverflowPolicy.DROP_OLDEST);
+        offer(log, 0, 15);
+        assertEquals(10, log.getDroppedObservations());
+        assertDrains(log, 5, 15);
+    }
+
+    public void testSpillInOrder() {
+        SegmentLog<String> log = log(directory, 10, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        offer(log, 0, 1000);
+        assertEquals(990, log.getDiskRecords());
+        assertEquals(990, log.getSpilledRecords());
+
+        // New records go to disk as long as there are records on disk
+        List<String> records = new ArrayList<String>();
+        log.drainTo(records, 499);
+        records.add(log.poll());
+        offer(log, 1000, 1100);
+        assertEquals(600, log.size());
+        assertEquals(record(0), records.get(0));
+        assertEquals(record(499), records.get(499));
+
+        assertDrains(log, 500, 1100);
+        assertEquals(990 + 100, log.getReplayedRecords());
+        assertEquals(1100, log.getStoredRecords());
+        assertEquals(0, log.getDiskBytes());
+        assertEquals(0, directory.list().length);
+    }
+
+    public void testDiskBudgetDropNewest() {
+        SegmentLog<String> log = log(directory, 10, 8192, OverflowPolicy.DROP_NEWEST);
+        long i = 0;
+        while (log.offer(record(i))) {
+            i++;
+        }
+        assertTrue(log.getDiskBytes() <= 8192);
+        assertEquals(2, log.getDroppedObservations());
+        assertDrains(log, 0, i);
+    }
+
+    public void testDiskBudgetDropOldest() {
+        SegmentLog<String> log = log(directory, 10, 8192, OverflowPolicy.DROP_OLDEST);
+        offer(log, 0, 10000);
+        assertTrue(log.getDiskBytes() <= 8192);
+        assertTrue(log.getDroppedObservations() > 0);
+        assertEquals(10000 * 2, log.size() * 2 + log.getDroppedObservations());
+
+        List<String> records = new ArrayList<String>();
+        log.drainTo(records, 10000);
+        // The records in memory are kept, a whole segment of old records on disk has been dropped
+        assertEquals(record(9), records.get(9));
+        assertFalse(record(10).equals(records.get(10)));
+        assertEquals(record(9999), records.get(records.size() - 1));
+    }
+
+    public void testUnread() {
+        SegmentLog<String> log = log(directory, 10, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        offer(log, 0, 100);
+
+        List<String> records = new ArrayList<String>();
+        log.drainTo(records, 50);
+        offer(log, 100, 110);
+        log.unread(records);
+
+        assertDrains(log, 0, 110);
+    }
+
+    public void testCloseAndRecover() {
+        SegmentLog<String> log = log(directory, 10, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        offer(log, 0, 100);
+        // Partly read the segment on disk
+        log.drainTo(new ArrayList<String>(), 20);
+        offer(log, 100, 105);
+        log.close();
+        assertFalse(log.offer(record(105)));
+
+        SegmentLog<String> recovered = log(directory, 10, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        assertEquals(85, recovered.size());
+        assertDrains(recovered, 20, 105);
+    }
+
+    public void testCloseMemoryOnly() {
+        SegmentLog<String> log = log(directory, 10, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        offer(log, 0, 5);
+        log.close();
+
+        SegmentLog<String> recovered = log(directory, 10, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        assertDrains(recovered, 0, 5);
+    }
+
+    /**
+     * A writer that is still busy when the log is closed must not read the segment files, which belong to the next log
+     * for the directory after the close.
+     */
+    public void testReadAfterClose() {
+        SegmentLog<String> log = log(directory, 10, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        offer(log, 0, 100);
+        List<String> taken = new ArrayList<String>();
+        log.drainTo(taken, 5);
+        log.close();
+
+        List<String> files = Arrays.asList(directory.list());
+        assertNull(log.poll());
+        assertEquals(0, log.drainTo(new ArrayList<String>(), 10));
+        assertEquals(files, Arrays.asList(directory.list()));
+
+        // The records that the writer could not deliver can not be put back anymore
+        log.unread(taken);
+        assertEquals(10, log.getDroppedObservations());
+
+        SegmentLog<String> recovered = log(directory, 10, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        assertDrains(recovered, 5, 100);
+    }
+
+    public void testIncompleteRecord() throws IOException {
+        SegmentLog<String> log = log(directory, 1, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        offer(log, 0, 10);
+        log.flush();
+
+        // Simulate a crash while writing a record
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        FileOutputStream out = new FileOutputStream(files[0], true);
+        try {
+            out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+
+        SegmentLog<String> recovered = log(directory, 1, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        assertEquals(9, recovered.size());
+        assertDrains(recovered, 1, 10);
+    }
+}
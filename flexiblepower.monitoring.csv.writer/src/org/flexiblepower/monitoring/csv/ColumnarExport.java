@@ -0,0 +1,51 @@
+package org.flexiblepower.monitoring.csv;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.ParseException;
+
+/**
+ * Converts a columnar observation file back to CSV, optionally only for a period. The CSV is written to the standard
+ * output, in the same format as the CSV files of the {@link Monitor}.
+ *
+ * Usage: ColumnarExport file [from [to]], where from and to have the format yyyyMMdd-HHmmss
+ */
+public class ColumnarExport {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: ColumnarExport file [from [to]], with from and to as yyyyMMdd-HHmmss");
+            System.exit(1);
+        }
+
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        DateFormat dateFormat = CsvOutput.createDateFormat();
+        try {
+            if (args.length > 1) {
+                from = dateFormat.parse(args[1]).getTime();
+            }
+            if (args.length > 2) {
+                to = dateFormat.parse(args[2]).getTime();
+            }
+        } catch (ParseException ex) {
+            System.err.println("Invalid time: " + ex.getMessage());
+            System.exit(1);
+        }
+
+        ColumnarReader reader = new ColumnarReader(new File(args[0]));
+        try {
+            if (!reader.isComplete()) {
+                System.err.println(args[0] + " has not been closed properly, reading the complete blocks");
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+            long count = reader.export(from, to, writer);
+            System.err.println("Exported " + count + " of " + reader.getRows() + " observations");
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package org.flexiblepower.monitoring.csv;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the files that have been written by the {@link ColumnarWriter}. The time index is used to only read the blocks
+ * that contain the requested period.
+ */
+public class ColumnarReader implements Closeable {
+    /** The observations of a single block */
+    public static class Block {
+        private final long[] timestamps;
+        private final Object[][] values;
+
+        Block(long[] timestamps, Object[][] values) {
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+
+        public int getRows() {
+            return timestamps.length;
+        }
+
+        public long getTimestamp(int row) {
+            return timestamps[row];
+        }
+
+        /**
+         * @return The value of a column in a row, which is a {@link Boolean}, {@link Long}, {@link Double},
+         *         {@link String} or <code>null</code>
+         */
+        public Object getValue(int column, int row) {
+            return values[column][row];
+        }
+
+        /**
+         * @return The values of a row, in the order of the columns
+         */
+        public Object[] getRow(int row) {
+            Object[] result = new Object[values.length];
+            for (int column = 0; column < values.length; column++) {
+                result[column] = values[column][row];
+            }
+            return result;
+        }
+    }
+
+    private static final class IndexEntry {
+        final long offset;
+        final long first;
+        final long last;
+        final int rows;
+
+        IndexEntry(long offset, long first, long last, int rows) {
+            this.offset = offset;
+            this.first = first;
+            this.last = last;
+            this.rows = rows;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final List<String> columns;
+    private final List<IndexEntry> index;
+    private final boolean complete;
+
+    /**
+     * @param file
+     *            A file that has been written by the {@link ColumnarWriter}
+     * @throws IOException
+     *             When the file could not be read or has an unknown format
+     */
+    public ColumnarReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            if (this.file.readInt() != ColumnarWriter.MAGIC) {
+                throw new IOException(file + " is not a columnar observation file");
+            }
+            byte version = this.file.readByte();
+            if (version != ColumnarWriter.VERSION) {
+                throw new IOException("Unsupported version " + version + " of " + file);
+            }
+            int count = this.file.readInt();
+            List<String> names = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                names.add(this.file.readUTF());
+            }
+            columns = Collections.unmodifiableList(names);
+
+            List<IndexEntry> entries = readIndex();
+            complete = entries != null;
+            index = complete ? entries : scanBlocks(this.file.getFilePointer());
+        } catch (IOException ex) {
+            this.file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The index at the end of the file, or <code>null</code> if the file has not been closed properly
+     */
+    private List<IndexEntry> readIndex() throws IOException {
+        long length = file.length();
+        long dataStart = file.getFilePointer();
+        if (length < dataStart + 12) {
+            return null;
+        }
+        file.seek(length - 12);
+        long indexOffset = file.readLong();
+        if (file.readInt() != ColumnarWriter.MAGIC || indexOffset < dataStart || indexOffset > length - 20) {
+            file.seek(dataStart);
+            return null;
+        }
+
+        file.seek(indexOffset);
+        if (file.readInt() != ColumnarWriter.INDEX_MARKER) {
+            file.seek(dataStart);
+            return null;
+        }
+        int blocks = file.readInt();
+        List<IndexEntry> entries = new ArrayList<IndexEntry>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            entries.add(new IndexEntry(file.readLong(), file.readLong(), file.readLong(), (int) file.readLong()));
+        }
+        return entries;
+    }
+
+    /**
+     * Finds the blocks by reading their headers, up to the first incomplete block
+     */
+    private List<IndexEntry> scanBlocks(long offset) throws IOException {
+        List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        long length = file.length();
+        while (offset + 4 + ColumnarWriter.BLOCK_HEADER_SIZE <= length) {
+            file.seek(offset);
+            if (file.readInt() != ColumnarWriter.BLOCK_MARKER) {
+                break;
+            }
+            int rows = file.readInt();
+            long first = file.readLong();
+            long last = file.readLong();
+            file.readInt(); // uncompressed length
+            int compressedLength = file.readInt();
+            long next = offset + 4 + ColumnarWriter.BLOCK_HEADER_SIZE + compressedLength;
+            if (next > length) {
+                break;
+            }
+            entries.add(new IndexEntry(offset, first, last, rows));
+            offset = next;
+        }
+        return entries;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return <code>false</code> when the file has not been closed properly, or is still being written
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getBlockCount() {
+        return index.size();
+    }
+
+    /**
+     * @return The total number of observations in the file
+     */
+    public long getRows() {
+        long rows = 0;
+        for (IndexEntry entry : index) {
+            rows += entry.rows;
+        }
+        return rows;
+    }
+
+    public long getFirstTimestamp(int block) {
+        return index.get(block).first;
+    }
+
+    public long getLastTimestamp(int block) {
+        return index.get(block).last;
+    }
+
+    /**
+     * @param block
+     *            The index of the block, from 0 to {@link #getBlockCount()}
+     * @return The observations in the block
+     * @throws IOException
+     *             When the block could not be read or is damaged
+     */
+    public Block readBlock(int block) throws IOException {
+        IndexEntry entry = index.get(block);
+        file.seek(entry.offset);
+        if (file.readInt() != ColumnarWriter.BLOCK_MARKER) {
+            throw new IOException("No block at offset " + entry.offset);
+        }
+        int rows = file.readInt();
+        file.readLong(); // first
+        file.readLong(); // last
+        int uncompressedLength = file.readInt();
+        int compressedLength = file.readInt();
+        long checksum = file.readLong();
+
+        byte[] compressed = new byte[compressedLength];
+        file.readFully(compressed);
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+        if (crc.getValue() != checksum) {
+            throw new IOException("The block at offset " + entry.offset + " is damaged");
+        }
+
+        byte[] data = new byte[uncompressedLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            if (inflater.inflate(data) != uncompressedLength) {
+                throw new IOException("The block at offset " + entry.offset + " is incomplete");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("The block at offset " + entry.offset + " is damaged: " + ex.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        long[] timestamps = new long[rows];
+        long previous = 0;
+        for (int row = 0; row < rows; row++) {
+            previous += readVarLong(in);
+            timestamps[row] = previous;
+        }
+        Object[][] values = new Object[columns.size()][];
+        for (int column = 0; column < values.length; column++) {
+            values[column] = readColumn(in, rows);
+        }
+        return new Block(timestamps, values);
+    }
+
+    private static Object[] readColumn(DataInputStream in, int rows) throws IOException {
+        Object[] values = new Object[rows];
+        byte type = in.readByte();
+        if (type == ColumnarWriter.TYPE_NULL) {
+            return values;
+        }
+
+        byte[] present = new byte[(rows + 7) / 8];
+        in.readFully(present);
+
+        long previous = 0;
+        for (int row = 0; row < rows; row++) {
+            if ((present[row / 8] & (1 << (row % 8))) == 0) {
+                continue;
+            }
+            switch (type) {
+            case ColumnarWriter.TYPE_BOOLEAN:
+                values[row] = in.readBoolean();
+                break;
+            case ColumnarWriter.TYPE_LONG:
+                previous += readVarLong(in);
+                values[row] = previous;
+                break;
+            case ColumnarWriter.TYPE_DOUBLE:
+                previous ^= in.readLong();
+                values[row] = Double.longBitsToDouble(previous);
+                break;
+            case ColumnarWriter.TYPE_STRING:
+                byte[] text = new byte[(int) readVarLong(in)];
+                in.readFully(text);
+                values[row] = new String(text, "UTF-8");
+                break;
+            default:
+                throw new IOException("Unknown column type " + type);
+            }
+        }
+        return values;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new EOFException("Malformed variable length number");
+    }
+
+    /**
+     * Writes the observations of a period as CSV, in the same format as the CSV output of the {@link Monitor}.
+     *
+     * @param from
+     *            The start of the period in milliseconds since the epoch (inclusive)
+     * @param to
+     *            The end of the period in milliseconds since the epoch (exclusive)
+     * @param writer
+     *            The writer to which the CSV is written
+     * @return The number of observations that have been written
+     * @throws IOException
+     *             When the file could not be read or the CSV could not be written
+     */
+    public long export(long from, long to, Writer writer) throws IOException {
+        DateFormat dateFormat = CsvOutput.createDateFormat();
+        CsvOutput.writeHeader(writer, columns);
+
+        long count = 0;
+        for (int i = 0; i < index.size(); i++) {
+            IndexEntry entry = index.get(i);
+            if (entry.last < from || entry.first >= to) {
+                continue;
+            }
+            Block block = readBlock(i);
+            for (int row = 0; row < block.getRows(); row++) {
+                long timestamp = block.getTimestamp(row);
+                if (timestamp >= from && timestamp < to) {
+                    CsvOutput.writeLine(writer, dateFormat, timestamp, block.getRow(row));
+                    count++;
+                }
+            }
+        }
+        writer.flush();
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
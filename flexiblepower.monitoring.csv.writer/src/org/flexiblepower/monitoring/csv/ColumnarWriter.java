@@ -0,0 +1,292 @@
+package org.flexiblepower.monitoring.csv;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes observations to a binary file in which they are stored column by column, in compressed blocks. The layout of
+ * the file is:
+ *
+ * <pre>
+ * header  MAGIC, VERSION, number of columns, the names of the columns
+ * blocks  BLOCK_MARKER, rows, first and last timestamp, uncompressed length, compressed length, CRC32, the deflated
+ *         timestamps followed by the values of each column
+ * index   INDEX_MARKER, number of blocks, offset, first and last timestamp and rows of every block
+ * trailer offset of the index, MAGIC
+ * </pre>
+ *
+ * The index and trailer are written when the file is closed. When they are missing, because the writer did not get
+ * the chance to close the file, the {@link ColumnarReader} finds the blocks by reading their headers.
+ *
+ * A block is written when it is full or when its first observation has been waiting longer than the block interval.
+ * Within a block, every column has the type that fits all its values, so a column of numbers is stored as numbers
+ * and only mixed columns are stored as text.
+ */
+class ColumnarWriter implements ObservationOutput {
+    static final int MAGIC = 0x46504331; // FPC1
+    static final byte VERSION = 1;
+    static final int BLOCK_MARKER = 0x424c4b31; // BLK1
+    static final int INDEX_MARKER = 0x49445831; // IDX1
+
+    /** The size of the block header after the marker: rows, first, last, lengths and checksum */
+    static final int BLOCK_HEADER_SIZE = 4 + 8 + 8 + 4 + 4 + 8;
+
+    // The types of a column within a block
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_BOOLEAN = 1;
+    static final byte TYPE_LONG = 2;
+    static final byte TYPE_DOUBLE = 3;
+    static final byte TYPE_STRING = 4;
+
+    /** The default maximum number of observations in a block */
+    static final int DEFAULT_BLOCK_ROWS = 4096;
+
+    private final DataOutputStream out;
+    private final int columns;
+    private final int blockRows;
+    private final long blockInterval;
+
+    /** The observations of the current block, by column */
+    private final long[] timestamps;
+    private final Object[][] values;
+    private int rows = 0;
+    private long blockStarted;
+
+    /** The offset of the next block in the file */
+    private long position;
+    /** The offset, first and last timestamp and rows of the written blocks */
+    private final List<long[]> index = new ArrayList<long[]>();
+
+    private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(64 * 1024);
+    private final ByteArrayOutputStream compressedBytes = new ByteArrayOutputStream(16 * 1024);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * @param file
+     *            The file to write to, which is overwritten if it exists
+     * @param columns
+     *            The names of the columns
+     * @param blockRows
+     *            The maximum number of observations in a block
+     * @param blockInterval
+     *            The maximum number of milliseconds an observation waits before its block is written
+     * @throws IOException
+     *             When the file could not be created
+     */
+    ColumnarWriter(File file, List<String> columns, int blockRows, long blockInterval) throws IOException {
+        if (blockRows < 1) {
+            throw new IllegalArgumentException("A block should contain at least 1 row, was " + blockRows);
+        }
+        this.columns = columns.size();
+        this.blockRows = blockRows;
+        this.blockInterval = blockInterval;
+        timestamps = new long[blockRows];
+        values = new Object[this.columns][blockRows];
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(this.columns);
+            for (String column : columns) {
+                out.writeUTF(column);
+            }
+        } catch (IOException ex) {
+            out.close();
+            throw ex;
+        }
+        position = out.size();
+    }
+
+    @Override
+    public void write(long timestamp, Object[] observationValues) throws IOException {
+        if (rows == 0) {
+            blockStarted = System.currentTimeMillis();
+        }
+        timestamps[rows] = timestamp;
+        for (int column = 0; column < columns; column++) {
+            values[column][rows] = column < observationValues.length ? observationValues[column] : null;
+        }
+        rows++;
+
+        if (rows == blockRows || System.currentTimeMillis() - blockStarted >= blockInterval) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Flushes the blocks that have been written. The observations of the current block are only written when the
+     * block is full, when the block interval has passed or when the file is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (rows > 0 && System.currentTimeMillis() - blockStarted >= blockInterval) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+
+            out.writeInt(INDEX_MARKER);
+            out.writeInt(index.size());
+            for (long[] entry : index) {
+                for (long field : entry) {
+                    out.writeLong(field);
+                }
+            }
+            out.writeLong(position);
+            out.writeInt(MAGIC);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (rows == 0) {
+            return;
+        }
+
+        blockBytes.reset();
+        DataOutputStream data = new DataOutputStream(blockBytes);
+        long previous = 0;
+        for (int row = 0; row < rows; row++) {
+            writeVarLong(data, timestamps[row] - previous);
+            previous = timestamps[row];
+        }
+        for (int column = 0; column < columns; column++) {
+            writeColumn(data, values[column]);
+        }
+        data.flush();
+
+        compressedBytes.reset();
+        deflater.reset();
+        DeflaterOutputStream deflated = new DeflaterOutputStream(compressedBytes, deflater, 8192);
+        blockBytes.writeTo(deflated);
+        deflated.finish();
+        crc.reset();
+        byte[] compressed = compressedBytes.toByteArray();
+        crc.update(compressed);
+
+        out.writeInt(BLOCK_MARKER);
+        out.writeInt(rows);
+        out.writeLong(timestamps[0]);
+        out.writeLong(timestamps[rows - 1]);
+        out.writeInt(blockBytes.size());
+        out.writeInt(compressed.length);
+        out.writeLong(crc.getValue());
+        out.write(compressed);
+
+        index.add(new long[] { position, timestamps[0], timestamps[rows - 1], rows });
+        position += 4 + BLOCK_HEADER_SIZE + compressed.length;
+
+        for (Object[] columnValues : values) {
+            for (int row = 0; row < rows; row++) {
+                columnValues[row] = null;
+            }
+        }
+        rows = 0;
+    }
+
+    private void writeColumn(DataOutputStream data, Object[] columnValues) throws IOException {
+        byte type = columnType(columnValues);
+        data.writeByte(type);
+        if (type == TYPE_NULL) {
+            return;
+        }
+
+        // A bit for every row that has a value
+        for (int row = 0; row < rows; row += 8) {
+            int bits = 0;
+            for (int bit = 0; bit < 8 && row + bit < rows; bit++) {
+                if (columnValues[row + bit] != null) {
+                    bits |= 1 << bit;
+                }
+            }
+            data.writeByte(bits);
+        }
+
+        long previous = 0;
+        for (int row = 0; row < rows; row++) {
+            Object value = columnValues[row];
+            if (value == null) {
+                continue;
+            }
+            switch (type) {
+            case TYPE_BOOLEAN:
+                data.writeBoolean((Boolean) value);
+                break;
+            case TYPE_LONG:
+                // Measurements change slowly, so the difference with the previous value is small
+                long longValue = ((Number) value).longValue();
+                writeVarLong(data, longValue - previous);
+                previous = longValue;
+                break;
+            case TYPE_DOUBLE:
+                // Similar values share most of their bits, which leaves mostly zeros
+                long bits = Double.doubleToRawLongBits((Double) value);
+                data.writeLong(bits ^ previous);
+                previous = bits;
+                break;
+            default:
+                byte[] text = value.toString().getBytes("UTF-8");
+                writeVarLong(data, text.length);
+                data.write(text);
+            }
+        }
+    }
+
+    private byte columnType(Object[] columnValues) {
+        byte type = TYPE_NULL;
+        for (int row = 0; row < rows; row++) {
+            Object value = columnValues[row];
+            byte valueType;
+            if (value == null) {
+                continue;
+            } else if (value instanceof Boolean) {
+                valueType = TYPE_BOOLEAN;
+            } else if (value instanceof Long || value instanceof Integer
+                       || value instanceof Short
+                       || value instanceof Byte) {
+                valueType = TYPE_LONG;
+            } else if (value instanceof Double) {
+                valueType = TYPE_DOUBLE;
+            } else {
+                return TYPE_STRING;
+            }
+
+            if (type == TYPE_NULL) {
+                type = valueType;
+            } else if (type != valueType) {
+                return TYPE_STRING;
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Writes a zigzag encoded variable length long, which takes a single byte for small positive and negative values
+     */
+    static void writeVarLong(DataOutputStream data, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            data.writeByte((int) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        data.writeByte((int) zigzag);
+    }
+}
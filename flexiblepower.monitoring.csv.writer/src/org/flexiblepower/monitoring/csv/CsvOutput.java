@@ -0,0 +1,76 @@
+package org.flexiblepower.monitoring.csv;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes observations as lines of comma separated values, preceded by a header with the names of the columns.
+ */
+class CsvOutput implements ObservationOutput {
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final Writer writer;
+    private final DateFormat dateFormat = createDateFormat();
+
+    CsvOutput(File file, List<String> columns) throws IOException {
+        writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writeHeader(writer, columns);
+        } catch (IOException ex) {
+            writer.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The format of the timestamps in the first column. The format is not thread-safe, so every user should
+     *         create its own.
+     */
+    static DateFormat createDateFormat() {
+        return new SimpleDateFormat("yyyyMMdd-HHmmss");
+    }
+
+    static void writeHeader(Writer writer, List<String> columns) throws IOException {
+        writer.append("timestamp,");
+        for (int i = 0; i < columns.size(); i++) {
+            writer.append(columns.get(i));
+            if (i < columns.size() - 1) {
+                writer.append(',');
+            }
+        }
+        writer.append(LINE_SEPARATOR);
+    }
+
+    static void writeLine(Writer writer, DateFormat dateFormat, long timestamp, Object[] values) throws IOException {
+        writer.append(dateFormat.format(new Date(timestamp)));
+        for (Object value : values) {
+            writer.append(',');
+            if (value != null) {
+                writer.append(value.toString());
+            }
+        }
+        writer.append(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void write(long timestamp, Object[] values) throws IOException {
+        writeLine(writer, dateFormat, timestamp, values);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
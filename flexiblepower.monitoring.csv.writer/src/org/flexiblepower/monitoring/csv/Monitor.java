@@ -13,6 +13,7 @@ import org.slf4j.LoggerFactory;
 
 import aQute.bnd.annotation.component.Activate;
 import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Deactivate;
 import aQute.bnd.annotation.component.Reference;
 import aQute.bnd.annotation.metatype.Configurable;
 import aQute.bnd.annotation.metatype.Meta;
@@ -24,6 +25,22 @@ public class Monitor {
     public interface Config {
         @Meta.AD(deflt = "/tmp/fpai/monitor", description = "The directory to which the CSV files will be written")
         String outputDirectory();
+
+        @Meta.AD(deflt = "CSV", description = "The format of the files: CSV or COLUMNAR (compressed binary)")
+        OutputFormat outputFormat();
+
+        @Meta.AD(deflt = "300", description = "The maximum number of seconds before a COLUMNAR block is written")
+        long blockInterval();
+
+        @Meta.AD(deflt = "10000", description = "The maximum number of observations that wait to be written")
+        int queueSize();
+
+        @Meta.AD(deflt = "1000", description = "The number of observations after which the files are flushed")
+        int commitSize();
+
+        @Meta.AD(deflt = "1000",
+                 description = "The maximum number of milliseconds an observation waits before the files are flushed")
+        long commitInterval();
     }
 
     private final Map<ObservationProvider<?>, MonitoredProvider<?>> monitoredProviders;
@@ -34,11 +51,18 @@ public class Monitor {
 
     private final Map<ObservationProvider<?>, Map<String, Object>> unhandledObservationProviders = new HashMap<ObservationProvider<?>, Map<String, Object>>();
     private File dataDir;
+    private OutputFormat outputFormat;
+    private long blockInterval;
+    private MonitorWriter writer;
 
     @Activate
     public void activate(Map<String, ?> properties) {
         Config config = Configurable.createConfigurable(Config.class, properties);
 
+        outputFormat = config.outputFormat();
+        blockInterval = config.blockInterval() * 1000;
+        writer = new MonitorWriter(Math.max(1, config.queueSize()), config.commitSize(), config.commitInterval());
+        writer.start();
         dataDir = new File(config.outputDirectory());
         if (!dataDir.exists()) {
             if (!dataDir.mkdirs()) {
@@ -66,7 +90,13 @@ public class Monitor {
     public <T> void addProvider(ObservationProvider<T> provider, Map<String, Object> properties) {
         if (dataDir != null) {
             logger.debug("Started monitoring of [{}]", provider);
-            monitoredProviders.put(provider, new MonitoredProvider<T>(dataDir, provider, properties));
+            MonitoredProvider<T> monitoredProvider = new MonitoredProvider<T>(dataDir,
+                                                                              provider,
+                                                                              properties,
+                                                                              outputFormat,
+                                                                              blockInterval,
+                                                                              writer);
+            monitoredProviders.put(provider, monitoredProvider);
         } else {
             synchronized (unhandledObservationProviders) {
                 if (dataDir == null) {
@@ -79,10 +109,28 @@ public class Monitor {
     }
 
     public void removeProvider(ObservationProvider<?> provider) {
-        MonitoredProvider<?> storedProvider = monitoredProviders.get(provider);
+        MonitoredProvider<?> storedProvider = monitoredProviders.remove(provider);
         if (storedProvider != null) {
             storedProvider.close();
         }
-        unhandledObservationProviders.remove(provider);
+        synchronized (unhandledObservationProviders) {
+            unhandledObservationProviders.remove(provider);
+        }
+    }
+
+    @Deactivate
+    public void deactivate() {
+        for (MonitoredProvider<?> monitoredProvider : monitoredProviders.values()) {
+            monitoredProvider.close();
+        }
+        monitoredProviders.clear();
+
+        if (writer != null) {
+            writer.stop();
+            logger.info("Stopped monitoring, {} observations written and {} dropped",
+                        writer.getWritten(),
+                        writer.getDropped());
+            writer = null;
+        }
     }
 }
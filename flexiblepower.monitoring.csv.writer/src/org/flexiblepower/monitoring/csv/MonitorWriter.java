@@ -0,0 +1,237 @@
+package org.flexiblepower.monitoring.csv;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the observations of all {@link MonitoredProvider}s of a {@link Monitor} on a single thread, so a slow disk
+ * never blocks the threads that publish the observations. The observations are handed over through a bounded queue;
+ * when the queue is full, new observations are dropped.
+ *
+ * The files are flushed as a group: after a number of observations have been written, or when the oldest unflushed
+ * observation has waited for the commit interval, whichever comes first. Every open file is flushed, also when its
+ * provider has not published since the last flush, because a COLUMNAR file only writes its block once the block
+ * interval has passed. For the same reason the open files are flushed every commit interval while the queue is empty.
+ */
+class MonitorWriter implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(MonitorWriter.class);
+
+    /** The maximum number of observations that are taken from the queue at once */
+    private static final int MAX_BATCH = 1024;
+
+    /** The number of milliseconds stopping or closing waits for room in the queue, and for the thread to stop */
+    private static final long STOP_TIMEOUT = 10000;
+
+    /** An observation that should be written, or a request to close the output of a provider */
+    private static final class Task {
+        final MonitoredProvider<?> target;
+        final long timestamp;
+        final Object[] values;
+
+        Task(MonitoredProvider<?> target, long timestamp, Object[] values) {
+            this.target = target;
+            this.timestamp = timestamp;
+            this.values = values;
+        }
+    }
+
+    /** Tells the thread to stop, after the tasks before it in the queue */
+    private static final Task STOP = new Task(null, 0, null);
+
+    private final BlockingQueue<Task> queue;
+    private final int commitSize;
+    private final long commitInterval;
+    private final Thread thread;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+
+    /**
+     * @param queueSize
+     *            The maximum number of observations that wait to be written
+     * @param commitSize
+     *            The number of written observations after which the files are flushed
+     * @param commitInterval
+     *            The maximum number of milliseconds an observation waits before the files are flushed
+     */
+    MonitorWriter(int queueSize, int commitSize, long commitInterval) {
+        queue = new ArrayBlockingQueue<Task>(queueSize);
+        this.commitSize = Math.max(1, commitSize);
+        this.commitInterval = commitInterval;
+        thread = new Thread(this, "CSV monitor writer");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Writes the observations that are still in the queue, closes the files and stops the thread.
+     */
+    void stop() {
+        try {
+            if (!thread.isAlive()) {
+                return;
+            } else if (!queue.offer(STOP, STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warn("The writer thread does not take the stop request, interrupting it");
+                thread.interrupt();
+            }
+            thread.join(STOP_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            logger.warn("The writer thread did not stop in time");
+        }
+    }
+
+    /**
+     * Queues an observation, without blocking.
+     *
+     * @return <code>false</code> when the queue is full and the observation has been dropped
+     */
+    boolean write(MonitoredProvider<?> target, long timestamp, Object[] values) {
+        if (queue.offer(new Task(target, timestamp, values))) {
+            return true;
+        } else {
+            if (dropped.getAndIncrement() % 1000 == 0) {
+                if (thread.isAlive()) {
+                    logger.warn("The monitor can not keep up, {} observations have been dropped", dropped.get());
+                } else {
+                    logger.warn("The writer thread is not running, {} observations have been dropped", dropped.get());
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Queues the closing of the output of a provider, after its observations that are still in the queue.
+     */
+    void close(MonitoredProvider<?> target) {
+        try {
+            if (!thread.isAlive()) {
+                // Nothing else writes to the output anymore
+                target.closeOutput();
+            } else if (!queue.offer(new Task(target, 0, null), STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.error("The writer thread does not take the close request, the output of {} is left open",
+                             target);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getWritten() {
+        return written.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of observations that could not be written because the output failed
+     */
+    long getFailed() {
+        return failed.get();
+    }
+
+    long getCommits() {
+        return commits.get();
+    }
+
+    @Override
+    public void run() {
+        List<Task> batch = new ArrayList<Task>(MAX_BATCH);
+        Set<MonitoredProvider<?>> open = new LinkedHashSet<MonitoredProvider<?>>();
+        int uncommitted = 0;
+        long firstUncommitted = 0;
+
+        try {
+            while (true) {
+                if (batch.isEmpty()) {
+                    Task task;
+                    if (uncommitted > 0) {
+                        long wait = firstUncommitted + commitInterval - System.currentTimeMillis();
+                        task = queue.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                    } else if (open.isEmpty()) {
+                        task = queue.take();
+                    } else {
+                        task = queue.poll(commitInterval, TimeUnit.MILLISECONDS);
+                        if (task == null) {
+                            // Writes the blocks that have waited for the block interval
+                            commit(open);
+                        }
+                    }
+                    if (task != null) {
+                        batch.add(task);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                    }
+                }
+
+                for (Task task : batch) {
+                    if (task == STOP) {
+                        commit(open);
+                        return;
+                    }
+                    // A failing output must not stop the writing of the other providers
+                    try {
+                        if (task.values == null) {
+                            open.remove(task.target);
+                            task.target.closeOutput();
+                        } else {
+                            if (uncommitted == 0) {
+                                firstUncommitted = System.currentTimeMillis();
+                            }
+                            task.target.writeObservation(task.timestamp, task.values);
+                            open.add(task.target);
+                            uncommitted++;
+                            written.incrementAndGet();
+                        }
+                    } catch (RuntimeException ex) {
+                        failed(task.target, ex);
+                    }
+                }
+                batch.clear();
+
+                if (uncommitted >= commitSize
+                    || (uncommitted > 0 && System.currentTimeMillis() - firstUncommitted >= commitInterval)) {
+                    commit(open);
+                    uncommitted = 0;
+                }
+            }
+        } catch (InterruptedException ex) {
+            commit(open);
+        }
+    }
+
+    private void commit(Set<MonitoredProvider<?>> open) {
+        for (MonitoredProvider<?> provider : open) {
+            try {
+                provider.flushOutput();
+            } catch (RuntimeException ex) {
+                failed(provider, ex);
+            }
+        }
+        commits.incrementAndGet();
+    }
+
+    private void failed(MonitoredProvider<?> target, RuntimeException ex) {
+        if (failed.getAndIncrement() % 1000 == 0) {
+            logger.error("Could not write the output of " + target + ", " + failed.get() + " failures so far", ex);
+        }
+    }
+}
@@ -1,12 +1,9 @@
 package org.flexiblepower.monitoring.csv;
 
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -21,9 +18,12 @@ import org.osgi.framework.Constants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Monitors a single {@link ObservationProvider}. The observations are handed to the {@link MonitorWriter}, which calls
+ * back on its own thread to write them to the files of this provider.
+ */
 public class MonitoredProvider<T> implements ObservationConsumer<T>, Closeable {
     private static final Logger logger = LoggerFactory.getLogger(MonitoredProvider.class);
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMdd-HHmmss");
     private static final String RESOURCE_ID = "resourceId";
     private static final String KEY_BASE = "org.flexiblepower.monitoring.type.";
     private static final long MONTH = 30L * 24 * 60 * 60 * 1000;
@@ -33,13 +33,43 @@ public class MonitoredProvider<T> implements ObservationConsumer<T>, Closeable {
     private final ObservationProvider<T> provider;
     private final List<String> keys;
     private final String filename;
+    private final OutputFormat format;
+    private final long blockInterval;
+    private final MonitorWriter writer;
 
-    private BufferedWriter writer;
+    private volatile boolean closed = false;
+
+    // Only used by the thread of the writer
+    private final DateFormat dateFormat = CsvOutput.createDateFormat();
+    private ObservationOutput output;
     private long lastTimestamp;
 
-    public MonitoredProvider(File dataFile, ObservationProvider<T> provider, Map<String, ?> properties) {
+    /**
+     * @param dataFile
+     *            The directory to which the files are written
+     * @param provider
+     *            The provider of which the observations are written
+     * @param properties
+     *            The service properties of the provider, which describe the fields of the observations
+     * @param format
+     *            The format of the files
+     * @param blockInterval
+     *            For the {@link OutputFormat#COLUMNAR} format, the maximum number of milliseconds before an observation
+     *            is written to the file
+     * @param writer
+     *            The writer that writes the observations on its own thread
+     */
+    MonitoredProvider(File dataFile,
+                      ObservationProvider<T> provider,
+                      Map<String, ?> properties,
+                      OutputFormat format,
+                      long blockInterval,
+                      MonitorWriter writer) {
         this.dataDir = dataFile;
         this.provider = provider;
+        this.format = format;
+        this.blockInterval = blockInterval;
+        this.writer = writer;
 
         String name = provider.getClass().getCanonicalName();
         if (properties.containsKey(RESOURCE_ID)) {
@@ -66,92 +96,108 @@ public class MonitoredProvider<T> implements ObservationConsumer<T>, Closeable {
         logger.info("Started monitoring {} with keys {}", provider, keys);
     }
 
-    private BufferedWriter getWriter(Date observationTime) {
-        if (observationTime.getTime() < lastTimestamp || (observationTime.getTime() - lastTimestamp > MONTH)
-            || writer == null) {
-            closeWriter();
+    private ObservationOutput getOutput(long observationTime) {
+        if (observationTime < lastTimestamp || (observationTime - lastTimestamp > MONTH) || output == null) {
+            closeOutput();
 
-            // Open the file and save the writer
+            // Open the file and save the output
             StringBuilder filename = new StringBuilder();
             filename.append(String.format("%05d", FILE_COUNTER.incrementAndGet()))
                     .append(' ')
                     .append(this.filename)
                     .append(' ')
-                    .append(DATE_FORMAT.format(observationTime))
-                    .append(".csv");
+                    .append(dateFormat.format(new Date(observationTime)))
+                    .append(format == OutputFormat.COLUMNAR ? ".fpcol" : ".csv");
             File file = new File(dataDir, filename.toString());
             try {
-                writer = new BufferedWriter(new FileWriter(file));
+                if (format == OutputFormat.COLUMNAR) {
+                    output = new ColumnarWriter(file, keys, ColumnarWriter.DEFAULT_BLOCK_ROWS, blockInterval);
+                } else {
+                    output = new CsvOutput(file, keys);
+                }
+                output.flush();
             } catch (IOException e) {
                 logger.error("Can not open file " + file.getAbsolutePath(), e);
-                writer = null;
+                output = null;
             }
+        }
+
+        return output;
+    }
 
-            // Write header
+    /**
+     * Writes an observation to the file, which is rolled over to a new file each month. Only called by the
+     * {@link MonitorWriter}.
+     */
+    void writeObservation(long timestamp, Object[] values) {
+        ObservationOutput output = getOutput(timestamp);
+        if (output != null) {
             try {
-                writer.append("timestamp,");
-                for (int i = 0; i < keys.size(); i++) {
-                    writer.append(keys.get(i).toString());
-                    if (i < keys.size() - 1) {
-                        writer.append(',');
-                    }
-                }
-                writer.newLine();
-                writer.flush();
+                output.write(timestamp, values);
+                lastTimestamp = timestamp;
             } catch (IOException e) {
                 logger.error("Failed to write observation to file", e);
-                writer = null;
+                provider.unsubscribe(this);
+                closed = true;
+                closeOutput();
             }
-
-            // Start monitoring this provider
-            provider.subscribe(this);
         }
+    }
 
-        return writer;
+    /**
+     * Flushes the file. Only called by the {@link MonitorWriter}.
+     */
+    void flushOutput() {
+        if (output != null) {
+            try {
+                output.flush();
+            } catch (IOException e) {
+                logger.error("Failed to flush the observations to file", e);
+            }
+        }
     }
 
-    private void closeWriter() {
-        if (writer != null) {
+    /**
+     * Closes the file. Only called by the {@link MonitorWriter}.
+     */
+    void closeOutput() {
+        if (output != null) {
             try {
-                writer.close();
+                output.close();
             } catch (IOException e) {
                 logger.error("Failed to close writer", e);
             }
+            output = null;
         }
     }
 
     @Override
-    public synchronized void consume(ObservationProvider<? extends T> source, Observation<? extends T> observation) {
+    public void consume(ObservationProvider<? extends T> source, Observation<? extends T> observation) {
         logger.debug("Got observation from {}: {}", source, observation);
+        if (closed) {
+            return;
+        }
 
-        BufferedWriter writer = getWriter(observation.getObservedAt());
-        if (writer != null) {
-            Map<String, Object> map = observation.getValueMap();
-            try {
-                writer.append(DATE_FORMAT.format(observation.getObservedAt()));
-                for (String key : keys) {
-                    writer.append(',');
-                    Object value = map.get(key);
-                    if (value != null) {
-                        writer.append(value.toString());
-                    }
-                }
-                writer.newLine();
-                writer.flush();
-
-                lastTimestamp = observation.getObservedAt().getTime();
-            } catch (IOException e) {
-                logger.error("Failed to write observation to file", e);
-                close();
-            }
+        Map<String, Object> map = observation.getValueMap();
+        Object[] values = new Object[keys.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = map.get(keys.get(i));
         }
+        writer.write(this, observation.getObservedAt().getTime(), values);
     }
 
+    /**
+     * Stops monitoring the provider. The observations that have already been received are still written before the
+     * file is closed.
+     */
     @Override
-    public synchronized void close() {
-        provider.unsubscribe(this);
-        closeWriter();
+    public void close() {
+        if (!closed) {
+            closed = true;
+            provider.unsubscribe(this);
+            writer.close(this);
 
-        logger.info("Closed down monitoring for provider {}", provider);
+            logger.info("Closed down monitoring for provider {}", provider);
+        }
     }
 }
@@ -0,0 +1,21 @@
+package org.flexiblepower.monitoring.csv;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * A file to which the observations of a single provider are written. The values of an observation are given in the
+ * order of the columns with which the output has been created.
+ */
+interface ObservationOutput extends Closeable, Flushable {
+    /**
+     * @param timestamp
+     *            The time of the observation in milliseconds since the epoch
+     * @param values
+     *            The values of the observation in the order of the columns, which may be <code>null</code>
+     * @throws IOException
+     *             When the observation could not be written
+     */
+    void write(long timestamp, Object[] values) throws IOException;
+}
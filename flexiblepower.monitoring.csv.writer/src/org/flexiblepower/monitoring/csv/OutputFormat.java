@@ -0,0 +1,14 @@
+package org.flexiblepower.monitoring.csv;
+
+/**
+ * The format of the files to which the {@link Monitor} writes the observations.
+ */
+public enum OutputFormat {
+    /** A text file with a line per observation */
+    CSV,
+    /**
+     * A binary file in which the observations are stored in compressed blocks, column by column. The
+     * {@link ColumnarExport} converts these files back to CSV.
+     */
+    COLUMNAR
+}
@@ -0,0 +1,154 @@
+package org.flexiblepower.monitoring.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ColumnarFormatTest extends TestCase {
+    private static final List<String> COLUMNS = Arrays.asList("power", "count", "on", "state", "empty");
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("observations", ".fpcol");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static Object[] values(int i) {
+        return new Object[] { i % 7 == 0 ? null : 1000.0 + (i % 100) * 0.5,
+                             i,
+                             i % 3 == 0,
+                             i % 5 == 0 ? "idle \u00e9" : (i % 11 == 0 ? Integer.valueOf(i) : "running"),
+                             null };
+    }
+
+    /**
+     * Writes an observation every second, starting at 0
+     */
+    private void write(int count, int blockRows) throws IOException {
+        ColumnarWriter writer = new ColumnarWriter(file, COLUMNS, blockRows, Long.MAX_VALUE);
+        for (int i = 0; i < count; i++) {
+            writer.write(i * 1000L, values(i));
+        }
+        writer.close();
+    }
+
+    public void testRoundTrip() throws IOException {
+        write(1000, 64);
+
+        ColumnarReader reader = new ColumnarReader(file);
+        try {
+            assertTrue(reader.isComplete());
+            assertEquals(COLUMNS, reader.getColumns());
+            assertEquals(16, reader.getBlockCount());
+            assertEquals(1000, reader.getRows());
+
+            int i = 0;
+            for (int b = 0; b < reader.getBlockCount(); b++) {
+                ColumnarReader.Block block = reader.readBlock(b);
+                assertEquals(i * 1000L, reader.getFirstTimestamp(b));
+                for (int row = 0; row < block.getRows(); row++) {
+                    assertEquals(i * 1000L, block.getTimestamp(row));
+                    Object[] expected = values(i);
+                    Object[] actual = block.getRow(row);
+                    assertEquals(expected[0], actual[0]);
+                    assertEquals(Long.valueOf(i), actual[1]);
+                    assertEquals(expected[2], actual[2]);
+                    // A column with mixed types is stored as text
+                    assertEquals(expected[3].toString(), actual[3]);
+                    assertNull(actual[4]);
+                    i++;
+                }
+            }
+            assertEquals(1000, i);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testExportMatchesCsv() throws IOException {
+        write(500, 100);
+
+        // The CSV that the CsvOutput would have written
+        StringWriter expected = new StringWriter();
+        CsvOutput.writeHeader(expected, COLUMNS);
+        for (int i = 100; i < 200; i++) {
+            CsvOutput.writeLine(expected, CsvOutput.createDateFormat(), i * 1000L, values(i));
+        }
+
+        ColumnarReader reader = new ColumnarReader(file);
+        try {
+            StringWriter actual = new StringWriter();
+            assertEquals(100, reader.export(100000, 200000, actual));
+            assertEquals(expected.toString(), actual.toString());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testIncompleteFile() throws IOException {
+        write(1000, 100);
+
+        // Remove the index and the end of the last block, as if the writer crashed while writing it
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        ColumnarReader complete = new ColumnarReader(file);
+        long blocks;
+        try {
+            blocks = complete.getBlockCount();
+        } finally {
+            complete.close();
+        }
+        raf.setLength(raf.length() - 12 - 8 - blocks * 32 - 10);
+        raf.close();
+
+        ColumnarReader reader = new ColumnarReader(file);
+        try {
+            assertFalse(reader.isComplete());
+            assertEquals(9, reader.getBlockCount());
+            assertEquals(900, reader.getRows());
+            assertEquals(899000, reader.getLastTimestamp(8));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testBlockInterval() throws IOException {
+        ColumnarWriter writer = new ColumnarWriter(file, COLUMNS, 1000, 0);
+        writer.write(0, values(0));
+        writer.flush();
+        writer.write(1000, values(1));
+        writer.flush();
+
+        // Without an interval every observation is a block, which can be read before the file is closed
+        ColumnarReader reader = new ColumnarReader(file);
+        try {
+            assertEquals(2, reader.getBlockCount());
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    public void testSmallerThanCsv() throws IOException {
+        int count = 20000;
+        write(count, ColumnarWriter.DEFAULT_BLOCK_ROWS);
+
+        StringWriter csv = new StringWriter();
+        CsvOutput.writeHeader(csv, COLUMNS);
+        for (int i = 0; i < count; i++) {
+            CsvOutput.writeLine(csv, CsvOutput.createDateFormat(), i * 1000L, values(i));
+        }
+
+        assertTrue(file.length() * 10 < csv.toString().length());
+    }
+}
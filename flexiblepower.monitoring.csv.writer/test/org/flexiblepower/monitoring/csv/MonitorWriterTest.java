@@ -0,0 +1,383 @@
+package org.flexiblepower.monitoring.csv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.observation.Observation;
+import org.flexiblepower.observation.ObservationConsumer;
+import org.flexiblepower.observation.ObservationProvider;
+
+public class MonitorWriterTest extends TestCase {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    /** The value of the observations */
+    public static class Sample {
+        private final long count;
+        private final double power;
+
+        public Sample(long count, double power) {
+            this.count = count;
+            this.power = power;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getPower() {
+            return power;
+        }
+    }
+
+    /** A provider that counts its subscriptions */
+    private static class FakeProvider implements ObservationProvider<Sample> {
+        final AtomicInteger subscriptions = new AtomicInteger();
+
+        @Override
+        public void subscribe(ObservationConsumer<? super Sample> consumer) {
+            subscriptions.incrementAndGet();
+        }
+
+        @Override
+        public void unsubscribe(ObservationConsumer<? super Sample> consumer) {
+            subscriptions.decrementAndGet();
+        }
+    }
+
+    private File dataDir;
+    private MonitorWriter writer;
+
+    @Override
+    protected void setUp() throws Exception {
+        dataDir = File.createTempFile("monitor", "");
+        dataDir.delete();
+        dataDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (writer != null) {
+            writer.stop();
+        }
+        for (File file : dataDir.listFiles()) {
+            file.delete();
+        }
+        dataDir.delete();
+    }
+
+    private MonitoredProvider<Sample> monitor(FakeProvider provider, String name) {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("resourceId", name);
+        properties.put("org.flexiblepower.monitoring.type.count", "long");
+        properties.put("org.flexiblepower.monitoring.type.power", "double");
+        return new MonitoredProvider<Sample>(dataDir, provider, properties, OutputFormat.CSV, 0, writer);
+    }
+
+    private static Observation<Sample> observation(long time, long count) {
+        return Observation.create(new Date(time), new Sample(count, count * 0.5));
+    }
+
+    /**
+     * @return The lines after the header of the files of a provider, in the order of the files
+     */
+    private List<String[]> readLines(String name) throws IOException {
+        File[] files = dataDir.listFiles();
+        Arrays.sort(files);
+        List<String[]> lines = new ArrayList<String[]>();
+        for (File file : files) {
+            if (!file.getName().contains(" " + name + " ")) {
+                continue;
+            }
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                assertEquals("timestamp,count,power", reader.readLine());
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line.split(","));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Publishes 10000 observations per second from 4 providers on their own threads for 2 seconds, and checks that
+     * all of them are written in order while the files are only flushed once in a while.
+     */
+    public void testLoad() throws Exception {
+        writer = new MonitorWriter(10000, 1000, 100);
+        writer.start();
+
+        final int providers = 4;
+        final int perSecond = 2500;
+        final int count = 2 * perSecond;
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] slowest = new long[providers];
+        Thread[] threads = new Thread[providers];
+        final List<MonitoredProvider<Sample>> monitored = new ArrayList<MonitoredProvider<Sample>>();
+        for (int p = 0; p < providers; p++) {
+            final FakeProvider provider = new FakeProvider();
+            final MonitoredProvider<Sample> monitoredProvider = monitor(provider, "provider" + p);
+            monitored.add(monitoredProvider);
+            final int index = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long started = System.nanoTime();
+                        for (int i = 0; i < count; i++) {
+                            long before = System.nanoTime();
+                            monitoredProvider.consume(provider, observation(i * 1000L, i));
+                            slowest[index] = Math.max(slowest[index], System.nanoTime() - before);
+
+                            // Spread the observations over the second
+                            long due = started + (i + 1) * 1000000000L / perSecond;
+                            long wait = due - System.nanoTime();
+                            if (wait > 0) {
+                                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                            }
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (MonitoredProvider<Sample> monitoredProvider : monitored) {
+            monitoredProvider.close();
+        }
+        writer.stop();
+
+        assertEquals(0, writer.getDropped());
+        assertEquals(providers * count, writer.getWritten());
+        assertTrue("Too many commits: " + writer.getCommits(), writer.getCommits() < providers * count / 10);
+        for (int p = 0; p < providers; p++) {
+            List<String[]> lines = readLines("provider" + p);
+            assertEquals(count, lines.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(Integer.toString(i), lines.get(i)[1]);
+            }
+            // Handing over an observation should never wait for the disk
+            assertTrue("Slowest observation took " + slowest[p] + "ns", slowest[p] < 100000000L);
+        }
+    }
+
+    /**
+     * A disk that can not keep up makes the writer drop observations, but does not slow down the publisher
+     */
+    public void testSlowDiskDoesNotBlockPublisher() throws Exception {
+        writer = new MonitorWriter(100, 1000, 100);
+        writer.start();
+
+        FakeProvider provider = new FakeProvider();
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("org.flexiblepower.monitoring.type.count", "long");
+        MonitoredProvider<Sample> slow = new MonitoredProvider<Sample>(dataDir,
+                                                                       provider,
+                                                                       properties,
+                                                                       OutputFormat.CSV,
+                                                                       0,
+                                                                       writer) {
+            @Override
+            void writeObservation(long timestamp, Object[] values) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                super.writeObservation(timestamp, values);
+            }
+        };
+
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            slow.consume(provider, observation(i * 1000L, i));
+        }
+        long duration = System.currentTimeMillis() - started;
+        slow.close();
+        writer.stop();
+
+        assertTrue("Publishing took " + duration + "ms", duration < 1000);
+        assertTrue(writer.getDropped() > 0);
+        assertEquals(1000, writer.getWritten() + writer.getDropped());
+    }
+
+    /**
+     * An output that fails does not stop the writer, the observations of the other providers are still written
+     */
+    public void testFailingOutput() throws Exception {
+        writer = new MonitorWriter(1000, 10, 50);
+        writer.start();
+
+        FakeProvider provider = new FakeProvider();
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("org.flexiblepower.monitoring.type.count", "long");
+        MonitoredProvider<Sample> broken = new MonitoredProvider<Sample>(dataDir,
+                                                                         provider,
+                                                                         properties,
+                                                                         OutputFormat.CSV,
+                                                                         0,
+                                                                         writer) {
+            @Override
+            void writeObservation(long timestamp, Object[] values) {
+                throw new IllegalStateException("Broken output");
+            }
+        };
+        MonitoredProvider<Sample> healthy = monitor(provider, "healthy");
+
+        for (int i = 0; i < 100; i++) {
+            broken.consume(provider, observation(i * 1000L, i));
+            healthy.consume(provider, observation(i * 1000L, i));
+        }
+        broken.close();
+        healthy.close();
+        writer.stop();
+
+        assertEquals(100, writer.getFailed());
+        assertEquals(100, writer.getWritten());
+        assertEquals(0, writer.getDropped());
+        assertEquals(100, readLines("healthy").size());
+    }
+
+    /**
+     * Closing an output and stopping do not block when the writer thread is not running
+     */
+    public void testStoppedWriter() throws Exception {
+        writer = new MonitorWriter(1, 1000, 100);
+
+        FakeProvider provider = new FakeProvider();
+        MonitoredProvider<Sample> monitoredProvider = monitor(provider, "stopped");
+        for (int i = 0; i < 10; i++) {
+            monitoredProvider.consume(provider, observation(i * 1000L, i));
+        }
+        long started = System.currentTimeMillis();
+        monitoredProvider.close();
+        writer.stop();
+        assertTrue(System.currentTimeMillis() - started < 1000);
+        assertEquals(9, writer.getDropped());
+    }
+
+    /**
+     * The provider is only subscribed to once, also when the observations are spread over several files
+     */
+    public void testRollSubscribesOnce() throws Exception {
+        writer = new MonitorWriter(1000, 1000, 100);
+        writer.start();
+
+        FakeProvider provider = new FakeProvider();
+        MonitoredProvider<Sample> monitoredProvider = monitor(provider, "rolling");
+        assertEquals(1, provider.subscriptions.get());
+        // A file is rolled over when there are more than 30 days between observations
+        for (int i = 0; i < 10; i++) {
+            monitoredProvider.consume(provider, observation(i * 40 * DAY, i));
+            assertEquals(1, provider.subscriptions.get());
+        }
+        monitoredProvider.close();
+        writer.stop();
+
+        assertEquals(0, provider.subscriptions.get());
+        assertEquals(10, dataDir.listFiles().length);
+        assertEquals(10, readLines("rolling").size());
+    }
+
+    /**
+     * An observation reaches the file within the commit interval, also when no other observations follow
+     */
+    public void testCommitInterval() throws Exception {
+        writer = new MonitorWriter(1000, 1000, 50);
+        writer.start();
+
+        FakeProvider provider = new FakeProvider();
+        MonitoredProvider<Sample> monitoredProvider = monitor(provider, "single");
+        monitoredProvider.consume(provider, observation(0, 42));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        List<String[]> lines = readLines("single");
+        while (lines.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            lines = readLines("single");
+        }
+        assertEquals(1, lines.size());
+        assertEquals("42", lines.get(0)[1]);
+        monitoredProvider.close();
+    }
+
+    /**
+     * @return The number of observations in the blocks that have been written to the COLUMNAR file of a provider
+     */
+    private long columnarRows(String name) throws IOException {
+        for (File file : dataDir.listFiles()) {
+            if (file.getName().contains(" " + name + " ")) {
+                ColumnarReader reader = new ColumnarReader(file);
+                try {
+                    return reader.getRows();
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The block of a COLUMNAR file is written once it has waited for the block interval, also when its provider does
+     * not publish anymore, both while other providers keep publishing and while the queue is empty
+     */
+    public void testSilentProvider() throws Exception {
+        writer = new MonitorWriter(1000, 1000, 50);
+        writer.start();
+
+        FakeProvider provider = new FakeProvider();
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("resourceId", "silent");
+        properties.put("org.flexiblepower.monitoring.type.count", "long");
+        MonitoredProvider<Sample> silent = new MonitoredProvider<Sample>(dataDir,
+                                                                         provider,
+                                                                         properties,
+                                                                         OutputFormat.COLUMNAR,
+                                                                         200,
+                                                                         writer);
+        MonitoredProvider<Sample> busy = monitor(provider, "busy");
+
+        silent.consume(provider, observation(0, 1));
+        long deadline = System.currentTimeMillis() + 5000;
+        int i = 0;
+        while (columnarRows("silent") == 0 && System.currentTimeMillis() < deadline) {
+            busy.consume(provider, observation(i * 1000L, i));
+            i++;
+            Thread.sleep(10);
+        }
+        assertEquals(1, columnarRows("silent"));
+
+        silent.consume(provider, observation(1000, 2));
+        deadline = System.currentTimeMillis() + 5000;
+        while (columnarRows("silent") == 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, columnarRows("silent"));
+
+        silent.close();
+        busy.close();
+    }
+}
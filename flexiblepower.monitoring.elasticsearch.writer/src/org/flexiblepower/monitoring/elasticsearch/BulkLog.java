@@ -0,0 +1,198 @@
+package org.flexiblepower.monitoring.elasticsearch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-ahead log for the bulks that could not be sent to ElasticSearch. Every bulk is stored in its own segment
+ * file, which contains the body of the <code>_bulk</code> request, so a segment can be sent again as it is.
+ *
+ * A segment is first written to a temporary file, which is renamed when it is complete, so a crash never leaves a
+ * partial segment behind. The total size of the segments is limited: when a new segment does not fit, the oldest
+ * segments are removed.
+ */
+class BulkLog {
+    private static final Logger logger = LoggerFactory.getLogger(BulkLog.class);
+
+    private static final String SEGMENT_PREFIX = "bulk-";
+    private static final String SEGMENT_SUFFIX = ".ndjson";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final class Segment implements Comparable<Segment> {
+        final long id;
+        final File file;
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        @Override
+        public int compareTo(Segment o) {
+            return id < o.id ? -1 : (id == o.id ? 0 : 1);
+        }
+    }
+
+    private final File directory;
+    private final long maxSize;
+
+    /** The segment files, the oldest first */
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private long nextSegmentId = 0;
+    private long size = 0;
+    private long droppedSegments = 0;
+
+    /**
+     * @param directory
+     *            The directory in which the segment files are stored
+     * @param maxSize
+     *            The maximum number of bytes of all segment files together
+     * @throws IOException
+     *             When the directory can not be created
+     */
+    BulkLog(File directory, long maxSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        List<Segment> found = new ArrayList<Segment>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(TEMPORARY_SUFFIX)) {
+                    // Left behind by a crash while the segment was written
+                    delete(file);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                                name.length() - SEGMENT_SUFFIX.length()));
+                        found.add(new Segment(id, file));
+                    } catch (NumberFormatException ex) {
+                        logger.warn("Ignoring unknown file {}", file);
+                    }
+                }
+            }
+        }
+        Collections.sort(found);
+
+        for (Segment segment : found) {
+            segments.addLast(segment);
+            size += segment.file.length();
+            nextSegmentId = segment.id + 1;
+        }
+
+        if (!segments.isEmpty()) {
+            logger.info("Found {} unsent bulks ({} bytes) in {}", segments.size(), size, directory);
+        }
+    }
+
+    /**
+     * Writes a bulk to a new segment file. When the log gets too large, the oldest segments are removed.
+     *
+     * @param bulk
+     *            The body of the bulk request
+     * @throws IOException
+     *             When the segment could not be written
+     */
+    synchronized void append(HttpEntity bulk) throws IOException {
+        long id = nextSegmentId++;
+        File temporary = new File(directory, SEGMENT_PREFIX + id + TEMPORARY_SUFFIX);
+        File file = new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+
+        FileOutputStream out = new FileOutputStream(temporary);
+        boolean complete = false;
+        try {
+            bulk.writeTo(out);
+            out.flush();
+            out.getFD().sync();
+            complete = true;
+        } finally {
+            out.close();
+            if (!complete) {
+                delete(temporary);
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            delete(temporary);
+            throw new IOException("Could not rename " + temporary + " to " + file);
+        }
+
+        segments.addLast(new Segment(id, file));
+        size += file.length();
+
+        while (size > maxSize && segments.size() > 1) {
+            Segment oldest = segments.removeFirst();
+            size -= oldest.file.length();
+            delete(oldest.file);
+            droppedSegments++;
+            logger.warn("The log of unsent bulks is full, dropped {}", oldest.file.getName());
+        }
+    }
+
+    /**
+     * @return The oldest segment file, or <code>null</code> when the log is empty
+     */
+    synchronized File peek() {
+        Segment segment = segments.peekFirst();
+        return segment == null ? null : segment.file;
+    }
+
+    /**
+     * Removes the oldest segment file, after it has been sent.
+     *
+     * @param file
+     *            The file that was returned by {@link #peek()}
+     */
+    synchronized void remove(File file) {
+        Segment segment = segments.peekFirst();
+        if (segment != null && segment.file.equals(file)) {
+            segments.removeFirst();
+            size -= file.length();
+            delete(file);
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * @return The number of segment files
+     */
+    synchronized int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * @return The number of bytes of all segment files together
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of segments that have been removed because the log was full
+     */
+    synchronized long getDroppedSegments() {
+        return droppedSegments;
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.warn("Could not delete {}", file);
+        }
+    }
+}
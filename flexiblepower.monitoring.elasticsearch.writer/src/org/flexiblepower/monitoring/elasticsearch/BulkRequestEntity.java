@@ -0,0 +1,194 @@
+package org.flexiblepower.monitoring.elasticsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * The body of a <code>_bulk</code> request, which is written directly to the connection while the request is sent.
+ * The documents are written in order until the size limit has been reached, so a bulk could contain less documents
+ * than were given. {@link #getWrittenDocuments()} tells how many documents have actually been sent.
+ */
+class BulkRequestEntity extends AbstractHttpEntity {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String indexName;
+    private final List<Data> documents;
+    private final long maxSize;
+    private final boolean compress;
+
+    private volatile int writtenDocuments;
+    private volatile long writtenCharacters;
+
+    /**
+     * @param indexName
+     *            The index to which the documents are written
+     * @param documents
+     *            The documents that should be written. The list should not be changed while the request is sent.
+     * @param maxSize
+     *            The number of characters after which no more documents are added. The first document is always
+     *            written, so a bulk can not get stuck on a single large document.
+     * @param compress
+     *            <code>true</code> when the body should be compressed with gzip
+     */
+    BulkRequestEntity(String indexName, List<Data> documents, long maxSize, boolean compress) {
+        this.indexName = indexName;
+        this.documents = documents;
+        this.maxSize = maxSize;
+        this.compress = compress;
+
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        setChunked(true);
+        if (compress) {
+            setContentEncoding("gzip");
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = compress ? new GZIPOutputStream(new NonClosingOutputStream(out), 8192) : null;
+        CountingWriter cw = new CountingWriter(new OutputStreamWriter(gzip != null ? gzip : out, UTF8));
+        DataWriter w = new DataWriter(cw);
+
+        int count = 0;
+        for (Data data : documents) {
+            if (count > 0 && cw.getCount() >= maxSize) {
+                break;
+            }
+
+            // Write create action with the index and type
+            w.beginObject().name("create").beginObject();
+            w.name("_index").value(indexName);
+            w.name("_type").value(data.getType());
+            w.name("_id").value(data.getId());
+            w.endObject().endObject();
+            cw.write('\n');
+
+            w.beginObject();
+            w.name("@timestamp").value(data.getObservation().getObservedAt());
+            for (Entry<String, Object> entry : data.getObservation().getValueMap().entrySet()) {
+                w.write(entry.getKey().replace('.', '_'), entry.getValue());
+            }
+            w.endObject();
+            cw.write('\n');
+            count++;
+        }
+
+        w.flush();
+        if (gzip != null) {
+            gzip.close();
+        }
+
+        writtenDocuments = count;
+        writtenCharacters = cw.getCount();
+    }
+
+    /**
+     * @return The number of documents that were written the last time this entity has been sent
+     */
+    int getWrittenDocuments() {
+        return writtenDocuments;
+    }
+
+    /**
+     * @return The number of (uncompressed) characters that were written the last time this entity has been sent
+     */
+    long getWrittenCharacters() {
+        return writtenCharacters;
+    }
+
+    private static class CountingWriter extends FilterWriter {
+        private long count;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Makes sure that finishing the gzip stream does not close the connection
+     */
+    private static class NonClosingOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        NonClosingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.flexiblepower.monitoring.elasticsearch;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.BitSet;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * The result of the items of a <code>_bulk</code> request. The response is read as a stream, so a large response does
+ * not have to be kept in memory.
+ */
+class BulkResponse {
+    private final BitSet retry = new BitSet();
+    private int items;
+    private int rejected;
+
+    /**
+     * Reads the response of a <code>_bulk</code> request. An item succeeded when its status is 2xx, or when it is 409
+     * (conflict), which means that the document has been created by an earlier attempt. An item should be retried
+     * when ElasticSearch was too busy (429) or failed (5xx). Other items are rejected, trying them again will not help.
+     *
+     * @param reader
+     *            The body of the response
+     * @return The parsed response
+     * @throws IOException
+     *             When the response could not be read
+     */
+    static BulkResponse parse(Reader reader) throws IOException {
+        BulkResponse response = new BulkResponse();
+        JsonReader json = new JsonReader(reader);
+        json.setLenient(true);
+
+        if (json.peek() != JsonToken.BEGIN_OBJECT) {
+            return response;
+        }
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("errors".equals(name) && json.peek() == JsonToken.BOOLEAN) {
+                if (!json.nextBoolean()) {
+                    // All items succeeded, no need to read them
+                    return response;
+                }
+            } else if ("items".equals(name) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    response.addItem(readStatus(json));
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Reads an item like <code>{"create":{"_id":"...","status":201}}</code>
+     *
+     * @return The status of the item, or 0 if it does not have one
+     */
+    private static int readStatus(JsonReader json) throws IOException {
+        int status = 0;
+        json.beginObject();
+        while (json.hasNext()) {
+            json.nextName();
+            json.beginObject();
+            while (json.hasNext()) {
+                if ("status".equals(json.nextName())) {
+                    status = json.nextInt();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+        }
+        json.endObject();
+        return status;
+    }
+
+    private void addItem(int status) {
+        if (status == 429 || status >= 500) {
+            retry.set(items);
+        } else if ((status < 200 || status >= 300) && status != 409) {
+            rejected++;
+        }
+        items++;
+    }
+
+    /**
+     * @return The indexes of the items that should be sent again
+     */
+    BitSet getRetry() {
+        return retry;
+    }
+
+    /**
+     * @return The number of items that have been rejected by ElasticSearch
+     */
+    int getRejected() {
+        return rejected;
+    }
+}
@@ -1,16 +1,32 @@
 package org.flexiblepower.monitoring.elasticsearch;
 
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.flexiblepower.observation.Observation;
 
 public class Data {
+    /**
+     * The document ids consist of a random prefix that is unique for this run and a sequence number. This is a lot
+     * cheaper than a random UUID for every document, while a retried bulk still uses the same ids.
+     */
+    private static final String ID_PREFIX = UUID.randomUUID().toString() + "-";
+    private static final AtomicLong ID_SEQUENCE = new AtomicLong();
+
+    private final String id;
     private final String type;
     private final Observation<?> observation;
 
     public Data(String type, Observation<?> observation) {
+        id = ID_PREFIX + Long.toString(ID_SEQUENCE.incrementAndGet(), Character.MAX_RADIX);
         this.type = type;
         this.observation = observation;
     }
 
+    public String getId() {
+        return id;
+    }
+
     public String getType() {
         return type;
     }
@@ -2,14 +2,15 @@ package org.flexiblepower.monitoring.elasticsearch;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.TimeZone;
 
 import com.google.gson.stream.JsonWriter;
 
+import net.logstash.logback.util.DateFormatter;
+
 public class DataWriter extends JsonWriter {
-    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+    private static final DateFormatter DATE_FORMATTER = new DateFormatter(TimeZone.getTimeZone("GMT"), true);
 
     public DataWriter(Writer w) {
         super(w);
@@ -43,16 +44,7 @@ public class DataWriter extends JsonWriter {
     }
 
     public static String format(long timeStamp) {
-        Calendar calendar = Calendar.getInstance(GMT);
-        calendar.setTimeInMillis(timeStamp);
-        return String.format("%04d-%02d-%02dT%02d:%02d:%02d.%03dZ",
-                             calendar.get(Calendar.YEAR),
-                             calendar.get(Calendar.MONTH) + 1, // 0-based...
-                             calendar.get(Calendar.DAY_OF_MONTH),
-                             calendar.get(Calendar.HOUR_OF_DAY),
-                             calendar.get(Calendar.MINUTE),
-                             calendar.get(Calendar.SECOND),
-                             calendar.get(Calendar.MILLISECOND));
+        return DATE_FORMATTER.format(timeStamp);
     }
 
     public DataWriter write(String name, Object value) throws IOException {
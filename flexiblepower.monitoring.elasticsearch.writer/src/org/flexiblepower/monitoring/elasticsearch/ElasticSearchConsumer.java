@@ -1,5 +1,6 @@
 package org.flexiblepower.monitoring.elasticsearch;
 
+import java.io.File;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -32,6 +33,27 @@ public class ElasticSearchConsumer implements ObservationConsumer<Object> {
 
         @Meta.AD(deflt = "15", description = "Write every x seconds to database")
         public int writeDelay();
+
+        @Meta.AD(deflt = "1000", description = "Maximum number of observations in a single bulk request")
+        public int maxBulkDocuments();
+
+        @Meta.AD(deflt = "5120", description = "Size in kB after which a bulk request is closed")
+        public int maxBulkSize();
+
+        @Meta.AD(deflt = "false", description = "Compress the bulk requests with gzip")
+        public boolean compressBulkRequests();
+
+        @Meta.AD(deflt = "10000", description = "Maximum number of observations that are queued in memory")
+        public int memoryBufferSize();
+
+        @Meta.AD(deflt = "256", description = "Maximum size in MB of the unsent bulks on disk (0 disables)")
+        public int diskBufferSize();
+
+        @Meta.AD(deflt = "", required = false, description = "Directory for the unsent bulks (empty for the default)")
+        public String bufferDirectory();
+
+        @Meta.AD(deflt = "600", description = "Maximum number of seconds between retries when writing fails")
+        public int maxRetryBackoff();
     }
 
     public FlexiblePowerContext fpContext;
@@ -72,10 +94,25 @@ public class ElasticSearchConsumer implements ObservationConsumer<Object> {
     @Activate
     public void activate(BundleContext context, Map<String, Object> properties) {
         config = Configurable.createConfigurable(Config.class, properties);
+
+        File bufferDirectory;
+        if (config.bufferDirectory() == null || config.bufferDirectory().trim().isEmpty()) {
+            bufferDirectory = context.getDataFile("buffer-" + config.elasticSearchIndexName());
+        } else {
+            bufferDirectory = new File(config.bufferDirectory().trim());
+        }
+
         writer = new ElasticSearchWriter(fpContext,
                                          config.writeDelay(),
                                          config.elasticSearchIndexName(),
-                                         config.elasticSearchServerURL());
+                                         config.elasticSearchServerURL(),
+                                         config.maxBulkDocuments(),
+                                         config.maxBulkSize() * 1024L,
+                                         config.compressBulkRequests(),
+                                         config.memoryBufferSize(),
+                                         bufferDirectory,
+                                         config.diskBufferSize() * 1024L * 1024L,
+                                         config.maxRetryBackoff() * 1000L);
     }
 
     @Deactivate
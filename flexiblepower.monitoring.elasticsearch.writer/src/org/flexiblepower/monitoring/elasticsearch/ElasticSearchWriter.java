@@ -1,42 +1,150 @@
 package org.flexiblepower.monitoring.elasticsearch;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
-import java.util.Map.Entry;
-import java.util.Queue;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.measure.Measure;
 import javax.measure.unit.SI;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.flexiblepower.context.FlexiblePowerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Writes observations to ElasticSearch in bulk requests. The observations are queued in memory until the next write.
+ * When ElasticSearch can not be reached, the writer backs off exponentially, and the bulks that could not be sent are
+ * stored in a {@link BulkLog}, so the memory that is used stays the same during a long outage. The log is sent before
+ * any new observations, once ElasticSearch is available again.
+ */
 public class ElasticSearchWriter implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(ElasticSearchWriter.class);
 
-    private final ScheduledFuture<?> schedule;
-    private final Queue<Data> observationsToWrite;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final BlockingQueue<Data> observationsToWrite;
+    private final List<Data> bulk;
     private final String indexName;
     private final String baseUrl;
+    private final int maxBulkDocuments;
+    private final long maxBulkSize;
+    private final boolean compress;
+    private final BulkLog log;
+    private final long initialBackoff;
+    private final long maxBackoff;
     private final CloseableHttpClient httpClient;
+    private final Random random = new Random();
+    private ScheduledFuture<?> schedule;
+
+    /** The number of failed attempts since the last successful write */
+    private int failures = 0;
+    /** The time before which no new attempt is made */
+    private long nextAttempt = 0;
+
+    private final AtomicLong droppedObservations = new AtomicLong();
 
-    public ElasticSearchWriter(FlexiblePowerContext context, int delay, String indexName, String baseUrl) {
+    /**
+     * @param context
+     *            The context that is used to schedule the writes
+     * @param delay
+     *            The number of seconds between the writes
+     * @param indexName
+     *            The name of the index to which the observations are written
+     * @param baseUrl
+     *            The URL of the elasticsearch REST service
+     * @param maxBulkDocuments
+     *            The maximum number of documents in a single bulk request
+     * @param maxBulkSize
+     *            The number of (uncompressed) characters after which no more documents are added to a bulk request
+     * @param compress
+     *            <code>true</code> when the bulk requests should be compressed with gzip
+     * @param memoryBufferSize
+     *            The maximum number of observations that are queued in memory, at least one bulk
+     * @param logDirectory
+     *            The directory in which the bulks that could not be sent are stored, or <code>null</code> to keep them
+     *            in memory
+     * @param maxLogSize
+     *            The maximum number of bytes of the stored bulks, 0 to keep them in memory
+     * @param maxBackoff
+     *            The maximum number of milliseconds between two attempts when ElasticSearch is not available
+     */
+    public ElasticSearchWriter(FlexiblePowerContext context,
+                               int delay,
+                               String indexName,
+                               String baseUrl,
+                               int maxBulkDocuments,
+                               long maxBulkSize,
+                               boolean compress,
+                               int memoryBufferSize,
+                               File logDirectory,
+                               long maxLogSize,
+                               long maxBackoff) {
+        this(indexName,
+             baseUrl,
+             maxBulkDocuments,
+             maxBulkSize,
+             compress,
+             memoryBufferSize,
+             createLog(logDirectory, maxLogSize),
+             delay * 1000L,
+             maxBackoff);
         schedule = context.scheduleWithFixedDelay(this,
                                                   Measure.valueOf(delay / 2, SI.SECOND),
                                                   Measure.valueOf(delay, SI.SECOND));
-        observationsToWrite = new ConcurrentLinkedQueue<Data>();
+    }
+
+    /**
+     * Creates a writer that only writes when {@link #run()} is called.
+     */
+    ElasticSearchWriter(String indexName,
+                        String baseUrl,
+                        int maxBulkDocuments,
+                        long maxBulkSize,
+                        boolean compress,
+                        int memoryBufferSize,
+                        BulkLog log,
+                        long initialBackoff,
+                        long maxBackoff) {
+        if (maxBulkDocuments < 1 || maxBulkSize < 1) {
+            throw new IllegalArgumentException("The bulk size should be at least 1");
+        }
+        // The queue should at least be able to contain a full bulk
+        observationsToWrite = new LinkedBlockingQueue<Data>(Math.max(memoryBufferSize, maxBulkDocuments));
+        bulk = new ArrayList<Data>();
         this.indexName = indexName; // "observations";
         this.baseUrl = baseUrl; // "http://192.168.1.60:9200";
+        this.maxBulkDocuments = maxBulkDocuments;
+        this.maxBulkSize = maxBulkSize;
+        this.compress = compress;
+        this.log = log;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = Math.max(initialBackoff, maxBackoff);
         httpClient = HttpClientBuilder.create().build();
 
         try {
@@ -46,6 +154,18 @@ public class ElasticSearchWriter implements Runnable {
         }
     }
 
+    private static BulkLog createLog(File directory, long maxSize) {
+        if (directory == null || maxSize <= 0) {
+            return null;
+        }
+        try {
+            return new BulkLog(directory, maxSize);
+        } catch (IOException ex) {
+            logger.warn("Could not create the log, unsent bulks will only be kept in memory", ex);
+            return null;
+        }
+    }
+
     private void createIndex() throws IOException {
         StringWriter sw = new StringWriter();
         DataWriter w = new DataWriter(sw);
@@ -68,8 +188,24 @@ public class ElasticSearchWriter implements Runnable {
         put.completed();
     }
 
-    public void close() {
-        schedule.cancel(false);
+    /**
+     * Stops writing. The observations that have not been written yet are stored in the log, if there is one.
+     */
+    public synchronized void close() {
+        if (schedule != null) {
+            schedule.cancel(false);
+        }
+
+        if (log != null) {
+            while (fillBulk()) {
+                if (!appendToLog(bulk)) {
+                    break;
+                }
+            }
+            if (!bulk.isEmpty()) {
+                logger.warn("Lost {} observations that could not be written", bulk.size() + observationsToWrite.size());
+            }
+        }
 
         try {
             httpClient.close();
@@ -78,70 +214,273 @@ public class ElasticSearchWriter implements Runnable {
     }
 
     public void addObservation(Data data) {
-        observationsToWrite.add(data);
+        if (!observationsToWrite.offer(data)) {
+            if (droppedObservations.getAndIncrement() % 1000 == 0) {
+                logger.warn("Observation queue is full, {} observations have been dropped", droppedObservations.get());
+            }
+        }
+    }
+
+    /**
+     * @return The number of observations that have been dropped because the queue was full
+     */
+    public long getDroppedObservations() {
+        return droppedObservations.get();
     }
 
     @Override
-    public void run() {
-        if (!observationsToWrite.isEmpty()) {
-            String url = baseUrl + "/_bulk";
-            HttpPut httpPut = new HttpPut(url);
-            String json = generateContent();
-            httpPut.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+    public synchronized void run() {
+        if (System.currentTimeMillis() < nextAttempt) {
+            // Backing off, make room in the queue
+            spillToLog();
+            return;
+        }
+
+        if ((log == null || log.isEmpty()) && bulk.isEmpty() && observationsToWrite.isEmpty()) {
+            logger.debug("No observations to write");
+            return;
+        }
+
+        // The log contains the oldest observations, so it is sent first
+        if (log != null) {
+            File segment;
+            while ((segment = log.peek()) != null) {
+                if (!writeSegment(segment)) {
+                    failed();
+                    spillToLog();
+                    return;
+                }
+            }
+        }
+
+        // Large backlogs are written in a sequence of bulks, so the memory that is needed stays limited
+        while (fillBulk()) {
+            if (!writeBulk()) {
+                failed();
+                spillToLog();
+                return;
+            }
+        }
+
+        if (failures > 0) {
+            logger.info("Writing to ElasticSearch succeeded after {} failed attempts", failures);
+            failures = 0;
+        }
+    }
+
+    /**
+     * Adds observations from the queue to the bulk, until it reaches the maximum number of documents.
+     *
+     * @return <code>true</code> when there is something to write
+     */
+    private boolean fillBulk() {
+        Data data;
+        while (bulk.size() < maxBulkDocuments && (data = observationsToWrite.poll()) != null) {
+            bulk.add(data);
+        }
+        return !bulk.isEmpty();
+    }
+
+    /**
+     * Writes the documents of the bulk that fit in a single request. The documents that have been handled are removed
+     * from the bulk, the documents that should be tried again are stored in the log.
+     *
+     * @return <code>true</code> when all documents have been handled
+     */
+    private boolean writeBulk() {
+        BulkRequestEntity entity = new BulkRequestEntity(indexName, bulk, maxBulkSize, compress);
+        BulkResponse response = write(entity);
+        if (response == null) {
+            // Nothing has been written, the bulk stays in memory or goes to the log
+            return false;
+        }
+
+        int written = entity.getWrittenDocuments();
+        logger.debug("Bulk write of {} documents ({} characters)", written, entity.getWrittenCharacters());
 
-            logger.debug("Bulk write to {} ({} characters)", url, json.length());
+        BitSet retry = response.getRetry();
+        List<Data> failed = new ArrayList<Data>(retry.cardinality());
+        for (int i = retry.nextSetBit(0); i >= 0 && i < written; i = retry.nextSetBit(i + 1)) {
+            failed.add(bulk.get(i));
+        }
+        bulk.subList(0, written).clear();
+
+        if (failed.isEmpty()) {
+            return true;
+        } else {
+            logger.warn("{} of {} documents should be written again", failed.size(), written);
+            if (log == null || !appendToLog(failed)) {
+                bulk.addAll(0, failed);
+            }
+            return false;
+        }
+    }
 
+    /**
+     * Sends a bulk from the log again. The segment is removed when it has been handled, the documents that should be
+     * tried again are stored in a new segment.
+     *
+     * @return <code>true</code> when all documents have been handled
+     */
+    private boolean writeSegment(File segment) {
+        HttpEntity entity = new FileEntity(segment, ContentType.APPLICATION_JSON);
+        if (compress) {
+            entity = new GzipCompressingEntity(entity);
+        }
+
+        BulkResponse response = write(entity);
+        if (response == null) {
+            return false;
+        }
+        logger.debug("Bulk write of {} from the log", segment.getName());
+
+        BitSet retry = response.getRetry();
+        if (!retry.isEmpty()) {
+            logger.warn("{} documents of {} should be written again", retry.cardinality(), segment.getName());
+            try {
+                log.append(selectDocuments(segment, retry));
+            } catch (IOException ex) {
+                logger.warn("I/O error while writing to the log, keeping " + segment.getName(), ex);
+                return false;
+            }
+        }
+        log.remove(segment);
+        return retry.isEmpty();
+    }
+
+    /**
+     * Sends a bulk request to ElasticSearch.
+     *
+     * @return The response of ElasticSearch, or <code>null</code> when the whole request should be tried again
+     */
+    private BulkResponse write(HttpEntity entity) {
+        String url = baseUrl + "/_bulk";
+        HttpPut httpPut = new HttpPut(url);
+        httpPut.setEntity(entity);
+
+        try {
+            CloseableHttpResponse response = httpClient.execute(httpPut);
             try {
-                CloseableHttpResponse response = httpClient.execute(httpPut);
                 int statusCode = response.getStatusLine().getStatusCode();
-                if (statusCode < 200 || statusCode >= 400) {
+                if (statusCode == 429 || statusCode >= 500) {
                     throw new IOException("Statuscode: " + statusCode);
+                } else if (statusCode < 200 || statusCode >= 300) {
+                    // Sending the same request again would give the same result
+                    logger.error("ElasticSearch rejected the bulk request to {} with statuscode {}, dropping it",
+                                 url,
+                                 statusCode);
+                    return new BulkResponse();
                 }
-                jsonToSend = null;
+
+                BulkResponse bulkResponse = BulkResponse.parse(new InputStreamReader(response.getEntity().getContent(),
+                                                                                     UTF8));
+                if (bulkResponse.getRejected() > 0) {
+                    logger.error("ElasticSearch rejected {} documents", bulkResponse.getRejected());
+                }
+                return bulkResponse;
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
                 response.close();
-            } catch (IOException ex) {
-                logger.warn("I/O error while writing to ElasticSearch: " + ex.getMessage(), ex);
             }
+        } catch (IOException ex) {
+            logger.warn("I/O error while writing to ElasticSearch: " + ex.getMessage(), ex);
+            return null;
+        } finally {
             httpPut.completed();
-        } else {
-            logger.debug("No observations to write");
         }
     }
 
-    private transient volatile String jsonToSend = null;
+    /**
+     * Determines when the next attempt will be made, after a failure.
+     */
+    private void failed() {
+        failures++;
+        long backoff = backoff(failures, initialBackoff, maxBackoff, random);
+        nextAttempt = System.currentTimeMillis() + backoff;
+        logger.warn("Writing to ElasticSearch failed {} times, next attempt in {} s", failures, backoff / 1000);
+    }
 
-    private synchronized String generateContent() {
-        try {
-            StringWriter sw = new StringWriter();
-            if (jsonToSend != null) {
-                sw.append(jsonToSend);
-            }
-            DataWriter w = new DataWriter(sw);
-
-            Data data = null;
-            while ((data = observationsToWrite.poll()) != null) {
-                // Write create action with the index and type
-                w.beginObject().name("create").beginObject();
-                w.name("_index").value(indexName);
-                w.name("_type").value(data.getType());
-                w.name("_id").value(UUID.randomUUID().toString());
-                w.endObject().endObject();
-                sw.append('\n');
-
-                w.beginObject();
-                w.name("@timestamp").value(data.getObservation().getObservedAt());
-                for (Entry<String, Object> entry : data.getObservation().getValueMap().entrySet()) {
-                    w.write(entry.getKey().replace('.', '_'), entry.getValue());
+    /**
+     * Calculates the time to wait after a number of failures. The time doubles after every failure, up to the maximum.
+     * A random part of up to half of that time is subtracted, so that writers that failed at the same time do not all
+     * try again at the same time.
+     *
+     * @return The number of milliseconds to wait
+     */
+    static long backoff(int failures, long initialBackoff, long maxBackoff, Random random) {
+        long backoff = initialBackoff;
+        for (int i = 1; i < failures && backoff < maxBackoff; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxBackoff);
+        return backoff - (long) (random.nextDouble() * (backoff / 2));
+    }
+
+    /**
+     * While backing off, full bulks are moved from the queue to the log, so the queue does not fill up.
+     */
+    private void spillToLog() {
+        if (log != null) {
+            while (bulk.size() + observationsToWrite.size() >= maxBulkDocuments && fillBulk()) {
+                if (!appendToLog(bulk)) {
+                    return;
                 }
-                w.endObject();
-                sw.append('\n');
             }
+        }
+    }
 
-            w.close();
-            return jsonToSend = sw.toString();
+    /**
+     * Stores documents in the log, in bulks of the maximum size. The documents that have been stored are removed from
+     * the list.
+     *
+     * @return <code>true</code> when all documents have been stored
+     */
+    private boolean appendToLog(List<Data> documents) {
+        try {
+            while (!documents.isEmpty()) {
+                BulkRequestEntity entity = new BulkRequestEntity(indexName, documents, maxBulkSize, false);
+                log.append(entity);
+                documents.subList(0, entity.getWrittenDocuments()).clear();
+            }
+            return true;
         } catch (IOException ex) {
-            // Shouldn't be possible when using a StringWriter
-            throw new AssertionError("I/O error while using a StringWriter: " + ex.getMessage());
+            logger.warn("I/O error while writing to the log: " + ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the documents with the given indexes from a segment. Each document takes two lines: the action and the
+     * source.
+     */
+    private static HttpEntity selectDocuments(File segment, BitSet indexes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(out, UTF8);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(segment), UTF8));
+        try {
+            String action;
+            int index = 0;
+            while ((action = reader.readLine()) != null) {
+                String source = reader.readLine();
+                if (source != null && indexes.get(index)) {
+                    writer.write(action);
+                    writer.write('\n');
+                    writer.write(source);
+                    writer.write('\n');
+                }
+                index++;
+            }
+        } finally {
+            reader.close();
         }
+        writer.flush();
+        return new ByteArrayEntity(out.toByteArray(), ContentType.APPLICATION_JSON);
+    }
+
+    /**
+     * @return The log in which the bulks that could not be sent are stored, or <code>null</code>
+     */
+    BulkLog getLog() {
+        return log;
     }
 }
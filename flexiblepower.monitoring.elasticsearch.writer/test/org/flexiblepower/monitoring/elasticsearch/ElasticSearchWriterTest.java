@@ -0,0 +1,339 @@
+package org.flexiblepower.monitoring.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.observation.Observation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ElasticSearchWriterTest extends TestCase {
+
+    /** The value of the observations that are written */
+    public static class Sample {
+        private final double power;
+
+        public Sample(double power) {
+            this.power = power;
+        }
+
+        public double getPower() {
+            return power;
+        }
+    }
+
+    /** Records the bulk requests that it receives and answers with a configurable status code */
+    private static class FakeBulkEndpoint implements HttpHandler {
+        final List<String> bulks = new ArrayList<String>();
+        final List<String> encodings = new ArrayList<String>();
+        volatile int statusCode = 200;
+        /** The status of each item in the response, or null for a response without items */
+        volatile int[] itemStatus = null;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            if ("gzip".equals(encoding)) {
+                in = new GZIPInputStream(in);
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, read);
+            }
+
+            if (exchange.getRequestURI().getPath().equals("/_bulk")) {
+                synchronized (this) {
+                    bulks.add(body.toString("UTF-8"));
+                    encodings.add(encoding);
+                }
+            }
+
+            String json = "{}";
+            if (itemStatus != null) {
+                StringBuilder sb = new StringBuilder("{\"took\":3,\"errors\":true,\"items\":[");
+                for (int i = 0; i < itemStatus.length; i++) {
+                    sb.append(i == 0 ? "" : ",");
+                    sb.append("{\"create\":{\"_index\":\"observations\",\"status\":").append(itemStatus[i]);
+                    sb.append(",\"error\":{\"type\":\"some_exception\"}}}");
+                }
+                json = sb.append("]}").toString();
+            }
+            byte[] response = json.getBytes("UTF-8");
+            exchange.sendResponseHeaders(exchange.getRequestURI().getPath().equals("/_bulk") ? statusCode : 200,
+                                        response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        }
+    }
+
+    private HttpServer server;
+    private FakeBulkEndpoint endpoint;
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("bulk-log", "");
+        directory.delete();
+
+        endpoint = new FakeBulkEndpoint();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", endpoint);
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop(0);
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private ElasticSearchWriter createWriter(int maxBulkDocuments, long maxBulkSize, boolean compress) {
+        return createWriter(maxBulkDocuments, maxBulkSize, compress, null);
+    }
+
+    private ElasticSearchWriter createWriter(int maxBulkDocuments, long maxBulkSize, boolean compress, BulkLog log) {
+        // Without backoff, so every run is an attempt
+        return new ElasticSearchWriter("observations",
+                                       "http://localhost:" + server.getAddress().getPort(),
+                                       maxBulkDocuments,
+                                       maxBulkSize,
+                                       compress,
+                                       100,
+                                       log,
+                                       0,
+                                       0);
+    }
+
+    private static void addObservations(ElasticSearchWriter writer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            writer.addObservation(new Data("sample", Observation.create(new Date(i * 1000L), new Sample(i))));
+        }
+    }
+
+    /**
+     * @return The number of documents in a bulk
+     */
+    private static int documents(String bulk) {
+        String[] lines = bulk.split("\n");
+        assertEquals(0, lines.length % 2);
+        return lines.length / 2;
+    }
+
+    public void testSplitByDocuments() {
+        ElasticSearchWriter writer = createWriter(10, Long.MAX_VALUE, false);
+        addObservations(writer, 0, 25);
+        writer.run();
+        writer.close();
+
+        assertEquals(3, endpoint.bulks.size());
+        assertEquals(10, documents(endpoint.bulks.get(0)));
+        assertEquals(10, documents(endpoint.bulks.get(1)));
+        assertEquals(5, documents(endpoint.bulks.get(2)));
+        assertTrue(endpoint.bulks.get(0).startsWith("{\"create\":{\"_index\":\"observations\",\"_type\":\"sample\""));
+        assertTrue(endpoint.bulks.get(2).contains("\"@timestamp\":\"1970-01-01T00:00:24.000Z\",\"power\":24.0}"));
+    }
+
+    public void testSplitBySize() {
+        ElasticSearchWriter writer = createWriter(1000, 1000, false);
+        addObservations(writer, 0, 100);
+        writer.run();
+        writer.close();
+
+        int total = 0;
+        for (String bulk : endpoint.bulks) {
+            // A bulk is closed by the first document that crosses the limit
+            assertTrue(bulk.length() < 1200);
+            total += documents(bulk);
+        }
+        assertTrue(endpoint.bulks.size() > 1);
+        assertEquals(100, total);
+    }
+
+    public void testCompressed() {
+        ElasticSearchWriter writer = createWriter(1000, Long.MAX_VALUE, true);
+        addObservations(writer, 0, 50);
+        writer.run();
+        writer.close();
+
+        assertEquals(1, endpoint.bulks.size());
+        assertEquals("gzip", endpoint.encodings.get(0));
+        assertEquals(50, documents(endpoint.bulks.get(0)));
+    }
+
+    public void testRetryFailedBulk() {
+        ElasticSearchWriter writer = createWriter(10, Long.MAX_VALUE, false);
+        addObservations(writer, 0, 15);
+        endpoint.statusCode = 503;
+        writer.run();
+        // The writer stops after the first failed bulk
+        assertEquals(1, endpoint.bulks.size());
+
+        endpoint.statusCode = 200;
+        addObservations(writer, 15, 20);
+        writer.run();
+        writer.close();
+
+        // The failed bulk is sent again with the same ids, followed by the rest
+        assertEquals(3, endpoint.bulks.size());
+        assertEquals(endpoint.bulks.get(0), endpoint.bulks.get(1));
+        assertEquals(10, documents(endpoint.bulks.get(2)));
+        assertTrue(endpoint.bulks.get(2).contains("\"power\":19.0}"));
+    }
+
+    public void testNothingToWrite() {
+        ElasticSearchWriter writer = createWriter(10, Long.MAX_VALUE, false);
+        writer.run();
+        writer.close();
+
+        assertEquals(0, endpoint.bulks.size());
+    }
+
+    public void testLogDuringOutage() throws IOException {
+        BulkLog log = new BulkLog(directory, 1024 * 1024);
+        ElasticSearchWriter writer = createWriter(10, Long.MAX_VALUE, false, log);
+        endpoint.statusCode = 503;
+        for (int i = 0; i < 10; i++) {
+            addObservations(writer, i * 10, i * 10 + 10);
+            writer.run();
+        }
+        // Every failed bulk went to the log, nothing is left in memory
+        assertEquals(10, endpoint.bulks.size());
+        assertEquals(10, log.getSegments());
+
+        endpoint.statusCode = 200;
+        endpoint.bulks.clear();
+        addObservations(writer, 100, 105);
+        writer.run();
+        writer.close();
+
+        // The log is sent first, in order
+        assertEquals(11, endpoint.bulks.size());
+        assertTrue(endpoint.bulks.get(0).contains("\"power\":0.0}"));
+        assertTrue(endpoint.bulks.get(9).contains("\"power\":99.0}"));
+        assertEquals(5, documents(endpoint.bulks.get(10)));
+        assertTrue(log.isEmpty());
+        assertEquals(0, directory.list().length);
+    }
+
+    public void testLogRetention() throws IOException {
+        BulkLog log = new BulkLog(directory, 4096);
+        ElasticSearchWriter writer = createWriter(10, Long.MAX_VALUE, false, log);
+        endpoint.statusCode = 503;
+        for (int i = 0; i < 100; i++) {
+            addObservations(writer, i * 10, i * 10 + 10);
+            writer.run();
+        }
+        writer.close();
+
+        assertTrue(log.getSize() <= 4096);
+        assertTrue(log.getDroppedSegments() > 0);
+        assertEquals(100, log.getSegments() + log.getDroppedSegments());
+    }
+
+    public void testPartialFailure() throws IOException {
+        BulkLog log = new BulkLog(directory, 1024 * 1024);
+        ElasticSearchWriter writer = createWriter(4, Long.MAX_VALUE, false, log);
+        addObservations(writer, 0, 4);
+        // Busy, created, conflict (created before) and a mapping error
+        endpoint.itemStatus = new int[] { 429, 201, 409, 400 };
+        writer.run();
+
+        // Only the first document should be written again
+        assertEquals(1, log.getSegments());
+        endpoint.itemStatus = null;
+        writer.run();
+        writer.close();
+
+        assertEquals(2, endpoint.bulks.size());
+        assertEquals(1, documents(endpoint.bulks.get(1)));
+        assertTrue(endpoint.bulks.get(1).contains("\"power\":0.0}"));
+        assertTrue(log.isEmpty());
+    }
+
+    public void testPartialFailureWithoutLog() {
+        ElasticSearchWriter writer = createWriter(4, Long.MAX_VALUE, false);
+        addObservations(writer, 0, 4);
+        endpoint.itemStatus = new int[] { 201, 503, 201, 503 };
+        writer.run();
+        endpoint.itemStatus = null;
+        writer.run();
+        writer.close();
+
+        assertEquals(2, endpoint.bulks.size());
+        assertEquals(2, documents(endpoint.bulks.get(1)));
+        assertTrue(endpoint.bulks.get(1).contains("\"power\":1.0}"));
+        assertTrue(endpoint.bulks.get(1).contains("\"power\":3.0}"));
+    }
+
+    public void testRejectedBulkIsDropped() {
+        ElasticSearchWriter writer = createWriter(10, Long.MAX_VALUE, false);
+        addObservations(writer, 0, 5);
+        endpoint.statusCode = 400;
+        writer.run();
+        endpoint.statusCode = 200;
+        writer.run();
+        writer.close();
+
+        assertEquals(1, endpoint.bulks.size());
+    }
+
+    public void testCloseStoresQueue() throws IOException {
+        ElasticSearchWriter writer = createWriter(10, Long.MAX_VALUE, false, new BulkLog(directory, 1024 * 1024));
+        addObservations(writer, 0, 25);
+        writer.close();
+        assertEquals(0, endpoint.bulks.size());
+
+        BulkLog log = new BulkLog(directory, 1024 * 1024);
+        assertEquals(3, log.getSegments());
+        writer = createWriter(10, Long.MAX_VALUE, false, log);
+        writer.run();
+        writer.close();
+
+        assertEquals(3, endpoint.bulks.size());
+        assertEquals(5, documents(endpoint.bulks.get(2)));
+        assertTrue(log.isEmpty());
+    }
+
+    public void testQueueIsBounded() {
+        ElasticSearchWriter writer = createWriter(10, Long.MAX_VALUE, false);
+        addObservations(writer, 0, 150);
+        assertEquals(50, writer.getDroppedObservations());
+        writer.close();
+    }
+
+    public void testBackoff() {
+        Random random = new Random(42);
+        for (int failures = 1; failures < 40; failures++) {
+            long backoff = ElasticSearchWriter.backoff(failures, 1000, 60000, random);
+            long ceiling = Math.min(60000, 1000L << Math.min(failures - 1, 20));
+            assertTrue(backoff <= ceiling);
+            assertTrue(backoff >= ceiling / 2);
+        }
+    }
+
+    public void testTimestampFormat() {
+        assertEquals("2000-02-29T12:34:56.789Z", DataWriter.format(951827696789L));
+    }
+}
@@ -0,0 +1,68 @@
+package org.flexiblepower.monitoring.mqtt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.flexiblepower.monitoring.buffer.OverflowPolicy;
+import org.flexiblepower.monitoring.buffer.SegmentLog;
+
+/**
+ * Stores the messages of the {@link ObservationPublisher} until the broker has acknowledged them. The messages go
+ * through a {@link SegmentLog}, which hands them out in the order in which they arrived, so the messages of every topic
+ * stay in order; this class only knows how a message is stored in a segment file.
+ */
+class MessageStore extends SegmentLog<MessageStore.Message> {
+    /** A message for a topic, with the number of observations in it */
+    static final class Message {
+        final String topic;
+        final byte[] payload;
+        final int observations;
+
+        Message(String topic, byte[] payload, int observations) {
+            this.topic = topic;
+            this.payload = payload;
+            this.observations = observations;
+        }
+    }
+
+    /** Writes the topic, the number of observations and the payload of a message */
+    static final class MessageCodec implements SegmentLog.Codec<Message> {
+        @Override
+        public void write(DataOutputStream out, Message message) throws IOException {
+            out.writeUTF(message.topic);
+            out.writeInt(message.observations);
+            out.writeInt(message.payload.length);
+            out.write(message.payload);
+        }
+
+        @Override
+        public Message read(DataInputStream in) throws IOException {
+            String topic = in.readUTF();
+            int observations = in.readInt();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            return new Message(topic, payload, observations);
+        }
+
+        @Override
+        public int observations(Message message) {
+            return message.observations;
+        }
+    }
+
+    /**
+     * @param directory
+     *            The directory for the segment files, or <code>null</code> to only store messages in memory
+     * @param memoryCapacity
+     *            The maximum number of messages that are kept in memory
+     * @param diskBudget
+     *            The maximum number of bytes of the segment files
+     * @param policy
+     *            Determines which messages are dropped when the store is full
+     */
+    MessageStore(File directory, int memoryCapacity, long diskBudget, OverflowPolicy policy) {
+        super(directory, memoryCapacity, diskBudget, policy, new MessageCodec());
+    }
+}
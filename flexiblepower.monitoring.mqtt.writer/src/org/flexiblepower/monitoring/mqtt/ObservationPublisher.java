@@ -0,0 +1,498 @@
+package org.flexiblepower.monitoring.mqtt;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.flexiblepower.monitoring.mqtt.MessageStore.Message;
+import org.flexiblepower.observation.Observation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+
+/**
+ * Publishes observations to an MQTT broker on its own thread, so the latency of the broker does not slow down the
+ * providers of the observations. The observations are handed over through a bounded queue; when the queue is full, new
+ * observations are dropped.
+ *
+ * The observations are turned into messages, which go through a {@link MessageStore} that keeps them until the broker
+ * has acknowledged them. While the broker can not be reached the messages collect in the store, on disk when there are
+ * many, and after reconnecting they are sent in their original order at a limited rate, so the link and the broker are
+ * not flooded.
+ *
+ * Up to maxInflight messages are published without waiting for the broker to acknowledge them. When batching is
+ * enabled, the observations of a topic are collected and published as a JSON array in a single message, once the batch
+ * is full or its first observation has waited for the batch interval.
+ */
+class ObservationPublisher implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(ObservationPublisher.class);
+
+    /** The number of unacknowledged messages the Paho client accepts */
+    static final int MAX_INFLIGHT = 10;
+
+    /** The quality of service of the messages: at least once */
+    private static final int QOS = 1;
+
+    /** How long to wait for the connection to the broker, in milliseconds */
+    private static final long CONNECT_TIMEOUT = 30000;
+
+    /** How long to wait for the last messages to be acknowledged when stopping, in milliseconds */
+    private static final long STOP_TIMEOUT = 5000;
+
+    private static final class Pending {
+        final String topic;
+        final Observation<?> observation;
+
+        Pending(String topic, Observation<?> observation) {
+            this.topic = topic;
+            this.observation = observation;
+        }
+    }
+
+    /** Wakes up the thread when a message has been acknowledged */
+    private static final Pending WAKE_UP = new Pending(null, null);
+
+    /**
+     * The messages that have been published on a connection and have not been acknowledged yet. A new window is used
+     * after every reconnect; the messages that were lost with the connection go back into the store.
+     */
+    private final class Window implements IMqttActionListener {
+        private final List<Message> unacknowledged = new ArrayList<Message>();
+        private boolean failed = false;
+        private boolean abandoned = false;
+
+        synchronized boolean isFull() {
+            return unacknowledged.size() >= maxInflight;
+        }
+
+        synchronized boolean isEmpty() {
+            return unacknowledged.isEmpty();
+        }
+
+        synchronized boolean hasFailed() {
+            return failed;
+        }
+
+        synchronized void sent(Message message) {
+            unacknowledged.add(message);
+        }
+
+        /**
+         * @return The messages that have not been acknowledged, in the order in which they were sent
+         */
+        synchronized List<Message> abandon() {
+            abandoned = true;
+            List<Message> messages = new ArrayList<Message>(unacknowledged);
+            unacknowledged.clear();
+            return messages;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken token) {
+            Message message = (Message) token.getUserContext();
+            synchronized (this) {
+                if (abandoned || !unacknowledged.remove(message)) {
+                    // Already back in the store, it will be sent again
+                    return;
+                }
+            }
+            delivered.addAndGet(message.observations);
+            queue.offer(WAKE_UP);
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable cause) {
+            synchronized (this) {
+                // The message stays unacknowledged, and is sent again on a new window
+                failed = true;
+            }
+            queue.offer(WAKE_UP);
+            log.warn("Could not publish to topic [" + token.getTopics()[0] + "]", cause);
+        }
+    }
+
+    private final IMqttAsyncClient client;
+    private final MqttConnectOptions options;
+    private final Gson gson;
+    private final BlockingQueue<Pending> queue;
+    private final MessageStore store;
+    private final int maxInflight;
+    private final int batchSize;
+    private final long batchInterval;
+    private final long reconnectDelay;
+    private final double replayRate;
+    private final Thread thread;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    private volatile boolean running = true;
+    private Window window;
+    private long nextConnect = 0;
+
+    /** The number of messages that were stored before the last reconnect and have not been sent yet */
+    private long replayBacklog = 0;
+    private long nextReplay;
+
+    /**
+     * @param client
+     *            The client that is used to connect to the broker, which is closed when the publisher stops
+     * @param options
+     *            The options for the connection
+     * @param gson
+     *            Converts the observations to JSON
+     * @param queueSize
+     *            The maximum number of observations that wait to be turned into messages
+     * @param store
+     *            Keeps the messages until they have been acknowledged, and is closed when the publisher stops
+     * @param maxInflight
+     *            The maximum number of messages that have not been acknowledged by the broker, at most
+     *            {@link #MAX_INFLIGHT}
+     * @param batchSize
+     *            The maximum number of observations in a single message, or 1 to publish every observation on its own
+     * @param batchInterval
+     *            The maximum number of milliseconds an observation waits for a batch to be filled
+     * @param reconnectDelay
+     *            The number of milliseconds between attempts to connect to the broker
+     * @param replayRate
+     *            The maximum number of stored messages per second that are sent after a reconnect, or 0 for no limit
+     */
+    ObservationPublisher(IMqttAsyncClient client,
+                         MqttConnectOptions options,
+                         Gson gson,
+                         int queueSize,
+                         MessageStore store,
+                         int maxInflight,
+                         int batchSize,
+                         long batchInterval,
+                         long reconnectDelay,
+                         double replayRate) {
+        this.client = client;
+        this.options = options;
+        this.gson = gson;
+        queue = new LinkedBlockingQueue<Pending>(queueSize);
+        this.store = store;
+        this.maxInflight = Math.max(1, Math.min(MAX_INFLIGHT, maxInflight));
+        this.batchSize = Math.max(1, batchSize);
+        this.batchInterval = batchInterval;
+        this.reconnectDelay = reconnectDelay;
+        this.replayRate = replayRate;
+        thread = new Thread(this, "MQTT observation publisher " + client.getServerURI());
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Publishes the messages that are waiting if the broker is connected, keeps the rest in the store and disconnects.
+     *
+     * @param timeout
+     *            The maximum number of milliseconds to wait for the thread to stop
+     */
+    void stop(long timeout) {
+        running = false;
+        queue.offer(WAKE_UP);
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (client.isConnected()) {
+                client.disconnect(timeout).waitForCompletion(timeout);
+            }
+        } catch (MqttException ex) {
+            log.warn("Error while closing the MQTT connection", ex);
+        }
+        try {
+            client.close();
+        } catch (MqttException ex) {
+            log.warn("Error while closing the MQTT client", ex);
+        }
+    }
+
+    /**
+     * Queues an observation, without blocking.
+     *
+     * @return <code>false</code> when the queue is full and the observation has been dropped
+     */
+    boolean publish(String topic, Observation<?> observation) {
+        if (running && queue.offer(new Pending(topic, observation))) {
+            return true;
+        } else {
+            if (dropped.getAndIncrement() % 1000 == 0) {
+                log.warn("The publisher can not keep up, {} observations have been dropped", dropped.get());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return The number of observations that have been acknowledged by the broker
+     */
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return The number of observations that have been dropped because the queue or the store was full
+     */
+    long getDropped() {
+        return dropped.get() + store.getDroppedObservations();
+    }
+
+    /**
+     * @return The number of messages that wait in the store
+     */
+    long getQueued() {
+        return store.size();
+    }
+
+    /**
+     * @return The number of stored messages that have been sent after a reconnect, at the replay rate
+     */
+    long getReplayed() {
+        return replayed.get();
+    }
+
+    @Override
+    public void run() {
+        Map<String, List<Observation<?>>> batches = new LinkedHashMap<String, List<Observation<?>>>();
+        List<Pending> taken = new ArrayList<Pending>();
+        int waiting = 0;
+        long batchStarted = 0;
+
+        while (running) {
+            try {
+                long wait = forward();
+                if (waiting > 0) {
+                    wait = Math.min(wait, batchStarted + batchInterval - System.currentTimeMillis());
+                }
+                Pending first = queue.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    taken.add(first);
+                    queue.drainTo(taken, 1024);
+                    for (Pending pending : taken) {
+                        if (pending == WAKE_UP) {
+                            continue;
+                        }
+                        if (waiting == 0) {
+                            batchStarted = System.currentTimeMillis();
+                        }
+                        List<Observation<?>> batch = addTo(batches, pending);
+                        waiting++;
+                        if (batch.size() >= batchSize) {
+                            store(pending.topic, batch);
+                            waiting -= batch.size();
+                            batch.clear();
+                        }
+                    }
+                    taken.clear();
+                }
+
+                if (waiting > 0 && System.currentTimeMillis() - batchStarted >= batchInterval) {
+                    storeAll(batches);
+                    waiting = 0;
+                }
+                store.flush();
+            } catch (InterruptedException ex) {
+                log.warn("Interrupted, {} observations have not been published", queue.size());
+                break;
+            }
+        }
+
+        taken.clear();
+        queue.drainTo(taken);
+        for (Pending pending : taken) {
+            if (pending != WAKE_UP) {
+                addTo(batches, pending);
+            }
+        }
+        storeAll(batches);
+
+        // Give the broker a moment to take what is left, without the replay limit
+        replayBacklog = 0;
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        while (window != null && (store.size() > 0 || !window.isEmpty()) && System.currentTimeMillis() < deadline) {
+            forward();
+            try {
+                queue.poll(10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+        abandonWindow();
+        store.close();
+    }
+
+    private static List<Observation<?>> addTo(Map<String, List<Observation<?>>> batches, Pending pending) {
+        List<Observation<?>> batch = batches.get(pending.topic);
+        if (batch == null) {
+            batch = new ArrayList<Observation<?>>();
+            batches.put(pending.topic, batch);
+        }
+        batch.add(pending.observation);
+        return batch;
+    }
+
+    private void storeAll(Map<String, List<Observation<?>>> batches) {
+        Iterator<Map.Entry<String, List<Observation<?>>>> it = batches.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, List<Observation<?>>> batch = it.next();
+            List<Observation<?>> observations = batch.getValue();
+            for (int from = 0; from < observations.size(); from += batchSize) {
+                store(batch.getKey(), observations.subList(from, Math.min(observations.size(), from + batchSize)));
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * Turns a batch of observations into a message and adds it to the store
+     */
+    private void store(String topic, List<Observation<?>> observations) {
+        if (observations.isEmpty()) {
+            return;
+        }
+
+        String json;
+        if (batchSize == 1) {
+            json = gson.toJson(observations.get(0));
+        } else {
+            JsonArray array = new JsonArray();
+            for (Observation<?> observation : observations) {
+                array.add(gson.toJsonTree(observation));
+            }
+            json = gson.toJson(array);
+        }
+        try {
+            store.offer(new Message(topic, json.getBytes("UTF-8"), observations.size()));
+        } catch (UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Sends messages from the store for as far as the connection, the window and the replay rate allow.
+     *
+     * @return The number of milliseconds after which messages may be sent again, unless a message is acknowledged
+     */
+    private long forward() {
+        if (!connect()) {
+            return Math.max(1, nextConnect - System.currentTimeMillis());
+        }
+
+        while (!window.isFull()) {
+            long now = System.currentTimeMillis();
+            if (replayBacklog > 0 && now < nextReplay) {
+                return nextReplay - now;
+            }
+            Message message = store.poll();
+            if (message == null) {
+                // Stored messages may have been dropped to make room for new ones
+                replayBacklog = 0;
+                break;
+            }
+            if (replayBacklog > 0) {
+                replayed.incrementAndGet();
+                // Allows a burst of a second worth of messages at most
+                nextReplay = Math.max(nextReplay, now - 1000) + (long) (1000 / replayRate);
+                if (--replayBacklog == 0) {
+                    log.info("Sent the stored messages, {} have been replayed in total", replayed.get());
+                }
+            }
+
+            if (!send(message)) {
+                break;
+            }
+        }
+        return 1000;
+    }
+
+    /**
+     * @return <code>false</code> when the connection has been lost, and the message is back in the store
+     */
+    private boolean send(Message message) {
+        window.sent(message);
+        while (true) {
+            try {
+                client.publish(message.topic, message.payload, QOS, false, message, window);
+                return true;
+            } catch (MqttException ex) {
+                if (ex.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT) {
+                    log.warn("Could not send message to topic [" + message.topic + "]", ex);
+                    abandonWindow();
+                    return false;
+                }
+                // The client counts the acknowledged message a moment after it has told the window
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> when the broker is connected
+     */
+    private boolean connect() {
+        if (client.isConnected() && window != null && !window.hasFailed()) {
+            return true;
+        }
+        abandonWindow();
+        if (client.isConnected()) {
+            // A message failed on a connection that is still up, send it again on a new window
+            window = new Window();
+            return true;
+        } else if (System.currentTimeMillis() < nextConnect) {
+            return false;
+        }
+
+        try {
+            client.connect(options).waitForCompletion(CONNECT_TIMEOUT);
+            window = new Window();
+            long stored = store.size();
+            if (stored > 0 && replayRate > 0) {
+                log.info("Connected to [{}], replaying {} stored messages", client.getServerURI(), stored);
+                replayBacklog = stored;
+                nextReplay = System.currentTimeMillis();
+            } else {
+                log.info("Connected to [{}]", client.getServerURI());
+            }
+            return true;
+        } catch (MqttException ex) {
+            log.warn("Could not connect to [" + client.getServerURI() + "], retrying in " + reconnectDelay + "ms", ex);
+            nextConnect = System.currentTimeMillis() + reconnectDelay;
+            return false;
+        }
+    }
+
+    /**
+     * Puts the messages that have not been acknowledged back at the start of the store
+     */
+    private void abandonWindow() {
+        if (window != null) {
+            store.unread(window.abandon());
+            window = null;
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package org.flexiblepower.monitoring.mqtt;
 
+import java.io.File;
 import java.lang.reflect.Type;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.flexiblepower.monitoring.buffer.OverflowPolicy;
 import org.flexiblepower.monitoring.mqtt.ObservationSender.Config;
 import org.flexiblepower.observation.Observation;
 import org.flexiblepower.observation.ObservationConsumer;
@@ -42,13 +46,55 @@ public class ObservationSender implements ObservationConsumer<Object>, MqttCallb
     public static interface Config {
         @Meta.AD(deflt = "tcp://broker.labsgn.tno.nl:1883", description = "URL to the MQTT broker")
         public String brokerUrl();
+
+        @Meta.AD(deflt = "10000", description = "The maximum number of observations that wait to be published")
+        public int queueSize();
+
+        @Meta.AD(deflt = "10", description = "The maximum number of messages that wait for the broker (1-10)")
+        public int maxInflight();
+
+        @Meta.AD(deflt = "1",
+                 description = "The maximum number of observations in one message, as a JSON array when more than 1")
+        public int batchSize();
+
+        @Meta.AD(deflt = "1000", description = "The maximum number of milliseconds an observation waits for a batch")
+        public long batchInterval();
+
+        @Meta.AD(deflt = "5000", description = "The number of milliseconds between attempts to connect to the broker")
+        public long reconnectDelay();
+
+        @Meta.AD(deflt = "1000", description = "The maximum number of unsent messages kept in memory")
+        public int memoryBufferSize();
+
+        @Meta.AD(deflt = "64", description = "The maximum number of megabytes of unsent messages on disk (0 for none)")
+        public int diskBufferSize();
+
+        @Meta.AD(deflt = "",
+                 required = false,
+                 description = "The directory for unsent messages on disk (empty for the data area of the bundle)")
+        public String bufferDirectory();
+
+        @Meta.AD(deflt = "DROP_OLDEST", description = "Which messages are dropped when the buffer is full")
+        public OverflowPolicy overflowPolicy();
+
+        @Meta.AD(deflt = "50",
+                 description = "The maximum number of stored messages sent per second after a reconnect (0 for any)")
+        public double replayRate();
     }
 
-    private final Map<ObservationProvider<?>, String> topics = new HashMap<ObservationProvider<?>, String>();
-    private final GsonBuilder gsonBuilder;
+    private final Map<ObservationProvider<?>, String> topics = new ConcurrentHashMap<ObservationProvider<?>, String>();
+    private final Gson gson;
 
     public ObservationSender() {
-        gsonBuilder = new GsonBuilder();
+        gson = createGson();
+    }
+
+    /**
+     * @return A {@link Gson} that writes an observation as an object with its time in "t" and its values. The same
+     *         instance is used for all observations, so the adapters of their types are only looked up once.
+     */
+    static Gson createGson() {
+        GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.registerTypeAdapter(Observation.class, new JsonSerializer<Observation<?>>() {
             @Override
             public JsonElement serialize(Observation<?> observation, Type type, JsonSerializationContext context) {
@@ -62,6 +108,7 @@ public class ObservationSender implements ObservationConsumer<Object>, MqttCallb
                 return obj;
             }
         });
+        return gsonBuilder.create();
     }
 
     @Reference(optional = true, dynamic = true, multiple = true)
@@ -79,57 +126,73 @@ public class ObservationSender implements ObservationConsumer<Object>, MqttCallb
         }
     }
 
-    private Config config;
+    private volatile Config config;
 
-    private MqttClient mqttClient;
+    private volatile ObservationPublisher publisher;
 
     @Activate
     public void activate(BundleContext context, Map<String, Object> properties) {
         config = Configurable.createConfigurable(ObservationSender.Config.class, properties);
         log.info("Starting ObservationSender for url: " + config.brokerUrl());
+        File bufferDirectory;
+        if (config.bufferDirectory() == null || config.bufferDirectory().trim().isEmpty()) {
+            // may be null when the framework has no file system support
+            bufferDirectory = context.getDataFile("buffer-" + config.brokerUrl().replaceAll("[^A-Za-z0-9.-]", "_"));
+        } else {
+            bufferDirectory = new File(config.bufferDirectory().trim());
+        }
+        MessageStore store = new MessageStore(bufferDirectory,
+                                              Math.max(1, config.memoryBufferSize()),
+                                              config.diskBufferSize() * 1024L * 1024L,
+                                              config.overflowPolicy());
+
         try {
-            mqttClient = new MqttClient(config.brokerUrl(), "ObservationSender");
+            // The MessageStore keeps the messages until they are acknowledged, the client does not need to
+            MqttAsyncClient mqttClient = new MqttAsyncClient(config.brokerUrl(),
+                                                             "ObservationSender",
+                                                             new MemoryPersistence());
             mqttClient.setCallback(this);
-            mqttClient.connect();
+            publisher = new ObservationPublisher(mqttClient,
+                                                 new MqttConnectOptions(),
+                                                 gson,
+                                                 config.queueSize(),
+                                                 store,
+                                                 config.maxInflight(),
+                                                 config.batchSize(),
+                                                 config.batchInterval(),
+                                                 config.reconnectDelay(),
+                                                 config.replayRate());
+            publisher.start();
         } catch (MqttException e) {
-            log.warn("Could not connect to [" + config.brokerUrl() + "]", e);
+            store.close();
+            log.warn("Could not create a client for [" + config.brokerUrl() + "]", e);
             throw new RuntimeException(e);
         }
     }
 
     @Deactivate
     public void deactivate() {
-        try {
-            mqttClient.disconnect();
-            mqttClient.close();
-        } catch (MqttException e) {
-            log.warn("Error while closing the MQTT connection", e);
-            // Ignore for the rest of the program?
-        }
+        publisher.stop(10000);
+        log.info("Stopped ObservationSender, {} observations delivered, {} dropped, {} messages replayed and {} stored",
+                 publisher.getDelivered(),
+                 publisher.getDropped(),
+                 publisher.getReplayed(),
+                 publisher.getQueued());
     }
 
     @Override
     public void consume(ObservationProvider<? extends Object> source, Observation<? extends Object> observation) {
         String topic = topics.get(source);
-        if (topic != null) {
-            log.debug("Got {}, trying to send to {}", observation, topic);
-            Gson gson = gsonBuilder.create();
-            String json = gson.toJson(observation);
-            MqttMessage msg = new MqttMessage(json.getBytes());
-            try {
-                if (!mqttClient.isConnected()) {
-                    mqttClient.connect();
-                }
-
-                mqttClient.publish(topic, msg);
-            } catch (MqttException e) {
-                log.warn("Could not send message to topic [" + topic + "]", e);
-            }
+        ObservationPublisher publisher = this.publisher;
+        if (topic != null && publisher != null) {
+            log.debug("Got {}, queueing it for {}", observation, topic);
+            publisher.publish(topic, observation);
         }
     }
 
     @Override
     public void connectionLost(Throwable tr) {
+        log.warn("Lost the connection to [" + config.brokerUrl() + "]", tr);
     }
 
     @Override
@@ -0,0 +1,210 @@
+package org.flexiblepower.monitoring.mqtt;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A broker that understands just enough MQTT 3.1 to accept a connection and acknowledge published messages, after a
+ * configurable delay that simulates the latency of a real broker.
+ */
+class FakeBroker implements Runnable {
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    /** A message that has been received */
+    static class Message {
+        final String topic;
+        final String payload;
+
+        Message(String topic, String payload) {
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Thread thread;
+    private final ScheduledExecutorService acknowledger = Executors.newSingleThreadScheduledExecutor();
+    private final List<Message> messages = new ArrayList<Message>();
+    private final List<Socket> connections = new ArrayList<Socket>();
+    private final AtomicInteger maxUnacknowledged = new AtomicInteger();
+    private final AtomicInteger unacknowledged = new AtomicInteger();
+    private volatile long ackDelay;
+    private volatile boolean refusing = false;
+
+    FakeBroker() throws IOException {
+        serverSocket = new ServerSocket(0);
+        thread = new Thread(this, "Fake MQTT broker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String getUrl() {
+        return "tcp://localhost:" + serverSocket.getLocalPort();
+    }
+
+    void setAckDelay(long ackDelay) {
+        this.ackDelay = ackDelay;
+    }
+
+    /**
+     * @param refusing
+     *            <code>true</code> to close new connections right away, as if the broker could not be reached
+     */
+    void setRefusing(boolean refusing) {
+        this.refusing = refusing;
+    }
+
+    List<Message> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<Message>(messages);
+        }
+    }
+
+    /**
+     * Waits until at least count messages have been received
+     */
+    List<Message> awaitMessages(int count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (messages) {
+            while (messages.size() < count && System.currentTimeMillis() < deadline) {
+                messages.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            return new ArrayList<Message>(messages);
+        }
+    }
+
+    /**
+     * @return The largest number of messages that were waiting for their acknowledgement at the same time
+     */
+    int getMaxUnacknowledged() {
+        return maxUnacknowledged.get();
+    }
+
+    /**
+     * Drops all connections, as if the network failed
+     */
+    void dropConnections() throws IOException {
+        synchronized (connections) {
+            for (Socket socket : connections) {
+                socket.close();
+            }
+            connections.clear();
+        }
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+        dropConnections();
+        acknowledger.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                if (refusing) {
+                    socket.close();
+                    continue;
+                }
+                synchronized (connections) {
+                    connections.add(socket);
+                }
+                Thread handler = new Thread("Fake MQTT connection") {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(socket);
+                        } catch (IOException ex) {
+                            // Connection closed
+                        }
+                    }
+                };
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        while (true) {
+            int header = in.readUnsignedByte();
+            int length = 0;
+            int multiplier = 1;
+            int digit;
+            do {
+                digit = in.readUnsignedByte();
+                length += (digit & 0x7f) * multiplier;
+                multiplier *= 128;
+            } while ((digit & 0x80) != 0);
+            byte[] body = new byte[length];
+            in.readFully(body);
+
+            switch (header >> 4) {
+            case CONNECT:
+                write(out, new byte[] { 0x20, 2, 0, 0 });
+                break;
+            case PUBLISH:
+                int topicLength = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+                String topic = new String(body, 2, topicLength, "UTF-8");
+                int qos = (header >> 1) & 3;
+                int offset = 2 + topicLength + (qos > 0 ? 2 : 0);
+                String payload = new String(body, offset, body.length - offset, "UTF-8");
+                synchronized (messages) {
+                    messages.add(new Message(topic, payload));
+                    messages.notifyAll();
+                }
+                if (qos > 0) {
+                    final byte[] ack = new byte[] { 0x40, 2, body[2 + topicLength], body[3 + topicLength] };
+                    int waiting = unacknowledged.incrementAndGet();
+                    if (waiting > maxUnacknowledged.get()) {
+                        maxUnacknowledged.set(waiting);
+                    }
+                    acknowledger.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            unacknowledged.decrementAndGet();
+                            try {
+                                write(out, ack);
+                            } catch (IOException ex) {
+                                // Connection closed
+                            }
+                        }
+                    }, ackDelay, TimeUnit.MILLISECONDS);
+                }
+                break;
+            case PINGREQ:
+                write(out, new byte[] { (byte) 0xd0, 0 });
+                break;
+            case DISCONNECT:
+                socket.close();
+                return;
+            default:
+                throw new IOException("Unexpected packet " + header);
+            }
+        }
+    }
+
+    private static void write(OutputStream out, byte[] packet) throws IOException {
+        synchronized (out) {
+            out.write(packet);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.flexiblepower.monitoring.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.monitoring.buffer.OverflowPolicy;
+import org.flexiblepower.monitoring.mqtt.MessageStore.Message;
+
+public class MessageStoreTest extends TestCase {
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("message-store", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static Message message(int i) {
+        try {
+            return new Message("fpai/topic-" + (i % 3), ("{\"count\":" + i + "}").getBytes("UTF-8"), 2);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static void offer(MessageStore store, int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertTrue(store.offer(message(i)));
+        }
+    }
+
+    /**
+     * Takes all messages and checks that they follow each other
+     */
+    private static void assertPolls(MessageStore store, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            Message message = store.poll();
+            assertNotNull(message);
+            assertEquals("fpai/topic-" + (i % 3), message.topic);
+            assertEquals("{\"count\":" + i + "}", new String(message.payload, "UTF-8"));
+            assertEquals(2, message.observations);
+        }
+        assertNull(store.poll());
+        assertEquals(0, store.size());
+    }
+
+    /**
+     * The messages after the first one go through a segment file, so the topic, the payload and the number of
+     * observations are written and read back
+     */
+    public void testSpill() throws IOException {
+        MessageStore store = new MessageStore(directory, 1, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        offer(store, 0, 100);
+        assertEquals(99, store.getSpilledRecords());
+        assertPolls(store, 0, 100);
+    }
+
+    /**
+     * The observations in the segment files of the previous store are counted when a segment is dropped
+     */
+    public void testRecoverAndDropOldest() throws IOException {
+        MessageStore store = new MessageStore(directory, 1, 8192, OverflowPolicy.DROP_NEWEST);
+        int i = 0;
+        while (store.offer(message(i))) {
+            i++;
+        }
+        store.close();
+
+        MessageStore recovered = new MessageStore(directory, 1, 8192, OverflowPolicy.DROP_OLDEST);
+        long size = recovered.size();
+        assertEquals(i, size);
+        assertTrue(recovered.offer(message(i)));
+        assertEquals((size + 1 - recovered.size()) * 2, recovered.getDroppedObservations());
+        assertTrue(recovered.getDroppedObservations() > 0);
+    }
+}
@@ -0,0 +1,308 @@
+package org.flexiblepower.monitoring.mqtt;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.flexiblepower.monitoring.buffer.OverflowPolicy;
+import org.flexiblepower.observation.Observation;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class ObservationPublisherTest extends TestCase {
+    /** The value of the observations */
+    public static class Sample {
+        private final int count;
+
+        public Sample(int count) {
+            this.count = count;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    private FakeBroker broker;
+    private File directory;
+    private ObservationPublisher publisher;
+
+    @Override
+    protected void setUp() throws Exception {
+        broker = new FakeBroker();
+        directory = File.createTempFile("mqtt-store", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (publisher != null) {
+            publisher.stop(5000);
+        }
+        broker.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private ObservationPublisher create(MessageStore store,
+                                        int queueSize,
+                                        int maxInflight,
+                                        int batchSize,
+                                        long batchInterval,
+                                        double replayRate) throws Exception {
+        MqttAsyncClient client = new MqttAsyncClient(broker.getUrl(), "test", new MemoryPersistence());
+        return new ObservationPublisher(client,
+                                        new MqttConnectOptions(),
+                                        ObservationSender.createGson(),
+                                        queueSize,
+                                        store,
+                                        maxInflight,
+                                        batchSize,
+                                        batchInterval,
+                                        100,
+                                        replayRate);
+    }
+
+    private ObservationPublisher start(int queueSize, int maxInflight, int batchSize, long batchInterval)
+            throws Exception {
+        publisher = create(new MessageStore(null, 1000, 0, OverflowPolicy.DROP_NEWEST),
+                           queueSize,
+                           maxInflight,
+                           batchSize,
+                           batchInterval,
+                           0);
+        publisher.start();
+        return publisher;
+    }
+
+    private ObservationPublisher startWithDisk(double replayRate) throws Exception {
+        publisher = create(new MessageStore(directory, 10, 1024 * 1024, OverflowPolicy.DROP_NEWEST),
+                           1000,
+                           10,
+                           1,
+                           0,
+                           replayRate);
+        publisher.start();
+        return publisher;
+    }
+
+    private static int count(FakeBroker.Message message) {
+        return new JsonParser().parse(message.payload).getAsJsonObject().get("count").getAsInt();
+    }
+
+    private static void awaitQueued(ObservationPublisher publisher, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (publisher.getQueued() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, publisher.getQueued());
+    }
+
+    private static Observation<Sample> observation(int count) {
+        return Observation.create(new Date(count * 1000L), new Sample(count));
+    }
+
+    private static void awaitDelivered(ObservationPublisher publisher, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (publisher.getDelivered() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, publisher.getDelivered());
+    }
+
+    /**
+     * With a broker that takes 50ms to acknowledge a message, publishing 100 observations one by one would take 5
+     * seconds. With 10 messages in flight it takes about half a second, and the producer is never held up.
+     */
+    public void testPipelining() throws Exception {
+        broker.setAckDelay(50);
+        start(1000, 10, 1, 0);
+
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(publisher.publish("fpai/test", observation(i)));
+        }
+        long queued = System.currentTimeMillis() - started;
+        awaitDelivered(publisher, 100);
+        long delivered = System.currentTimeMillis() - started;
+
+        assertTrue("Queueing took " + queued + "ms", queued < 500);
+        assertTrue("Delivering took " + delivered + "ms", delivered < 2500);
+        assertTrue(broker.getMaxUnacknowledged() > 1);
+        assertTrue(broker.getMaxUnacknowledged() <= 10);
+
+        List<FakeBroker.Message> messages = broker.getMessages();
+        assertEquals(100, messages.size());
+        for (int i = 0; i < 100; i++) {
+            JsonObject json = new JsonParser().parse(messages.get(i).payload).getAsJsonObject();
+            assertEquals(i * 1000L, json.get("t").getAsLong());
+            assertEquals(i, json.get("count").getAsInt());
+        }
+    }
+
+    public void testInflightWindow() throws Exception {
+        broker.setAckDelay(50);
+        start(1000, 2, 1, 0);
+
+        for (int i = 0; i < 20; i++) {
+            publisher.publish("fpai/test", observation(i));
+        }
+        awaitDelivered(publisher, 20);
+        assertEquals(2, broker.getMaxUnacknowledged());
+    }
+
+    public void testBatching() throws Exception {
+        start(1000, 10, 10, 10000);
+
+        for (int i = 0; i < 50; i++) {
+            publisher.publish("fpai/a", observation(i));
+            publisher.publish("fpai/b", observation(i));
+        }
+        awaitDelivered(publisher, 100);
+
+        List<FakeBroker.Message> messages = broker.getMessages();
+        assertEquals(10, messages.size());
+        int a = 0;
+        int b = 0;
+        for (FakeBroker.Message message : messages) {
+            JsonArray array = new JsonParser().parse(message.payload).getAsJsonArray();
+            assertEquals(10, array.size());
+            for (int i = 0; i < array.size(); i++) {
+                int count = array.get(i).getAsJsonObject().get("count").getAsInt();
+                if (message.topic.equals("fpai/a")) {
+                    assertEquals(a++, count);
+                } else {
+                    assertEquals("fpai/b", message.topic);
+                    assertEquals(b++, count);
+                }
+            }
+        }
+    }
+
+    public void testBatchInterval() throws Exception {
+        start(1000, 10, 100, 100);
+
+        publisher.publish("fpai/test", observation(1));
+        publisher.publish("fpai/test", observation(2));
+        List<FakeBroker.Message> messages = broker.awaitMessages(1, 5000);
+        assertEquals(1, messages.size());
+        assertEquals(2, new JsonParser().parse(messages.get(0).payload).getAsJsonArray().size());
+    }
+
+    public void testFullQueueDrops() throws Exception {
+        // Not started, so nothing is taken from the queue
+        ObservationPublisher idle = create(new MessageStore(null, 1000, 0, OverflowPolicy.DROP_NEWEST), 5, 10, 1, 0, 0);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i < 5, idle.publish("fpai/test", observation(i)));
+        }
+        assertEquals(3, idle.getDropped());
+        idle.stop(1000);
+    }
+
+    public void testReconnect() throws Exception {
+        broker.setAckDelay(20);
+        start(1000, 10, 1, 0);
+
+        publisher.publish("fpai/test", observation(0));
+        awaitDelivered(publisher, 1);
+
+        broker.dropConnections();
+        for (int i = 1; i <= 10; i++) {
+            publisher.publish("fpai/test", observation(i));
+        }
+
+        // The messages that were lost with the connection are sent again, in order
+        awaitDelivered(publisher, 11);
+        List<FakeBroker.Message> messages = broker.getMessages();
+        int expected = 0;
+        for (FakeBroker.Message message : messages) {
+            int count = count(message);
+            // A message may arrive twice, when its acknowledgement was lost
+            assertTrue(count <= expected);
+            if (count == expected) {
+                expected++;
+            }
+        }
+        assertEquals(11, expected);
+    }
+
+    public void testStoreAndForward() throws Exception {
+        broker.setRefusing(true);
+        startWithDisk(0);
+
+        for (int i = 0; i < 50; i++) {
+            publisher.publish("fpai/test", observation(i));
+        }
+        awaitQueued(publisher, 50);
+        assertEquals(0, broker.getMessages().size());
+        // Most of the messages are on disk
+        assertTrue(directory.list().length > 0);
+
+        broker.setRefusing(false);
+        awaitDelivered(publisher, 50);
+        List<FakeBroker.Message> messages = broker.getMessages();
+        assertEquals(50, messages.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, count(messages.get(i)));
+        }
+        assertEquals(0, publisher.getQueued());
+        assertEquals(0, publisher.getDropped());
+    }
+
+    public void testReplayRate() throws Exception {
+        broker.setRefusing(true);
+        startWithDisk(100);
+
+        for (int i = 0; i < 50; i++) {
+            publisher.publish("fpai/test", observation(i));
+        }
+        awaitQueued(publisher, 50);
+
+        long started = System.currentTimeMillis();
+        broker.setRefusing(false);
+        awaitDelivered(publisher, 50);
+        long duration = System.currentTimeMillis() - started;
+
+        // 50 messages at 100 per second
+        assertTrue("Replaying took " + duration + "ms", duration >= 450);
+        assertEquals(50, publisher.getReplayed());
+
+        // New observations are not limited
+        for (int i = 50; i < 100; i++) {
+            publisher.publish("fpai/test", observation(i));
+        }
+        awaitDelivered(publisher, 100);
+        assertEquals(50, publisher.getReplayed());
+    }
+
+    public void testPersistsAcrossRestart() throws Exception {
+        broker.setRefusing(true);
+        startWithDisk(0);
+        for (int i = 0; i < 20; i++) {
+            publisher.publish("fpai/test", observation(i));
+        }
+        awaitQueued(publisher, 20);
+        publisher.stop(5000);
+
+        broker.setRefusing(false);
+        startWithDisk(0);
+        awaitDelivered(publisher, 20);
+        List<FakeBroker.Message> messages = broker.getMessages();
+        assertEquals(20, messages.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, count(messages.get(i)));
+        }
+    }
+}
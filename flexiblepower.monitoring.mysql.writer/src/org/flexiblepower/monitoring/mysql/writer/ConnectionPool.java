@@ -0,0 +1,334 @@
+package org.flexiblepower.monitoring.mysql.writer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of JDBC connections which are shared by all {@link ObservationWriter}s. The connections handed out by
+ * {@link #getConnection(long)} are returned to the pool when they are closed.
+ *
+ * Idle connections are kept most recently used first, so that the connections at the end of the pool can expire when
+ * they are not needed. A connection that has been idle for longer than the validation interval is validated before it
+ * is handed out again.
+ */
+class ConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /** The number of seconds to wait for the database to validate a connection */
+    private static final int VALIDATION_TIMEOUT = 2;
+
+    /** The prefix of the SQL states which indicate that the connection itself is broken */
+    private static final String CONNECTION_EXCEPTION_STATE = "08";
+
+    /** A connection that is owned by the pool */
+    private static final class Entry {
+        final Connection connection;
+        volatile long lastUsed;
+
+        Entry(Connection connection, long lastUsed) {
+            this.connection = connection;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /** Handles the calls to a connection that has been handed out, until it is closed */
+    private final class PooledConnection implements InvocationHandler {
+        private final Entry entry;
+        private boolean closed = false;
+        private boolean broken = false;
+
+        PooledConnection(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name) && method.getParameterTypes().length == 0) {
+                if (!closed) {
+                    closed = true;
+                    release(entry, broken);
+                }
+                return null;
+            } else if ("isClosed".equals(name) && method.getParameterTypes().length == 0) {
+                return closed || entry.connection.isClosed();
+            } else if ("equals".equals(name) && method.getParameterTypes().length == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name) && method.getParameterTypes().length == 0) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name) && method.getParameterTypes().length == 0) {
+                return "Pooled " + entry.connection;
+            } else if (closed) {
+                throw new SQLException("The connection has already been returned to the pool");
+            }
+
+            try {
+                return method.invoke(entry.connection, args);
+            } catch (InvocationTargetException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof SQLException) {
+                    String state = ((SQLException) cause).getSQLState();
+                    if (state != null && state.startsWith(CONNECTION_EXCEPTION_STATE)) {
+                        broken = true;
+                    }
+                }
+                throw cause;
+            }
+        }
+    }
+
+    private final String url;
+    private final Properties info;
+    private final int maxSize;
+    private final long maxIdleTime;
+    private final long validationInterval;
+
+    /** One permit for every connection that may be handed out */
+    private final Semaphore permits;
+    /** The idle connections, the most recently used first */
+    private final BlockingDeque<Entry> idle = new LinkedBlockingDeque<Entry>();
+
+    private volatile boolean closed = false;
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong createdConnections = new AtomicLong();
+    private final AtomicLong destroyedConnections = new AtomicLong();
+    private final AtomicLong borrowedConnections = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param url
+     *            The JDBC URL of the database
+     * @param info
+     *            The connection properties, like the user and password
+     * @param maxSize
+     *            The maximum number of connections that are open at the same time
+     * @param maxIdleTime
+     *            The number of milliseconds after which an unused connection is closed
+     * @param validationInterval
+     *            The number of milliseconds a connection may be idle before it is validated when it is handed out
+     */
+    ConnectionPool(String url, Properties info, int maxSize, long maxIdleTime, long validationInterval) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The maximum size of the pool should be at least 1, was " + maxSize);
+        }
+        this.url = url;
+        this.info = info;
+        this.maxSize = maxSize;
+        this.maxIdleTime = maxIdleTime;
+        this.validationInterval = validationInterval;
+        permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Gets a connection from the pool, or opens a new one when no idle connection is available. The connection must be
+     * closed to return it to the pool.
+     *
+     * @param timeout
+     *            The maximum number of milliseconds to wait when all connections are in use
+     * @return The connection
+     * @throws SQLException
+     *             When no connection could be opened, or when no connection became available within the timeout
+     */
+    Connection getConnection(long timeout) throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool has been closed");
+        }
+
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTransientConnectionException("No connection became available within " + timeout + "ms");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", ex);
+        }
+
+        try {
+            Entry entry = takeIdle();
+            if (entry == null) {
+                entry = new Entry(DriverManager.getConnection(url, info), System.currentTimeMillis());
+                createdConnections.incrementAndGet();
+            }
+
+            activeConnections.incrementAndGet();
+            borrowedConnections.incrementAndGet();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                       new Class<?>[] { Connection.class },
+                                                       new PooledConnection(entry));
+        } catch (SQLException ex) {
+            permits.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The most recently used idle connection that is still usable, or <code>null</code> if there is none
+     */
+    private Entry takeIdle() {
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            long idleTime = System.currentTimeMillis() - entry.lastUsed;
+            if (idleTime > maxIdleTime) {
+                destroy(entry);
+            } else if (idleTime > validationInterval && !isValid(entry)) {
+                validationFailures.incrementAndGet();
+                destroy(entry);
+            } else {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private boolean isValid(Entry entry) {
+        try {
+            return entry.connection.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private void release(Entry entry, boolean broken) {
+        try {
+            activeConnections.decrementAndGet();
+            if (broken || closed) {
+                destroy(entry);
+                return;
+            }
+
+            try {
+                if (!entry.connection.getAutoCommit()) {
+                    entry.connection.rollback();
+                    entry.connection.setAutoCommit(true);
+                }
+                entry.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(entry);
+            } catch (SQLException ex) {
+                logger.debug("Could not reset connection, closing it instead", ex);
+                destroy(entry);
+            }
+        } finally {
+            permits.release();
+        }
+
+        if (closed && idle.remove(entry)) {
+            // The pool has been closed while the connection was being returned
+            destroy(entry);
+        }
+    }
+
+    private void destroy(Entry entry) {
+        destroyedConnections.incrementAndGet();
+        try {
+            entry.connection.close();
+        } catch (SQLException ex) {
+            logger.debug("Could not close connection", ex);
+        }
+    }
+
+    /**
+     * Closes the idle connections which have not been used for longer than the maximum idle time.
+     */
+    void evictIdleConnections() {
+        long expired = System.currentTimeMillis() - maxIdleTime;
+        for (Iterator<Entry> it = idle.descendingIterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.lastUsed < expired && idle.remove(entry)) {
+                destroy(entry);
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections. Connections that are in use are closed when they are returned.
+     */
+    void close() {
+        closed = true;
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            destroy(entry);
+        }
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /** @return The number of connections that are currently handed out */
+    int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /** @return The number of open connections that are currently not in use */
+    int getIdleConnections() {
+        return idle.size();
+    }
+
+    /** @return The number of connections that have been opened to the database */
+    long getCreatedConnections() {
+        return createdConnections.get();
+    }
+
+    /** @return The number of connections that have been closed by the pool */
+    long getDestroyedConnections() {
+        return destroyedConnections.get();
+    }
+
+    /** @return The number of times a connection has been handed out */
+    long getBorrowedConnections() {
+        return borrowedConnections.get();
+    }
+
+    /** @return The number of idle connections that were closed because they were no longer valid */
+    long getValidationFailures() {
+        return validationFailures.get();
+    }
+
+    /** @return The number of times no connection became available in time */
+    long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool [active=" + getActiveConnections()
+               + ", idle="
+               + getIdleConnections()
+               + ", maxSize="
+               + maxSize
+               + ", created="
+               + getCreatedConnections()
+               + ", destroyed="
+               + getDestroyedConnections()
+               + ", borrowed="
+               + getBorrowedConnections()
+               + ", validationFailures="
+               + getValidationFailures()
+               + ", timeouts="
+               + getTimeouts()
+               + "]";
+    }
+}
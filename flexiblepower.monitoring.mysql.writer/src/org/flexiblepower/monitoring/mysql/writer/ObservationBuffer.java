@@ -0,0 +1,179 @@
+package org.flexiblepower.monitoring.mysql.writer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+
+import org.flexiblepower.monitoring.buffer.OverflowPolicy;
+import org.flexiblepower.monitoring.buffer.SegmentLog;
+
+/**
+ * Buffers the rows of an {@link ObservationWriter} until they have been written to the database. The rows go through
+ * a {@link SegmentLog}, which keeps them in memory and spills them to segment files on disk; this class only knows how
+ * a row is stored in a segment file.
+ */
+class ObservationBuffer extends SegmentLog<ObservationRow> {
+    /** Writes the time and the values of a row, with a tag for the type of every value */
+    static final class RowCodec implements SegmentLog.Codec<ObservationRow> {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        // The tags of the types of the values in a row on disk
+        private static final byte NULL = 0;
+        private static final byte BOOLEAN = 1;
+        private static final byte INTEGER = 2;
+        private static final byte LONG = 3;
+        private static final byte FLOAT = 4;
+        private static final byte DOUBLE = 5;
+        private static final byte BIG_INTEGER = 6;
+        private static final byte BIG_DECIMAL = 7;
+        private static final byte BYTES = 8;
+        private static final byte STRING = 9;
+        private static final byte DATE = 10;
+        private static final byte TIMESTAMP = 11;
+        private static final byte TIME = 12;
+        private static final byte SQL_DATE = 13;
+
+        @Override
+        public void write(DataOutputStream out, ObservationRow row) throws IOException {
+            out.writeLong(row.getObservedAt());
+            Object[] values = row.getValues();
+            out.writeInt(values.length);
+            for (Object value : values) {
+                writeValue(out, value);
+            }
+        }
+
+        private static void writeValue(DataOutputStream out, Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof BigInteger) {
+                out.writeByte(BIG_INTEGER);
+                writeString(out, value.toString());
+            } else if (value instanceof BigDecimal) {
+                out.writeByte(BIG_DECIMAL);
+                writeString(out, value.toString());
+            } else if (value instanceof byte[]) {
+                out.writeByte(BYTES);
+                out.writeInt(((byte[]) value).length);
+                out.write((byte[]) value);
+            } else if (value instanceof java.sql.Timestamp) {
+                out.writeByte(TIMESTAMP);
+                out.writeLong(((java.sql.Timestamp) value).getTime());
+                out.writeInt(((java.sql.Timestamp) value).getNanos());
+            } else if (value instanceof java.sql.Time) {
+                out.writeByte(TIME);
+                out.writeLong(((java.sql.Time) value).getTime());
+            } else if (value instanceof java.sql.Date) {
+                out.writeByte(SQL_DATE);
+                out.writeLong(((java.sql.Date) value).getTime());
+            } else if (value instanceof java.util.Date) {
+                out.writeByte(DATE);
+                out.writeLong(((java.util.Date) value).getTime());
+            } else {
+                out.writeByte(STRING);
+                writeString(out, String.valueOf(value));
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            // Not writeUTF, because that is limited to 64kB
+            byte[] bytes = value.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public ObservationRow read(DataInputStream in) throws IOException {
+            long observedAt = in.readLong();
+            Object[] values = new Object[in.readInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readValue(in);
+            }
+            return new ObservationRow(observedAt, values);
+        }
+
+        private static Object readValue(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            switch (type) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return in.readBoolean();
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case BIG_INTEGER:
+                return new BigInteger(readString(in));
+            case BIG_DECIMAL:
+                return new BigDecimal(readString(in));
+            case BYTES:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            case STRING:
+                return readString(in);
+            case DATE:
+                return new java.util.Date(in.readLong());
+            case TIMESTAMP:
+                java.sql.Timestamp timestamp = new java.sql.Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            case TIME:
+                return new java.sql.Time(in.readLong());
+            case SQL_DATE:
+                return new java.sql.Date(in.readLong());
+            default:
+                throw new IOException("Unknown type of value: " + type);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        @Override
+        public int observations(ObservationRow row) {
+            return 1;
+        }
+    }
+
+    /**
+     * @param directory
+     *            The directory for the segment files, or <code>null</code> to only buffer in memory
+     * @param memoryCapacity
+     *            The maximum number of rows that are kept in memory
+     * @param diskBudget
+     *            The maximum number of bytes of the segment files
+     * @param policy
+     *            Determines which rows are dropped when the buffer is full
+     */
+    ObservationBuffer(File directory, int memoryCapacity, long diskBudget, OverflowPolicy policy) {
+        super(directory, memoryCapacity, diskBudget, policy, new RowCodec());
+    }
+}
@@ -0,0 +1,24 @@
+package org.flexiblepower.monitoring.mysql.writer;
+
+/**
+ * An observation as it will be written to a fact table: the time of the observation and the values of the fields, in
+ * the order of the columns. The values are already converted to types the JDBC driver supports (or <code>null</code>),
+ * so that a row can also be stored on disk by the {@link ObservationBuffer}.
+ */
+final class ObservationRow {
+    private final long observedAt;
+    private final Object[] values;
+
+    ObservationRow(long observedAt, Object[] values) {
+        this.observedAt = observedAt;
+        this.values = values;
+    }
+
+    long getObservedAt() {
+        return observedAt;
+    }
+
+    Object[] getValues() {
+        return values;
+    }
+}
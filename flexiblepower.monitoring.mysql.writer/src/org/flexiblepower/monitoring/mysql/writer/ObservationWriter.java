@@ -10,15 +10,16 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
+import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.measure.Measurable;
 import javax.measure.Measure;
@@ -44,30 +45,10 @@ public class ObservationWriter implements ObservationConsumer {
         @Override
         public void run() {
             try {
-                synchronized (ObservationWriter.this) {
-                    Connection con = dataSource.createConnection();
+                initializeTable();
 
-                    if (con == null) {
-                        // Can not start at this time, try again later?
-                    }
-
-                    try {
-                        // make sure a table exists to insert the observations into
-                        ensureTableExists(con);
-
-                        // lookup the observer id
-                        observerId = lookupObserverId(con);
-                        // or create one if there is no prior registration of this observer
-                        if (observerId == null) {
-                            observerId = registerObserver(con);
-                        }
-                    } finally {
-                        con.close();
-                    }
-
-                    // subscribe to observations from the observation provider
-                    provider.subscribe(ObservationWriter.this);
-                }
+                // subscribe to observations from the observation provider
+                provider.subscribe(ObservationWriter.this);
             } catch (SQLException ex) {
                 logger.error("Couldn't activate an observation writer", ex);
                 close();
@@ -83,7 +64,10 @@ public class ObservationWriter implements ObservationConsumer {
     private final class DoInsert implements Runnable {
         @Override
         public void run() {
-            insert();
+            insertPending.set(false);
+            if (!closed) {
+                insert();
+            }
         }
 
         @Override
@@ -92,8 +76,14 @@ public class ObservationWriter implements ObservationConsumer {
         }
     }
 
-    /** The maximum amount of observations to queue */
-    private static final int QUEUE_SIZE = 64;
+    /** The maximum amount of observations to write in one batch, and the amount at which they are written early */
+    private static final int BATCH_SIZE = 256;
+
+    /** The maximum amount of batches to write in one go, so that other writers can catch up as well */
+    private static final int MAX_BATCHES_PER_INSERT = 64;
+
+    /** The maximum length of the name of the provider in the name of its buffer */
+    private static final int MAX_BUFFER_NAME_LENGTH = 64;
 
     /** The prefix of fact tables used in the database. */
     private static final String FACT_PREFIX = "fact_";
@@ -158,8 +148,27 @@ public class ObservationWriter implements ObservationConsumer {
     /** The (cached) id of the observer in the dim_obsever table, use {@link #lookupObserverId(Connection)}. */
     private Long observerId;
 
-    /** The queue for writing observations to the data base */
-    private final BlockingQueue<Observation> queue = new LinkedBlockingQueue<Observation>(QUEUE_SIZE);
+    /** The buffer for writing observations to the data base, created when the writer is started */
+    private volatile ObservationBuffer buffer;
+
+    /** Whether an insert has been submitted because the buffer has filled up */
+    private final AtomicBoolean insertPending = new AtomicBoolean(false);
+
+    /** Whether the last write to the database succeeded, inserts are only submitted early if it did */
+    private volatile boolean databaseAvailable = true;
+
+    private volatile boolean closed = false;
+
+    /** The calendar used for determining the dateId, in the default time zone like the JDBC driver */
+    private final Calendar calendar = new GregorianCalendar();
+
+    /** The (cached) dateId of the last written observation, which is valid from dateIdStart until dateIdEnd. */
+    private java.sql.Date dateId;
+    private long dateIdStart = 0, dateIdEnd = 0;
+
+    /** The (cached) timeId of the last written observation, which is valid for the minute starting at timeIdStart. */
+    private java.sql.Time timeId;
+    private long timeIdStart = -1;
 
     /** The executor used to perform inserts on */
     private final FlexiblePowerContext context;
@@ -180,22 +189,77 @@ public class ObservationWriter implements ObservationConsumer {
         if (schedule != null) {
             schedule.cancel(false);
         }
+        if (buffer == null) {
+            buffer = dataSource.createBuffer(getBufferName());
+        }
         context.submit(new InitializeTable());
         schedule = context.scheduleAtFixedRate(new DoInsert(), updateRate, updateRate);
     }
 
+    Map<String, Object> getProviderProperties() {
+        return providerProperties;
+    }
+
     /**
-     * Closes this writer
+     * Closes this writer. The observations that could not be written are kept in the buffer on disk (if configured),
+     * and will be written by the next writer for the same provider.
      */
     public void close() {
+        closed = true;
         if (provider != null) {
             provider.unsubscribe(this);
         }
         if (schedule != null) {
             schedule.cancel(false);
         }
-        // Run one last time to make sure the queue is empty
-        insert();
+        writeAndCloseBuffer();
+    }
+
+    /**
+     * Writes what is left in the buffer one last time and closes it. An insert that has already been submitted does
+     * nothing after this, because the buffer may be reused by the next writer for the same provider.
+     */
+    private synchronized void writeAndCloseBuffer() {
+        writeBuffered();
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    /**
+     * @return The name of the buffer of this writer, which is unique for the provider and can be used as file name
+     */
+    private String getBufferName() {
+        String name = getObservationOf().replaceAll("[^A-Za-z0-9._-]", "_");
+        if (name.length() > MAX_BUFFER_NAME_LENGTH) {
+            name = name.substring(0, MAX_BUFFER_NAME_LENGTH);
+        }
+        String key = getObservedBy() + "\n" + getObservationOf();
+        return getFactTableName() + "-" + name + "-" + Integer.toHexString(key.hashCode());
+    }
+
+    /**
+     * Makes sure that the fact table exists and that the observer has been registered in dim_observer.
+     */
+    synchronized void initializeTable() throws SQLException {
+        Connection con = dataSource.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection to the database available");
+        }
+
+        try {
+            // make sure a table exists to insert the observations into
+            ensureTableExists(con);
+
+            // lookup the observer id
+            observerId = lookupObserverId(con);
+            // or create one if there is no prior registration of this observer
+            if (observerId == null) {
+                observerId = registerObserver(con);
+            }
+        } finally {
+            con.close();
+        }
     }
 
     /**
@@ -444,81 +508,172 @@ public class ObservationWriter implements ObservationConsumer {
             return;
         }
 
-        if (queue.offer(observation)) {
-            // Queue not full
+        ObservationBuffer currentBuffer = buffer;
+        if (currentBuffer == null) {
+            return;
+        }
+
+        if (currentBuffer.offer(toRow(observation))) {
+            // Buffer not full
         } else {
-            // Queue full
-            logger.warn("MySQL writers observation queue is full, observation not saved");
+            // Buffer full
+            logger.warn("MySQL writers observation buffer is full, observation not saved");
         }
 
-        if (queue.size() > QUEUE_SIZE - 5) {
+        if (databaseAvailable && currentBuffer.size() >= BATCH_SIZE && insertPending.compareAndSet(false, true)) {
             context.submit(new DoInsert());
         }
     }
 
+    /**
+     * Converts an observation into the values of the columns of the fact table.
+     */
+    ObservationRow toRow(Observation observation) {
+        List<String> fields = getFieldNames();
+        Map<String, Object> values = observation.getValueMap();
+        Object[] columns = new Object[fields.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = toColumnValue(values.get(fields.get(i)));
+        }
+        return new ObservationRow(observation.getObservedAt().getTime(), columns);
+    }
+
     synchronized void insert() {
-        // if the queue is empty, return
-        if (queue.size() == 0) {
+        if (closed) {
             return;
         }
+        writeBuffered();
+    }
 
-        // drain all current observations to a list
-        List<Observation> observations = new ArrayList<Observation>(QUEUE_SIZE);
-        int count = queue.drainTo(observations);
-
-        // if the queue is empty (may be cleared by another thread ...), return
-        if (count == 0) {
+    private void writeBuffered() {
+        ObservationBuffer currentBuffer = buffer;
+        // if there is no buffer (yet) or it is empty, return
+        if (currentBuffer == null || currentBuffer.size() == 0) {
             return;
         }
 
+        List<ObservationRow> rows = new ArrayList<ObservationRow>(BATCH_SIZE);
+        for (int batch = 0; batch < MAX_BATCHES_PER_INSERT; batch++) {
+            // take the oldest observations from the buffer
+            rows.clear();
+            int count = currentBuffer.drainTo(rows, BATCH_SIZE);
+            if (count == 0) {
+                break;
+            }
+
+            try {
+                logger.debug("Writing {} observations to MySQL", count);
+                write(rows);
+                databaseAvailable = true;
+            } catch (Exception e) {
+                // keep them for the next time
+                currentBuffer.unread(rows);
+                databaseAvailable = false;
+                logger.error("Couldn't write observations to the database, " + currentBuffer.size()
+                             + " observations are buffered", e);
+                break;
+            }
+        }
+        currentBuffer.flush();
+        logger.debug("MySQL writer buffer for {}: {}", getObservationOf(), currentBuffer);
+
+        // continue later when there is still a backlog
+        if (!closed && databaseAvailable
+            && currentBuffer.size() >= BATCH_SIZE
+            && insertPending.compareAndSet(false, true)) {
+            context.submit(new DoInsert());
+        }
+    }
+
+    /**
+     * Writes the rows to the fact table in a single transaction, as one batch of inserts.
+     */
+    synchronized void write(List<ObservationRow> rows) throws SQLException {
+        Connection con = dataSource.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection to the database available");
+        }
+
         try {
-            Connection con = dataSource.createConnection();
-            logger.debug("Writing {} observations to MySQL", count);
+            Long observer = lookupObserverId(con);
+            if (observer == null) {
+                throw new SQLException("The observer has not been registered in dim_observer");
+            }
+
+            con.setAutoCommit(false);
+            PreparedStatement insert = con.prepareStatement(getInsertQuery());
+
             try {
-                String sql = getInsertQuery();
-                PreparedStatement insert = con.prepareStatement(sql);
-
-                try {
-                    // and batch up insert statements
-                    for (Observation observation : observations) {
-                        // the index to track which field in statement is set
-                        int idx = 1;
-
-                        // set the observer identifier
-                        insert.setLong(idx++, lookupObserverId(con));
-
-                        // set the time stamp, date and time fields
-                        long observedAtMillis = observation.getObservedAt().getTime();
-                        long observedAtMinutes = TimeUnit.MINUTES.toMillis(TimeUnit.MILLISECONDS.toMinutes(observedAtMillis));
-                        insert.setTimestamp(idx++, new java.sql.Timestamp(observedAtMillis));
-                        insert.setDate(idx++, new java.sql.Date(observedAtMillis));
-                        insert.setTime(idx++, new java.sql.Time(observedAtMinutes));
-
-                        // for each field in the observer meta-data add the value
-                        // from the observation or null if it didn't exist
-                        Map<String, Object> values = observation.getValueMap();
-                        for (String fieldName : getFieldNames()) {
-                            insertValue(insert, idx++, values.get(fieldName));
-                        }
-
-                        // add to batch
-                        insert.addBatch();
+                // and batch up insert statements
+                for (ObservationRow row : rows) {
+                    // the index to track which field in statement is set
+                    int idx = 1;
+
+                    // set the observer identifier
+                    insert.setLong(idx++, observer);
+
+                    // set the time stamp, date and time fields
+                    long observedAtMillis = row.getObservedAt();
+                    insert.setTimestamp(idx++, new java.sql.Timestamp(observedAtMillis));
+                    insert.setDate(idx++, getDateId(observedAtMillis));
+                    insert.setTime(idx++, getTimeId(observedAtMillis));
+
+                    // add the values of the fields in the observer meta-data
+                    for (Object value : row.getValues()) {
+                        insert.setObject(idx++, value);
                     }
 
-                    // execute the insert batch
-                    insert.executeBatch();
-                } finally {
-                    insert.close();
+                    // add to batch
+                    insert.addBatch();
                 }
+
+                // execute the insert batch
+                insert.executeBatch();
+                con.commit();
             } finally {
-                con.close();
+                insert.close();
             }
-        } catch (Exception e) {
-            logger.error("Couldn't write an obsevation to the database", e);
+        } finally {
+            // an uncommitted transaction is rolled back when the connection is returned to the pool
+            con.close();
         }
     }
 
-    private void insertValue(PreparedStatement insert, int idx, Object value) throws SQLException {
+    /**
+     * @return The key in dim_date for the given time, which is reused as long as the observations are on the same day
+     */
+    private java.sql.Date getDateId(long millis) {
+        if (millis < dateIdStart || millis >= dateIdEnd) {
+            calendar.setTimeInMillis(millis);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            dateIdStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            dateIdEnd = calendar.getTimeInMillis();
+            dateId = new java.sql.Date(dateIdStart);
+        }
+        return dateId;
+    }
+
+    /**
+     * @return The key in dim_time for the given time, which is reused as long as the observations are in the same
+     *         minute
+     */
+    private java.sql.Time getTimeId(long millis) {
+        long minuteStart = TimeUnit.MINUTES.toMillis(TimeUnit.MILLISECONDS.toMinutes(millis));
+        if (minuteStart != timeIdStart) {
+            timeIdStart = minuteStart;
+            timeId = new java.sql.Time(minuteStart);
+        }
+        return timeId;
+    }
+
+    /**
+     * Converts a value of an observation into a value that can be inserted by the JDBC driver.
+     */
+    private Object toColumnValue(Object value) {
         if (value != null) {
             // process measures into doubles
             if (value instanceof Measure) {
@@ -541,13 +696,13 @@ public class ObservationWriter implements ObservationConsumer {
         // let JDBC convert if supported type
         // if not supported, insert as string
         if (value == null) {
-            insert.setObject(idx, null);
+            return null;
         } else if (SQL_TYPE_MAP.containsKey(value.getClass().getName())) {
-            insert.setObject(idx, value);
+            return value;
         } else if (value.getClass().isArray()) {
-            insert.setString(idx, Arrays.toString((Object[]) value));
+            return Arrays.toString((Object[]) value);
         } else {
-            insert.setString(idx, String.valueOf(value));
+            return String.valueOf(value);
         }
     }
 
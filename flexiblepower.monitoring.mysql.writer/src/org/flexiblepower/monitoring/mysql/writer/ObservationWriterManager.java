@@ -1,9 +1,9 @@
 package org.flexiblepower.monitoring.mysql.writer;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -12,9 +12,12 @@ import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.measure.Measure;
 import javax.measure.quantity.Duration;
@@ -22,6 +25,7 @@ import javax.measure.unit.NonSI;
 import javax.sql.DataSource;
 
 import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.monitoring.buffer.OverflowPolicy;
 import org.flexiblepower.monitoring.mysql.ui.HttpActivator;
 import org.flexiblepower.monitoring.mysql.ui.SQLServlet;
 import org.flexiblepower.observation.Observation;
@@ -80,11 +84,45 @@ public class ObservationWriterManager {
 
         @AD(deflt = "5", min = "1", max = "60", description = "The number of minutes between update writes")
         int updateRate();
+
+        @AD(deflt = "4", min = "1", description = "The maximum number of connections to the database")
+        int connectionPoolSize();
+
+        @AD(deflt = "300", min = "1", description = "The number of seconds after which an unused connection is closed")
+        int connectionMaxIdleTime();
+
+        @AD(deflt = "30", min = "1", description = "The number of seconds to wait for a free database connection")
+        int connectionTimeout();
+
+        @AD(deflt = "1024", min = "1", description = "The maximum number of observations per provider kept in memory")
+        int memoryBufferSize();
+
+        @AD(deflt = "64",
+            min = "0",
+            description = "The maximum number of megabytes per provider for observations on disk (0 to disable)")
+        int diskBufferSize();
+
+        @AD(deflt = "",
+            required = false,
+            description = "The directory for buffering observations on disk (empty for the data area of the bundle)")
+        String bufferDirectory();
+
+        @AD(deflt = "DROP_OLDEST", description = "Which observations are dropped when the buffer is full")
+        OverflowPolicy overflowPolicy();
     }
 
     /** The index of the column with table names from {@link DatabaseMetaData#getTables}. */
     private static final int TABLE_NAME_COLUMN_IDX = 3;
 
+    /** The number of milliseconds a connection may be idle before it is validated before it is used again. */
+    private static final long CONNECTION_VALIDATION_INTERVAL = 5000;
+
+    /** The number of observations kept in memory by a writer that is created while this manager is not active. */
+    private static final int DEFAULT_MEMORY_BUFFER_SIZE = 1024;
+
+    /** The interval between checks for expired connections. */
+    private static final Measure<Integer, Duration> EVICTION_INTERVAL = Measure.valueOf(1, NonSI.MINUTE);
+
     /** map of writers keyed by the providers they were created for */
     private final Map<ObservationProvider, ObservationWriter> writers = new ConcurrentHashMap<ObservationProvider, ObservationWriter>();
 
@@ -101,6 +139,14 @@ public class ObservationWriterManager {
 
     private HttpActivator activator;
 
+    /** The connections shared by all writers */
+    private volatile ConnectionPool connectionPool;
+
+    private ScheduledFuture<?> eviction;
+
+    /** The directory in which each writer buffers its observations on disk, or null */
+    private File bufferDirectory;
+
     /**
      * Activates the ObservationWriterManager. Make sure a dataSource is configured (see
      * {@link #setDataSource(DataSource)}. The activation ensures that the right database structure is in place.
@@ -120,6 +166,33 @@ public class ObservationWriterManager {
 
         updateRate = Measure.valueOf(config.updateRate(), NonSI.MINUTE);
 
+        if (config.bufferDirectory() == null || config.bufferDirectory().trim().isEmpty()) {
+            // may be null when the framework has no file system support
+            bufferDirectory = bundleContext.getDataFile("buffer");
+        } else {
+            bufferDirectory = new File(config.bufferDirectory().trim());
+        }
+
+        Properties connectionProperties = new Properties();
+        connectionProperties.setProperty("user", config.jdbcUser());
+        connectionProperties.setProperty("password", config.jdbcPassword());
+        // Lets the driver send a batch of inserts as multi-row insert statements
+        connectionProperties.setProperty("rewriteBatchedStatements", "true");
+
+        final ConnectionPool pool = new ConnectionPool(config.jdbcURL(),
+                                                       connectionProperties,
+                                                       config.connectionPoolSize(),
+                                                       TimeUnit.SECONDS.toMillis(config.connectionMaxIdleTime()),
+                                                       CONNECTION_VALIDATION_INTERVAL);
+        connectionPool = pool;
+        eviction = context.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                pool.evictIdleConnections();
+                logger.debug("MySQL connections: {}", pool);
+            }
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL);
+
         // TODO do this asynchronously!
         // TODO ensure that the date dimension is maintained ... automatically
 
@@ -129,6 +202,7 @@ public class ObservationWriterManager {
             ensureSchema();
         } catch (Exception e) {
             logger.error("Could not ensure the correct schema required, are the database settings correct?", e);
+            deactivate();
             throw e;
         }
         // }
@@ -141,10 +215,27 @@ public class ObservationWriterManager {
     }
 
     public synchronized void deactivate() {
+        // Save what the writers still have in memory while the connections are there. Closed writers are replaced by
+        // new ones, which are started when the manager is activated again.
+        updateRate = null;
+        for (Map.Entry<ObservationProvider, ObservationWriter> entry : writers.entrySet()) {
+            ObservationWriter writer = entry.getValue();
+            writer.close();
+            entry.setValue(new ObservationWriter(context, this, entry.getKey(), writer.getProviderProperties()));
+        }
         if (activator != null) {
             activator.close();
             activator = null;
         }
+        if (eviction != null) {
+            eviction.cancel(false);
+            eviction = null;
+        }
+        if (connectionPool != null) {
+            logger.info("Closing the MySQL connections: {}", connectionPool);
+            connectionPool.close();
+            connectionPool = null;
+        }
     }
 
     private void ensureSchema() throws SQLException, IOException {
@@ -215,11 +306,39 @@ public class ObservationWriterManager {
         }
     }
 
+    /**
+     * Creates the buffer in which a writer keeps the observations until they have been written to the database.
+     *
+     * @param name
+     *            The name of the buffer, which is unique for the observation provider
+     * @return The buffer
+     */
+    ObservationBuffer createBuffer(String name) {
+        Config currentConfig = config;
+        if (currentConfig == null) {
+            return new ObservationBuffer(null, DEFAULT_MEMORY_BUFFER_SIZE, 0, OverflowPolicy.DROP_OLDEST);
+        }
+        File directory = bufferDirectory == null ? null : new File(bufferDirectory, name);
+        return new ObservationBuffer(directory,
+                                     currentConfig.memoryBufferSize(),
+                                     currentConfig.diskBufferSize() * 1024L * 1024L,
+                                     currentConfig.overflowPolicy());
+    }
+
+    /**
+     * Gets a connection from the connection pool, which is shared by all the writers. The connection must be closed to
+     * return it to the pool.
+     *
+     * @return The connection, or <code>null</code> if this manager is not active
+     * @throws SQLException
+     *             When no connection could be made, or when no connection became available in time
+     */
     public Connection createConnection() throws SQLException {
-        if (config == null) {
+        ConnectionPool pool = connectionPool;
+        if (pool == null) {
             return null;
         }
-        return DriverManager.getConnection(config.jdbcURL(), config.jdbcUser(), config.jdbcPassword());
+        return pool.getConnection(TimeUnit.SECONDS.toMillis(config.connectionTimeout()));
     }
 
     private void createDimObserver(Connection con) throws SQLException {
@@ -368,14 +487,16 @@ public class ObservationWriterManager {
      */
     @Reference(dynamic = true, multiple = true, optional = true)
     public synchronized void addProvider(ObservationProvider provider, Map<String, Object> properties) {
+        // The old writer has to release the buffer directory before the new writer recovers it
+        ObservationWriter old = writers.remove(provider);
+        if (old != null) {
+            old.close();
+        }
         ObservationWriter writer = new ObservationWriter(context, this, provider, properties);
         if (updateRate != null) {
             writer.start(updateRate);
         }
-        ObservationWriter old = writers.put(provider, writer);
-        if (old != null) {
-            old.close();
-        }
+        writers.put(provider, writer);
     }
 
     /**
@@ -0,0 +1,266 @@
+package org.flexiblepower.monitoring.mysql.writer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+public class ConnectionPoolTest extends TestCase {
+    private static final String URL = "jdbc:fake:pool";
+
+    /** The state of a connection that is created by the {@link FakeDriver} */
+    private static class FakeConnection implements InvocationHandler {
+        boolean closed = false;
+        boolean valid = true;
+        boolean autoCommit = true;
+        int rollbacks = 0;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                closed = true;
+            } else if ("isClosed".equals(name)) {
+                return closed;
+            } else if ("isValid".equals(name)) {
+                return valid;
+            } else if ("getAutoCommit".equals(name)) {
+                return autoCommit;
+            } else if ("setAutoCommit".equals(name)) {
+                autoCommit = (Boolean) args[0];
+            } else if ("rollback".equals(name)) {
+                rollbacks++;
+            } else if ("createStatement".equals(name)) {
+                throw new SQLException("Communications link failure", "08S01");
+            } else if ("nativeSQL".equals(name)) {
+                throw new SQLException("Syntax error", "42000");
+            } else if ("toString".equals(name)) {
+                return "FakeConnection";
+            }
+            return null;
+        }
+    }
+
+    private static class FakeDriver implements Driver {
+        final List<FakeConnection> connections = new ArrayList<FakeConnection>();
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            FakeConnection connection = new FakeConnection();
+            connections.add(connection);
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                       new Class<?>[] { Connection.class },
+                                                       connection);
+        }
+
+        @Override
+        public boolean acceptsURL(String url) throws SQLException {
+            return URL.equals(url);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        // Part of the Driver interface since Java 7
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    private FakeDriver driver;
+
+    @Override
+    protected void setUp() throws Exception {
+        driver = new FakeDriver();
+        DriverManager.registerDriver(driver);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DriverManager.deregisterDriver(driver);
+    }
+
+    public void testReuse() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(URL, new Properties(), 2, 60000, 60000);
+
+        Connection first = pool.getConnection(0);
+        first.close();
+        Connection second = pool.getConnection(0);
+        second.close();
+
+        assertEquals(1, driver.connections.size());
+        assertEquals(1, pool.getCreatedConnections());
+        assertEquals(2, pool.getBorrowedConnections());
+        assertEquals(1, pool.getIdleConnections());
+        assertEquals(0, pool.getActiveConnections());
+        assertTrue(first.isClosed());
+        assertFalse(driver.connections.get(0).closed);
+    }
+
+    public void testBounded() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(URL, new Properties(), 2, 60000, 60000);
+
+        Connection first = pool.getConnection(0);
+        Connection second = pool.getConnection(0);
+        assertEquals(2, pool.getActiveConnections());
+        try {
+            pool.getConnection(10);
+            fail("Expected a timeout, because all connections are in use");
+        } catch (SQLTransientConnectionException ex) {
+            assertEquals(1, pool.getTimeouts());
+        }
+
+        second.close();
+        // Closing twice should not return it twice
+        second.close();
+        Connection third = pool.getConnection(0);
+        assertEquals(2, driver.connections.size());
+
+        first.close();
+        third.close();
+        assertEquals(2, pool.getIdleConnections());
+    }
+
+    public void testUseAfterClose() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(URL, new Properties(), 1, 60000, 60000);
+
+        Connection connection = pool.getConnection(0);
+        connection.close();
+        try {
+            connection.nativeSQL("SELECT 1");
+            fail("Expected an exception, because the connection has been returned");
+        } catch (SQLException ex) {
+            // expected
+        }
+    }
+
+    public void testResetTransaction() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(URL, new Properties(), 1, 60000, 60000);
+
+        Connection connection = pool.getConnection(0);
+        connection.setAutoCommit(false);
+        connection.close();
+
+        FakeConnection fake = driver.connections.get(0);
+        assertEquals(1, fake.rollbacks);
+        assertTrue(fake.autoCommit);
+    }
+
+    public void testBrokenConnection() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(URL, new Properties(), 1, 60000, 60000);
+
+        Connection connection = pool.getConnection(0);
+        try {
+            connection.nativeSQL("SELECT 1");
+            fail("Expected an exception");
+        } catch (SQLException ex) {
+            assertEquals("42000", ex.getSQLState());
+        }
+        connection.close();
+        // A normal error does not break the connection
+        assertEquals(1, pool.getIdleConnections());
+
+        connection = pool.getConnection(0);
+        try {
+            connection.createStatement();
+            fail("Expected an exception");
+        } catch (SQLException ex) {
+            assertEquals("08S01", ex.getSQLState());
+        }
+        connection.close();
+        // A communication error does
+        assertEquals(0, pool.getIdleConnections());
+        assertTrue(driver.connections.get(0).closed);
+
+        pool.getConnection(0).close();
+        assertEquals(2, driver.connections.size());
+    }
+
+    public void testValidation() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(URL, new Properties(), 1, 60000, 0);
+
+        pool.getConnection(0).close();
+        driver.connections.get(0).valid = false;
+        sleep(5);
+        pool.getConnection(0).close();
+
+        assertEquals(1, pool.getValidationFailures());
+        assertTrue(driver.connections.get(0).closed);
+        assertEquals(2, driver.connections.size());
+    }
+
+    public void testEviction() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(URL, new Properties(), 2, 0, 60000);
+
+        Connection first = pool.getConnection(0);
+        Connection second = pool.getConnection(0);
+        first.close();
+        second.close();
+        assertEquals(2, pool.getIdleConnections());
+
+        sleep(5);
+        pool.evictIdleConnections();
+        assertEquals(0, pool.getIdleConnections());
+        assertEquals(2, pool.getDestroyedConnections());
+        assertTrue(driver.connections.get(0).closed);
+        assertTrue(driver.connections.get(1).closed);
+    }
+
+    public void testClose() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(URL, new Properties(), 2, 60000, 60000);
+
+        Connection active = pool.getConnection(0);
+        pool.getConnection(0).close();
+        pool.close();
+        assertTrue(driver.connections.get(1).closed);
+
+        active.close();
+        assertTrue(driver.connections.get(0).closed);
+
+        try {
+            pool.getConnection(0);
+            fail("Expected an exception, because the pool has been closed");
+        } catch (SQLException ex) {
+            // expected
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
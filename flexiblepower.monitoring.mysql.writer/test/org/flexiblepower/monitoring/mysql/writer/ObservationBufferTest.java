@@ -0,0 +1,67 @@
+package org.flexiblepower.monitoring.mysql.writer;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.monitoring.buffer.OverflowPolicy;
+
+public class ObservationBufferTest extends TestCase {
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("observation-buffer", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * The rows after the first one go through a segment file, so every type of value is written and read back
+     */
+    public void testValueTypes() {
+        java.sql.Timestamp timestamp = new java.sql.Timestamp(123456789);
+        timestamp.setNanos(987654321);
+        Object[] values = new Object[] { null,
+                                        true,
+                                        42,
+                                        42L,
+                                        4.2f,
+                                        4.2d,
+                                        new BigInteger("12345678901234567890"),
+                                        new BigDecimal("1234567890.0987654321"),
+                                        "\u00e9\u00e8 text",
+                                        new java.util.Date(1000),
+                                        timestamp,
+                                        new java.sql.Time(2000),
+                                        new java.sql.Date(3000) };
+
+        ObservationBuffer buffer = new ObservationBuffer(directory, 1, 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+        buffer.offer(new ObservationRow(0, new Object[] { 0.0, "value 0" }));
+        buffer.offer(new ObservationRow(1, values.clone()));
+        buffer.offer(new ObservationRow(2, new Object[] { new byte[] { 1, 2, 3 } }));
+
+        List<ObservationRow> rows = new ArrayList<ObservationRow>();
+        buffer.drainTo(rows, 3);
+        assertEquals(2, buffer.getReplayedRecords());
+        assertEquals(1, rows.get(1).getObservedAt());
+        assertEquals(Arrays.asList(values), Arrays.asList(rows.get(1).getValues()));
+        assertEquals(java.sql.Timestamp.class, rows.get(1).getValues()[10].getClass());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) rows.get(2).getValues()[0]));
+    }
+}
@@ -0,0 +1,107 @@
+package org.flexiblepower.monitoring.mysql.writer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.flexiblepower.observation.Observation;
+import org.flexiblepower.observation.ext.ObservationProviderRegistrationHelper;
+
+/**
+ * Measures how many observations per second an {@link ObservationWriter} can write to a MySQL database. This is not a
+ * unit test, because it needs a running database. The database should have been used by the MySQL writer before, so
+ * that the dimension tables exist and have been populated.
+ *
+ * Usage: ObservationWriterBenchmark jdbcURL user password [observations] [batchSize]
+ */
+public class ObservationWriterBenchmark {
+
+    /** The value of the observations that are written */
+    public static class Sample {
+        private final double power;
+        private final String state;
+
+        public Sample(double power, String state) {
+            this.power = power;
+            this.state = state;
+        }
+
+        public double getPower() {
+            return power;
+        }
+
+        public String getState() {
+            return state;
+        }
+    }
+
+    /** Hands out the connections of a pool, like the activated manager does */
+    private static class PooledDataSource extends ObservationWriterManager {
+        private final ConnectionPool pool;
+
+        public PooledDataSource(ConnectionPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public Connection createConnection() throws SQLException {
+            return pool.getConnection(10000);
+        }
+    }
+
+    public static void main(String[] args) throws SQLException {
+        if (args.length < 3) {
+            System.err.println("Usage: ObservationWriterBenchmark jdbcURL user password [observations] [batchSize]");
+            System.exit(1);
+        }
+        int observations = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+        int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : 256;
+
+        Properties info = new Properties();
+        info.setProperty("user", args[1]);
+        info.setProperty("password", args[2]);
+        info.setProperty("rewriteBatchedStatements", "true");
+        ConnectionPool pool = new ConnectionPool(args[0], info, 1, 60000, 5000);
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(ObservationProviderRegistrationHelper.KEY_OBSERVATION_OF, "benchmark-" + System.nanoTime());
+        properties.put(ObservationProviderRegistrationHelper.KEY_OBSERVED_BY,
+                       ObservationWriterBenchmark.class.getName());
+        properties.put(ObservationProviderRegistrationHelper.KEY_OBSERVATION_TYPE, Sample.class.getName());
+        properties.put(ObservationProviderFieldsFilter.FIELD_PREFIX + "power", "double");
+        properties.put(ObservationProviderFieldsFilter.FIELD_PREFIX + "state", String.class.getName());
+
+        ObservationWriter writer = new ObservationWriter(null, new PooledDataSource(pool), null, properties);
+        writer.initializeTable();
+
+        // Observations every 100ms, ending now so that the dates are in dim_date
+        long time = System.currentTimeMillis() - 100L * observations;
+        List<ObservationRow> batch = new ArrayList<ObservationRow>(batchSize);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < observations; i++) {
+            Sample sample = new Sample(i % 1000, i % 2 == 0 ? "on" : "off");
+            batch.add(writer.toRow(Observation.create(new Date(time), sample)));
+            time += 100;
+
+            if (batch.size() == batchSize || i == observations - 1) {
+                writer.write(batch);
+                batch.clear();
+            }
+        }
+        long duration = System.nanoTime() - start;
+
+        System.out.printf("Wrote %d observations in batches of %d in %.1f s: %.0f observations/s%n",
+                          observations,
+                          batchSize,
+                          duration / 1e9,
+                          observations / (duration / 1e9));
+        System.out.println(pool);
+        pool.close();
+    }
+}
@@ -0,0 +1,178 @@
+package org.flexiblepower.monitoring.mysql.writer;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.monitoring.buffer.OverflowPolicy;
+import org.flexiblepower.observation.Observation;
+import org.flexiblepower.observation.ext.ObservationProviderRegistrationHelper;
+
+public class ObservationWriterTest extends TestCase {
+    /** The value of the observations that are written */
+    public static class Sample {
+        private final double power;
+
+        public Sample(double power) {
+            this.power = power;
+        }
+
+        public double getPower() {
+            return power;
+        }
+    }
+
+    /** Keeps the submitted tasks, so the test decides when they run */
+    private static class QueuingContext implements FlexiblePowerContext {
+        final List<Runnable> submitted = new ArrayList<Runnable>();
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public Date currentTime() {
+            return new Date();
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+            return null;
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+            return null;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                      Measurable<Duration> initialDelay,
+                                                      Measurable<Duration> period) {
+            return null;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                         Measurable<Duration> initialDelay,
+                                                         Measurable<Duration> delay) {
+            return null;
+        }
+
+        @Override
+        public <T> Future<T> submit(Callable<T> task) {
+            return null;
+        }
+
+        @Override
+        public Future<?> submit(Runnable task) {
+            submitted.add(task);
+            return null;
+        }
+
+        @Override
+        public <T> Future<T> submit(Runnable task, T result) {
+            return null;
+        }
+    }
+
+    /** A database that is down, with buffers on disk */
+    private class UnavailableDataSource extends ObservationWriterManager {
+        @Override
+        public Connection createConnection() throws SQLException {
+            return null;
+        }
+
+        @Override
+        ObservationBuffer createBuffer(String name) {
+            return new ObservationBuffer(directory, 16, DISK_BUDGET, OverflowPolicy.DROP_NEWEST);
+        }
+    }
+
+    /** Gives segment files that are smaller than a batch */
+    private static final long DISK_BUDGET = 16 * 1024;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("observation-writer", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static Map<String, Object> properties() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(ObservationProviderRegistrationHelper.KEY_OBSERVATION_OF, "test");
+        properties.put(ObservationProviderRegistrationHelper.KEY_OBSERVED_BY, ObservationWriterTest.class.getName());
+        properties.put(ObservationProviderRegistrationHelper.KEY_OBSERVATION_TYPE, Sample.class.getName());
+        properties.put(ObservationProviderFieldsFilter.FIELD_PREFIX + "power", "double");
+        return properties;
+    }
+
+    private static List<String> segmentFiles(File directory) {
+        List<String> names = new ArrayList<String>();
+        for (File file : directory.listFiles()) {
+            names.add(file.getName() + " " + file.length());
+        }
+        return names;
+    }
+
+    /**
+     * An insert that was submitted before the writer was closed must not touch the segment files, which belong to the
+     * next writer for the provider after the close.
+     */
+    public void testInsertAfterClose() {
+        QueuingContext context = new QueuingContext();
+        ObservationWriter writer = new ObservationWriter(context, new UnavailableDataSource(), null, properties());
+        writer.start(null);
+        context.submitted.clear();
+
+        for (int i = 0; i < 500; i++) {
+            writer.consume(null, Observation.create(new Date(i * 1000L), new Sample(i)));
+        }
+        assertEquals(1, context.submitted.size());
+
+        // The last insert fails, so most rows stay in segment files that are not read
+        writer.close();
+        List<String> files = segmentFiles(directory);
+        assertTrue(files.size() > 1);
+
+        context.submitted.get(0).run();
+        writer.insert();
+        assertEquals(files, segmentFiles(directory));
+
+        ObservationBuffer next = new ObservationBuffer(directory, 16, DISK_BUDGET, OverflowPolicy.DROP_NEWEST);
+        assertEquals(500, next.size());
+        List<ObservationRow> rows = new ArrayList<ObservationRow>();
+        next.drainTo(rows, 1);
+        assertEquals(Arrays.asList(0.0), Arrays.asList(rows.get(0).getValues()));
+        next.close();
+    }
+}
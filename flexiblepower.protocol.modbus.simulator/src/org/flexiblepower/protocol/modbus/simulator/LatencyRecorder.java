@@ -0,0 +1,124 @@
+package org.flexiblepower.protocol.modbus.simulator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link LatencyRecorder} counts latencies in a histogram, so percentiles can be reported without keeping every
+ * sample. Latencies are stored in microseconds: exact below 64 microseconds and with a precision of about 3% above
+ * that. Recording is lock-free and can be done from many threads at once.
+ */
+public final class LatencyRecorder {
+    private static final int LINEAR = 64;
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Values up to 2^40 microseconds (about 12 days) have their own bucket
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(LINEAR + (MAX_EXPONENT - 5) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucket(long micros) {
+        if (micros < LINEAR) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+        long mantissa = Math.min(2 * SUB_BUCKETS - 1, micros >>> (exponent - SUB_BITS));
+        return LINEAR + (exponent - 6) * SUB_BUCKETS + (int) (mantissa - SUB_BUCKETS);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 6;
+        long mantissa = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * @param nanos
+     *            A latency in nanoseconds, e.g. the difference of two {@link System#nanoTime()} calls.
+     */
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return The number of recorded latencies.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The mean latency in microseconds, or 0 when nothing has been recorded.
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /**
+     * @return The highest recorded latency in microseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile
+     *            The percentile, between 0 and 100, e.g. 99.9.
+     * @return The latency in microseconds below which that percentage of the latencies lie, or 0 when nothing has been
+     *         recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile should be between 0 and 100, but is " + percentile);
+        }
+        long n = count.get();
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int ix = 0; ix < buckets.length(); ix++) {
+            seen += buckets.get(ix);
+            if (seen >= rank) {
+                return Math.min(upperBound(ix), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets all recorded latencies, e.g. after a warm up. This should not be called while latencies are being
+     * recorded.
+     */
+    public void reset() {
+        for (int ix = 0; ix < buckets.length(); ix++) {
+            buckets.set(ix, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d samples, mean %.0f us, p50 %d us, p99 %d us, p99.9 %d us, max %d us",
+                             getCount(),
+                             getMean(),
+                             getPercentile(50),
+                             getPercentile(99),
+                             getPercentile(99.9),
+                             getMax());
+    }
+}
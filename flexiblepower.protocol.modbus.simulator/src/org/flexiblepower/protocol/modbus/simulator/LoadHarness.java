@@ -0,0 +1,296 @@
+package org.flexiblepower.protocol.modbus.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flexiblepower.protocol.modbus.tcp.Device;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMasterConnection;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMultiplexer;
+import org.flexiblepower.protocol.modbus.tcp.ReadPlanner;
+import org.flexiblepower.protocol.modbus.tcp.RegisterBlock;
+
+/**
+ * A {@link LoadHarness} measures the polling capacity of the modbus master against a gateway, which may be a
+ * {@link SlaveSimulator}. A number of threads read blocks of holding registers from all units, round robin, as fast as
+ * the gateway answers. It reports the number of requests per second and the distribution of their latency.
+ *
+ * This is a closed loop: a thread only sends its next request when the previous one has been answered, so the load
+ * adapts to the gateway and the latencies do not include time spent waiting to send. Use more threads to find the
+ * point where the throughput no longer increases and the tail latency starts to grow.
+ *
+ * It can also be started from the command line, see {@link #main(String[])}.
+ */
+public class LoadHarness {
+    /**
+     * The outcome of a run of the {@link LoadHarness}.
+     */
+    public static final class Result {
+        private final long requests;
+        private final long failures;
+        private final long elapsedNanos;
+        private final LatencyRecorder latencies;
+
+        Result(long requests, long failures, long elapsedNanos, LatencyRecorder latencies) {
+            this.requests = requests;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+
+        /**
+         * @return The number of requests that have been answered successfully.
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return The number of requests that failed, because of an exception response, a timeout or a lost
+         *         connection.
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return The number of successful requests per second.
+         */
+        public double getRequestsPerSecond() {
+            return elapsedNanos == 0 ? 0 : requests * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return The latencies of all requests, including the ones that failed.
+         */
+        public LatencyRecorder getLatencies() {
+            return latencies;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f requests/s, %d failures; %s", getRequestsPerSecond(), failures, latencies);
+        }
+    }
+
+    private final InetAddress address;
+    private final int port;
+    private int firstUnit = 1;
+    private int units = 1;
+    private int registerAddress = 0;
+    private int registers = 10;
+    private int threads = 4;
+    private int maxInflight = ModbusMultiplexer.DEFAULT_MAX_INFLIGHT;
+    private long timeout = ModbusMultiplexer.DEFAULT_TIMEOUT;
+
+    /**
+     * @param address
+     *            The address of the gateway.
+     * @param port
+     *            The port of the gateway.
+     */
+    public LoadHarness(InetAddress address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * @param firstUnit
+     *            The first unit identifier that is polled.
+     * @param units
+     *            The number of consecutive unit identifiers that are polled.
+     * @return This {@link LoadHarness}
+     */
+    public LoadHarness setUnits(int firstUnit, int units) {
+        if (units < 1 || firstUnit < 0 || firstUnit + units > 256) {
+            throw new IllegalArgumentException("Units " + firstUnit
+                                               + " to "
+                                               + (firstUnit + units - 1)
+                                               + " do not exist");
+        }
+        this.firstUnit = firstUnit;
+        this.units = units;
+        return this;
+    }
+
+    /**
+     * @param registerAddress
+     *            The address of the first holding register that is read.
+     * @param registers
+     *            The number of holding registers that is read in each request, from 1 up to
+     *            {@link ReadPlanner#MAX_REGISTERS}.
+     * @return This {@link LoadHarness}
+     */
+    public LoadHarness setRegisters(int registerAddress, int registers) {
+        if (registers < 1 || registers > ReadPlanner.MAX_REGISTERS) {
+            throw new IllegalArgumentException("Illegal number of registers [1-" + ReadPlanner.MAX_REGISTERS
+                                               + "], but was "
+                                               + registers);
+        }
+        this.registerAddress = registerAddress;
+        this.registers = registers;
+        return this;
+    }
+
+    /**
+     * @param threads
+     *            The number of threads that send requests, which is the maximum number of requests outstanding.
+     * @return This {@link LoadHarness}
+     */
+    public LoadHarness setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least 1 thread is needed");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param maxInflight
+     *            The number of requests that may be waiting for a response on the connection to the gateway.
+     * @param timeout
+     *            The time in milliseconds after which a request fails.
+     * @return This {@link LoadHarness}
+     */
+    public LoadHarness setMultiplexer(int maxInflight, long timeout) {
+        this.maxInflight = maxInflight;
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Polls the gateway for the given time.
+     *
+     * @param warmup
+     *            The time in milliseconds that is polled before the measurement starts.
+     * @param duration
+     *            The time in milliseconds that is measured.
+     * @return The {@link Result} of the measurement.
+     * @throws IOException
+     *             When the multiplexer could not be started.
+     * @throws InterruptedException
+     *             When the calling thread has been interrupted while waiting for the run to finish.
+     */
+    public Result run(long warmup, long duration) throws IOException, InterruptedException {
+        ModbusMultiplexer multiplexer = new ModbusMultiplexer(maxInflight, timeout);
+        try {
+            final List<ModbusMasterConnection> connections = new ArrayList<ModbusMasterConnection>(units);
+            for (int unit = firstUnit; unit < firstUnit + units; unit++) {
+                Device device = Device.address(address).setPort(port).setDeviceId(unit).create();
+                connections.add(multiplexer.connect(device));
+            }
+
+            final LatencyRecorder latencies = new LatencyRecorder();
+            final AtomicLong requests = new AtomicLong();
+            final AtomicLong failures = new AtomicLong();
+            final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmup);
+            final long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+
+            Thread[] workers = new Thread[threads];
+            for (int ix = 0; ix < threads; ix++) {
+                final int offset = ix;
+                workers[ix] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        RegisterBlock block = new RegisterBlock();
+                        int next = offset;
+                        long sent = System.nanoTime();
+                        while (sent < end) {
+                            boolean succeeded;
+                            try {
+                                connections.get(next % connections.size())
+                                           .readRegisters(registerAddress, registers, block);
+                                succeeded = true;
+                            } catch (IOException ex) {
+                                succeeded = false;
+                            }
+                            long received = System.nanoTime();
+                            if (sent >= start && received < end) {
+                                latencies.record(received - sent);
+                                (succeeded ? requests : failures).incrementAndGet();
+                            }
+                            next++;
+                            sent = received;
+                        }
+                    }
+                }, "Modbus load harness " + ix);
+                workers[ix].setDaemon(true);
+                workers[ix].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            for (ModbusMasterConnection connection : connections) {
+                connection.close();
+            }
+            return new Result(requests.get(), failures.get(), end - start, latencies);
+        } finally {
+            multiplexer.close();
+        }
+    }
+
+    /**
+     * Runs the harness from the command line and prints the result.
+     *
+     * <pre>
+     * LoadHarness &lt;host&gt; &lt;port&gt; [units] [threads] [registers] [seconds]
+     * LoadHarness simulator [units] [threads] [registers] [seconds] [latency ms] [jitter ms]
+     * </pre>
+     *
+     * The second form starts a {@link SlaveSimulator} in the same process, which measures the overhead of the master
+     * itself.
+     *
+     * @param args
+     *            The arguments as shown above.
+     * @throws Exception
+     *             When the harness could not be run.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadHarness <host> <port> [units] [threads] [registers] [seconds]");
+            System.err.println("   or: LoadHarness simulator [units] [threads] [registers] [seconds] [latency]"
+                               + " [jitter]");
+            System.exit(1);
+        }
+
+        SlaveSimulator simulator = null;
+        LoadHarness harness;
+        int ix;
+        if ("simulator".equals(args[0])) {
+            simulator = new SlaveSimulator(0);
+            harness = new LoadHarness(InetAddress.getByName("127.0.0.1"), simulator.getPort());
+            ix = 1;
+        } else {
+            harness = new LoadHarness(InetAddress.getByName(args[0]), Integer.parseInt(args[1]));
+            ix = 2;
+        }
+        int units = args.length > ix ? Integer.parseInt(args[ix]) : 1;
+        int threads = args.length > ix + 1 ? Integer.parseInt(args[ix + 1]) : 4;
+        int registers = args.length > ix + 2 ? Integer.parseInt(args[ix + 2]) : 10;
+        int seconds = args.length > ix + 3 ? Integer.parseInt(args[ix + 3]) : 10;
+        if (simulator != null) {
+            simulator.addUnits(1, units);
+            simulator.setLatency(args.length > ix + 4 ? Long.parseLong(args[ix + 4]) : 0,
+                                 args.length > ix + 5 ? Long.parseLong(args[ix + 5]) : 0);
+        }
+
+        try {
+            harness.setUnits(1, units).setThreads(threads).setRegisters(0, registers);
+            System.out.println("Polling " + units
+                               + " units with "
+                               + threads
+                               + " threads for "
+                               + seconds
+                               + " seconds");
+            System.out.println(harness.run(2000, TimeUnit.SECONDS.toMillis(seconds)));
+        } finally {
+            if (simulator != null) {
+                simulator.close();
+            }
+        }
+    }
+}
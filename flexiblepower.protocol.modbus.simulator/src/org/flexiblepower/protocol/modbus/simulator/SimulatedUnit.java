@@ -0,0 +1,232 @@
+package org.flexiblepower.protocol.modbus.simulator;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * A {@link SimulatedUnit} holds the coils, holding registers and input registers of a single unit identifier of a
+ * {@link SlaveSimulator}. All addresses from 0 to 65535 exist and initially hold 0. The registers are stored in pages
+ * that are only allocated when written, so a simulator can hold hundreds of units.
+ *
+ * Discrete inputs (function 2) are read from the same table as the coils.
+ */
+public final class SimulatedUnit {
+    /** The exception code for a function that the unit does not support */
+    public static final int ILLEGAL_FUNCTION = 1;
+    /** The exception code for an address range that does not fit in the unit */
+    public static final int ILLEGAL_DATA_ADDRESS = 2;
+    /** The exception code for a malformed quantity or value */
+    public static final int ILLEGAL_DATA_VALUE = 3;
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int ADDRESSES = 65536;
+
+    private final int unitId;
+    private final short[][] holdingRegisters = new short[ADDRESSES / PAGE_SIZE][];
+    private final short[][] inputRegisters = new short[ADDRESSES / PAGE_SIZE][];
+    private final BitSet coils = new BitSet();
+
+    SimulatedUnit(int unitId) {
+        this.unitId = unitId;
+    }
+
+    /**
+     * @return The unit identifier through which this unit is addressed.
+     */
+    public int getUnitId() {
+        return unitId;
+    }
+
+    /**
+     * @param address
+     *            The modbus address of the coil.
+     * @return The current value of the coil.
+     */
+    public synchronized boolean getCoil(int address) {
+        return coils.get(checkAddress(address));
+    }
+
+    /**
+     * @param address
+     *            The modbus address of the coil.
+     * @param value
+     *            The new value of the coil.
+     * @return This {@link SimulatedUnit}
+     */
+    public synchronized SimulatedUnit setCoil(int address, boolean value) {
+        coils.set(checkAddress(address), value);
+        return this;
+    }
+
+    /**
+     * @param address
+     *            The modbus address of the holding register.
+     * @return The current raw value of the register.
+     */
+    public synchronized short getHoldingRegister(int address) {
+        return get(holdingRegisters, checkAddress(address));
+    }
+
+    /**
+     * Sets consecutive holding registers, e.g. the two halves of a 32 bits value.
+     *
+     * @param address
+     *            The modbus address of the first register.
+     * @param values
+     *            The new raw values of the registers.
+     * @return This {@link SimulatedUnit}
+     */
+    public synchronized SimulatedUnit setHoldingRegisters(int address, short... values) {
+        for (int ix = 0; ix < values.length; ix++) {
+            set(holdingRegisters, checkAddress(address + ix), values[ix]);
+        }
+        return this;
+    }
+
+    /**
+     * @param address
+     *            The modbus address of the input register.
+     * @return The current raw value of the register.
+     */
+    public synchronized short getInputRegister(int address) {
+        return get(inputRegisters, checkAddress(address));
+    }
+
+    /**
+     * Sets consecutive input registers. Input registers can not be written by a master, so this is the only way to
+     * change them.
+     *
+     * @param address
+     *            The modbus address of the first register.
+     * @param values
+     *            The new raw values of the registers.
+     * @return This {@link SimulatedUnit}
+     */
+    public synchronized SimulatedUnit setInputRegisters(int address, short... values) {
+        for (int ix = 0; ix < values.length; ix++) {
+            set(inputRegisters, checkAddress(address + ix), values[ix]);
+        }
+        return this;
+    }
+
+    private static int checkAddress(int address) {
+        if (address < 0 || address >= ADDRESSES) {
+            throw new IllegalArgumentException("Address " + address + " is not between 0 and " + (ADDRESSES - 1));
+        }
+        return address;
+    }
+
+    private static short get(short[][] table, int address) {
+        short[] page = table[address >>> PAGE_BITS];
+        return page == null ? 0 : page[address & (PAGE_SIZE - 1)];
+    }
+
+    private static void set(short[][] table, int address, short value) {
+        short[] page = table[address >>> PAGE_BITS];
+        if (page == null) {
+            if (value == 0) {
+                return;
+            }
+            page = new short[PAGE_SIZE];
+            table[address >>> PAGE_BITS] = page;
+        }
+        page[address & (PAGE_SIZE - 1)] = value;
+    }
+
+    /**
+     * Executes a request and puts the data of its response, after the function code.
+     *
+     * @param function
+     *            The function code of the request.
+     * @param request
+     *            The data of the request, after the function code.
+     * @param response
+     *            The buffer in which the data of the response is put.
+     * @return 0 when the request succeeded, or else the exception code that should be sent. Nothing has been put in
+     *         the response in that case.
+     */
+    synchronized int execute(int function, ByteBuffer request, ByteBuffer response) {
+        if (request.remaining() < 4) {
+            return ILLEGAL_DATA_VALUE;
+        }
+        int address = request.getShort() & 0xffff;
+        int value = request.getShort() & 0xffff;
+        switch (function) {
+        case 1:
+        case 2:
+            if (value < 1 || value > 2000) {
+                return ILLEGAL_DATA_VALUE;
+            } else if (address + value > ADDRESSES) {
+                return ILLEGAL_DATA_ADDRESS;
+            }
+            response.put((byte) ((value + 7) / 8));
+            for (int ix = 0; ix < value; ix += 8) {
+                int bits = 0;
+                for (int bit = 0; bit < 8 && ix + bit < value; bit++) {
+                    if (coils.get(address + ix + bit)) {
+                        bits |= 1 << bit;
+                    }
+                }
+                response.put((byte) bits);
+            }
+            return 0;
+        case 3:
+        case 4:
+            if (value < 1 || value > 125) {
+                return ILLEGAL_DATA_VALUE;
+            } else if (address + value > ADDRESSES) {
+                return ILLEGAL_DATA_ADDRESS;
+            }
+            short[][] table = function == 3 ? holdingRegisters : inputRegisters;
+            response.put((byte) (value * 2));
+            for (int ix = 0; ix < value; ix++) {
+                response.putShort(get(table, address + ix));
+            }
+            return 0;
+        case 5:
+            if (value != 0 && value != 0xff00) {
+                return ILLEGAL_DATA_VALUE;
+            }
+            coils.set(address, value != 0);
+            response.putShort((short) address).putShort((short) value);
+            return 0;
+        case 6:
+            set(holdingRegisters, address, (short) value);
+            response.putShort((short) address).putShort((short) value);
+            return 0;
+        case 15:
+            if (value < 1 || value > 1968 || !request.hasRemaining() || request.get() != (value + 7) / 8
+                || request.remaining() < (value + 7) / 8) {
+                return ILLEGAL_DATA_VALUE;
+            } else if (address + value > ADDRESSES) {
+                return ILLEGAL_DATA_ADDRESS;
+            }
+            int start = request.position();
+            for (int ix = 0; ix < value; ix++) {
+                coils.set(address + ix, (request.get(start + ix / 8) & (1 << (ix % 8))) != 0);
+            }
+            response.putShort((short) address).putShort((short) value);
+            return 0;
+        case 16:
+            if (value < 1 || value > 123 || !request.hasRemaining() || request.get() != value * 2
+                || request.remaining() < value * 2) {
+                return ILLEGAL_DATA_VALUE;
+            } else if (address + value > ADDRESSES) {
+                return ILLEGAL_DATA_ADDRESS;
+            }
+            for (int ix = 0; ix < value; ix++) {
+                set(holdingRegisters, address + ix, request.getShort());
+            }
+            response.putShort((short) address).putShort((short) value);
+            return 0;
+        default:
+            return ILLEGAL_FUNCTION;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedUnit " + unitId;
+    }
+}
@@ -0,0 +1,367 @@
+package org.flexiblepower.protocol.modbus.simulator;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SlaveSimulator} is an in-process modbus TCP slave, or rather a gateway with up to 256
+ * {@link SimulatedUnit}s behind it. It can be used to test a master end-to-end and to measure its capacity without real
+ * hardware.
+ *
+ * To simulate a real site, the simulator can inject latency and jitter in its responses, answer a fraction of the
+ * requests with an exception and silently drop another fraction. Requests for a unit identifier that has not been
+ * added are answered with {@link #GATEWAY_TARGET_FAILED}, as a real gateway would.
+ *
+ * Each connection is handled by its own thread. Responses without latency are sent by that thread, delayed responses
+ * are sent by a small scheduler, so they may be sent in another order than the requests came in.
+ */
+public class SlaveSimulator implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SlaveSimulator.class);
+
+    /** The exception code that is injected, see {@link #setExceptionRate(double)} */
+    public static final int SLAVE_DEVICE_BUSY = 6;
+    /** The exception code for requests to a unit identifier that does not exist */
+    public static final int GATEWAY_TARGET_FAILED = 11;
+
+    private static final int MAX_FRAME = 260;
+
+    private final ServerSocket serverSocket;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicReferenceArray<SimulatedUnit> units = new AtomicReferenceArray<SimulatedUnit>(256);
+    private final List<Socket> connections = new ArrayList<Socket>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong exceptions = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong seeds = new AtomicLong();
+
+    private volatile long latency;
+    private volatile long jitter;
+    private volatile double exceptionRate;
+    private volatile double dropRate;
+    private volatile boolean closed;
+
+    /**
+     * Starts a simulator that listens on all interfaces.
+     *
+     * @param port
+     *            The TCP port on which the simulator listens, 0 for any free port.
+     * @throws IOException
+     *             When the port could not be opened.
+     */
+    public SlaveSimulator(int port) throws IOException {
+        this(new InetSocketAddress(port));
+    }
+
+    /**
+     * @param address
+     *            The address on which the simulator listens.
+     * @throws IOException
+     *             When the address could not be bound.
+     */
+    public SlaveSimulator(InetSocketAddress address) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address);
+        scheduler = Executors.newScheduledThreadPool(2);
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "Modbus slave simulator on port " + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return The TCP port on which the simulator listens.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Adds a unit, or returns the existing unit with that identifier.
+     *
+     * @param unitId
+     *            The unit identifier, from 0 to 255.
+     * @return The {@link SimulatedUnit}, of which the coils and registers can be set.
+     */
+    public SimulatedUnit addUnit(int unitId) {
+        if (unitId < 0 || unitId > 255) {
+            throw new IllegalArgumentException("The unit identifier should be between 0 and 255, but is " + unitId);
+        }
+        units.compareAndSet(unitId, null, new SimulatedUnit(unitId));
+        return units.get(unitId);
+    }
+
+    /**
+     * Adds all units with identifiers from first to last, inclusive.
+     *
+     * @param first
+     *            The first unit identifier.
+     * @param last
+     *            The last unit identifier.
+     */
+    public void addUnits(int first, int last) {
+        for (int unitId = first; unitId <= last; unitId++) {
+            addUnit(unitId);
+        }
+    }
+
+    /**
+     * @param unitId
+     *            The unit identifier.
+     * @return The {@link SimulatedUnit} with that identifier, or <code>null</code> when it has not been added.
+     */
+    public SimulatedUnit getUnit(int unitId) {
+        return unitId < 0 || unitId > 255 ? null : units.get(unitId);
+    }
+
+    /**
+     * @param unitId
+     *            The unit identifier of the unit that should be removed. Requests for it will be answered with
+     *            {@link #GATEWAY_TARGET_FAILED}.
+     */
+    public void removeUnit(int unitId) {
+        units.set(unitId, null);
+    }
+
+    /**
+     * Sets the delay of each response to latency plus a uniformly distributed random value between 0 and jitter.
+     *
+     * @param latency
+     *            The minimum delay in milliseconds.
+     * @param jitter
+     *            The maximum additional delay in milliseconds.
+     */
+    public void setLatency(long latency, long jitter) {
+        if (latency < 0 || jitter < 0) {
+            throw new IllegalArgumentException("The latency and jitter can not be negative");
+        }
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param exceptionRate
+     *            The fraction of requests, from 0 to 1, that are answered with {@link #SLAVE_DEVICE_BUSY}.
+     */
+    public void setExceptionRate(double exceptionRate) {
+        this.exceptionRate = checkRate(exceptionRate);
+    }
+
+    /**
+     * @param dropRate
+     *            The fraction of requests, from 0 to 1, that are never answered.
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = checkRate(dropRate);
+    }
+
+    private static double checkRate(double rate) {
+        if (!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException("The rate should be between 0 and 1, but is " + rate);
+        }
+        return rate;
+    }
+
+    /**
+     * @return The number of requests that have been received.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return The number of requests that have been answered with an exception, injected or not.
+     */
+    public long getExceptions() {
+        return exceptions.get();
+    }
+
+    /**
+     * @return The number of requests that have been dropped.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of open connections.
+     */
+    public int getConnections() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    /**
+     * Closes all connections, e.g. to simulate a restart of the gateway. The simulator keeps accepting new connections.
+     */
+    public void dropConnections() {
+        synchronized (connections) {
+            for (Socket socket : connections) {
+                closeQuietly(socket);
+            }
+            connections.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        dropConnections();
+        scheduler.shutdownNow();
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Closing anyway
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Closing anyway
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                synchronized (connections) {
+                    connections.add(socket);
+                }
+                Thread handler = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(socket.getInputStream(), socket.getOutputStream());
+                        } catch (EOFException ex) {
+                            logger.debug("Connection from {} closed", socket.getRemoteSocketAddress());
+                        } catch (IOException ex) {
+                            if (!socket.isClosed()) {
+                                logger.warn("Closing connection from " + socket.getRemoteSocketAddress()
+                                            + ": "
+                                            + ex.getMessage());
+                            }
+                        } finally {
+                            closeQuietly(socket);
+                            synchronized (connections) {
+                                connections.remove(socket);
+                            }
+                        }
+                    }
+                }, "Modbus slave simulator connection " + socket.getRemoteSocketAddress());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException ex) {
+                if (!closed) {
+                    logger.error("Could not accept a connection: " + ex.getMessage(), ex);
+                }
+            }
+        }
+    }
+
+    private void handle(InputStream input, final OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        Random random = new Random(seeds.incrementAndGet());
+        byte[] frame = new byte[MAX_FRAME];
+        while (!closed) {
+            int transactionId = in.readUnsignedShort();
+            int protocolId = in.readUnsignedShort();
+            int length = in.readUnsignedShort();
+            if (protocolId != 0 || length < 2 || length > MAX_FRAME - 6) {
+                throw new IOException("Invalid header, protocol " + protocolId + " and length " + length);
+            }
+            int unitId = in.readUnsignedByte();
+            int function = in.readUnsignedByte();
+            in.readFully(frame, 0, length - 2);
+            requests.incrementAndGet();
+
+            if (dropRate > 0 && random.nextDouble() < dropRate) {
+                dropped.incrementAndGet();
+                continue;
+            }
+
+            ByteBuffer response = ByteBuffer.allocate(MAX_FRAME);
+            response.putShort((short) transactionId).putShort((short) 0).putShort((short) 0);
+            response.put((byte) unitId).put((byte) function);
+            int exception;
+            SimulatedUnit unit = units.get(unitId);
+            if (unit == null) {
+                exception = GATEWAY_TARGET_FAILED;
+            } else if (exceptionRate > 0 && random.nextDouble() < exceptionRate) {
+                exception = SLAVE_DEVICE_BUSY;
+            } else {
+                exception = unit.execute(function, ByteBuffer.wrap(frame, 0, length - 2), response);
+            }
+            if (exception != 0) {
+                exceptions.incrementAndGet();
+                response.put(7, (byte) (function | 0x80)).position(8);
+                response.put((byte) exception);
+            }
+            response.putShort(4, (short) (response.position() - 6));
+            final byte[] bytes = new byte[response.position()];
+            response.flip();
+            response.get(bytes);
+
+            long delay = latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+            if (delay == 0) {
+                send(out, bytes);
+            } else {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            send(out, bytes);
+                        } catch (IOException ex) {
+                            logger.debug("Could not send a delayed response: {}", ex.getMessage());
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static void send(OutputStream out, byte[] bytes) throws IOException {
+        synchronized (out) {
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SlaveSimulator on port " + getPort();
+    }
+}
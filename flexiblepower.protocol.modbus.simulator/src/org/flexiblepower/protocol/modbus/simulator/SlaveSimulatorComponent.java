@@ -0,0 +1,112 @@
+package org.flexiblepower.protocol.modbus.simulator;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.flexiblepower.protocol.modbus.simulator.SlaveSimulatorComponent.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.bnd.annotation.component.Activate;
+import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Deactivate;
+import aQute.bnd.annotation.metatype.Configurable;
+import aQute.bnd.annotation.metatype.Meta;
+
+/**
+ * Runs a {@link SlaveSimulator} in the framework, so drivers can be tested against it through their normal
+ * configuration. Every unit gets the same register and coil values.
+ */
+@Component(provide = {}, designateFactory = Config.class)
+public class SlaveSimulatorComponent {
+    private static final Logger logger = LoggerFactory.getLogger(SlaveSimulatorComponent.class);
+
+    @Meta.OCD(description = "A simulated modbus TCP gateway with a number of units behind it")
+    public static interface Config {
+        @Meta.AD(deflt = "1502", description = "The TCP port on which the simulator listens")
+        public int port();
+
+        @Meta.AD(deflt = "1", description = "The first unit identifier")
+        public int firstUnit();
+
+        @Meta.AD(deflt = "1", description = "The last unit identifier, at most 255")
+        public int lastUnit();
+
+        @Meta.AD(deflt = "",
+                 required = false,
+                 description = "The initial holding registers as address=value, input registers as input:address=value")
+        public String[] registers();
+
+        @Meta.AD(deflt = "", required = false, description = "The addresses of the coils that are initially on")
+        public int[] coils();
+
+        @Meta.AD(deflt = "0", description = "The minimum delay of a response in milliseconds")
+        public long latency();
+
+        @Meta.AD(deflt = "0", description = "The maximum random delay on top of the latency in milliseconds")
+        public long jitter();
+
+        @Meta.AD(deflt = "0", description = "The fraction of requests that are answered with a busy exception (0-1)")
+        public double exceptionRate();
+
+        @Meta.AD(deflt = "0", description = "The fraction of requests that are never answered (0-1)")
+        public double dropRate();
+    }
+
+    private SlaveSimulator simulator;
+
+    @Activate
+    public void activate(Map<String, Object> properties) throws IOException {
+        Config config = Configurable.createConfigurable(Config.class, properties);
+        simulator = new SlaveSimulator(config.port());
+        try {
+            simulator.setLatency(config.latency(), config.jitter());
+            simulator.setExceptionRate(config.exceptionRate());
+            simulator.setDropRate(config.dropRate());
+            for (int unitId = config.firstUnit(); unitId <= config.lastUnit(); unitId++) {
+                SimulatedUnit unit = simulator.addUnit(unitId);
+                if (config.registers() != null) {
+                    for (String register : config.registers()) {
+                        setRegister(unit, register.trim());
+                    }
+                }
+                if (config.coils() != null) {
+                    for (int coil : config.coils()) {
+                        unit.setCoil(coil, true);
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            logger.error("Error during initialization of the modbus slave simulator: " + ex.getMessage(), ex);
+            deactivate();
+            throw ex;
+        }
+        logger.info("Started " + simulator + " with units " + config.firstUnit() + " to " + config.lastUnit());
+    }
+
+    private static void setRegister(SimulatedUnit unit, String register) {
+        if (register.isEmpty()) {
+            return;
+        }
+        boolean input = register.startsWith("input:");
+        String[] parts = register.substring(input ? 6 : 0).split("=");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected address=value, but got " + register);
+        }
+        int address = Integer.parseInt(parts[0].trim());
+        short value = (short) Integer.parseInt(parts[1].trim());
+        if (input) {
+            unit.setInputRegisters(address, value);
+        } else {
+            unit.setHoldingRegisters(address, value);
+        }
+    }
+
+    @Deactivate
+    public void deactivate() {
+        if (simulator != null) {
+            simulator.close();
+            simulator = null;
+        }
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * This package contains a simulated modbus TCP slave and a harness to measure the load a master can handle.
+ */
+@aQute.bnd.annotation.Version("1.0.0.${qualifier}")
+package org.flexiblepower.protocol.modbus.simulator;
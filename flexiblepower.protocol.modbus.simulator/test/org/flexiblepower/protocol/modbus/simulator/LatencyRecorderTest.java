@@ -0,0 +1,47 @@
+package org.flexiblepower.protocol.modbus.simulator;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class LatencyRecorderTest extends TestCase {
+    public void testBuckets() {
+        for (long micros = 0; micros < 64; micros++) {
+            assertEquals(micros, LatencyRecorder.upperBound(LatencyRecorder.bucket(micros)));
+        }
+        long previous = -1;
+        for (long micros = 64; micros < 100000000; micros += 1 + micros / 100) {
+            int bucket = LatencyRecorder.bucket(micros);
+            long upper = LatencyRecorder.upperBound(bucket);
+            assertTrue(upper >= micros);
+            assertTrue("Bucket of " + micros + " ends at " + upper, upper - micros <= micros / 32);
+            assertTrue(upper >= previous);
+            previous = upper;
+        }
+    }
+
+    public void testPercentiles() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        assertEquals(0, recorder.getPercentile(99));
+
+        // 1 to 1000 ms
+        for (int millis = 1; millis <= 1000; millis++) {
+            recorder.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        assertEquals(1000, recorder.getCount());
+        assertEquals(1000000, recorder.getMax());
+        assertEquals(500500, recorder.getMean(), 0.1);
+        assertPrecise(500000, recorder.getPercentile(50));
+        assertPrecise(990000, recorder.getPercentile(99));
+        assertPrecise(999000, recorder.getPercentile(99.9));
+        assertEquals(1000000, recorder.getPercentile(100));
+
+        recorder.reset();
+        assertEquals(0, recorder.getCount());
+        assertEquals(0, recorder.getMax());
+    }
+
+    private static void assertPrecise(long expected, long actual) {
+        assertTrue("Expected " + expected + ", but got " + actual, actual >= expected && actual <= expected * 1.04);
+    }
+}
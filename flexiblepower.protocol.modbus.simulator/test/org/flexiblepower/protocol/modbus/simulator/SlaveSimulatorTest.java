@@ -0,0 +1,162 @@
+package org.flexiblepower.protocol.modbus.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+import javax.measure.unit.Unit;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.protocol.modbus.tcp.Device;
+import org.flexiblepower.protocol.modbus.tcp.ModbusException;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMasterConnection;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMultiplexer;
+import org.flexiblepower.protocol.modbus.tcp.ReadPlanner;
+import org.flexiblepower.protocol.modbus.tcp.RegisterBlock;
+
+public class SlaveSimulatorTest extends TestCase {
+    private SlaveSimulator simulator;
+    private ModbusMultiplexer multiplexer;
+
+    @Override
+    protected void setUp() throws Exception {
+        simulator = new SlaveSimulator(0);
+        multiplexer = new ModbusMultiplexer(8, 1000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        multiplexer.close();
+        simulator.close();
+    }
+
+    private Device.Builder device(int unitId) throws IOException {
+        return Device.address(InetAddress.getByName("127.0.0.1")).setPort(simulator.getPort()).setDeviceId(unitId);
+    }
+
+    private ModbusMasterConnection connect(int unitId) throws IOException {
+        return multiplexer.connect(device(unitId).create());
+    }
+
+    public void testManyUnits() throws IOException {
+        simulator.addUnits(1, 250);
+        for (int unitId = 1; unitId <= 250; unitId++) {
+            simulator.getUnit(unitId).setHoldingRegisters(100, (short) unitId, (short) -unitId);
+        }
+
+        for (int unitId = 1; unitId <= 250; unitId++) {
+            ModbusMasterConnection connection = connect(unitId);
+            RegisterBlock block = connection.readRegisters(100, 3);
+            assertEquals(unitId, block.get(100));
+            assertEquals(-unitId, block.get(101));
+            assertEquals(0, block.get(102));
+
+            connection.writeRegisters(200, (short) (unitId * 2), (short) 7);
+        }
+        for (int unitId = 1; unitId <= 250; unitId++) {
+            assertEquals(unitId * 2, simulator.getUnit(unitId).getHoldingRegister(200));
+        }
+        // All units are reached through a single connection, which is closed with the multiplexer
+        assertEquals(1, simulator.getConnections());
+        assertEquals(500, simulator.getRequests());
+    }
+
+    public void testRegisterMap() throws IOException {
+        simulator.addUnit(3).setInputRegisters(30000, (short) 1234).setCoil(7, true).setHoldingRegisters(40, (short) 5);
+        Device device = device(3).coil("pump", true, 7)
+                                 .coil("alarm", true, 8)
+                                 .register("temperature", false, 30000, Unit.ONE, false)
+                                 .register("setpoint", true, 40, Unit.ONE, false)
+                                 .create();
+        ModbusMasterConnection connection = multiplexer.connect(device);
+        connection.read(new ReadPlanner().plan(device));
+        assertTrue(device.getCoil(7).getValue());
+        assertFalse(device.getCoil(8).getValue());
+        assertEquals(1234, device.getRegister(30000).getValue());
+        assertEquals(5, device.getRegister(40).getValue());
+
+        connection.write(device.getCoil(8), true);
+        assertTrue(simulator.getUnit(3).getCoil(8));
+        connection.writeCoils(100, true, false, true);
+        assertTrue(simulator.getUnit(3).getCoil(102));
+        assertFalse(simulator.getUnit(3).getCoil(101));
+    }
+
+    public void testUnknownUnit() throws IOException {
+        simulator.addUnit(1);
+        try {
+            connect(2).readRegisters(0, 1);
+            fail("Expected a ModbusException");
+        } catch (ModbusException ex) {
+            // Expected
+        }
+        assertEquals(1, simulator.getExceptions());
+    }
+
+    public void testInjectedExceptions() throws IOException {
+        simulator.addUnit(1);
+        simulator.setExceptionRate(1);
+        try {
+            connect(1).readRegisters(0, 1);
+            fail("Expected a ModbusException");
+        } catch (ModbusException ex) {
+            // Expected
+        }
+
+        simulator.setExceptionRate(0.5);
+        ModbusMasterConnection connection = connect(1);
+        int failed = 0;
+        for (int ix = 0; ix < 200; ix++) {
+            try {
+                connection.readRegisters(0, 1);
+            } catch (ModbusException ex) {
+                failed++;
+            }
+        }
+        assertTrue("Failed " + failed, failed > 60 && failed < 140);
+        assertEquals(failed + 1, simulator.getExceptions());
+    }
+
+    public void testDroppedFrames() throws IOException {
+        simulator.addUnit(1);
+        simulator.setDropRate(1);
+        ModbusMasterConnection connection = connect(1);
+        connection.setTimeout(100);
+        try {
+            connection.readRegisters(0, 1);
+            fail("Expected a SocketTimeoutException");
+        } catch (SocketTimeoutException ex) {
+            // Expected
+        }
+        assertEquals(1, simulator.getDropped());
+
+        // The connection stays usable
+        simulator.setDropRate(0);
+        assertEquals(1, connection.readRegisters(0, 1).size());
+    }
+
+    public void testLatency() throws IOException {
+        simulator.addUnit(1);
+        simulator.setLatency(50, 20);
+        ModbusMasterConnection connection = connect(1);
+        long start = System.nanoTime();
+        connection.readRegisters(0, 1);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took " + elapsed + " ms", elapsed >= 50 && elapsed < 1000);
+    }
+
+    public void testLoadHarness() throws Exception {
+        simulator.addUnits(1, 100);
+        simulator.setLatency(2, 3);
+        LoadHarness harness = new LoadHarness(InetAddress.getByName("127.0.0.1"), simulator.getPort());
+        LoadHarness.Result result = harness.setUnits(1, 100).setThreads(8).run(100, 500);
+        assertEquals(0, result.getFailures());
+        assertTrue(result.getRequests() > 100);
+        assertEquals(result.getRequests(), result.getLatencies().getCount());
+        // Each request takes 2 to 5 ms, so 8 threads can do at most 4000 per second
+        assertTrue(result.toString(), result.getRequestsPerSecond() < 4000);
+        assertTrue(result.getLatencies().getPercentile(50) >= 2000);
+        assertTrue(result.getLatencies().getPercentile(99) <= result.getLatencies().getMax());
+    }
+}
@@ -2,13 +2,12 @@ package org.flexiblepower.protocol.modbus.tcp;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SocketChannel;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.measure.Measurable;
 import javax.measure.quantity.Quantity;
@@ -19,208 +18,519 @@ import org.flexiblepower.protocol.modbus.tcp.ModbusMessage.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * A {@link ModbusMasterConnection} sends requests to a single {@link Device}. The requests are handled by a
+ * {@link ModbusMultiplexer}, so several threads can have a request waiting for its response at the same time and
+ * requests can be submitted without waiting for the response at all through {@link #submit(ModbusMessage)}.
+ */
 public class ModbusMasterConnection implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(ModbusMasterConnection.class);
 
-    private final Device device;
-    private final AtomicInteger transactionId;
+    /** The number of messages that are kept for reuse */
+    private static final int POOL_SIZE = 32;
 
-    private SocketChannel channel;
+    private final Device device;
+    private final ModbusMultiplexer multiplexer;
+    private final boolean ownsMultiplexer;
+    private final ModbusMultiplexer.Gateway gateway;
+    private final AtomicLong requestsSaved = new AtomicLong();
+    private final BlockingQueue<ModbusMessage> pool = new ArrayBlockingQueue<ModbusMessage>(POOL_SIZE);
 
+    private volatile long timeout;
     private volatile boolean closed;
 
     /**
-     * Creates a new {@link ModbusMasterConnection} to the given device and opens the channel for communication.
+     * Creates a new {@link ModbusMasterConnection} to the given device, with its own {@link ModbusMultiplexer}. The
+     * channel is opened when the first request is sent. Use {@link ModbusMultiplexer#connect(Device)} to share a
+     * single thread between many devices.
      *
      * @param device
      *            The device to which we should open the channel.
      * @throws IOException
-     *             When the connection could not be established (e.g. address could not be reached).
+     *             When the multiplexer could not be started.
      */
     public ModbusMasterConnection(Device device) throws IOException {
+        this(device, new ModbusMultiplexer(), true);
+    }
+
+    ModbusMasterConnection(Device device, ModbusMultiplexer multiplexer, boolean ownsMultiplexer)
+            throws ClosedChannelException {
         this.device = device;
-        transactionId = new AtomicInteger(1);
+        this.multiplexer = multiplexer;
+        this.ownsMultiplexer = ownsMultiplexer;
+        gateway = multiplexer.acquire(device);
+        timeout = multiplexer.getTimeout();
         closed = false;
-        openChannel();
     }
 
-    private synchronized SocketChannel openChannel() throws IOException {
-        if (channel != null && !channel.isConnected()) {
-            close();
-            channel = null;
+    /**
+     * @return The device to which this connection sends its requests.
+     */
+    public Device getDevice() {
+        return device;
+    }
+
+    /**
+     * @param timeout
+     *            The time in milliseconds after which a transaction that is submitted through this connection fails
+     *            when no response has been received.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Submits a request without waiting for the response. The device identifier of the request is set to the one of
+     * the device and the transaction identifier is replaced by one that is unique on the connection.
+     *
+     * @param request
+     *            The request, which may or may not have been finished.
+     * @return The {@link ModbusTransaction} through which the response can be retrieved.
+     */
+    public ModbusTransaction submit(ModbusMessage request) {
+        return submit(request, null);
+    }
+
+    /**
+     * Submits a request without waiting for the response. The device identifier of the request is set to the one of
+     * the device and the transaction identifier is replaced by one that is unique on the connection.
+     *
+     * @param request
+     *            The request, which may or may not have been finished.
+     * @param listener
+     *            The listener that is called when the transaction is done, may be <code>null</code>.
+     * @return The {@link ModbusTransaction} through which the response can be retrieved.
+     */
+    public ModbusTransaction submit(ModbusMessage request, ModbusTransaction.Listener listener) {
+        request.setDeviceId(device.getDeviceId());
+        return submit(request, ModbusMessage.allocate(), listener);
+    }
+
+    private ModbusTransaction submit(ModbusMessage request,
+                                     ModbusMessage response,
+                                     ModbusTransaction.Listener listener) {
+        ModbusTransaction transaction = new ModbusTransaction(gateway, request, response, timeout, listener);
+        if (closed) {
+            transaction.fail(new ClosedChannelException());
+        } else {
+            multiplexer.submit(transaction);
         }
+        return transaction;
+    }
 
-        if (channel == null) {
-            if (closed) {
-                throw new ClosedChannelException();
-            }
+    /**
+     * @return The number of requests that have been saved by reading {@link ReadPlan}s and writing {@link WriteBatch}es
+     *         instead of single parameters.
+     */
+    public long getRequestsSaved() {
+        return requestsSaved.get();
+    }
+
+    /**
+     * Sends a request with two words of data, in a message from the pool.
+     */
+    private ModbusTransaction submit(Function function, int first, int second) {
+        ModbusMessage request = acquire().start(device.getDeviceId(), 0)
+                                         .startData(function)
+                                         .putWord(first)
+                                         .putWord(second);
+        return submit(request, acquire(), null);
+    }
+
+    private ModbusMessage acquire() {
+        ModbusMessage message = pool.poll();
+        return message == null ? ModbusMessage.allocate() : message;
+    }
 
-            channel = SocketChannel.open();
-            channel.connect(new InetSocketAddress(device.getAddress(), device.getPort()));
+    /**
+     * Returns the messages of a transaction to the pool. Only the messages of a completed transaction are reused, as
+     * the request of a transaction that failed may still be in use by the multiplexer.
+     */
+    private void recycle(ModbusTransaction transaction) {
+        if (transaction.isCompleted()) {
+            pool.offer(transaction.getRequest());
+            pool.offer(transaction.getResponseBuffer());
         }
+    }
 
-        return channel;
+    /**
+     * Waits for the response of a transaction.
+     *
+     * @return The data of the response
+     * @throws ModbusException
+     *             When the device responded with an error
+     */
+    private static ByteBuffer data(ModbusTransaction transaction) throws IOException {
+        ModbusMessage response = transaction.await();
+        ByteBuffer data = response.getData();
+        if (response.getFunction().isError()) {
+            throw new ModbusException(response.getFunction() + " code " + data.get());
+        }
+        return data;
     }
 
     @Override
     public synchronized void close() {
-        try {
-            channel.close();
-        } catch (IOException ex) {
-        } finally {
-            channel = null;
+        if (!closed) {
+            closed = true;
+            multiplexer.release(gateway);
+            if (ownsMultiplexer) {
+                multiplexer.close();
+            }
         }
     }
 
-    public synchronized void read(DeviceParameter parameter) throws IOException {
+    public void read(DeviceParameter parameter) throws IOException {
         try {
-            final SocketChannel channel = openChannel();
             parameter.visit(new DeviceParameterVisitor<IOException>() {
                 @Override
                 public <Q extends Quantity> int visit(Register<Q> register) throws IOException {
-                    synchronized (ModbusMasterConnection.this) {
-                        Function function = register.isWritable() ? Function.READ_HOLDING_REGISTER
-                                                                 : Function.READ_INPUT_REGISTER;
-                        ModbusMessage coder = new ModbusMessage(device, transactionId.getAndIncrement());
-                        ByteBuffer buffer = coder.startData(function)
-                                                 .putWord(register.getAddress())
-                                                 .putWord(1)
-                                                 .finish();
-                        channel.write(buffer);
-
-                        ModbusMessage decoder = ModbusMessage.decode(channel);
-                        ByteBuffer data = decoder.getData();
-                        if (decoder.getFunction().isError()) {
-                            throw new ModbusException(decoder.getFunction() + " code " + data.get());
-                        } else {
-                            int bytecount = data.get();
-                            if (bytecount != 2) {
-                                throw new ModbusException("Expected a single value as return");
-                            }
-                            return data.getShort();
+                    Function function = register.isWritable() ? Function.READ_HOLDING_REGISTER
+                                                             : Function.READ_INPUT_REGISTER;
+                    ModbusTransaction transaction = submit(function, register.getAddress(), 1);
+                    try {
+                        ByteBuffer data = data(transaction);
+                        int bytecount = data.get();
+                        if (bytecount != 2) {
+                            throw new ModbusException("Expected a single value as return");
                         }
+                        return data.getShort();
+                    } finally {
+                        recycle(transaction);
                     }
                 }
 
                 @Override
                 public boolean visit(Coil coil) throws IOException {
-                    Function function = Function.READ_COIL;
-                    ModbusMessage coder = new ModbusMessage(device, transactionId.getAndIncrement());
-                    ByteBuffer buffer = coder.startData(function).putWord(coil.getAddress()).putWord(1).finish();
-                    channel.write(buffer);
-
-                    ModbusMessage decoder = ModbusMessage.decode(channel);
-                    if (decoder.getFunction().isError()) {
-                        throw new ModbusException("Error code " + decoder.getData().get());
-                    } else {
-                        ByteBuffer data = decoder.getData();
+                    ModbusTransaction transaction = submit(Function.READ_COIL, coil.getAddress(), 1);
+                    try {
+                        ByteBuffer data = data(transaction);
                         int bytecount = data.get();
                         if (bytecount != 1) {
                             throw new ModbusException("Expected a single value as return");
                         }
                         return data.get() != 0;
+                    } finally {
+                        recycle(transaction);
                     }
                 }
             });
         } catch (ClosedChannelException ex) {
             logger.warn("Reading device parameters while already closed");
-        } catch (IOException ex) {
-            // I/O error while reading, close the socket and try again
-            rethrow(ex);
         }
     }
 
-    public synchronized Map<Integer, Short> readRegisters(int from, int count) throws IOException {
-        SocketChannel channel = openChannel();
+    /**
+     * Reads all the parameters of a {@link ReadPlan}. All blocks are sent at once, so they are pipelined on the
+     * connection, and each response is decoded in a single pass over the parameters of its block.
+     *
+     * @param plan
+     *            The plan that should be executed.
+     * @throws IOException
+     *             When one of the blocks could not be read. The parameters of the other blocks have been read anyway.
+     */
+    public void read(ReadPlan plan) throws IOException {
+        List<ReadPlan.Block> blocks = plan.getBlocks();
+        ModbusTransaction[] transactions = new ModbusTransaction[blocks.size()];
+        for (int ix = 0; ix < transactions.length; ix++) {
+            ReadPlan.Block block = blocks.get(ix);
+            transactions[ix] = submit(block.getFunction(), block.getAddress(), block.getCount());
+        }
 
-        try {
-            ModbusMessage coder = new ModbusMessage(device, transactionId.getAndIncrement());
-            ByteBuffer buffer = coder.startData(Function.READ_HOLDING_REGISTER)
-                                     .putWord(from)
-                                     .putWord(Math.min(125, count))
-                                     .finish();
-            channel.write(buffer);
-
-            ModbusMessage decoder = ModbusMessage.decode(channel);
-            ByteBuffer data = decoder.getData();
-            if (decoder.getFunction().isError()) {
-                throw new ModbusException(decoder.getFunction() + " code " + data.get());
-            } else {
-                int bytecount = data.get() & 0xff;
-                Map<Integer, Short> result = new TreeMap<Integer, Short>();
-                for (int registerId = from, bytes = 0; bytes < bytecount; bytes += 2, registerId++) {
-                    short newValue = data.getShort();
-                    Short oldValue = result.put(registerId, newValue);
-                    if (oldValue != null && oldValue != newValue) {
-                        logger.debug("registerId " + registerId + " oldValue=" + oldValue + " newValue=" + newValue);
-                    }
+        IOException failure = null;
+        for (int ix = 0; ix < transactions.length; ix++) {
+            try {
+                decode(blocks.get(ix), data(transactions[ix]));
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
                 }
-                return result;
+            } finally {
+                recycle(transactions[ix]);
             }
-        } catch (IOException ex) {
-            // I/O error while reading, close the socket and try again
-            return rethrow(ex);
+        }
+        requestsSaved.addAndGet(plan.getRequestsSaved());
+        if (failure != null) {
+            throw failure;
         }
     }
 
-    public synchronized void write(Coil coil, boolean value) throws IOException {
-        SocketChannel channel = openChannel();
+    private static void decode(ReadPlan.Block block, final ByteBuffer data) throws ModbusException {
+        int bytecount = data.get() & 0xff;
+        final int start = data.position();
+        final int base = block.getAddress();
+        int expected = block.getFunction() == Function.READ_COIL ? (block.getCount() + 7) / 8 : block.getCount() * 2;
+        if (bytecount != expected || data.remaining() < expected) {
+            throw new ModbusException("Expected " + expected + " bytes for " + block + ", but got " + bytecount);
+        }
 
-        try {
-            Function function = Function.WRITE_SINGLE_COIL;
-            ModbusMessage coder = new ModbusMessage(device, transactionId.getAndIncrement());
-            ByteBuffer buffer = coder.startData(function)
-                                     .putWord(coil.getAddress())
-                                     .putWord(value ? 0xff00 : 0)
-                                     .finish();
-            channel.write(buffer);
-
-            ModbusMessage decoder = ModbusMessage.decode(channel);
-            if (decoder.getFunction().isError()) {
-                throw new ModbusException("Error code " + decoder.getData().get());
-            } else {
-                coil.setValue(decoder.getData().getShort() != 0);
+        DeviceParameterVisitor<RuntimeException> visitor = new DeviceParameterVisitor<RuntimeException>() {
+            @Override
+            public boolean visit(Coil coil) {
+                int offset = coil.getAddress() - base;
+                return (data.get(start + offset / 8) & (1 << (offset % 8))) != 0;
             }
-        } catch (IOException ex) {
-            // I/O error while reading, close the socket and try again
-            rethrow(ex);
+
+            @Override
+            public <Q extends Quantity> int visit(Register<Q> register) {
+                return data.getShort(start + 2 * (register.getAddress() - base));
+            }
+        };
+        for (DeviceParameter parameter : block.getParameters()) {
+            parameter.visit(visitor);
         }
     }
 
-    public synchronized <Q extends Quantity> void write(Register<Q> register, Measurable<Q> value) throws IOException {
+    /**
+     * Reads a block of holding registers.
+     *
+     * @param from
+     *            The address of the first register.
+     * @param count
+     *            The number of registers, from 1 up to {@link ReadPlanner#MAX_REGISTERS}.
+     * @return A new {@link RegisterBlock} with the values.
+     * @throws IOException
+     *             When the registers could not be read.
+     * @throws IllegalArgumentException
+     *             When the count is not in the range that fits in a single request.
+     */
+    public RegisterBlock readRegisters(int from, int count) throws IOException {
+        checkCount(count);
+        RegisterBlock block = new RegisterBlock(count);
+        readRegisters(from, count, block);
+        return block;
+    }
+
+    /**
+     * Reads a block of holding registers into an existing {@link RegisterBlock}, so polling does not allocate new
+     * objects for the result.
+     *
+     * @param from
+     *            The address of the first register.
+     * @param count
+     *            The number of registers, from 1 up to {@link ReadPlanner#MAX_REGISTERS} and at most the capacity of
+     *            the block.
+     * @param block
+     *            The block that will hold the values.
+     * @throws IOException
+     *             When the registers could not be read.
+     * @throws IllegalArgumentException
+     *             When the count does not fit in a single request or in the block.
+     */
+    public void readRegisters(int from, int count, RegisterBlock block) throws IOException {
+        checkCount(count);
+        if (count > block.getCapacity()) {
+            throw new IllegalArgumentException("The block holds " + block.getCapacity()
+                                               + " registers, but "
+                                               + count
+                                               + " were requested");
+        }
+        ModbusTransaction transaction = submit(Function.READ_HOLDING_REGISTER, from, count);
+        try {
+            ByteBuffer data = data(transaction);
+            int bytecount = data.get() & 0xff;
+            block.load(from, data, bytecount / 2);
+        } finally {
+            recycle(transaction);
+        }
+    }
+
+    private static void checkCount(int count) {
+        if (count < 1 || count > ReadPlanner.MAX_REGISTERS) {
+            throw new IllegalArgumentException("Illegal number of registers [1-" + ReadPlanner.MAX_REGISTERS
+                                               + "], but was "
+                                               + count);
+        }
+    }
+
+    public void write(Coil coil, boolean value) throws IOException {
+        ModbusTransaction transaction = submit(Function.WRITE_SINGLE_COIL, coil.getAddress(), value ? 0xff00 : 0);
+        try {
+            ByteBuffer data = data(transaction);
+            data.getShort();
+            coil.setValue(data.getShort() != 0);
+        } finally {
+            recycle(transaction);
+        }
+    }
+
+    public <Q extends Quantity> void write(Register<Q> register, Measurable<Q> value) throws IOException {
         write(register, (int) value.longValue(register.getUnit()));
     }
 
-    public synchronized <Q extends Quantity> void write(Register<Q> register, int value) throws IOException {
-        SocketChannel channel = openChannel();
+    public <Q extends Quantity> void write(Register<Q> register, int value) throws IOException {
+        ModbusTransaction transaction = submit(Function.WRITE_SINGLE_REGISTER, register.getAddress(), value);
+        try {
+            ByteBuffer data = data(transaction);
+            short address = data.getShort();
+            assert address == register.getAddress();
+            register.setValue(data.getShort());
+        } finally {
+            recycle(transaction);
+        }
+    }
 
+    /**
+     * Writes consecutive registers in a single request, e.g. the two halves of a 32 bits setpoint. The device changes
+     * all the registers at once.
+     *
+     * @param address
+     *            The address of the first register.
+     * @param values
+     *            The raw values, at most {@link WriteBatch#MAX_REGISTERS}.
+     * @throws IOException
+     *             When the registers could not be written.
+     */
+    public void writeRegisters(int address, short... values) throws IOException {
+        checkCount(values.length, WriteBatch.MAX_REGISTERS);
+        ModbusTransaction transaction = submitRegisters(address, values);
         try {
-            Function function = Function.WRITE_SINGLE_REGISTER;
-            ModbusMessage coder = new ModbusMessage(device, transactionId.getAndIncrement());
-            ByteBuffer buffer = coder.startData(function).putWord(register.getAddress()).putWord(value).finish();
-            channel.write(buffer);
-
-            ModbusMessage decoder = ModbusMessage.decode(channel);
-            if (decoder.getFunction().isError()) {
-                throw new ModbusException("Error code " + decoder.getData().get());
-            } else {
-                ByteBuffer data = decoder.getData();
-                short address = data.getShort();
-                assert address == register.getAddress();
-                register.setValue(data.getShort());
-            }
-        } catch (IOException ex) {
-            // I/O error while reading, close the socket and try again
-            rethrow(ex);
+            checkWritten(transaction, address, values.length);
+        } finally {
+            recycle(transaction);
         }
     }
 
-    private <T> T rethrow(IOException ex) throws IOException {
+    /**
+     * Writes consecutive coils in a single request. The device changes all the coils at once.
+     *
+     * @param address
+     *            The address of the first coil.
+     * @param values
+     *            The values, at most {@link WriteBatch#MAX_COILS}.
+     * @throws IOException
+     *             When the coils could not be written.
+     */
+    public void writeCoils(int address, boolean... values) throws IOException {
+        checkCount(values.length, WriteBatch.MAX_COILS);
+        ModbusTransaction transaction = submitCoils(address, values);
         try {
-            channel.close();
-        } catch (IOException ex1) {
+            checkWritten(transaction, address, values.length);
+        } finally {
+            recycle(transaction);
+        }
+    }
+
+    /**
+     * Writes all the values of a {@link WriteBatch}. Values on adjacent addresses are written in a single request and
+     * all requests are sent at once, so they are pipelined on the connection.
+     *
+     * @param batch
+     *            The batch that should be written.
+     * @throws IOException
+     *             When one of the requests failed. The other requests have been written anyway.
+     */
+    public void write(WriteBatch batch) throws IOException {
+        List<WriteBatch.Run> runs = batch.runs();
+        ModbusTransaction[] transactions = new ModbusTransaction[runs.size()];
+        for (int ix = 0; ix < transactions.length; ix++) {
+            transactions[ix] = submit(runs.get(ix));
+        }
+
+        IOException failure = null;
+        for (int ix = 0; ix < transactions.length; ix++) {
+            WriteBatch.Run run = runs.get(ix);
+            try {
+                if (run.values.size() == 1) {
+                    checkWritten(transactions[ix], run.address);
+                } else {
+                    checkWritten(transactions[ix], run.address, run.values.size());
+                }
+                batch.written(run);
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            } finally {
+                recycle(transactions[ix]);
+            }
+        }
+        requestsSaved.addAndGet(batch.size() - runs.size());
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private ModbusTransaction submit(WriteBatch.Run run) {
+        int count = run.values.size();
+        if (run.function == Function.WRITE_MULTIPLE_COILS) {
+            if (count == 1) {
+                return submit(Function.WRITE_SINGLE_COIL, run.address, (Boolean) run.values.get(0) ? 0xff00 : 0);
+            }
+            boolean[] values = new boolean[count];
+            for (int ix = 0; ix < count; ix++) {
+                values[ix] = (Boolean) run.values.get(ix);
+            }
+            return submitCoils(run.address, values);
+        } else {
+            if (count == 1) {
+                return submit(Function.WRITE_SINGLE_REGISTER, run.address, (Short) run.values.get(0));
+            }
+            short[] values = new short[count];
+            for (int ix = 0; ix < count; ix++) {
+                values[ix] = (Short) run.values.get(ix);
+            }
+            return submitRegisters(run.address, values);
+        }
+    }
+
+    private ModbusTransaction submitRegisters(int address, short[] values) {
+        ModbusMessage request = acquire().start(device.getDeviceId(), 0)
+                                         .startData(Function.WRITE_MULTIPLE_REGISTERS)
+                                         .putWord(address)
+                                         .putWord(values.length)
+                                         .putByte(values.length * 2);
+        for (short value : values) {
+            request.putWord(value);
+        }
+        return submit(request, acquire(), null);
+    }
+
+    private ModbusTransaction submitCoils(int address, boolean[] values) {
+        BitVector bits = new BitVector(values.length);
+        for (int ix = 0; ix < values.length; ix++) {
+            bits.setBit(ix, values[ix]);
+        }
+        ModbusMessage request = acquire().start(device.getDeviceId(), 0)
+                                         .startData(Function.WRITE_MULTIPLE_COILS)
+                                         .putWord(address)
+                                         .putWord(values.length)
+                                         .putByte(bits.byteSize())
+                                         .putBits(bits);
+        return submit(request, acquire(), null);
+    }
+
+    private static void checkCount(int count, int max) {
+        if (count < 1 || count > max) {
+            throw new IllegalArgumentException("Can write 1 to " + max + " values at once, but got " + count);
+        }
+    }
+
+    /**
+     * Checks the response to a write of a single value.
+     */
+    private static void checkWritten(ModbusTransaction transaction, int address) throws IOException {
+        int written = data(transaction).getShort() & 0xffff;
+        if (written != address) {
+            throw new ModbusException("Wrote to address " + written + ", but expected " + address);
+        }
+    }
+
+    /**
+     * Checks the response to a write of multiple values.
+     */
+    private static void checkWritten(ModbusTransaction transaction, int address, int count) throws IOException {
+        ByteBuffer data = data(transaction);
+        int writtenAddress = data.getShort() & 0xffff;
+        int writtenCount = data.getShort() & 0xffff;
+        if (writtenAddress != address || writtenCount != count) {
+            throw new ModbusException("Wrote " + writtenCount
+                                      + " values at address "
+                                      + writtenAddress
+                                      + ", but expected "
+                                      + count
+                                      + " at address "
+                                      + address);
         }
-        channel = null;
-        throw ex;
     }
 }
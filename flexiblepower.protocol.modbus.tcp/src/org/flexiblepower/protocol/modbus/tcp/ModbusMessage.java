@@ -25,6 +25,11 @@ public class ModbusMessage {
     private static final int FUNCTION_START = HEADER_LENGTH;
     private static final int DATA_START = HEADER_LENGTH + 1;
 
+    /**
+     * The maximum length of a modbus TCP message: 7 bytes of header and 253 bytes of protocol data.
+     */
+    public static final int MAX_LENGTH = 260;
+
     /**
      * A list of all the functions that are known in the modbus protocol.
      */
@@ -95,8 +100,6 @@ public class ModbusMessage {
         FUNCTIONS = Collections.unmodifiableMap(fs);
     }
 
-    private static final ByteBuffer HEADER_BUFFER = ByteBuffer.allocate(HEADER_LENGTH);
-
     /**
      * Reads a {@link ModbusMessage} from a channel.
      *
@@ -110,35 +113,25 @@ public class ModbusMessage {
      *             when an I/O error occurred while reading from the channel
      */
     public static ModbusMessage decode(ReadableByteChannel readChannel) throws IOException {
-        ByteBuffer buffer = null;
-
-        synchronized (HEADER_BUFFER) {
-            HEADER_BUFFER.order(ByteOrder.BIG_ENDIAN);
-            HEADER_BUFFER.rewind();
-            int read = readChannel.read(HEADER_BUFFER);
-            if (read != HEADER_LENGTH) {
-                throw new ModbusException("Could not read from the input. Is the channel closed?");
-            }
-
-            int dataLength = HEADER_BUFFER.getShort(LENGTH_START);
-            buffer = ByteBuffer.allocate(DEVICEID_START + dataLength);
-            buffer.order(ByteOrder.BIG_ENDIAN);
-            HEADER_BUFFER.flip();
-            buffer.put(HEADER_BUFFER);
-        }
+        return allocate().read(readChannel);
+    }
 
-        readChannel.read(buffer);
-        if (buffer.hasRemaining()) {
-            throw new ModbusException("Not enough bytes read");
-        }
-        return new ModbusMessage(buffer);
+    /**
+     * @return A new, empty {@link ModbusMessage} with a buffer that can hold any message. It can be reused for many
+     *         messages through {@link #start(int, int)} and {@link #read(ReadableByteChannel)}.
+     */
+    public static ModbusMessage allocate() {
+        return new ModbusMessage(ByteBuffer.allocate(MAX_LENGTH));
     }
 
     private final ByteBuffer buffer;
+    private boolean finished;
 
     private ModbusMessage(ByteBuffer buffer) {
         this.buffer = buffer;
-        logger.trace("Decoded " + this);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.limit(DATA_START);
+        finished = true;
     }
 
     /**
@@ -164,11 +157,89 @@ public class ModbusMessage {
      *            The transaction number that is used in the protocol.
      */
     public ModbusMessage(int deviceId, int transactionId) {
-        buffer = ByteBuffer.allocate(1500);
-        buffer.order(ByteOrder.BIG_ENDIAN);
+        this(ByteBuffer.allocate(MAX_LENGTH));
+        start(deviceId, transactionId);
+    }
+
+    /**
+     * Starts a new message in the buffer of this {@link ModbusMessage}, replacing what it held before. You should call
+     * the {@link #startData(Function)} and {@link #putWord(int)} methods and finally {@link #finish()}.
+     *
+     * @param deviceId
+     *            The device identifier that is used in the protocol.
+     * @param transactionId
+     *            The transaction number that is used in the protocol.
+     * @return This {@link ModbusMessage}
+     */
+    public ModbusMessage start(int deviceId, int transactionId) {
+        buffer.clear();
         buffer.putShort((short) transactionId);
         buffer.putInt(0); // Length will be filled in later
         buffer.put((byte) deviceId);
+        finished = false;
+        return this;
+    }
+
+    /**
+     * Reads a complete message from a channel into the buffer of this {@link ModbusMessage}, replacing what it held
+     * before. A blocking channel is read until the message is complete.
+     *
+     * @param readChannel
+     *            the channel that will be used to read the raw bytes from.
+     * @return This {@link ModbusMessage}
+     * @throws ModbusException
+     *             when an error occurred while decoding the message
+     * @throws IOException
+     *             when an I/O error occurred while reading from the channel
+     */
+    public ModbusMessage read(ReadableByteChannel readChannel) throws IOException {
+        buffer.clear();
+        buffer.limit(HEADER_LENGTH);
+        readFully(readChannel, "Could not read from the input. Is the channel closed?");
+
+        int length = getLength();
+        if (length < 2 || DEVICEID_START + length > MAX_LENGTH) {
+            throw new ModbusException("Invalid message length " + length);
+        }
+        buffer.limit(DEVICEID_START + length);
+        readFully(readChannel, "Not enough bytes read");
+        finished = true;
+        if (logger.isTraceEnabled()) {
+            logger.trace("Decoded " + this);
+        }
+        return this;
+    }
+
+    private void readFully(ReadableByteChannel readChannel, String failure) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (readChannel.read(buffer) <= 0) {
+                throw new ModbusException(failure);
+            }
+        }
+    }
+
+    /**
+     * Copies a complete message from the source into the buffer of this {@link ModbusMessage}, replacing what it held
+     * before.
+     *
+     * @param source
+     *            The buffer that holds the message at its position, which is moved to the end of the message.
+     * @param length
+     *            The total length of the message.
+     * @return This {@link ModbusMessage}
+     */
+    ModbusMessage load(ByteBuffer source, int length) {
+        buffer.clear();
+        int limit = source.limit();
+        source.limit(source.position() + length);
+        buffer.put(source);
+        source.limit(limit);
+        buffer.flip();
+        finished = true;
+        if (logger.isTraceEnabled()) {
+            logger.trace("Decoded " + this);
+        }
+        return this;
     }
 
     /**
@@ -199,6 +270,21 @@ public class ModbusMessage {
         return this;
     }
 
+    /**
+     * Puts a single byte in the buffer. Only 8 bits will be written.
+     *
+     * @param value
+     *            The input byte.
+     * @return This {@link ModbusMessage}
+     */
+    public ModbusMessage putByte(int value) {
+        if (buffer.position() < DATA_START) {
+            throw new IllegalStateException("Always call startData before putting in data");
+        }
+        buffer.put((byte) value);
+        return this;
+    }
+
     /**
      * Puts a single word in the buffer. Only 16 bits will be written.
      *
@@ -215,16 +301,25 @@ public class ModbusMessage {
     }
 
     /**
-     * Finishes the message by setting the length part of the header.
+     * Finishes the message by setting the length part of the header. When the message has already been finished, the
+     * same buffer is returned, rewound to the start of the message.
      *
      * @return The {@link ByteBuffer} that can be used for writing the message.
      */
     public ByteBuffer finish() {
+        if (finished) {
+            buffer.limit(getLength() + DEVICEID_START);
+            buffer.position(TRANSACTION_START);
+            return buffer;
+        }
+        finished = true;
         int length = buffer.position() - DEVICEID_START;
         buffer.putShort(LENGTH_START, (short) length);
         buffer.flip();
 
-        logger.trace("Created " + this);
+        if (logger.isTraceEnabled()) {
+            logger.trace("Created " + this);
+        }
         return buffer;
     }
 
@@ -235,6 +330,27 @@ public class ModbusMessage {
         return buffer.getShort(TRANSACTION_START) & 0xffff;
     }
 
+    /**
+     * Replaces the transaction identifier, which is used when the message is sent over a connection that hands out its
+     * own transaction identifiers.
+     *
+     * @param transactionId
+     *            The new transaction identifier.
+     */
+    void setTransactionId(int transactionId) {
+        buffer.putShort(TRANSACTION_START, (short) transactionId);
+    }
+
+    /**
+     * Replaces the device identifier.
+     *
+     * @param deviceId
+     *            The new device identifier.
+     */
+    void setDeviceId(int deviceId) {
+        buffer.put(DEVICEID_START, (byte) deviceId);
+    }
+
     /**
      * @return The length of the message.
      */
@@ -0,0 +1,533 @@
+package org.flexiblepower.protocol.modbus.tcp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link ModbusMultiplexer} handles the communication with many modbus devices on a single thread, using a
+ * {@link Selector}. Devices that are reached through the same address and port (e.g. devices behind one gateway) share
+ * a single TCP connection. On each connection, several requests can be waiting for their response at the same time; the
+ * responses are matched to the requests by their transaction identifier. Each transaction fails on its own when no
+ * response has been received before its deadline.
+ */
+public class ModbusMultiplexer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ModbusMultiplexer.class);
+
+    /**
+     * The default number of requests that may be waiting for a response on a single connection: 8.
+     */
+    public static final int DEFAULT_MAX_INFLIGHT = 8;
+    /**
+     * The default time in milliseconds after which a transaction fails when no response has been received: 5000.
+     */
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    /** The part of the header before the unit identifier, which includes the length */
+    private static final int PREFIX_LENGTH = 6;
+
+    private static final Comparator<ModbusTransaction> BY_DEADLINE = new Comparator<ModbusTransaction>() {
+        @Override
+        public int compare(ModbusTransaction t1, ModbusTransaction t2) {
+            return t1.getDeadline() < t2.getDeadline() ? -1 : (t1.getDeadline() == t2.getDeadline() ? 0 : 1);
+        }
+    };
+
+    private final int maxInflight;
+    private final long timeout;
+    private final Selector selector;
+    private final Thread thread;
+
+    private final Map<InetSocketAddress, Gateway> gateways = new HashMap<InetSocketAddress, Gateway>();
+    private final Queue<ModbusTransaction> submitted = new ConcurrentLinkedQueue<ModbusTransaction>();
+    private final Queue<Gateway> released = new ConcurrentLinkedQueue<Gateway>();
+
+    /** Only used by the selector thread; transactions that failed or have been cancelled stay until their deadline */
+    private final PriorityQueue<ModbusTransaction> deadlines = new PriorityQueue<ModbusTransaction>(64, BY_DEADLINE);
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a new {@link ModbusMultiplexer} with the default number of requests in flight and the default timeout,
+     * and starts its thread.
+     *
+     * @throws IOException
+     *             When the selector could not be opened.
+     */
+    public ModbusMultiplexer() throws IOException {
+        this(DEFAULT_MAX_INFLIGHT, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a new {@link ModbusMultiplexer} and starts its thread.
+     *
+     * @param maxInflight
+     *            The number of requests that may be waiting for a response on a single connection. Use 1 for devices
+     *            that can only handle a single request at a time.
+     * @param timeout
+     *            The default time in milliseconds after which a transaction fails when no response has been received.
+     * @throws IOException
+     *             When the selector could not be opened.
+     */
+    public ModbusMultiplexer(int maxInflight, long timeout) throws IOException {
+        if (maxInflight < 1) {
+            throw new IllegalArgumentException("At least 1 request should be in flight, but was " + maxInflight);
+        }
+        this.maxInflight = maxInflight;
+        this.timeout = timeout;
+        selector = Selector.open();
+        closed = false;
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ModbusMultiplexer.this.run();
+            }
+        }, "Modbus multiplexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The default time in milliseconds after which a transaction fails when no response has been received.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return The number of requests that may be waiting for a response on a single connection.
+     */
+    public int getMaxInflight() {
+        return maxInflight;
+    }
+
+    /**
+     * Creates a new {@link ModbusMasterConnection} to the given device, that is handled by this multiplexer. The TCP
+     * connection is opened when the first request is sent and is shared with the other devices on the same address and
+     * port.
+     *
+     * @param device
+     *            The device to which the connection should be made.
+     * @return The new {@link ModbusMasterConnection}.
+     * @throws ClosedChannelException
+     *             When this multiplexer has already been closed.
+     */
+    public ModbusMasterConnection connect(Device device) throws ClosedChannelException {
+        return new ModbusMasterConnection(device, this, false);
+    }
+
+    Gateway acquire(Device device) throws ClosedChannelException {
+        InetSocketAddress address = new InetSocketAddress(device.getAddress(), device.getPort());
+        synchronized (gateways) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            Gateway gateway = gateways.get(address);
+            if (gateway == null) {
+                gateway = new Gateway(address);
+                gateways.put(address, gateway);
+            }
+            gateway.users++;
+            return gateway;
+        }
+    }
+
+    void release(Gateway gateway) {
+        synchronized (gateways) {
+            if (--gateway.users > 0) {
+                return;
+            }
+            gateways.remove(gateway.address);
+        }
+        released.add(gateway);
+        selector.wakeup();
+    }
+
+    void submit(ModbusTransaction transaction) {
+        submitted.add(transaction);
+        if (closed && submitted.remove(transaction)) {
+            transaction.fail(new ClosedChannelException());
+        } else {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Closes all the connections and stops the thread. Transactions that are still waiting fail.
+     */
+    @Override
+    public void close() {
+        synchronized (gateways) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        selector.wakeup();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(timeout);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select(selectTimeout());
+            } catch (IOException ex) {
+                logger.error("Could not select on the modbus connections, stopping", ex);
+                break;
+            }
+
+            try {
+                process();
+            } catch (RuntimeException ex) {
+                logger.error("Unexpected error in the modbus multiplexer, failing the open transactions", ex);
+                failAll(new ModbusException("Unexpected error in the modbus multiplexer", ex));
+            }
+        }
+
+        closed = true;
+        List<Gateway> remaining;
+        synchronized (gateways) {
+            remaining = new ArrayList<Gateway>(gateways.values());
+            gateways.clear();
+        }
+        remaining.addAll(released);
+        for (Gateway gateway : remaining) {
+            gateway.close();
+        }
+        ModbusTransaction transaction;
+        while ((transaction = submitted.poll()) != null) {
+            transaction.fail(new ClosedChannelException());
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            logger.warn("Could not close the selector", ex);
+        }
+    }
+
+    /**
+     * Handles the submitted transactions, the released gateways and the ready connections, and expires the
+     * transactions that have passed their deadline.
+     */
+    private void process() {
+        ModbusTransaction transaction;
+        while ((transaction = submitted.poll()) != null) {
+            deadlines.add(transaction);
+            transaction.gateway.enqueue(transaction);
+        }
+        Gateway gateway;
+        while ((gateway = released.poll()) != null) {
+            gateway.close();
+        }
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            gateway = (Gateway) key.attachment();
+            if (!key.isValid()) {
+                continue;
+            } else if (key.isConnectable()) {
+                gateway.finishConnect();
+            } else {
+                if (key.isWritable()) {
+                    gateway.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    gateway.read();
+                }
+            }
+        }
+
+        expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Closes the connection of every gateway after an unexpected error, so the transactions that were sent on it fail
+     * instead of waiting for a response that will never be read. The next request opens a new connection.
+     */
+    private void failAll(IOException ex) {
+        List<Gateway> open;
+        synchronized (gateways) {
+            open = new ArrayList<Gateway>(gateways.values());
+        }
+        for (Gateway gateway : open) {
+            gateway.fail(ex);
+        }
+    }
+
+    private long selectTimeout() {
+        ModbusTransaction first = deadlines.peek();
+        if (first == null) {
+            return 0;
+        }
+        return Math.max(1, first.getDeadline() - System.currentTimeMillis());
+    }
+
+    private void expire(long now) {
+        while (!deadlines.isEmpty() && deadlines.peek().getDeadline() <= now) {
+            ModbusTransaction transaction = deadlines.poll();
+            if (!transaction.isCompleted()) {
+                transaction.gateway.expire(transaction);
+            }
+        }
+    }
+
+    /**
+     * The {@link Gateway} is a single TCP connection, that is shared by all devices on the same address and port. Only
+     * the users count is used outside of the selector thread.
+     */
+    final class Gateway {
+        private final InetSocketAddress address;
+        /** Guarded by the gateways map */
+        private int users;
+
+        private final ArrayDeque<ModbusTransaction> pending = new ArrayDeque<ModbusTransaction>();
+        /** The transactions that wait for their response; the window is small, so a linear search is fastest */
+        private final ModbusTransaction[] inflight = new ModbusTransaction[maxInflight];
+        private int inflightCount;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(ModbusMessage.MAX_LENGTH * 4);
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer writing;
+        private int lastTransactionId;
+        private boolean discarded;
+
+        Gateway(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void enqueue(ModbusTransaction transaction) {
+            if (discarded) {
+                transaction.fail(new ClosedChannelException());
+                return;
+            }
+            pending.add(transaction);
+            if (channel == null) {
+                open();
+            } else {
+                flush();
+            }
+        }
+
+        private void open() {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                if (channel.connect(address)) {
+                    key = channel.register(selector, SelectionKey.OP_READ, this);
+                    flush();
+                } else {
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        void finishConnect() {
+            try {
+                channel.finishConnect();
+                logger.debug("Connected to modbus gateway {}", address);
+                key.interestOps(SelectionKey.OP_READ);
+                flush();
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        /**
+         * Sends pending requests for as far as the window of requests in flight allows.
+         */
+        void flush() {
+            if (channel == null || !channel.isConnected()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (writing != null) {
+                        channel.write(writing);
+                        if (writing.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        writing = null;
+                    }
+                    if (inflightCount >= maxInflight) {
+                        break;
+                    }
+                    ModbusTransaction transaction = pending.poll();
+                    if (transaction == null) {
+                        break;
+                    } else if (transaction.isDone()) {
+                        // Cancelled before it has been sent
+                        continue;
+                    }
+                    transaction.transactionId = nextTransactionId();
+                    transaction.getRequest().setTransactionId(transaction.transactionId);
+                    inflight[inflightCount++] = transaction;
+                    writing = transaction.getRequest().finish();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        private int nextTransactionId() {
+            do {
+                lastTransactionId = (lastTransactionId + 1) & 0xffff;
+            } while (findInflight(lastTransactionId) >= 0);
+            return lastTransactionId;
+        }
+
+        private int findInflight(int transactionId) {
+            for (int ix = 0; ix < inflightCount; ix++) {
+                if (inflight[ix].transactionId == transactionId) {
+                    return ix;
+                }
+            }
+            return -1;
+        }
+
+        private ModbusTransaction removeInflight(int index) {
+            ModbusTransaction transaction = inflight[index];
+            inflight[index] = inflight[--inflightCount];
+            inflight[inflightCount] = null;
+            return transaction;
+        }
+
+        void read() {
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    throw new EOFException("Connection closed by " + address);
+                }
+                readBuffer.flip();
+                while (readBuffer.remaining() >= PREFIX_LENGTH) {
+                    int start = readBuffer.position();
+                    int length = readBuffer.getShort(start + PREFIX_LENGTH - 2) & 0xffff;
+                    if (length < 2 || PREFIX_LENGTH + length > ModbusMessage.MAX_LENGTH) {
+                        throw new ModbusException("Invalid frame length " + length + " from " + address);
+                    } else if (readBuffer.remaining() < PREFIX_LENGTH + length) {
+                        break;
+                    }
+                    received(readBuffer.getShort(start) & 0xffff, PREFIX_LENGTH + length);
+                }
+                readBuffer.compact();
+            } catch (IOException ex) {
+                fail(ex);
+                return;
+            }
+            flush();
+        }
+
+        /**
+         * Reads the response at the position of the read buffer into its transaction.
+         */
+        private void received(int transactionId, int length) {
+            int index = findInflight(transactionId);
+            if (index < 0) {
+                // Most likely the response to a transaction that has timed out
+                logger.debug("Discarding response to unknown transaction {} from {}", transactionId, address);
+                readBuffer.position(readBuffer.position() + length);
+                return;
+            }
+
+            ModbusTransaction transaction = removeInflight(index);
+            deadlines.remove(transaction);
+            ModbusMessage response = transaction.getResponseBuffer().load(readBuffer, length);
+            if (response.getDeviceId() != transaction.getRequest().getDeviceId()) {
+                transaction.fail(new ModbusException("Response from device " + response.getDeviceId()
+                                                     + " to a request for device "
+                                                     + transaction.getRequest().getDeviceId()));
+            } else {
+                transaction.complete();
+            }
+        }
+
+        void expire(ModbusTransaction transaction) {
+            if (transaction.transactionId >= 0) {
+                int index = findInflight(transaction.transactionId);
+                if (index >= 0 && inflight[index] == transaction) {
+                    removeInflight(index);
+                }
+            } else {
+                pending.remove(transaction);
+            }
+            transaction.fail(new SocketTimeoutException("No response from " + address + " before the deadline"));
+            flush();
+        }
+
+        /**
+         * Closes the connection after an error, all transactions that are waiting fail. A new connection is opened
+         * for the next request.
+         */
+        void fail(IOException ex) {
+            logger.warn("Connection to modbus gateway {} failed: {}", address, ex.getMessage());
+            abort(ex);
+        }
+
+        void close() {
+            discarded = true;
+            abort(new ClosedChannelException());
+        }
+
+        private void abort(IOException ex) {
+            if (key != null) {
+                key.cancel();
+                key = null;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignore) {
+                }
+                channel = null;
+            }
+            writing = null;
+            readBuffer.clear();
+
+            while (inflightCount > 0) {
+                removeInflight(inflightCount - 1).fail(ex);
+            }
+            ModbusTransaction transaction;
+            while ((transaction = pending.poll()) != null) {
+                transaction.fail(ex);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(address);
+        }
+    }
+}
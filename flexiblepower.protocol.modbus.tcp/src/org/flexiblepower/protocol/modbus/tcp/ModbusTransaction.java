@@ -0,0 +1,230 @@
+package org.flexiblepower.protocol.modbus.tcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ModbusTransaction} is a request that has been submitted to a {@link ModbusMasterConnection}, together with
+ * the response that will be received for it. The response is matched to the request by its transaction identifier, so
+ * many transactions can be waiting for their response on the same connection.
+ */
+public final class ModbusTransaction implements Future<ModbusMessage> {
+    private static final Logger logger = LoggerFactory.getLogger(ModbusTransaction.class);
+
+    /**
+     * The time in milliseconds that {@link #await()} waits after the deadline for the {@link ModbusMultiplexer} to
+     * expire the transaction, before it gives up by itself.
+     */
+    static final long AWAIT_GRACE = 1000;
+
+    /**
+     * A {@link Listener} is called when a {@link ModbusTransaction} is done. It is called on the thread of the
+     * {@link ModbusMultiplexer}, so it should never block.
+     */
+    public interface Listener {
+        /**
+         * @param transaction
+         *            The transaction that is done, either with a response or with a failure.
+         */
+        void done(ModbusTransaction transaction);
+    }
+
+    private final ModbusMessage request;
+    private final ModbusMessage response;
+    private final long deadline;
+    private final Listener listener;
+    final ModbusMultiplexer.Gateway gateway;
+
+    /** The transaction identifier on the connection, or -1 when it has not been sent yet */
+    int transactionId = -1;
+
+    private IOException failure;
+    private boolean cancelled;
+    private boolean done;
+
+    ModbusTransaction(ModbusMultiplexer.Gateway gateway,
+                      ModbusMessage request,
+                      ModbusMessage response,
+                      long timeout,
+                      Listener listener) {
+        this.gateway = gateway;
+        this.request = request;
+        this.response = response;
+        this.listener = listener;
+        deadline = System.currentTimeMillis() + timeout;
+    }
+
+    /**
+     * @return The request that is sent for this transaction.
+     */
+    public ModbusMessage getRequest() {
+        return request;
+    }
+
+    /**
+     * @return The time (in milliseconds since the epoch) at which the transaction fails when no response has been
+     *         received.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return The message into which the response is read, it only holds the response when the transaction has
+     *         completed.
+     */
+    ModbusMessage getResponseBuffer() {
+        return response;
+    }
+
+    boolean complete() {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            notifyAll();
+        }
+        notifyListener();
+        return true;
+    }
+
+    boolean fail(IOException failure) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.failure = failure;
+            done = true;
+            notifyAll();
+        }
+        notifyListener();
+        return true;
+    }
+
+    private void notifyListener() {
+        if (listener != null) {
+            try {
+                listener.done(this);
+            } catch (RuntimeException ex) {
+                logger.error("Error in the listener of transaction " + transactionId, ex);
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            done = true;
+            notifyAll();
+        }
+        notifyListener();
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> when the response has been received.
+     */
+    public synchronized boolean isCompleted() {
+        return done && !cancelled && failure == null;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits for the response of this transaction. The transaction fails when it is still not done a while after its
+     * deadline, so the caller does not wait forever when the {@link ModbusMultiplexer} is not able to expire it.
+     *
+     * @return The response, which may be an error response of the device.
+     * @throws IOException
+     *             When the transaction timed out, the connection failed or the waiting thread has been interrupted.
+     */
+    public ModbusMessage await() throws IOException {
+        synchronized (this) {
+            long left;
+            while (!done && (left = deadline + AWAIT_GRACE - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for transaction " + transactionId);
+                }
+            }
+        }
+        // Does nothing when the transaction is done in the meantime
+        fail(new SocketTimeoutException("Transaction " + transactionId + " has not been done before its deadline"));
+        synchronized (this) {
+            if (cancelled) {
+                throw new InterruptedIOException("Transaction " + transactionId + " has been cancelled");
+            } else if (failure != null) {
+                throw failure;
+            }
+            return response;
+        }
+    }
+
+    /**
+     * @return The failure of this transaction, or <code>null</code> when it has not failed (yet).
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    @Override
+    public synchronized ModbusMessage get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized ModbusMessage get(long timeout, TimeUnit unit) throws InterruptedException,
+                                                                      ExecutionException,
+                                                                      TimeoutException {
+        long end = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!done) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            wait(left);
+        }
+        return result();
+    }
+
+    private ModbusMessage result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        } else if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return response;
+    }
+
+    @Override
+    public String toString() {
+        return "Transaction " + transactionId + " to " + gateway;
+    }
+}
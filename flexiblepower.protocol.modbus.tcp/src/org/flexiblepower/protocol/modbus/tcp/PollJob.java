@@ -0,0 +1,199 @@
+package org.flexiblepower.protocol.modbus.tcp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link PollJob} periodically reads a set of parameters of a device through a {@link PollScheduler}. Each period
+ * the job is released and it should be read before its deadline, relative to the release. The values are stored in the
+ * {@link DeviceParameter}s, after which the {@link Listener} is called.
+ */
+public final class PollJob {
+    /**
+     * Is called by a worker of the {@link PollScheduler} after each poll of the job.
+     */
+    public interface Listener {
+        /**
+         * The parameters of the job have been read.
+         *
+         * @param job
+         *            The job that has been polled.
+         */
+        void polled(PollJob job);
+
+        /**
+         * The parameters of the job could not be read. Unexpected exceptions of the read are wrapped in an
+         * {@link IOException}. The job is polled again in the next period.
+         *
+         * @param job
+         *            The job that failed.
+         * @param cause
+         *            The reason why it failed.
+         */
+        void failed(PollJob job, IOException cause);
+    }
+
+    private final PollScheduler scheduler;
+    private final Device device;
+    private final List<DeviceParameter> parameters;
+    private final ReadPlan plan;
+    private final long period;
+    private final long deadline;
+    private final Listener listener;
+
+    // Guarded by the lock of the scheduler
+    long release;
+    boolean running;
+    boolean cancelled;
+    private long polls;
+    private long failures;
+    private long missedDeadlines;
+
+    PollJob(PollScheduler scheduler,
+            Device device,
+            List<DeviceParameter> parameters,
+            ReadPlan plan,
+            long period,
+            long deadline,
+            Listener listener,
+            long release) {
+        this.scheduler = scheduler;
+        this.device = device;
+        this.parameters = Collections.unmodifiableList(new ArrayList<DeviceParameter>(parameters));
+        this.plan = plan;
+        this.period = TimeUnit.MILLISECONDS.toNanos(period);
+        this.deadline = TimeUnit.MILLISECONDS.toNanos(deadline);
+        this.listener = listener;
+        this.release = release;
+    }
+
+    /**
+     * @return The device that is polled.
+     */
+    public Device getDevice() {
+        return device;
+    }
+
+    /**
+     * @return The parameters that are read each period.
+     */
+    public List<DeviceParameter> getParameters() {
+        return parameters;
+    }
+
+    ReadPlan getPlan() {
+        return plan;
+    }
+
+    Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return The period in milliseconds.
+     */
+    public long getPeriod() {
+        return TimeUnit.NANOSECONDS.toMillis(period);
+    }
+
+    /**
+     * @return The deadline in milliseconds after each release.
+     */
+    public long getDeadline() {
+        return TimeUnit.NANOSECONDS.toMillis(deadline);
+    }
+
+    long getAbsoluteDeadline() {
+        return release + deadline;
+    }
+
+    /**
+     * @return The number of successful polls.
+     */
+    public long getPolls() {
+        synchronized (scheduler.lock) {
+            return polls;
+        }
+    }
+
+    /**
+     * @return The number of failed polls.
+     */
+    public long getFailures() {
+        synchronized (scheduler.lock) {
+            return failures;
+        }
+    }
+
+    /**
+     * @return The number of periods in which the job has not been read before its deadline, including periods that
+     *         have been skipped because the job was too far behind.
+     */
+    public long getMissedDeadlines() {
+        synchronized (scheduler.lock) {
+            return missedDeadlines;
+        }
+    }
+
+    /**
+     * Stops polling this job. A poll that is running finishes, but the job is not released again.
+     */
+    public void cancel() {
+        scheduler.cancel(this);
+    }
+
+    /**
+     * @return <code>true</code> when any of the blocks of this job reads a coil or register that is also read by the
+     *         other job.
+     */
+    boolean overlaps(PollJob other) {
+        if (!device.equals(other.device)) {
+            return false;
+        }
+        for (ReadPlan.Block block : plan.getBlocks()) {
+            for (ReadPlan.Block otherBlock : other.plan.getBlocks()) {
+                if (block.getFunction() == otherBlock.getFunction()
+                    && block.getAddress() < otherBlock.getAddress() + otherBlock.getCount()
+                    && otherBlock.getAddress() < block.getAddress() + block.getCount()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the outcome of a poll and moves the release to the next period. Periods of which the deadline has
+     * already passed are skipped, so a job that fell behind does not try to catch up.
+     *
+     * @return The number of deadlines that have been missed.
+     */
+    int completed(long now, boolean succeeded) {
+        if (succeeded) {
+            polls++;
+        } else {
+            failures++;
+        }
+        int missed = now > getAbsoluteDeadline() ? 1 : 0;
+        release += period;
+        while (release + deadline < now) {
+            release += period;
+            missed++;
+        }
+        missedDeadlines += missed;
+        return missed;
+    }
+
+    @Override
+    public String toString() {
+        return "PollJob of " + parameters.size()
+               + " parameters of device "
+               + device.getDeviceId()
+               + " every "
+               + getPeriod()
+               + " ms";
+    }
+}
@@ -0,0 +1,415 @@
+package org.flexiblepower.protocol.modbus.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link PollScheduler} polls all the devices behind a single gateway, so drivers do not each poll on their own
+ * schedule and compete for the connection. Each {@link PollJob} is released every period and should be read before
+ * its deadline. Released jobs are read earliest deadline first by a fixed number of workers, so when the gateway is
+ * saturated the jobs with the longest deadlines are the first to be late, instead of random ones. Jobs that are
+ * already late wait for the jobs that can still make their deadline.
+ *
+ * When a job is read, the other released jobs of the same device that read overlapping coils or registers are read
+ * in the same {@link ReadPlan}. With a merge window, jobs that will be released within that window are read early as
+ * well, which keeps their phase.
+ *
+ * The scheduler keeps track of the number of deadlines that have been missed and of the fraction of the time the
+ * workers have been busy. A utilization close to 1 means the gateway can not handle more jobs.
+ */
+public class PollScheduler implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(PollScheduler.class);
+
+    final Object lock = new Object();
+
+    private final ModbusMultiplexer multiplexer;
+    private final ReadPlanner planner;
+    private final Thread[] workers;
+    private final List<PollJob> jobs = new ArrayList<PollJob>();
+    private final Map<Device, ModbusMasterConnection> connections = new HashMap<Device, ModbusMasterConnection>();
+
+    // Guarded by the lock
+    private InetSocketAddress gateway;
+    private long mergeWindow;
+    private boolean closed;
+    private long polls;
+    private long merged;
+    private long missedDeadlines;
+    private long busy;
+    private long measuredSince;
+
+    /**
+     * Creates a scheduler with a single worker, which reads the blocks of a job pipelined.
+     *
+     * @param multiplexer
+     *            The multiplexer through which the gateway is reached. It is not closed by the scheduler.
+     */
+    public PollScheduler(ModbusMultiplexer multiplexer) {
+        this(multiplexer, new ReadPlanner(), 1);
+    }
+
+    /**
+     * @param multiplexer
+     *            The multiplexer through which the gateway is reached. It is not closed by the scheduler.
+     * @param planner
+     *            The planner that turns the parameters of the jobs into block reads.
+     * @param workers
+     *            The number of jobs that may be read at the same time.
+     */
+    public PollScheduler(ModbusMultiplexer multiplexer, ReadPlanner planner, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least 1 worker is needed, but got " + workers);
+        }
+        this.multiplexer = multiplexer;
+        this.planner = planner;
+        measuredSince = System.nanoTime();
+
+        this.workers = new Thread[workers];
+        for (int ix = 0; ix < workers; ix++) {
+            this.workers[ix] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "Modbus poll scheduler " + ix);
+            this.workers[ix].setDaemon(true);
+            this.workers[ix].start();
+        }
+    }
+
+    /**
+     * @param mergeWindow
+     *            The time in milliseconds before their release in which jobs may be read together with an overlapping
+     *            job, 0 to only merge jobs that have been released.
+     */
+    public void setMergeWindow(long mergeWindow) {
+        synchronized (lock) {
+            this.mergeWindow = TimeUnit.MILLISECONDS.toNanos(mergeWindow);
+        }
+    }
+
+    /**
+     * Schedules a job that reads all the parameters of a device, with a deadline equal to its period.
+     *
+     * @param device
+     *            The device that should be polled.
+     * @param period
+     *            The period in milliseconds.
+     * @param listener
+     *            The listener that is called after each poll.
+     * @return The new {@link PollJob}, which is released immediately.
+     */
+    public PollJob schedule(Device device, long period, PollJob.Listener listener) {
+        List<DeviceParameter> parameters = new ArrayList<DeviceParameter>();
+        for (DeviceParameter coil : device.coils()) {
+            parameters.add(coil);
+        }
+        for (DeviceParameter register : device.registers()) {
+            parameters.add(register);
+        }
+        return schedule(device, parameters, period, period, listener);
+    }
+
+    /**
+     * Schedules a job that reads some parameters of a device.
+     *
+     * @param device
+     *            The device that should be polled. It should be reached through the same gateway as the other jobs.
+     * @param parameters
+     *            The parameters that should be read.
+     * @param period
+     *            The period in milliseconds.
+     * @param deadline
+     *            The time in milliseconds after each release before which the parameters should have been read, at
+     *            most the period.
+     * @param listener
+     *            The listener that is called after each poll.
+     * @return The new {@link PollJob}, which is released immediately.
+     */
+    public PollJob schedule(Device device,
+                            Collection<? extends DeviceParameter> parameters,
+                            long period,
+                            long deadline,
+                            PollJob.Listener listener) {
+        if (period <= 0 || deadline <= 0 || deadline > period) {
+            throw new IllegalArgumentException("Expected 0 < deadline <= period, but got deadline " + deadline
+                                               + " and period "
+                                               + period);
+        } else if (parameters.isEmpty()) {
+            throw new IllegalArgumentException("A job should read at least one parameter");
+        }
+        InetSocketAddress address = new InetSocketAddress(device.getAddress(), device.getPort());
+        ReadPlan plan = planner.plan(parameters);
+
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("The scheduler has been closed");
+            } else if (gateway == null) {
+                gateway = address;
+            } else if (!gateway.equals(address)) {
+                throw new IllegalArgumentException("Device " + device.getDeviceId()
+                                                   + " is reached through "
+                                                   + address
+                                                   + ", but this scheduler polls "
+                                                   + gateway);
+            }
+            PollJob job = new PollJob(this,
+                                      device,
+                                      new ArrayList<DeviceParameter>(parameters),
+                                      plan,
+                                      period,
+                                      deadline,
+                                      listener,
+                                      System.nanoTime());
+            jobs.add(job);
+            lock.notifyAll();
+            return job;
+        }
+    }
+
+    void cancel(PollJob job) {
+        synchronized (lock) {
+            job.cancelled = true;
+            jobs.remove(job);
+        }
+    }
+
+    /**
+     * @return The jobs that are scheduled.
+     */
+    public List<PollJob> getJobs() {
+        synchronized (lock) {
+            return new ArrayList<PollJob>(jobs);
+        }
+    }
+
+    /**
+     * @return The number of polls, successful or not, since the start or the last {@link #resetMetrics()}.
+     */
+    public long getPolls() {
+        synchronized (lock) {
+            return polls;
+        }
+    }
+
+    /**
+     * @return The number of polls that have been read together with an overlapping job, instead of on their own.
+     */
+    public long getMerged() {
+        synchronized (lock) {
+            return merged;
+        }
+    }
+
+    /**
+     * @return The number of deadlines that have been missed by all jobs.
+     */
+    public long getMissedDeadlines() {
+        synchronized (lock) {
+            return missedDeadlines;
+        }
+    }
+
+    /**
+     * @return The fraction of the time, from 0 to 1, that the workers have been reading.
+     */
+    public double getUtilization() {
+        synchronized (lock) {
+            long elapsed = System.nanoTime() - measuredSince;
+            return elapsed <= 0 ? 0 : Math.min(1, (double) busy / elapsed / workers.length);
+        }
+    }
+
+    /**
+     * Resets the number of polls, merged polls, missed deadlines and the utilization of the scheduler. The metrics of
+     * the jobs themselves are not reset.
+     */
+    public void resetMetrics() {
+        synchronized (lock) {
+            polls = 0;
+            merged = 0;
+            missedDeadlines = 0;
+            busy = 0;
+            measuredSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * Stops the workers and closes the connections to the devices. Polls that are running finish first.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (PollJob job : jobs) {
+                job.cancelled = true;
+            }
+            jobs.clear();
+            lock.notifyAll();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        synchronized (connections) {
+            for (ModbusMasterConnection connection : connections.values()) {
+                connection.close();
+            }
+            connections.clear();
+        }
+    }
+
+    private void work() {
+        try {
+            List<PollJob> batch;
+            while ((batch = next()) != null) {
+                execute(batch);
+            }
+        } catch (InterruptedException ex) {
+            logger.debug("Poll scheduler worker interrupted");
+        }
+    }
+
+    /**
+     * Waits for the released job with the earliest deadline, and takes it together with the jobs it can be merged
+     * with.
+     *
+     * @return The jobs that should be read, or <code>null</code> when the scheduler has been closed.
+     */
+    private List<PollJob> next() throws InterruptedException {
+        synchronized (lock) {
+            while (!closed) {
+                long now = System.nanoTime();
+                PollJob first = null;
+                long nextRelease = Long.MAX_VALUE;
+                for (PollJob job : jobs) {
+                    if (job.running) {
+                        continue;
+                    } else if (job.release - now <= 0) {
+                        if (first == null || before(job, first, now)) {
+                            first = job;
+                        }
+                    } else if (job.release - now < nextRelease) {
+                        nextRelease = job.release - now;
+                    }
+                }
+
+                if (first != null) {
+                    List<PollJob> batch = new ArrayList<PollJob>();
+                    batch.add(first);
+                    first.running = true;
+                    for (PollJob job : jobs) {
+                        if (!job.running && job.release - now <= mergeWindow && job.overlaps(first)) {
+                            batch.add(job);
+                            job.running = true;
+                        }
+                    }
+                    return batch;
+                } else if (nextRelease == Long.MAX_VALUE) {
+                    lock.wait();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(lock, nextRelease);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Orders the released jobs earliest deadline first, except that jobs that have already missed their deadline come
+     * after the jobs that can still make it. Otherwise one late job would make all the jobs after it late as well.
+     */
+    private static boolean before(PollJob job, PollJob other, long now) {
+        boolean late = job.getAbsoluteDeadline() - now < 0;
+        boolean otherLate = other.getAbsoluteDeadline() - now < 0;
+        if (late != otherLate) {
+            return otherLate;
+        }
+        return job.getAbsoluteDeadline() - other.getAbsoluteDeadline() < 0;
+    }
+
+    /**
+     * Reads the jobs of a batch and calls their listeners. Whatever happens, the jobs are released again, so a
+     * {@link RuntimeException} from a read counts as a failed poll and does not stop the jobs or the worker.
+     */
+    private void execute(List<PollJob> batch) {
+        PollJob first = batch.get(0);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        IOException failure = null;
+        try {
+            connection(first.getDevice()).read(plan(batch));
+            succeeded = true;
+        } catch (IOException ex) {
+            failure = ex;
+        } catch (RuntimeException ex) {
+            logger.error("Poll of " + first + " failed: " + ex.getMessage(), ex);
+            failure = new IOException("Poll failed: " + ex.getMessage(), ex);
+        } finally {
+            long end = System.nanoTime();
+            synchronized (lock) {
+                busy += end - start;
+                polls += batch.size();
+                merged += batch.size() - 1;
+                for (PollJob job : batch) {
+                    job.running = false;
+                    missedDeadlines += job.completed(end, succeeded);
+                }
+                lock.notifyAll();
+            }
+        }
+
+        for (PollJob job : batch) {
+            try {
+                if (succeeded) {
+                    job.getListener().polled(job);
+                } else {
+                    job.getListener().failed(job, failure);
+                }
+            } catch (RuntimeException ex) {
+                logger.error("Listener of " + job + " failed: " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private ReadPlan plan(List<PollJob> batch) {
+        if (batch.size() == 1) {
+            return batch.get(0).getPlan();
+        }
+        Set<DeviceParameter> parameters = new LinkedHashSet<DeviceParameter>();
+        for (PollJob job : batch) {
+            parameters.addAll(job.getParameters());
+        }
+        return planner.plan(parameters);
+    }
+
+    private ModbusMasterConnection connection(Device device) throws IOException {
+        synchronized (connections) {
+            ModbusMasterConnection connection = connections.get(device);
+            if (connection == null) {
+                connection = multiplexer.connect(device);
+                connections.put(device, connection);
+            }
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.flexiblepower.protocol.modbus.tcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.flexiblepower.protocol.modbus.tcp.ModbusMessage.Function;
+
+/**
+ * A {@link ReadPlan} is the result of the {@link ReadPlanner}: the set of block reads that reads all the
+ * {@link DeviceParameter}s that have been planned. A plan can be executed many times through
+ * {@link ModbusMasterConnection#read(ReadPlan)}.
+ */
+public final class ReadPlan {
+    /**
+     * A single read request for a contiguous block of coils or registers.
+     */
+    public static final class Block {
+        private final Function function;
+        private final int address;
+        private final int count;
+        private final List<DeviceParameter> parameters;
+
+        Block(Function function, int address, int count, List<DeviceParameter> parameters) {
+            this.function = function;
+            this.address = address;
+            this.count = count;
+            this.parameters = Collections.unmodifiableList(new ArrayList<DeviceParameter>(parameters));
+        }
+
+        /**
+         * @return The read function that is used for this block.
+         */
+        public Function getFunction() {
+            return function;
+        }
+
+        /**
+         * @return The address of the first coil or register in the block.
+         */
+        public int getAddress() {
+            return address;
+        }
+
+        /**
+         * @return The number of coils or registers in the block, including the gaps between the parameters.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return The parameters that are read by this block, ordered by address.
+         */
+        public List<DeviceParameter> getParameters() {
+            return parameters;
+        }
+
+        @Override
+        public String toString() {
+            return function + " " + address + "-" + (address + count - 1) + " (" + parameters.size() + " parameters)";
+        }
+    }
+
+    private final List<Block> blocks;
+    private final int parameterCount;
+
+    ReadPlan(List<Block> blocks) {
+        this.blocks = Collections.unmodifiableList(blocks);
+        int parameterCount = 0;
+        for (Block block : blocks) {
+            parameterCount += block.parameters.size();
+        }
+        this.parameterCount = parameterCount;
+    }
+
+    /**
+     * @return The block reads, one request each.
+     */
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return The number of requests that are sent when the plan is executed.
+     */
+    public int getRequests() {
+        return blocks.size();
+    }
+
+    /**
+     * @return The number of parameters that are read by this plan.
+     */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    /**
+     * @return The number of requests this plan saves compared to reading every parameter on its own.
+     */
+    public int getRequestsSaved() {
+        return parameterCount - blocks.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ReadPlan of " + parameterCount + " parameters in " + blocks.size() + " requests " + blocks;
+    }
+}
@@ -0,0 +1,125 @@
+package org.flexiblepower.protocol.modbus.tcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.flexiblepower.protocol.modbus.tcp.DeviceParameter.Coil;
+import org.flexiblepower.protocol.modbus.tcp.DeviceParameter.Register;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMessage.Function;
+
+/**
+ * The {@link ReadPlanner} groups {@link DeviceParameter}s into as few block reads as possible. Parameters are read
+ * with the same function as {@link ModbusMasterConnection#read(DeviceParameter)} uses: coils with
+ * {@link Function#READ_COIL}, writable registers with {@link Function#READ_HOLDING_REGISTER} and the other registers
+ * with {@link Function#READ_INPUT_REGISTER}. Within each function, parameters are added to a block as long as the gap
+ * to the previous parameter is within the gap tolerance and the block stays within the protocol limit.
+ */
+public final class ReadPlanner {
+    /**
+     * The maximum number of registers that can be read in a single request: 125.
+     */
+    public static final int MAX_REGISTERS = 125;
+    /**
+     * The maximum number of coils that can be read in a single request: 2000.
+     */
+    public static final int MAX_COILS = 2000;
+
+    private final int maxGap;
+    private final int maxRegisters;
+
+    /**
+     * Creates a {@link ReadPlanner} that only merges parameters on adjacent addresses.
+     */
+    public ReadPlanner() {
+        this(0, MAX_REGISTERS);
+    }
+
+    /**
+     * @param maxGap
+     *            The number of unused addresses that may be read between two parameters to save a request. Use 0 for
+     *            devices that give an error when an unmapped address is read.
+     * @param maxRegisters
+     *            The maximum number of registers that are read in a single request, at most {@link #MAX_REGISTERS}.
+     */
+    public ReadPlanner(int maxGap, int maxRegisters) {
+        if (maxGap < 0) {
+            throw new IllegalArgumentException("The gap tolerance can not be negative, but was " + maxGap);
+        } else if (maxRegisters < 1 || maxRegisters > MAX_REGISTERS) {
+            throw new IllegalArgumentException("Illegal number of registers [1-125], but was " + maxRegisters);
+        }
+        this.maxGap = maxGap;
+        this.maxRegisters = maxRegisters;
+    }
+
+    /**
+     * @param device
+     *            The device of which all coils and registers should be read.
+     * @return The plan that reads all coils and registers of the device.
+     */
+    public ReadPlan plan(Device device) {
+        List<DeviceParameter> parameters = new ArrayList<DeviceParameter>();
+        for (Coil coil : device.coils()) {
+            parameters.add(coil);
+        }
+        for (Register<?> register : device.registers()) {
+            parameters.add(register);
+        }
+        return plan(parameters);
+    }
+
+    /**
+     * @param parameters
+     *            The parameters that should be read.
+     * @return The plan with the fewest requests that reads all the parameters.
+     */
+    public ReadPlan plan(Iterable<? extends DeviceParameter> parameters) {
+        List<DeviceParameter> coils = new ArrayList<DeviceParameter>();
+        List<DeviceParameter> holdingRegisters = new ArrayList<DeviceParameter>();
+        List<DeviceParameter> inputRegisters = new ArrayList<DeviceParameter>();
+        for (DeviceParameter parameter : parameters) {
+            if (parameter instanceof Coil) {
+                coils.add(parameter);
+            } else if (parameter.isWritable()) {
+                holdingRegisters.add(parameter);
+            } else {
+                inputRegisters.add(parameter);
+            }
+        }
+
+        List<ReadPlan.Block> blocks = new ArrayList<ReadPlan.Block>();
+        addBlocks(blocks, Function.READ_COIL, coils, MAX_COILS);
+        addBlocks(blocks, Function.READ_HOLDING_REGISTER, holdingRegisters, maxRegisters);
+        addBlocks(blocks, Function.READ_INPUT_REGISTER, inputRegisters, maxRegisters);
+        return new ReadPlan(blocks);
+    }
+
+    /**
+     * Starting a new block only when the next parameter does not fit gives the fewest blocks, as the parameters are
+     * handled in order of their address.
+     */
+    private void addBlocks(List<ReadPlan.Block> blocks,
+                           Function function,
+                           List<DeviceParameter> parameters,
+                           int maxCount) {
+        if (parameters.isEmpty()) {
+            return;
+        }
+        Collections.sort(parameters);
+
+        List<DeviceParameter> current = new ArrayList<DeviceParameter>();
+        int start = parameters.get(0).getAddress();
+        int end = start;
+        for (DeviceParameter parameter : parameters) {
+            int address = parameter.getAddress();
+            if (address - end - 1 > maxGap || address - start + 1 > maxCount) {
+                blocks.add(new ReadPlan.Block(function, start, end - start + 1, current));
+                current.clear();
+                start = address;
+            }
+            current.add(parameter);
+            end = address;
+        }
+        blocks.add(new ReadPlan.Block(function, start, end - start + 1, current));
+    }
+}
@@ -0,0 +1,100 @@
+package org.flexiblepower.protocol.modbus.tcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link RegisterBlock} holds the raw values of a contiguous block of registers, as read by
+ * {@link ModbusMasterConnection#readRegisters(int, int, RegisterBlock)}. A block can be reused for many reads, so
+ * polling does not have to allocate new objects.
+ */
+public final class RegisterBlock {
+    private final short[] values;
+    private int address;
+    private int count;
+
+    /**
+     * Creates a {@link RegisterBlock} that can hold the largest block that can be read in a single request.
+     */
+    public RegisterBlock() {
+        this(ReadPlanner.MAX_REGISTERS);
+    }
+
+    /**
+     * @param capacity
+     *            The maximum number of registers that this block can hold.
+     */
+    public RegisterBlock(int capacity) {
+        values = new short[capacity];
+    }
+
+    void load(int address, ByteBuffer data, int count) throws ModbusException {
+        if (count > values.length) {
+            throw new ModbusException("Received " + count + " registers, but the block can hold " + values.length);
+        }
+        this.address = address;
+        this.count = count;
+        for (int ix = 0; ix < count; ix++) {
+            values[ix] = data.getShort();
+        }
+    }
+
+    /**
+     * @return The maximum number of registers that this block can hold.
+     */
+    public int getCapacity() {
+        return values.length;
+    }
+
+    /**
+     * @return The address of the first register in the block.
+     */
+    public int getAddress() {
+        return address;
+    }
+
+    /**
+     * @return The number of registers in the block.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param address
+     *            The modbus address of a register.
+     * @return <code>true</code> when this block holds the value of that register.
+     */
+    public boolean contains(int address) {
+        return address >= this.address && address < this.address + count;
+    }
+
+    /**
+     * @param address
+     *            The modbus address of the register.
+     * @return The raw value of the register.
+     * @throws IndexOutOfBoundsException
+     *             When the register is not in this block.
+     */
+    public short get(int address) {
+        if (!contains(address)) {
+            throw new IndexOutOfBoundsException("Register " + address + " is not in block " + this);
+        }
+        return values[address - this.address];
+    }
+
+    /**
+     * @param address
+     *            The modbus address of the register.
+     * @return The value of the register, as an unsigned number.
+     * @throws IndexOutOfBoundsException
+     *             When the register is not in this block.
+     */
+    public int getUnsigned(int address) {
+        return get(address) & 0xffff;
+    }
+
+    @Override
+    public String toString() {
+        return address + "-" + (address + count - 1);
+    }
+}
@@ -0,0 +1,271 @@
+package org.flexiblepower.protocol.modbus.tcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Quantity;
+
+import org.flexiblepower.protocol.modbus.tcp.DeviceParameter.Coil;
+import org.flexiblepower.protocol.modbus.tcp.DeviceParameter.Register;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMessage.Function;
+
+/**
+ * A {@link WriteBatch} collects writes of coils and registers, so they can be sent together through
+ * {@link ModbusMasterConnection#write(WriteBatch)}. Writes to adjacent addresses are merged into a single write
+ * multiple request, which the device applies at once. When the same address is written twice, the last value is sent.
+ * The batch is not changed by sending it, so the same batch can be sent again.
+ */
+public final class WriteBatch {
+    /**
+     * The maximum number of registers that can be written in a single request: 123.
+     */
+    public static final int MAX_REGISTERS = 123;
+    /**
+     * The maximum number of coils that can be written in a single request: 1968.
+     */
+    public static final int MAX_COILS = 1968;
+
+    /**
+     * A single request that writes a contiguous range of coils or registers.
+     */
+    static final class Run {
+        final Function function;
+        final int address;
+        final List<Object> values = new ArrayList<Object>();
+
+        Run(Function function, int address) {
+            this.function = function;
+            this.address = address;
+        }
+
+        @Override
+        public String toString() {
+            return function + " " + address + "-" + (address + values.size() - 1);
+        }
+    }
+
+    private final SortedMap<Integer, Boolean> coils = new TreeMap<Integer, Boolean>();
+    private final SortedMap<Integer, Short> registers = new TreeMap<Integer, Short>();
+    private final Map<Integer, Coil> coilParameters = new HashMap<Integer, Coil>();
+    private final Map<Integer, Register<?>> registerParameters = new HashMap<Integer, Register<?>>();
+    /** The first address and the end address (exclusive) of values that should be written in the same request */
+    private final SortedMap<Integer, Integer> coilGroups = new TreeMap<Integer, Integer>();
+    private final SortedMap<Integer, Integer> registerGroups = new TreeMap<Integer, Integer>();
+
+    /**
+     * @param address
+     *            The modbus address of the coil.
+     * @param value
+     *            The new value of the coil.
+     * @return This {@link WriteBatch}
+     */
+    public WriteBatch setCoil(int address, boolean value) {
+        coils.put(address, value);
+        return this;
+    }
+
+    /**
+     * Adds writes of consecutive coils. These will always be written in a single request, as long as they fit.
+     *
+     * @param address
+     *            The modbus address of the first coil.
+     * @param values
+     *            The new values of the coils.
+     * @return This {@link WriteBatch}
+     */
+    public WriteBatch setCoils(int address, boolean... values) {
+        for (int ix = 0; ix < values.length; ix++) {
+            coils.put(address + ix, values[ix]);
+        }
+        addGroup(coilGroups, address, address + values.length);
+        return this;
+    }
+
+    /**
+     * Adds a write of a coil. The value of the {@link Coil} is updated when the batch has been written.
+     *
+     * @param coil
+     *            The coil that should be written.
+     * @param value
+     *            The new value of the coil.
+     * @return This {@link WriteBatch}
+     */
+    public WriteBatch set(Coil coil, boolean value) {
+        coilParameters.put(coil.getAddress(), coil);
+        return setCoil(coil.getAddress(), value);
+    }
+
+    /**
+     * @param address
+     *            The modbus address of the register.
+     * @param value
+     *            The new raw value of the register, only 16 bits will be written.
+     * @return This {@link WriteBatch}
+     */
+    public WriteBatch setRegister(int address, int value) {
+        registers.put(address, (short) value);
+        return this;
+    }
+
+    /**
+     * Adds writes of consecutive registers, e.g. the two halves of a 32 bits value. These will always be written in a
+     * single request, as long as they fit.
+     *
+     * @param address
+     *            The modbus address of the first register.
+     * @param values
+     *            The new raw values of the registers.
+     * @return This {@link WriteBatch}
+     */
+    public WriteBatch setRegisters(int address, short... values) {
+        for (int ix = 0; ix < values.length; ix++) {
+            registers.put(address + ix, values[ix]);
+        }
+        addGroup(registerGroups, address, address + values.length);
+        return this;
+    }
+
+    /**
+     * Adds a write of a register. The value of the {@link Register} is updated when the batch has been written.
+     *
+     * @param register
+     *            The register that should be written.
+     * @param value
+     *            The new raw value of the register.
+     * @param <Q>
+     *            The quantity type of the register
+     * @return This {@link WriteBatch}
+     */
+    public <Q extends Quantity> WriteBatch set(Register<Q> register, int value) {
+        registerParameters.put(register.getAddress(), register);
+        return setRegister(register.getAddress(), value);
+    }
+
+    /**
+     * Adds a write of a register. The value of the {@link Register} is updated when the batch has been written.
+     *
+     * @param register
+     *            The register that should be written.
+     * @param value
+     *            The new value of the register, in any unit that is compatible with the unit of the register.
+     * @param <Q>
+     *            The quantity type of the register
+     * @return This {@link WriteBatch}
+     */
+    public <Q extends Quantity> WriteBatch set(Register<Q> register, Measurable<Q> value) {
+        return set(register, (int) value.longValue(register.getUnit()));
+    }
+
+    /**
+     * @return The number of coils and registers that will be written.
+     */
+    public int size() {
+        return coils.size() + registers.size();
+    }
+
+    /**
+     * @return <code>true</code> when nothing will be written.
+     */
+    public boolean isEmpty() {
+        return coils.isEmpty() && registers.isEmpty();
+    }
+
+    /**
+     * Removes all writes from this batch.
+     */
+    public void clear() {
+        coils.clear();
+        registers.clear();
+        coilParameters.clear();
+        registerParameters.clear();
+        coilGroups.clear();
+        registerGroups.clear();
+    }
+
+    /**
+     * @return The number of requests that are needed to write this batch.
+     */
+    public int getRequests() {
+        return runs().size();
+    }
+
+    List<Run> runs() {
+        List<Run> runs = new ArrayList<Run>();
+        addRuns(runs, coils, coilGroups, Function.WRITE_MULTIPLE_COILS, MAX_COILS);
+        addRuns(runs, registers, registerGroups, Function.WRITE_MULTIPLE_REGISTERS, MAX_REGISTERS);
+        return runs;
+    }
+
+    /**
+     * Adds a group of values that should be written together. Groups that overlap are merged, so each address is part
+     * of one group at most.
+     */
+    private static void addGroup(SortedMap<Integer, Integer> groups, int start, int end) {
+        if (end - start < 2) {
+            return;
+        }
+        SortedMap<Integer, Integer> before = groups.headMap(start);
+        if (!before.isEmpty() && groups.get(before.lastKey()) > start) {
+            start = before.lastKey();
+        }
+        SortedMap<Integer, Integer> overlapping = groups.subMap(start, end);
+        for (int groupEnd : overlapping.values()) {
+            end = Math.max(end, groupEnd);
+        }
+        overlapping.clear();
+        groups.put(start, end);
+    }
+
+    /**
+     * Splits the values into runs of consecutive addresses of at most maxCount values. A new run is started before a
+     * group that would not fit in the current run, so a group is only split when it is larger than maxCount.
+     */
+    private static void addRuns(List<Run> runs,
+                                SortedMap<Integer, ?> values,
+                                SortedMap<Integer, Integer> groups,
+                                Function function,
+                                int maxCount) {
+        Run run = null;
+        for (Map.Entry<Integer, ?> entry : values.entrySet()) {
+            int address = entry.getKey();
+            // At the start of a group, the whole group should fit
+            Integer groupEnd = groups.get(address);
+            int needed = groupEnd == null ? 1 : groupEnd - address;
+            if (run == null || address != run.address + run.values.size() || run.values.size() + needed > maxCount) {
+                run = new Run(function, address);
+                runs.add(run);
+            }
+            run.values.add(entry.getValue());
+        }
+    }
+
+    /**
+     * Updates the values of the parameters in a run that has been written.
+     */
+    void written(Run run) {
+        for (int ix = 0; ix < run.values.size(); ix++) {
+            Object value = run.values.get(ix);
+            if (run.function == Function.WRITE_MULTIPLE_COILS) {
+                Coil coil = coilParameters.get(run.address + ix);
+                if (coil != null) {
+                    coil.setValue((Boolean) value);
+                }
+            } else {
+                Register<?> register = registerParameters.get(run.address + ix);
+                if (register != null) {
+                    register.setValue((Short) value);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBatch of " + size() + " values in " + runs();
+    }
+}
@@ -1,5 +1,5 @@
 /**
  * This package contains the protocol to connect to devices through modbus.
  */
-@aQute.bnd.annotation.Version("1.0.0.${qualifier}")
+@aQute.bnd.annotation.Version("2.0.0.${qualifier}")
 package org.flexiblepower.protocol.modbus.tcp;
\ No newline at end of file
@@ -0,0 +1,215 @@
+package nl.tno.modbus.tcp.driver.test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A modbus slave that answers reads of coils and registers and writes of single and multiple registers and coils.
+ * Each register initially holds its own address plus 1000 times the unit identifier. Responses are sent after a delay
+ * that may depend on the address, so responses can be sent in another order than the requests came in.
+ *
+ * This is not the SlaveSimulator of flexiblepower.protocol.modbus.simulator, because that project builds on this one.
+ * The tests also need to make single addresses silent and to count the requests that are waiting for a response.
+ */
+class FakeSlave implements Runnable {
+    private final ServerSocket serverSocket;
+    private final ScheduledExecutorService responder = Executors.newScheduledThreadPool(4);
+    private final List<Socket> connections = new ArrayList<Socket>();
+    private final Set<Integer> silentAddresses = new HashSet<Integer>();
+    private final short[] registers = new short[65536];
+    private final boolean[] coils = new boolean[65536];
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger maxOutstanding = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private volatile long delay;
+    private volatile long delayPerAddress;
+
+    FakeSlave() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread thread = new Thread(this, "Fake modbus slave");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Sets the delay of a response to delay - address * delayPerAddress milliseconds
+     */
+    void setDelay(long delay, long delayPerAddress) {
+        this.delay = delay;
+        this.delayPerAddress = delayPerAddress;
+    }
+
+    void setSilent(int address) {
+        synchronized (silentAddresses) {
+            silentAddresses.add(address);
+        }
+    }
+
+    int getMaxOutstanding() {
+        return maxOutstanding.get();
+    }
+
+    void setCoil(int address, boolean value) {
+        coils[address] = value;
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    int getAccepted() {
+        return accepted.get();
+    }
+
+    void dropConnections() throws IOException {
+        synchronized (connections) {
+            for (Socket socket : connections) {
+                socket.close();
+            }
+            connections.clear();
+        }
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+        dropConnections();
+        responder.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                accepted.incrementAndGet();
+                synchronized (connections) {
+                    connections.add(socket);
+                }
+                Thread handler = new Thread("Fake modbus connection") {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(socket);
+                        } catch (IOException ex) {
+                            // Connection closed
+                        }
+                    }
+                };
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        while (true) {
+            int transactionId = in.readUnsignedShort();
+            in.readUnsignedShort();
+            int length = in.readUnsignedShort();
+            int unitId = in.readUnsignedByte();
+            byte[] pdu = new byte[length - 1];
+            in.readFully(pdu);
+            requests.incrementAndGet();
+
+            ByteBuffer request = ByteBuffer.wrap(pdu);
+            int function = request.get();
+            int address = request.getShort() & 0xffff;
+            int value = request.getShort() & 0xffff;
+            synchronized (silentAddresses) {
+                if (silentAddresses.contains(address)) {
+                    continue;
+                }
+            }
+
+            ByteBuffer response = ByteBuffer.allocate(260);
+            response.putShort((short) transactionId).putShort((short) 0).putShort((short) 0).put((byte) unitId);
+            response.put((byte) function);
+            switch (function) {
+            case 3:
+            case 4:
+                response.put((byte) (value * 2));
+                for (int ix = 0; ix < value; ix++) {
+                    response.putShort((short) (registers[address + ix] + unitId * 1000 + address + ix));
+                }
+                break;
+            case 1:
+                byte[] bits = new byte[(value + 7) / 8];
+                for (int ix = 0; ix < value; ix++) {
+                    if (coils[address + ix]) {
+                        bits[ix / 8] |= 1 << (ix % 8);
+                    }
+                }
+                response.put((byte) bits.length).put(bits);
+                break;
+            case 5:
+                coils[address] = value != 0;
+                response.putShort((short) address).putShort((short) value);
+                break;
+            case 6:
+                registers[address] = (short) (value - unitId * 1000 - address);
+                response.putShort((short) address).putShort((short) value);
+                break;
+            case 15:
+                request.get();
+                for (int ix = 0; ix < value; ix++) {
+                    coils[address + ix] = (pdu[6 + ix / 8] & (1 << (ix % 8))) != 0;
+                }
+                response.putShort((short) address).putShort((short) value);
+                break;
+            case 16:
+                request.get();
+                for (int ix = 0; ix < value; ix++) {
+                    registers[address + ix] = (short) (request.getShort() - unitId * 1000 - address - ix);
+                }
+                response.putShort((short) address).putShort((short) value);
+                break;
+            default:
+                response.put(7, (byte) (function | 0x80)).put((byte) 1);
+            }
+            response.putShort(4, (short) (response.position() - 6));
+            response.flip();
+            final byte[] frame = new byte[response.remaining()];
+            response.get(frame);
+
+            int waiting = outstanding.incrementAndGet();
+            if (waiting > maxOutstanding.get()) {
+                maxOutstanding.set(waiting);
+            }
+            responder.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    outstanding.decrementAndGet();
+                    try {
+                        synchronized (out) {
+                            out.write(frame);
+                            out.flush();
+                        }
+                    } catch (IOException ex) {
+                        // Connection closed
+                    }
+                }
+            }, Math.max(0, delay - address * delayPerAddress), TimeUnit.MILLISECONDS);
+        }
+    }
+}
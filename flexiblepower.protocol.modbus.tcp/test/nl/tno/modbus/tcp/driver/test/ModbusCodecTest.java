@@ -4,6 +4,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Arrays;
 
 import org.flexiblepower.protocol.modbus.tcp.ModbusMessage;
@@ -14,6 +15,46 @@ import junit.framework.TestCase;
 public class ModbusCodecTest extends TestCase {
     private final static char[] hex_chars = "0123456789abcdefg".toCharArray();
 
+    /**
+     * A channel that reads from a buffer that can be refilled, at most chunkSize bytes at a time.
+     */
+    static class WireChannel implements ReadableByteChannel {
+        final ByteBuffer wire = ByteBuffer.allocate(ModbusMessage.MAX_LENGTH);
+        private final int chunkSize;
+
+        WireChannel(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        void fill(ByteBuffer message) {
+            wire.clear();
+            wire.put(message);
+            wire.flip();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!wire.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(chunkSize, Math.min(dst.remaining(), wire.remaining()));
+            int limit = wire.limit();
+            wire.limit(wire.position() + count);
+            dst.put(wire);
+            wire.limit(limit);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
     private void assertEquals(byte[] expected, ByteBuffer result) {
         assertEquals(expected, Arrays.copyOf(result.array(), result.remaining()));
     }
@@ -92,4 +133,44 @@ public class ModbusCodecTest extends TestCase {
     public void testSingleHoldingRegisterRequest() throws IOException {
         requestTester(251, 256, Function.READ_HOLDING_REGISTER, 257, new byte[] { 1, 0, 0, 0, 0, 4, -5, 3, 1, 1 });
     }
+
+    public void testDecodeInPieces() throws IOException {
+        WireChannel channel = new WireChannel(1);
+        channel.fill(new ModbusMessage(7, 300).startData(Function.READ_HOLDING_REGISTER)
+                                               .putWord(40001)
+                                               .putWord(12)
+                                               .finish());
+        ModbusMessage decoder = ModbusMessage.decode(channel);
+        assertEquals(300, decoder.getTransactionId());
+        assertEquals(7, decoder.getDeviceId());
+        assertEquals(Function.READ_HOLDING_REGISTER, decoder.getFunction());
+        assertEquals((short) 40001, decoder.getData().getShort());
+
+        // An incomplete message
+        channel.fill(ByteBuffer.wrap(new byte[] { 0, 5, 0, 0, 0, 6, 3, 1 }));
+        try {
+            decoder.read(channel);
+            fail("Expected the message to be incomplete");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    public void testReuseMessages() throws IOException {
+        WireChannel channel = new WireChannel(Integer.MAX_VALUE);
+        ModbusMessage encoder = ModbusMessage.allocate();
+        ModbusMessage decoder = ModbusMessage.allocate();
+        for (int ix = 0; ix < 3; ix++) {
+            channel.fill(encoder.start(ix, ix + 1).startData(Function.WRITE_SINGLE_REGISTER)
+                                .putWord(ix * 10)
+                                .putWord(ix * 100)
+                                .finish());
+            decoder.read(channel);
+            assertEquals(ix + 1, decoder.getTransactionId());
+            assertEquals(ix, decoder.getDeviceId());
+            assertEquals(6, decoder.getLength());
+            assertEquals(ix * 10, decoder.getData().getShort());
+            assertEquals(ix * 100, decoder.getData().getShort(10));
+        }
+    }
 }
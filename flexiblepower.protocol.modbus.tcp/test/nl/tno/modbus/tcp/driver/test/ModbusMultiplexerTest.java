@@ -0,0 +1,276 @@
+package nl.tno.modbus.tcp.driver.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.measure.quantity.Dimensionless;
+import javax.measure.unit.Unit;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.protocol.modbus.tcp.Device;
+import org.flexiblepower.protocol.modbus.tcp.DeviceParameter;
+import org.flexiblepower.protocol.modbus.tcp.DeviceParameter.Coil;
+import org.flexiblepower.protocol.modbus.tcp.DeviceParameter.Register;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMasterConnection;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMessage;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMessage.Function;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMultiplexer;
+import org.flexiblepower.protocol.modbus.tcp.ModbusTransaction;
+import org.flexiblepower.protocol.modbus.tcp.ReadPlanner;
+import org.flexiblepower.protocol.modbus.tcp.RegisterBlock;
+
+public class ModbusMultiplexerTest extends TestCase {
+    private final List<FakeSlave> slaves = new ArrayList<FakeSlave>();
+    private ModbusMultiplexer multiplexer;
+
+    @Override
+    protected void setUp() throws Exception {
+        multiplexer = new ModbusMultiplexer(8, 2000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        multiplexer.close();
+        for (FakeSlave slave : slaves) {
+            slave.close();
+        }
+    }
+
+    private FakeSlave startSlave() throws IOException {
+        FakeSlave slave = new FakeSlave();
+        slaves.add(slave);
+        return slave;
+    }
+
+    private static Device device(FakeSlave slave, int deviceId) throws IOException {
+        return Device.address(InetAddress.getByName("127.0.0.1"))
+                     .setPort(slave.getPort())
+                     .setDeviceId(deviceId)
+                     .create();
+    }
+
+    private static ModbusMessage readRequest(int address) {
+        return new ModbusMessage(0, 0).startData(Function.READ_HOLDING_REGISTER).putWord(address).putWord(1);
+    }
+
+    private static int value(ModbusTransaction transaction) throws IOException {
+        ModbusMessage response = transaction.await();
+        assertEquals(Function.READ_HOLDING_REGISTER, response.getFunction());
+        assertEquals(2, response.getData().get());
+        return response.getData().getShort(9);
+    }
+
+    public void testPipelining() throws IOException {
+        FakeSlave slave = startSlave();
+        slave.setDelay(50, 0);
+        ModbusMasterConnection connection = multiplexer.connect(device(slave, 0));
+
+        long start = System.currentTimeMillis();
+        List<ModbusTransaction> transactions = new ArrayList<ModbusTransaction>();
+        for (int ix = 0; ix < 32; ix++) {
+            transactions.add(connection.submit(readRequest(ix)));
+        }
+        for (int ix = 0; ix < 32; ix++) {
+            assertEquals(ix, value(transactions.get(ix)));
+        }
+        long duration = System.currentTimeMillis() - start;
+
+        // One at a time would take 32 round trips of 50 ms
+        assertTrue("Took " + duration + "ms", duration < 800);
+        assertEquals(8, slave.getMaxOutstanding());
+        connection.close();
+    }
+
+    public void testOutOfOrderResponses() throws IOException {
+        FakeSlave slave = startSlave();
+        // Later requests are answered first
+        slave.setDelay(160, 20);
+        ModbusMasterConnection connection = multiplexer.connect(device(slave, 0));
+
+        List<ModbusTransaction> transactions = new ArrayList<ModbusTransaction>();
+        for (int ix = 0; ix < 8; ix++) {
+            transactions.add(connection.submit(readRequest(ix)));
+        }
+        for (int ix = 0; ix < 8; ix++) {
+            assertEquals(ix, value(transactions.get(ix)));
+        }
+        connection.close();
+    }
+
+    public void testManyGateways() throws IOException {
+        List<ModbusTransaction> transactions = new ArrayList<ModbusTransaction>();
+        List<ModbusMasterConnection> connections = new ArrayList<ModbusMasterConnection>();
+        long start = System.currentTimeMillis();
+        for (int ix = 0; ix < 20; ix++) {
+            FakeSlave slave = startSlave();
+            slave.setDelay(100, 0);
+            ModbusMasterConnection connection = multiplexer.connect(device(slave, 1));
+            connections.add(connection);
+            for (int address = 0; address < 4; address++) {
+                transactions.add(connection.submit(readRequest(address)));
+            }
+        }
+        for (int ix = 0; ix < transactions.size(); ix++) {
+            assertEquals(1000 + ix % 4, value(transactions.get(ix)));
+        }
+        long duration = System.currentTimeMillis() - start;
+        assertTrue("Took " + duration + "ms", duration < 1000);
+
+        for (ModbusMasterConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    public void testDevicesShareGateway() throws IOException {
+        FakeSlave slave = startSlave();
+        ModbusMasterConnection first = multiplexer.connect(device(slave, 1));
+        ModbusMasterConnection second = multiplexer.connect(device(slave, 2));
+
+        assertEquals((short) 1005, first.readRegisters(5, 1).get(5));
+        assertEquals((short) 2005, second.readRegisters(5, 1).get(5));
+        assertEquals(1, slave.getAccepted());
+
+        // The connection stays open as long as one of the devices uses it
+        first.close();
+        assertEquals((short) 2006, second.readRegisters(6, 1).get(6));
+        assertEquals(1, slave.getAccepted());
+        second.close();
+    }
+
+    public void testTimeout() throws IOException {
+        FakeSlave slave = startSlave();
+        slave.setSilent(13);
+        ModbusMasterConnection connection = multiplexer.connect(device(slave, 0));
+        connection.setTimeout(200);
+
+        ModbusTransaction lost = connection.submit(readRequest(13));
+        ModbusTransaction answered = connection.submit(readRequest(14));
+        assertEquals(14, value(answered));
+
+        long start = System.currentTimeMillis();
+        try {
+            lost.await();
+            fail("Expected a timeout");
+        } catch (SocketTimeoutException ex) {
+            // Expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        // The connection can still be used
+        assertEquals((short) 15, connection.readRegisters(15, 1).get(15));
+        assertEquals(1, slave.getAccepted());
+        connection.close();
+    }
+
+    /**
+     * The listener of the first transaction blocks the thread of the multiplexer, so only the deadline of the waiting
+     * thread ends the second transaction.
+     */
+    public void testAwaitDeadline() throws Exception {
+        FakeSlave slave = startSlave();
+        ModbusMasterConnection connection = multiplexer.connect(device(slave, 0));
+        connection.setTimeout(200);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        ModbusTransaction blocking = connection.submit(readRequest(1), new ModbusTransaction.Listener() {
+            @Override
+            public void done(ModbusTransaction transaction) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Thread.sleep(100);
+        ModbusTransaction stuck = connection.submit(readRequest(2));
+
+        long start = System.currentTimeMillis();
+        try {
+            stuck.await();
+            fail("Expected a timeout");
+        } catch (SocketTimeoutException ex) {
+            // Expected
+        } finally {
+            release.countDown();
+        }
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        assertEquals(1, value(blocking));
+
+        // The multiplexer continues after the listener returns
+        assertEquals((short) 3, connection.readRegisters(3, 1).get(3));
+        connection.close();
+    }
+
+    public void testReconnect() throws Exception {
+        FakeSlave slave = startSlave();
+        slave.setDelay(300, 0);
+        ModbusMasterConnection connection = multiplexer.connect(device(slave, 0));
+
+        ModbusTransaction transaction = connection.submit(readRequest(1));
+        Thread.sleep(100);
+        slave.dropConnections();
+        try {
+            transaction.await();
+            fail("Expected the connection to fail");
+        } catch (IOException ex) {
+            // Expected
+        }
+
+        slave.setDelay(0, 0);
+        assertEquals((short) 2, connection.readRegisters(2, 1).get(2));
+        assertEquals(2, slave.getAccepted());
+        connection.close();
+    }
+
+    public void testReadAndWrite() throws IOException {
+        FakeSlave slave = startSlave();
+        Coil coil = DeviceParameter.coil("switch", true, 3);
+        Register<Dimensionless> register = DeviceParameter.register("setpoint", true, 7, Unit.ONE, true);
+        ModbusMasterConnection connection = new ModbusMasterConnection(device(slave, 0));
+
+        connection.write(coil, true);
+        assertTrue(coil.getValue());
+        coil.setValue(false);
+        connection.read(coil);
+        assertTrue(coil.getValue());
+
+        connection.write(register, 42);
+        assertEquals(42, register.getValue());
+        register.setValue(0);
+        connection.read(register);
+        assertEquals(42, register.getValue());
+
+        RegisterBlock registers = connection.readRegisters(6, 3);
+        assertEquals(3, registers.size());
+        assertEquals(6, registers.getAddress());
+        assertEquals(42, registers.get(7));
+        assertEquals(8, registers.getUnsigned(8));
+
+        try {
+            connection.readRegisters(6, ReadPlanner.MAX_REGISTERS + 1);
+            fail("Expected more registers than fit in a request to be rejected");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+        try {
+            connection.readRegisters(6, 3, new RegisterBlock(2));
+            fail("Expected more registers than fit in the block to be rejected");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        connection.close();
+        try {
+            connection.readRegisters(6, 1);
+            fail("Expected the connection to be closed");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package nl.tno.modbus.tcp.driver.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.unit.Unit;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.protocol.modbus.tcp.Device;
+import org.flexiblepower.protocol.modbus.tcp.DeviceParameter;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMasterConnection;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMultiplexer;
+import org.flexiblepower.protocol.modbus.tcp.PollJob;
+import org.flexiblepower.protocol.modbus.tcp.PollScheduler;
+import org.flexiblepower.protocol.modbus.tcp.ReadPlanner;
+
+public class PollSchedulerTest extends TestCase {
+    private static class RecordingListener implements PollJob.Listener {
+        private final List<String> polled;
+        private final String name;
+
+        RecordingListener(List<String> polled, String name) {
+            this.polled = polled;
+            this.name = name;
+        }
+
+        @Override
+        public void polled(PollJob job) {
+            polled.add(name);
+        }
+
+        @Override
+        public void failed(PollJob job, IOException cause) {
+            polled.add(name + " failed");
+        }
+    }
+
+    private FakeSlave slave;
+    private ModbusMultiplexer multiplexer;
+    private PollScheduler scheduler;
+    private final List<String> polled = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() throws Exception {
+        slave = new FakeSlave();
+        multiplexer = new ModbusMultiplexer();
+        scheduler = new PollScheduler(multiplexer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.close();
+        multiplexer.close();
+        slave.close();
+    }
+
+    private Device device(int deviceId) throws IOException {
+        Device.Builder builder = Device.address(InetAddress.getByName("127.0.0.1"))
+                                       .setPort(slave.getPort())
+                                       .setDeviceId(deviceId);
+        for (int address = 100; address < 120; address++) {
+            builder.register("register " + address, true, address, Unit.ONE, false);
+        }
+        return builder.create();
+    }
+
+    private static List<DeviceParameter> registers(Device device, int from, int to) {
+        List<DeviceParameter> parameters = new ArrayList<DeviceParameter>();
+        for (int address = from; address < to; address++) {
+            parameters.add(device.getRegister(address));
+        }
+        return parameters;
+    }
+
+    public void testPeriodicPolling() throws Exception {
+        Device device = device(1);
+        PollJob job = scheduler.schedule(device, 200, new RecordingListener(polled, "job"));
+        Thread.sleep(1050);
+        job.cancel();
+        // A poll that was running when the job was cancelled still completes
+        Thread.sleep(100);
+
+        // Released 6 times, but a slow machine may skip a period
+        long polls = job.getPolls();
+        assertTrue("Polled " + polls + " times", polls >= 4 && polls <= 6);
+        assertEquals(0, job.getMissedDeadlines());
+        assertEquals(0, job.getFailures());
+        assertEquals(polls, polled.size());
+        // A single block read for all registers
+        assertEquals(polls, slave.getRequests());
+        assertEquals(1119, device.getRegister(119).getValue());
+
+        Thread.sleep(100);
+        assertEquals(polls, job.getPolls());
+    }
+
+    public void testEarliestDeadlineFirst() throws Exception {
+        slave.setDelay(100, 0);
+        Device device = device(1);
+        // The first job occupies the worker, so the other jobs are released while it is running
+        scheduler.schedule(device, registers(device, 100, 101), 2000, 2000, new RecordingListener(polled, "first"));
+        Thread.sleep(10);
+        scheduler.schedule(device, registers(device, 110, 111), 2000, 2000, new RecordingListener(polled, "late"));
+        scheduler.schedule(device, registers(device, 115, 116), 2000, 1000, new RecordingListener(polled, "urgent"));
+        Thread.sleep(600);
+
+        assertEquals(Arrays.asList("first", "urgent", "late"), polled);
+        assertEquals(0, scheduler.getMissedDeadlines());
+    }
+
+    public void testMergeOverlapping() throws Exception {
+        scheduler.setMergeWindow(100);
+        Device device = device(1);
+        PollJob first = scheduler.schedule(device,
+                                           registers(device, 100, 110),
+                                           100,
+                                           100,
+                                           new RecordingListener(polled, "first"));
+        Thread.sleep(30);
+        PollJob second = scheduler.schedule(device,
+                                            registers(device, 105, 115),
+                                            100,
+                                            100,
+                                            new RecordingListener(polled, "second"));
+        Thread.sleep(30);
+        // Another device is never merged
+        Device other = device(2);
+        PollJob third = scheduler.schedule(other,
+                                           registers(other, 100, 110),
+                                           100,
+                                           100,
+                                           new RecordingListener(polled, "third"));
+        Thread.sleep(470);
+        scheduler.close();
+
+        assertTrue(first.getPolls() >= 4);
+        assertTrue(Math.abs(first.getPolls() - second.getPolls()) <= 1);
+        assertTrue(scheduler.getMerged() >= 3);
+        // The first poll of the second job is merged as well, but it keeps its own phase
+        assertEquals(first.getPolls() + second.getPolls() + third.getPolls() - scheduler.getMerged(),
+                     slave.getRequests());
+        assertEquals(0, scheduler.getMissedDeadlines());
+    }
+
+    public void testSaturatedGateway() throws Exception {
+        slave.setDelay(20, 0);
+        Device device = device(1);
+        PollJob fast = scheduler.schedule(device,
+                                          registers(device, 100, 101),
+                                          100,
+                                          90,
+                                          new RecordingListener(polled, "fast"));
+        List<PollJob> slow = new ArrayList<PollJob>();
+        for (int address = 110; address < 115; address++) {
+            slow.add(scheduler.schedule(device,
+                                        registers(device, address, address + 1),
+                                        100,
+                                        100,
+                                        new RecordingListener(polled, "slow")));
+        }
+        Thread.sleep(200);
+        scheduler.resetMetrics();
+        Thread.sleep(800);
+
+        // 6 polls of 20 ms every 100 ms do not fit, the jobs with the long deadline are the ones that suffer. The fast
+        // job waits at most for one running poll, so it needs about 40 ms of its 90.
+        assertTrue("Utilization " + scheduler.getUtilization(), scheduler.getUtilization() > 0.8);
+        assertTrue(scheduler.getMissedDeadlines() > 0);
+        assertEquals(0, fast.getMissedDeadlines());
+        // Late jobs wait for the others, so one of them may not be read at all
+        long slowPolls = 0;
+        long missed = 0;
+        for (PollJob job : slow) {
+            slowPolls += job.getPolls();
+            missed += job.getMissedDeadlines();
+        }
+        assertTrue("Polled " + slowPolls + " times", slowPolls > 0);
+        assertTrue("Missed " + missed, missed > 0);
+    }
+
+    public void testIdleGateway() throws Exception {
+        scheduler.schedule(device(1), 100, new RecordingListener(polled, "job"));
+        Thread.sleep(300);
+        assertTrue("Utilization " + scheduler.getUtilization(), scheduler.getUtilization() < 0.5);
+        assertEquals(0, scheduler.getMissedDeadlines());
+    }
+
+    public void testFailures() throws Exception {
+        slave.setSilent(100);
+        multiplexer.close();
+        multiplexer = new ModbusMultiplexer(8, 50);
+        scheduler.close();
+        scheduler = new PollScheduler(multiplexer, new ReadPlanner(), 1);
+
+        Device device = device(1);
+        PollJob job = scheduler.schedule(device, 100, new RecordingListener(polled, "job"));
+        Thread.sleep(400);
+        assertTrue(job.getFailures() >= 2);
+        assertEquals(0, job.getPolls());
+        assertTrue(polled.contains("job failed"));
+    }
+
+    public void testUnexpectedException() throws Exception {
+        final AtomicInteger connects = new AtomicInteger();
+        multiplexer.close();
+        multiplexer = new ModbusMultiplexer() {
+            @Override
+            public ModbusMasterConnection connect(Device device) throws ClosedChannelException {
+                if (connects.incrementAndGet() <= 2) {
+                    throw new IllegalStateException("Test");
+                }
+                return super.connect(device);
+            }
+        };
+        scheduler.close();
+        scheduler = new PollScheduler(multiplexer);
+
+        // The exceptions count as failures, and the job keeps being polled
+        PollJob job = scheduler.schedule(device(1), 50, new RecordingListener(polled, "job"));
+        Thread.sleep(300);
+        assertEquals(2, job.getFailures());
+        assertTrue(job.getPolls() > 0);
+        assertEquals(Arrays.asList("job failed", "job failed", "job"), polled.subList(0, 3));
+    }
+
+    public void testOtherGateway() throws Exception {
+        scheduler.schedule(device(1), 100, new RecordingListener(polled, "job"));
+        Device elsewhere = Device.address(InetAddress.getByName("127.0.0.2"))
+                                 .setPort(slave.getPort())
+                                 .register("r", true, 1, Unit.ONE, false)
+                                 .create();
+        try {
+            scheduler.schedule(elsewhere, 100, new RecordingListener(polled, "elsewhere"));
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package nl.tno.modbus.tcp.driver.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.measure.quantity.Dimensionless;
+import javax.measure.unit.Unit;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.protocol.modbus.tcp.Device;
+import org.flexiblepower.protocol.modbus.tcp.DeviceParameter;
+import org.flexiblepower.protocol.modbus.tcp.DeviceParameter.Register;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMasterConnection;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMessage.Function;
+import org.flexiblepower.protocol.modbus.tcp.ReadPlan;
+import org.flexiblepower.protocol.modbus.tcp.ReadPlanner;
+
+public class ReadPlannerTest extends TestCase {
+    private static Register<Dimensionless> holding(int address) {
+        return DeviceParameter.register("holding " + address, true, address, Unit.ONE, false);
+    }
+
+    private static Register<Dimensionless> input(int address) {
+        return DeviceParameter.register("input " + address, false, address, Unit.ONE, true);
+    }
+
+    private static void assertBlock(ReadPlan.Block block, Function function, int address, int count, int parameters) {
+        assertEquals(function, block.getFunction());
+        assertEquals(address, block.getAddress());
+        assertEquals(count, block.getCount());
+        assertEquals(parameters, block.getParameters().size());
+    }
+
+    public void testContiguous() {
+        List<DeviceParameter> parameters = new ArrayList<DeviceParameter>();
+        for (int address = 100; address < 110; address++) {
+            parameters.add(holding(address));
+        }
+        // Order of the input should not matter
+        parameters.add(holding(99));
+
+        ReadPlan plan = new ReadPlanner().plan(parameters);
+        assertEquals(1, plan.getRequests());
+        assertEquals(10, plan.getRequestsSaved());
+        assertBlock(plan.getBlocks().get(0), Function.READ_HOLDING_REGISTER, 99, 11, 11);
+        assertEquals(99, plan.getBlocks().get(0).getParameters().get(0).getAddress());
+    }
+
+    public void testGapTolerance() {
+        List<DeviceParameter> parameters = Arrays.<DeviceParameter> asList(holding(0),
+                                                                           holding(2),
+                                                                           holding(5),
+                                                                           holding(9),
+                                                                           holding(14));
+        assertEquals(5, new ReadPlanner().plan(parameters).getRequests());
+        assertEquals(4, new ReadPlanner(1, 125).plan(parameters).getRequests());
+
+        ReadPlan plan = new ReadPlanner(3, 125).plan(parameters);
+        assertEquals(2, plan.getRequests());
+        assertBlock(plan.getBlocks().get(0), Function.READ_HOLDING_REGISTER, 0, 10, 4);
+        assertBlock(plan.getBlocks().get(1), Function.READ_HOLDING_REGISTER, 14, 1, 1);
+    }
+
+    public void testRegisterLimit() {
+        List<DeviceParameter> parameters = new ArrayList<DeviceParameter>();
+        for (int address = 0; address < 300; address++) {
+            parameters.add(holding(address));
+        }
+        ReadPlan plan = new ReadPlanner(10, 125).plan(parameters);
+        assertEquals(3, plan.getRequests());
+        assertBlock(plan.getBlocks().get(0), Function.READ_HOLDING_REGISTER, 0, 125, 125);
+        assertBlock(plan.getBlocks().get(1), Function.READ_HOLDING_REGISTER, 125, 125, 125);
+        assertBlock(plan.getBlocks().get(2), Function.READ_HOLDING_REGISTER, 250, 50, 50);
+
+        plan = new ReadPlanner(0, 50).plan(parameters);
+        assertEquals(6, plan.getRequests());
+    }
+
+    public void testSeparateFunctions() {
+        List<DeviceParameter> parameters = Arrays.<DeviceParameter> asList(holding(1),
+                                                                           input(2),
+                                                                           holding(3),
+                                                                           DeviceParameter.coil("c", true, 1),
+                                                                           DeviceParameter.coil("c", false, 2),
+                                                                           input(3));
+        ReadPlan plan = new ReadPlanner(1, 125).plan(parameters);
+        assertEquals(3, plan.getRequests());
+        assertEquals(3, plan.getRequestsSaved());
+        assertBlock(plan.getBlocks().get(0), Function.READ_COIL, 1, 2, 2);
+        assertBlock(plan.getBlocks().get(1), Function.READ_HOLDING_REGISTER, 1, 3, 2);
+        assertBlock(plan.getBlocks().get(2), Function.READ_INPUT_REGISTER, 2, 2, 2);
+    }
+
+    public void testReadPlan() throws IOException {
+        FakeSlave slave = new FakeSlave();
+        slave.setCoil(10, true);
+        slave.setCoil(17, true);
+        Device device = Device.address(InetAddress.getByName("127.0.0.1"))
+                              .setPort(slave.getPort())
+                              .setDeviceId(1)
+                              .coil("first", true, 10)
+                              .coil("second", true, 11)
+                              .coil("ninth", true, 17)
+                              .register("a", true, 200, Unit.ONE, false)
+                              .register("b", true, 203, Unit.ONE, false)
+                              .register("c", false, 40000, Unit.ONE, false)
+                              .register("d", false, 40001, Unit.ONE, true)
+                              .create();
+        ReadPlan plan = new ReadPlanner(5, 125).plan(device);
+        assertEquals(3, plan.getRequests());
+
+        ModbusMasterConnection connection = device.openConnection();
+        try {
+            connection.read(plan);
+        } finally {
+            connection.close();
+            slave.close();
+        }
+        assertEquals(3, slave.getRequests());
+        assertEquals(4, connection.getRequestsSaved());
+
+        assertTrue(device.getCoil(10).getValue());
+        assertFalse(device.getCoil(11).getValue());
+        assertTrue(device.getCoil(17).getValue());
+        assertEquals(1200, device.getRegister(200).getValue());
+        assertEquals(1203, device.getRegister(203).getValue());
+        // 41000 does not fit in a signed short
+        assertEquals(41000, device.getRegister(40000).getValue());
+        assertEquals((short) 41001, device.getRegister(40001).getValue());
+    }
+}
@@ -0,0 +1,161 @@
+package nl.tno.modbus.tcp.driver.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import javax.measure.unit.Unit;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.protocol.modbus.tcp.Device;
+import org.flexiblepower.protocol.modbus.tcp.ModbusMasterConnection;
+import org.flexiblepower.protocol.modbus.tcp.ReadPlanner;
+import org.flexiblepower.protocol.modbus.tcp.RegisterBlock;
+import org.flexiblepower.protocol.modbus.tcp.WriteBatch;
+
+public class WriteBatchTest extends TestCase {
+    private FakeSlave slave;
+    private Device device;
+    private ModbusMasterConnection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        slave = new FakeSlave();
+        device = Device.address(InetAddress.getByName("127.0.0.1"))
+                       .setPort(slave.getPort())
+                       .setDeviceId(1)
+                       .coil("on", true, 10)
+                       .coil("boost", true, 11)
+                       .register("setpoint", true, 300, Unit.ONE, false)
+                       .register("mode", true, 305, Unit.ONE, false)
+                       .create();
+        connection = device.openConnection();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connection.close();
+        slave.close();
+    }
+
+    public void testMerging() {
+        WriteBatch batch = new WriteBatch().setRegister(5, 1).setRegister(3, 2).setRegister(4, 3).setRegister(7, 4);
+        batch.setCoil(1, true).setCoil(2, false);
+        assertEquals(6, batch.size());
+        // 3-5, 7 and the coils 1-2
+        assertEquals(3, batch.getRequests());
+
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        assertEquals(0, batch.getRequests());
+    }
+
+    public void testLimits() {
+        WriteBatch batch = new WriteBatch();
+        for (int address = 0; address < 300; address++) {
+            batch.setRegister(address, address);
+        }
+        assertEquals(3, batch.getRequests());
+
+        for (int address = 0; address < WriteBatch.MAX_COILS + 1; address++) {
+            batch.setCoil(address, true);
+        }
+        assertEquals(5, batch.getRequests());
+    }
+
+    public void testGroupAtLimit() throws IOException {
+        WriteBatch batch = new WriteBatch();
+        for (int address = 0; address < WriteBatch.MAX_REGISTERS - 1; address++) {
+            batch.setRegister(address, address);
+        }
+        // The pair would straddle the limit of the first request, so it starts the second one
+        batch.setRegisters(WriteBatch.MAX_REGISTERS - 1, (short) 0x1234, (short) 0x5678);
+        for (int address = WriteBatch.MAX_REGISTERS + 1; address < 2 * WriteBatch.MAX_REGISTERS; address++) {
+            batch.setRegister(address, address);
+        }
+        // Without the pair 2 full requests would do
+        assertEquals(3, batch.getRequests());
+
+        connection.write(batch);
+        assertEquals(3, slave.getRequests());
+        RegisterBlock block = connection.readRegisters(WriteBatch.MAX_REGISTERS - 2, 4);
+        assertEquals(WriteBatch.MAX_REGISTERS - 2, block.get(WriteBatch.MAX_REGISTERS - 2));
+        assertEquals(0x1234, block.get(WriteBatch.MAX_REGISTERS - 1));
+        assertEquals(0x5678, block.get(WriteBatch.MAX_REGISTERS));
+        assertEquals(WriteBatch.MAX_REGISTERS + 1, block.get(WriteBatch.MAX_REGISTERS + 1));
+
+        // Overlapping groups are merged and kept together as well
+        batch.clear();
+        for (int address = 0; address < 2 * WriteBatch.MAX_COILS; address++) {
+            batch.setCoil(address, true);
+        }
+        assertEquals(2, batch.getRequests());
+        batch.setCoils(WriteBatch.MAX_COILS - 2, true, true);
+        batch.setCoils(WriteBatch.MAX_COILS - 1, false, false);
+        assertEquals(3, batch.getRequests());
+    }
+
+    public void testLastWriteWins() throws IOException {
+        WriteBatch batch = new WriteBatch().setRegister(100, 1).setRegister(100, 2).setCoil(1, true).setCoil(1, false);
+        assertEquals(2, batch.size());
+
+        connection.write(batch);
+        assertEquals(2, slave.getRequests());
+        assertEquals(2, connection.readRegisters(100, 1).get(100));
+    }
+
+    public void testWriteRegisters() throws IOException {
+        // A 32 bits setpoint is written in a single request, so the device never sees half of it
+        int setpoint = 0x12345678;
+        connection.writeRegisters(200, (short) (setpoint >>> 16), (short) setpoint);
+        assertEquals(1, slave.getRequests());
+
+        RegisterBlock block = connection.readRegisters(200, 2);
+        assertEquals(setpoint, block.getUnsigned(200) << 16 | block.getUnsigned(201));
+    }
+
+    public void testWriteCoils() throws IOException {
+        connection.writeCoils(10, false, true);
+        assertEquals(1, slave.getRequests());
+
+        connection.read(new ReadPlanner().plan(device));
+        assertFalse(device.getCoil(10).getValue());
+        assertTrue(device.getCoil(11).getValue());
+    }
+
+    public void testWriteBatch() throws IOException {
+        WriteBatch batch = new WriteBatch();
+        for (int address = 0; address < 20; address++) {
+            batch.setRegister(400 + address, address * 10);
+        }
+        batch.set(device.getCoil(10), true).set(device.getCoil(11), true);
+        batch.setRegisters(300, (short) 42);
+        batch.set(device.getRegister(305), 7);
+        assertEquals(24, batch.size());
+
+        connection.write(batch);
+        // 400-419, 300, 305 and the coils 10-11
+        assertEquals(4, slave.getRequests());
+        assertEquals(20, connection.getRequestsSaved());
+
+        // The parameters are updated after the write
+        assertTrue(device.getCoil(10).getValue());
+        assertEquals(7, device.getRegister(305).getValue());
+
+        RegisterBlock block = connection.readRegisters(400, 20);
+        for (int address = 0; address < 20; address++) {
+            assertEquals(address * 10, block.get(400 + address));
+        }
+        assertEquals(42, connection.readRegisters(300, 1).get(300));
+    }
+
+    public void testInvalidCount() throws IOException {
+        try {
+            connection.writeRegisters(0, new short[WriteBatch.MAX_REGISTERS + 1]);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+        assertEquals(0, slave.getRequests());
+    }
+}
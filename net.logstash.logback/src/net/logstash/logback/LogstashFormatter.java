@@ -15,8 +15,10 @@ package net.logstash.logback;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.TimeZone;
 
 import net.logstash.logback.fieldnames.LogstashFieldNames;
+import net.logstash.logback.util.DateFormatter;
 import ch.qos.logback.classic.pattern.TargetLengthBasedClassNameAbbreviator;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
@@ -35,6 +37,9 @@ public class LogstashFormatter extends LogstashAbstractFormatter<ILoggingEvent,
 
     private static final StackTraceElement DEFAULT_CALLER_DATA = new StackTraceElement("", "", "", 0);
 
+    /** Writes the timestamps in the default time zone, without a zone designator */
+    private static final DateFormatter DATE_FORMATTER = new DateFormatter(TimeZone.getDefault(), false);
+
     /**
      * If true, the caller information is included in the logged data. Note: calculating the caller data is an expensive
      * operation.
@@ -136,7 +141,7 @@ public class LogstashFormatter extends LogstashAbstractFormatter<ILoggingEvent,
     private void writeLogstashFields(JsonGenerator generator, ILoggingEvent event) throws IOException {
         writeStringField(generator,
                          fieldNames.getTimestamp(),
-                         DateFormatter.format(event.getTimeStamp()));
+                         DATE_FORMATTER.format(event.getTimeStamp()));
         writeNumberField(generator, fieldNames.getVersion(), 1);
         writeStringField(generator, fieldNames.getMessage(), event.getFormattedMessage());
     }
@@ -0,0 +1,174 @@
+package net.logstash.logback.util;
+
+import java.util.TimeZone;
+
+/**
+ * Formats timestamps as ISO-8601 text, like <code>2015-06-30T12:34:56.789</code> or, in UTC,
+ * <code>2015-06-30T12:34:56.789Z</code>.
+ *
+ * Timestamps are usually formatted in order, so the text up to the second is cached and only the milliseconds are
+ * written for the next timestamp in the same second. The text of the date is cached in the same way for the next second
+ * of the same day. The caches are immutable objects, so a formatter can be shared by many threads without locking.
+ *
+ * The dates are calculated using the proleptic Gregorian calendar, so dates before 1582 differ from
+ * {@link java.util.GregorianCalendar}. Only the years 0 to 9999 are supported.
+ */
+public class DateFormatter {
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /** The length of <code>yyyy-MM-ddT</code> */
+    private static final int DATE_LENGTH = 11;
+    /** The length of <code>yyyy-MM-ddTHH:mm:ss</code> */
+    private static final int SECOND_LENGTH = 19;
+
+    /** The text of a single (local) day, up to and including the 'T' */
+    private static final class CachedDay {
+        final long day;
+        final char[] text;
+
+        CachedDay(long day, char[] text) {
+            this.day = day;
+            this.text = text;
+        }
+    }
+
+    /** The text of a single (local) second */
+    private static final class CachedSecond {
+        final long second;
+        final char[] text;
+
+        CachedSecond(long second, char[] text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private final TimeZone timeZone;
+    private final boolean utc;
+    private final int length;
+
+    private volatile CachedDay cachedDay;
+    private volatile CachedSecond cachedSecond;
+
+    /**
+     * @param timeZone
+     *            The time zone in which the timestamps are written
+     * @param utcDesignator
+     *            <code>true</code> when a 'Z' should be added after the milliseconds, which should only be used with a
+     *            time zone that is the same as UTC
+     */
+    public DateFormatter(TimeZone timeZone, boolean utcDesignator) {
+        this.timeZone = (TimeZone) timeZone.clone();
+        utc = utcDesignator;
+        length = SECOND_LENGTH + (utcDesignator ? 5 : 4);
+    }
+
+    /**
+     * @return The number of characters that {@link #format(long, char[], int)} writes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @param timeStamp
+     *            The time in milliseconds since the epoch
+     * @return The formatted time
+     */
+    public String format(long timeStamp) {
+        char[] buffer = new char[length];
+        format(timeStamp, buffer, 0);
+        return new String(buffer);
+    }
+
+    /**
+     * Writes a formatted time into a buffer, without allocating any objects for timestamps in the same second as the
+     * previous one.
+     *
+     * @param timeStamp
+     *            The time in milliseconds since the epoch
+     * @param buffer
+     *            The buffer to write to, which should have room for {@link #getLength()} characters
+     * @param offset
+     *            The index in the buffer of the first character
+     * @return The number of characters that have been written
+     */
+    public int format(long timeStamp, char[] buffer, int offset) {
+        long local = timeStamp + timeZone.getOffset(timeStamp);
+        long second = floorDiv(local, MILLIS_PER_SECOND);
+
+        CachedSecond cached = cachedSecond;
+        if (cached == null || cached.second != second) {
+            cached = new CachedSecond(second, formatSecond(second));
+            cachedSecond = cached;
+        }
+
+        System.arraycopy(cached.text, 0, buffer, offset, SECOND_LENGTH);
+        buffer[offset + SECOND_LENGTH] = '.';
+        writeDigits(buffer, offset + SECOND_LENGTH + 1, 3, (int) (local - second * MILLIS_PER_SECOND));
+        if (utc) {
+            buffer[offset + SECOND_LENGTH + 4] = 'Z';
+        }
+        return length;
+    }
+
+    private char[] formatSecond(long second) {
+        long day = floorDiv(second, SECONDS_PER_DAY);
+        CachedDay cached = cachedDay;
+        if (cached == null || cached.day != day) {
+            cached = new CachedDay(day, formatDay(day));
+            cachedDay = cached;
+        }
+
+        int secondOfDay = (int) (second - day * SECONDS_PER_DAY);
+        char[] text = new char[SECOND_LENGTH];
+        System.arraycopy(cached.text, 0, text, 0, DATE_LENGTH);
+        writeDigits(text, 11, 2, secondOfDay / 3600);
+        text[13] = ':';
+        writeDigits(text, 14, 2, secondOfDay / 60 % 60);
+        text[16] = ':';
+        writeDigits(text, 17, 2, secondOfDay % 60);
+        return text;
+    }
+
+    /**
+     * Converts a number of days since the epoch to a date, see
+     * <a href="http://howardhinnant.github.io/date_algorithms.html#civil_from_days">civil_from_days</a>.
+     */
+    private static char[] formatDay(long day) {
+        long z = day + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153; // March is 0
+        int dayOfMonth = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        char[] text = new char[DATE_LENGTH];
+        writeDigits(text, 0, 4, year);
+        text[4] = '-';
+        writeDigits(text, 5, 2, month);
+        text[7] = '-';
+        writeDigits(text, 8, 2, dayOfMonth);
+        text[10] = 'T';
+        return text;
+    }
+
+    private static void writeDigits(char[] buffer, int offset, int digits, int value) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static long floorDiv(long x, long y) {
+        long result = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            result--;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,96 @@
+package net.logstash.logback.util;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class DateFormatterTest extends TestCase {
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+    private static final TimeZone AMSTERDAM = TimeZone.getTimeZone("Europe/Amsterdam");
+
+    /** The way the timestamps were formatted before */
+    private static String calendarFormat(long timeStamp, TimeZone timeZone, boolean utcDesignator) {
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(timeStamp);
+        return String.format("%04d-%02d-%02dT%02d:%02d:%02d.%03d" + (utcDesignator ? "Z" : ""),
+                             calendar.get(Calendar.YEAR),
+                             calendar.get(Calendar.MONTH) + 1,
+                             calendar.get(Calendar.DAY_OF_MONTH),
+                             calendar.get(Calendar.HOUR_OF_DAY),
+                             calendar.get(Calendar.MINUTE),
+                             calendar.get(Calendar.SECOND),
+                             calendar.get(Calendar.MILLISECOND));
+    }
+
+    private static void assertFormat(DateFormatter formatter, TimeZone timeZone, boolean utc, long timeStamp) {
+        assertEquals(calendarFormat(timeStamp, timeZone, utc), formatter.format(timeStamp));
+    }
+
+    public void testUtc() {
+        DateFormatter formatter = new DateFormatter(GMT, true);
+        assertEquals("1970-01-01T00:00:00.000Z", formatter.format(0));
+        assertEquals("1969-12-31T23:59:59.999Z", formatter.format(-1));
+        assertEquals("2000-02-29T12:34:56.789Z", formatter.format(951827696789L));
+        assertEquals(24, formatter.getLength());
+    }
+
+    public void testRandomTimestamps() {
+        Random random = new Random(1);
+        DateFormatter gmt = new DateFormatter(GMT, true);
+        DateFormatter amsterdam = new DateFormatter(AMSTERDAM, false);
+        for (int i = 0; i < 10000; i++) {
+            // Between 1900 and 2100
+            long timeStamp = -2208988800000L + (long) (random.nextDouble() * 6311433600000L);
+            assertFormat(gmt, GMT, true, timeStamp);
+            assertFormat(amsterdam, AMSTERDAM, false, timeStamp);
+        }
+    }
+
+    public void testSequentialTimestamps() {
+        DateFormatter gmt = new DateFormatter(GMT, true);
+        DateFormatter amsterdam = new DateFormatter(AMSTERDAM, false);
+        // A few days around the end of the daylight saving time in 2015, in steps of 997 ms
+        for (long timeStamp = 1445731200000L; timeStamp < 1446076800000L; timeStamp += 997) {
+            assertFormat(gmt, GMT, true, timeStamp);
+            assertFormat(amsterdam, AMSTERDAM, false, timeStamp);
+        }
+    }
+
+    public void testBuffer() {
+        DateFormatter formatter = new DateFormatter(GMT, false);
+        char[] buffer = new char[25];
+        buffer[0] = '<';
+        buffer[24] = '>';
+        assertEquals(23, formatter.format(1000, buffer, 1));
+        assertEquals("<1970-01-01T00:00:01.000>", new String(buffer));
+    }
+
+    public void testConcurrentUse() throws InterruptedException {
+        final DateFormatter formatter = new DateFormatter(AMSTERDAM, false);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long start = 1420070400000L + t * 86400000L * 31;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (long timeStamp = start; timeStamp < start + 20000000L; timeStamp += 1013) {
+                        String expected = calendarFormat(timeStamp, AMSTERDAM, false);
+                        String actual = formatter.format(timeStamp);
+                        if (!expected.equals(actual)) {
+                            error.set("Expected " + expected + " but was " + actual);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+    }
+}
@@ -0,0 +1,108 @@
+package net.logstash.logback.util;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link DateFormatter}, as configured by the ElasticSearch writer and by the logstash encoder, with the
+ * Calendar and String.format based formatting they replaced. The timestamps advance by a fixed step, so the benchmark
+ * covers timestamps within the same second, a new second every time and a new day every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DateFormatterBenchmark {
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    /** The number of milliseconds between two formatted timestamps */
+    @Param({ "1", "1000", "86400000" })
+    public long step;
+
+    private DateFormatter utcFormatter;
+    private DateFormatter localFormatter;
+    private char[] buffer;
+    private long timeStamp;
+
+    @Setup
+    public void setup() {
+        utcFormatter = new DateFormatter(GMT, true);
+        localFormatter = new DateFormatter(TimeZone.getDefault(), false);
+        buffer = new char[utcFormatter.getLength()];
+        timeStamp = 1420070400000L;
+    }
+
+    private long nextTimeStamp() {
+        timeStamp += step;
+        return timeStamp;
+    }
+
+    /** The former DataWriter.format */
+    private static String calendarFormatUtc(long timeStamp) {
+        Calendar calendar = Calendar.getInstance(GMT);
+        calendar.setTimeInMillis(timeStamp);
+        return String.format("%04d-%02d-%02dT%02d:%02d:%02d.%03dZ",
+                             calendar.get(Calendar.YEAR),
+                             calendar.get(Calendar.MONTH) + 1, // 0-based...
+                             calendar.get(Calendar.DAY_OF_MONTH),
+                             calendar.get(Calendar.HOUR_OF_DAY),
+                             calendar.get(Calendar.MINUTE),
+                             calendar.get(Calendar.SECOND),
+                             calendar.get(Calendar.MILLISECOND));
+    }
+
+    /** The former logstash DateFormatter.format */
+    private static String calendarFormatLocal(long timeStamp) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeStamp);
+        return String.format("%04d-%02d-%02dT%02d:%02d:%02d.%03d",
+                             calendar.get(Calendar.YEAR),
+                             calendar.get(Calendar.MONTH) + 1, // 0-based...
+                             calendar.get(Calendar.DAY_OF_MONTH),
+                             calendar.get(Calendar.HOUR_OF_DAY),
+                             calendar.get(Calendar.MINUTE),
+                             calendar.get(Calendar.SECOND),
+                             calendar.get(Calendar.MILLISECOND));
+    }
+
+    @Benchmark
+    public String calendarUtc() {
+        return calendarFormatUtc(nextTimeStamp());
+    }
+
+    @Benchmark
+    public String cachedUtc() {
+        return utcFormatter.format(nextTimeStamp());
+    }
+
+    @Benchmark
+    public String calendarLocal() {
+        return calendarFormatLocal(nextTimeStamp());
+    }
+
+    @Benchmark
+    public String cachedLocal() {
+        return localFormatter.format(nextTimeStamp());
+    }
+
+    @Benchmark
+    public char[] cachedUtcToBuffer() {
+        utcFormatter.format(nextTimeStamp(), buffer, 0);
+        return buffer;
+    }
+}
@@ -0,0 +1,115 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+
+/**
+ * {@link FlexiblePowerContext} for the benchmarks. Time is frozen at the moment of construction and scheduled tasks
+ * are never executed, so that only the bid construction itself is measured.
+ */
+public class BenchmarkContext implements FlexiblePowerContext {
+
+    private static class NoopFuture<V> implements ScheduledFuture<V> {
+        private volatile boolean cancelled = false;
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return 0;
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return 0;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return cancelled;
+        }
+
+        @Override
+        public V get() {
+            return null;
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) {
+            return null;
+        }
+    }
+
+    private final long now;
+
+    public BenchmarkContext(long now) {
+        this.now = now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public Date currentTime() {
+        return new Date(now);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return new NoopFuture<V>();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return new NoopFuture<Object>();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        return new NoopFuture<Object>();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        return new NoopFuture<Object>();
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return new NoopFuture<T>();
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return new NoopFuture<Object>();
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return new NoopFuture<T>();
+    }
+}
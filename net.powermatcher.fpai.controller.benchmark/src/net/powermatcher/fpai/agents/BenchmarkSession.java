@@ -0,0 +1,59 @@
+package net.powermatcher.fpai.agents;
+
+import net.powermatcher.api.Session;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.api.messages.BidUpdate;
+import net.powermatcher.api.messages.PriceUpdate;
+
+/**
+ * {@link Session} that connects a benchmarked agent to a fixed {@link MarketBasis} and discards all bids.
+ */
+public class BenchmarkSession implements Session {
+
+    private final MarketBasis marketBasis;
+
+    public BenchmarkSession(MarketBasis marketBasis) {
+        this.marketBasis = marketBasis;
+    }
+
+    @Override
+    public void updateBid(BidUpdate newBid) {
+    }
+
+    @Override
+    public String getAgentId() {
+        return "benchmark-agent";
+    }
+
+    @Override
+    public String getMatcherId() {
+        return "benchmark-matcher";
+    }
+
+    @Override
+    public String getClusterId() {
+        return "benchmark-cluster";
+    }
+
+    @Override
+    public String getSessionId() {
+        return "benchmark-session";
+    }
+
+    @Override
+    public MarketBasis getMarketBasis() {
+        return marketBasis;
+    }
+
+    @Override
+    public void setMarketBasis(MarketBasis marketBasis) {
+    }
+
+    @Override
+    public void updatePrice(PriceUpdate newPrice) {
+    }
+
+    @Override
+    public void disconnect() {
+    }
+}
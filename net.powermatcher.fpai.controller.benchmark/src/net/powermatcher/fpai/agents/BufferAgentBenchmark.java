@@ -0,0 +1,155 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Temperature;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+
+import org.flexiblepower.efi.buffer.Actuator;
+import org.flexiblepower.efi.buffer.ActuatorBehaviour;
+import org.flexiblepower.efi.buffer.ActuatorUpdate;
+import org.flexiblepower.efi.buffer.BufferRegistration;
+import org.flexiblepower.efi.buffer.BufferStateUpdate;
+import org.flexiblepower.efi.buffer.BufferSystemDescription;
+import org.flexiblepower.efi.buffer.BufferTargetProfileUpdate;
+import org.flexiblepower.efi.buffer.LeakageRate;
+import org.flexiblepower.efi.buffer.RunningModeBehaviour;
+import org.flexiblepower.efi.util.FillLevelFunction;
+import org.flexiblepower.efi.util.RunningMode;
+import org.flexiblepower.efi.util.TimerUpdate;
+import org.flexiblepower.efi.util.Transition;
+import org.flexiblepower.ral.values.CommodityMeasurables;
+import org.flexiblepower.ral.values.CommoditySet;
+import org.flexiblepower.ral.values.Constraint;
+import org.flexiblepower.ral.values.ConstraintProfile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link BufferAgent#createBid(net.powermatcher.api.AgentEndpoint.Status)} end-to-end: reachable running
+ * mode lookup, fill level function evaluation, priority calculation and {@link BufferBid} construction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BufferAgentBenchmark {
+
+    private static final double MAXIMUM_POWER_WATT = 2000;
+
+    @Param({ "10", "100", "1000" })
+    public int priceSteps;
+
+    @Param({ "2", "10", "100" })
+    public int runningModes;
+
+    /** When true the agent has received a target profile, so the priority is calculated by the TargetProfileHelper */
+    @Param({ "false", "true" })
+    public boolean targetProfile;
+
+    private BufferAgent<Temperature> agent;
+
+    @Setup
+    public void setup() {
+        MarketBasis marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 1);
+        BenchmarkContext context = new BenchmarkContext(System.currentTimeMillis());
+
+        agent = new BufferAgent<Temperature>(new NullMessageSender(), "benchmark-agent", "matcher");
+        agent.setContext(context);
+        agent.connectToMatcher(new BenchmarkSession(marketBasis));
+
+        BufferRegistration<Temperature> registration = new BufferRegistration<Temperature>("benchmark",
+                                                                                           context.currentTime(),
+                                                                                           Measure.zero(SI.SECOND),
+                                                                                           "Temperature",
+                                                                                           SI.CELSIUS,
+                                                                                           Collections.singletonList(new Actuator(0,
+                                                                                                                                  "HeatPump",
+                                                                                                                                  CommoditySet.onlyElectricity)));
+        agent.handleControlSpaceRegistration(registration);
+        agent.handleControlSpaceUpdate(systemDescription(registration, context.currentTime()));
+        agent.handleControlSpaceUpdate(new BufferStateUpdate<Temperature>(registration,
+                                                                          context.currentTime(),
+                                                                          context.currentTime(),
+                                                                          Measure.valueOf(60, SI.CELSIUS),
+                                                                          Collections.singleton(new ActuatorUpdate(0,
+                                                                                                                   0,
+                                                                                                                   Collections.<TimerUpdate> emptySet()))));
+        if (targetProfile) {
+            ConstraintProfile<Temperature> profile = ConstraintProfile.<Temperature> create()
+                                                                      .duration(Measure.valueOf(15 * 60, SI.SECOND))
+                                                                      .add(new Constraint<Temperature>(Measure.valueOf(80,
+                                                                                                                       SI.CELSIUS),
+                                                                                                       Measure.valueOf(100,
+                                                                                                                       SI.CELSIUS)))
+                                                                      .build();
+            Date validFrom = new Date(context.currentTimeMillis() + 60 * 60 * 1000);
+            agent.handleControlSpaceUpdate(new BufferTargetProfileUpdate<Temperature>(registration,
+                                                                                      context.currentTime(),
+                                                                                      validFrom,
+                                                                                      profile));
+        }
+    }
+
+    /**
+     * Creates a single actuator with the given number of running modes, of which running mode 0 is the current one
+     * and has a transition to all the others, so every running mode is reachable.
+     */
+    private BufferSystemDescription systemDescription(BufferRegistration<Temperature> registration, Date now) {
+        Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> modes = new ArrayList<RunningMode<FillLevelFunction<RunningModeBehaviour>>>();
+        for (int i = 0; i < runningModes; i++) {
+            double fraction = (double) i / (runningModes - 1);
+            RunningModeBehaviour behaviour = new RunningModeBehaviour(fraction * 0.01,
+                                                                      CommodityMeasurables.electricity(Measure.valueOf(fraction * MAXIMUM_POWER_WATT,
+                                                                                                                       SI.WATT)),
+                                                                      Measure.valueOf(0, NonSI.EUR_PER_HOUR));
+            FillLevelFunction<RunningModeBehaviour> function = FillLevelFunction.<RunningModeBehaviour> create(20)
+                                                                                .add(120, behaviour)
+                                                                                .build();
+            Set<Transition> transitions = new HashSet<Transition>();
+            if (i == 0) {
+                for (int j = 1; j < runningModes; j++) {
+                    transitions.add(Transition.create(j).build());
+                }
+            } else {
+                transitions.add(Transition.create(0).build());
+            }
+            modes.add(new RunningMode<FillLevelFunction<RunningModeBehaviour>>(i, "mode-" + i, function, transitions));
+        }
+        FillLevelFunction<LeakageRate> leakage = FillLevelFunction.<LeakageRate> create(20)
+                                                                  .add(120, new LeakageRate(-0.001))
+                                                                  .build();
+        return new BufferSystemDescription(registration,
+                                           now,
+                                           now,
+                                           Collections.singleton(new ActuatorBehaviour(0, modes)),
+                                           leakage);
+    }
+
+    @Benchmark
+    public Bid createBid() {
+        return agent.createBid(agent.getStatus());
+    }
+}
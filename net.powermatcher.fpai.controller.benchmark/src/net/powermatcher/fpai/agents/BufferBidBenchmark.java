@@ -0,0 +1,67 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.fpai.agents.BufferBid.BufferBidElement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link BufferBid} construction (including the mapping of every price step to a running mode) for varying
+ * market resolutions and numbers of running modes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BufferBidBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int priceSteps;
+
+    @Param({ "2", "10", "100" })
+    public int runningModes;
+
+    /** The priority as it is passed to the BufferBid, 0.0 gives the widest flexible area */
+    @Param({ "0.0", "0.8" })
+    public double priority;
+
+    private MarketBasis marketBasis;
+    private List<BufferBidElement> elements;
+
+    @Setup
+    public void setup() {
+        marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 1);
+        elements = new ArrayList<BufferBidElement>(runningModes);
+        for (int i = 0; i < runningModes; i++) {
+            // Spread the running modes evenly between -1 kW and 2 kW
+            elements.add(new BufferBidElement(0, i, -1000 + (3000.0 * i) / (runningModes - 1)));
+        }
+    }
+
+    @Benchmark
+    public BufferBid constructBid() {
+        return new BufferBid(marketBasis, elements, priority);
+    }
+
+    @Benchmark
+    public Bid constructAndConvertBid() {
+        return new BufferBid(marketBasis, elements, priority).toBid();
+    }
+}
@@ -0,0 +1,17 @@
+package net.powermatcher.fpai.agents;
+
+import net.powermatcher.fpai.controller.AgentMessageSender;
+
+/**
+ * {@link AgentMessageSender} that drops every message, used to isolate the agents from the resource managers.
+ */
+public class NullMessageSender implements AgentMessageSender {
+
+    @Override
+    public void destroyAgent() {
+    }
+
+    @Override
+    public void sendMessage(Object message) {
+    }
+}
@@ -0,0 +1,91 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.quantity.Power;
+import javax.measure.unit.SI;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+
+import org.flexiblepower.efi.timeshifter.SequentialProfile;
+import org.flexiblepower.efi.timeshifter.TimeShifterRegistration;
+import org.flexiblepower.efi.timeshifter.TimeShifterUpdate;
+import org.flexiblepower.ral.values.CommodityForecast;
+import org.flexiblepower.ral.values.CommoditySet;
+import org.flexiblepower.ral.values.UncertainMeasure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the flexible bid of the {@link TimeshifterAgent} (the agent is inside its start window, so
+ * {@link TimeshifterAgent#createBid(net.powermatcher.api.AgentEndpoint.Status)} ends up in constructFlexibleBid).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TimeshifterAgentBenchmark {
+
+    private static final long MINUTE_MS = 60 * 1000;
+
+    @Param({ "10", "100", "1000" })
+    public int priceSteps;
+
+    /** Number of one minute elements in the profile of the appliance */
+    @Param({ "10", "120" })
+    public int profileElements;
+
+    private TimeshifterAgent agent;
+
+    @Setup
+    public void setup() {
+        MarketBasis marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 1);
+        BenchmarkContext context = new BenchmarkContext(System.currentTimeMillis());
+
+        agent = new TimeshifterAgent(new NullMessageSender(), "benchmark-agent", "matcher");
+        agent.setContext(context);
+        agent.connectToMatcher(new BenchmarkSession(marketBasis));
+
+        agent.handleControlSpaceRegistration(new TimeShifterRegistration("benchmark",
+                                                                         context.currentTime(),
+                                                                         Measure.zero(SI.SECOND),
+                                                                         CommoditySet.onlyElectricity));
+
+        CommodityForecast.Builder builder = CommodityForecast.create();
+        builder.duration(Measure.valueOf(60, SI.SECOND));
+        for (int i = 0; i < profileElements; i++) {
+            builder.electricity(new UncertainMeasure<Power>(1000 + i, SI.WATT)).next();
+        }
+        SequentialProfile profile = new SequentialProfile(0, Measure.zero(SI.SECOND), builder.build());
+
+        // Flexible window started an hour ago and ends well after the profile could have finished
+        long now = context.currentTimeMillis();
+        Date validFrom = new Date(now - 60 * MINUTE_MS);
+        Date endBefore = new Date(now + (profileElements + 8 * 60) * MINUTE_MS);
+        agent.handleControlSpaceUpdate(new TimeShifterUpdate("benchmark",
+                                                             context.currentTime(),
+                                                             validFrom,
+                                                             endBefore,
+                                                             Collections.singletonList(profile)));
+    }
+
+    @Benchmark
+    public Bid createBid() {
+        return agent.createBid(agent.getStatus());
+    }
+}
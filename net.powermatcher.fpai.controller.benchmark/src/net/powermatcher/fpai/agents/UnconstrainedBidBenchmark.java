@@ -0,0 +1,62 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.powermatcher.api.data.Bid;
+import net.powermatcher.api.data.MarketBasis;
+import net.powermatcher.fpai.agents.UnconstrainedBid.UnconstrainedBidElement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link UnconstrainedBid} construction for varying market resolutions and numbers of running modes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class UnconstrainedBidBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int priceSteps;
+
+    @Param({ "2", "10", "100" })
+    public int runningModes;
+
+    private MarketBasis marketBasis;
+    private List<UnconstrainedBidElement> elements;
+
+    @Setup
+    public void setup() {
+        marketBasis = new MarketBasis("electricity", "EUR", priceSteps, 0, 1);
+        elements = new ArrayList<UnconstrainedBidElement>(runningModes);
+        for (int i = 0; i < runningModes; i++) {
+            // Spread the running modes evenly between -3 kW (production) and 0 W
+            elements.add(new UnconstrainedBidElement(i, (-3000.0 * i) / (runningModes - 1)));
+        }
+    }
+
+    @Benchmark
+    public UnconstrainedBid constructBid() {
+        return new UnconstrainedBid(elements, marketBasis);
+    }
+
+    @Benchmark
+    public Bid constructAndConvertBid() {
+        return new UnconstrainedBid(elements, marketBasis).toBid();
+    }
+}
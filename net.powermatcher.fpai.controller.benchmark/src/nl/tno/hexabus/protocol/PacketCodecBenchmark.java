@@ -0,0 +1,83 @@
+package nl.tno.hexabus.protocol;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the lookup table CRC of the {@link PacketCodec} with the bit by bit CRC it replaced, for a packet of the
+ * maximum size, and measures a query and its info response going through the codec and a reused buffer, which is what
+ * a gateway with many plugs does most. The allocation per packet is reported by the GC profiler.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+    private static final int PORT = 61616;
+
+    private byte[] bytes;
+    private Inet6Address address;
+    private PacketCodec codec;
+    private ByteBuffer buffer;
+    private Packet query;
+    private Packet info;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        bytes = new byte[Channel.MAX_PACKET_SIZE];
+        new Random(42).nextBytes(bytes);
+        address = (Inet6Address) InetAddress.getByName("fe80::1");
+        codec = new PacketCodec();
+        buffer = ByteBuffer.allocate(Channel.MAX_PACKET_SIZE);
+        query = new Packet.Query(address, PORT, 2);
+        info = new Packet.Info(address, PORT, new Data.Float(2, 123.4f));
+    }
+
+    /** The former PacketCodec.crc */
+    private static char bitwiseCrc(byte[] bytes, int offset, int limit) {
+        char crc = 0x00;
+        for (int ix = offset; ix < limit; ix++) {
+            byte b = bytes[ix];
+            crc ^= (b & 0xff);
+            crc = (char) ((crc >> 8) | (crc << 8));
+            crc ^= (crc & 0xff00) << 4;
+            crc ^= (crc >> 8) >> 4;
+            crc ^= (crc & 0xff00) >> 5;
+        }
+        return crc;
+    }
+
+    @Benchmark
+    public char bitwiseCrc() {
+        return bitwiseCrc(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public char tableCrc() {
+        return PacketCodec.crc(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public Packet queryAndInfo() {
+        codec.write(query, buffer);
+        codec.write(info, buffer);
+        return codec.read(address, PORT, buffer);
+    }
+}
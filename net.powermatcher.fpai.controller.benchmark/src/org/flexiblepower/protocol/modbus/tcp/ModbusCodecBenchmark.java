@@ -0,0 +1,97 @@
+package org.flexiblepower.protocol.modbus.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.flexiblepower.protocol.modbus.tcp.ModbusMessage.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes a read holding registers request and decodes it again, either into a reused {@link ModbusMessage}, which
+ * should not allocate anything, or into a new message from {@link ModbusMessage#decode(ReadableByteChannel)}. The
+ * encoded bytes go through an in-memory channel, so no socket is involved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ModbusCodecBenchmark {
+    /** Hands out the bytes of the last message that was put on it */
+    private static class WireChannel implements ReadableByteChannel {
+        private final ByteBuffer wire = ByteBuffer.allocate(ModbusMessage.MAX_LENGTH);
+
+        void fill(ByteBuffer message) {
+            wire.clear();
+            wire.put(message);
+            wire.flip();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!wire.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(dst.remaining(), wire.remaining());
+            int limit = wire.limit();
+            wire.limit(wire.position() + count);
+            dst.put(wire);
+            wire.limit(limit);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private WireChannel channel;
+    private ModbusMessage encoder;
+    private ModbusMessage decoder;
+    private int transactionId;
+
+    @Setup
+    public void setup() {
+        channel = new WireChannel();
+        encoder = ModbusMessage.allocate();
+        decoder = ModbusMessage.allocate();
+    }
+
+    private void encode() {
+        transactionId = (transactionId + 1) & 0xffff;
+        channel.fill(encoder.start(transactionId & 0xff, transactionId)
+                            .startData(Function.READ_HOLDING_REGISTER)
+                            .putWord(transactionId)
+                            .putWord(125)
+                            .finish());
+    }
+
+    @Benchmark
+    public ModbusMessage reusedMessage() throws IOException {
+        encode();
+        return decoder.read(channel);
+    }
+
+    @Benchmark
+    public ModbusMessage newMessage() throws IOException {
+        encode();
+        return ModbusMessage.decode(channel);
+    }
+}
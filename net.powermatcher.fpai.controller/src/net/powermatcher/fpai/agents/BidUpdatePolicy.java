@@ -0,0 +1,74 @@
+package net.powermatcher.fpai.agents;
+
+import net.powermatcher.api.data.Bid;
+
+/**
+ * Determines when an {@link FpaiAgent} sends a new bid. A bid is only sent when its demand differs more than the demand
+ * tolerance from the last bid that has been sent, and never sooner than the minimum interval after the last bid. A bid
+ * that is held back because of the minimum interval is sent at the end of the interval.
+ */
+public final class BidUpdatePolicy {
+
+    /** Sends every bid that differs from the last one, as soon as it is created */
+    public static final BidUpdatePolicy IMMEDIATE = new BidUpdatePolicy(0, 0);
+
+    private final double demandTolerance;
+    private final long minimumInterval;
+
+    /**
+     * @param demandTolerance
+     *            The maximum difference in Watt on any price step for which a bid is still considered the same as the
+     *            last bid
+     * @param minimumInterval
+     *            The minimum time in milliseconds between two bids of the same agent
+     */
+    public BidUpdatePolicy(double demandTolerance, long minimumInterval) {
+        if (demandTolerance < 0 || Double.isNaN(demandTolerance)) {
+            throw new IllegalArgumentException("demandTolerance should be 0 or more, was " + demandTolerance);
+        }
+        if (minimumInterval < 0) {
+            throw new IllegalArgumentException("minimumInterval should be 0 or more, was " + minimumInterval);
+        }
+        this.demandTolerance = demandTolerance;
+        this.minimumInterval = minimumInterval;
+    }
+
+    public double getDemandTolerance() {
+        return demandTolerance;
+    }
+
+    public long getMinimumInterval() {
+        return minimumInterval;
+    }
+
+    /**
+     * @return <code>true</code> when the new bid differs enough from the last bid that it should be sent
+     */
+    public boolean isChanged(Bid lastBid, Bid newBid) {
+        if (lastBid == null) {
+            return true;
+        } else if (newBid.equals(lastBid)) {
+            return false;
+        } else if (!newBid.getMarketBasis().equals(lastBid.getMarketBasis())) {
+            return true;
+        }
+
+        double[] lastDemand = lastBid.getDemand();
+        double[] newDemand = newBid.getDemand();
+        if (lastDemand.length != newDemand.length) {
+            return true;
+        }
+        for (int i = 0; i < newDemand.length; i++) {
+            // Written like this so that a NaN always counts as a change
+            if (!(Math.abs(newDemand[i] - lastDemand[i]) <= demandTolerance)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "BidUpdatePolicy [demandTolerance=" + demandTolerance + ", minimumInterval=" + minimumInterval + "]";
+    }
+}
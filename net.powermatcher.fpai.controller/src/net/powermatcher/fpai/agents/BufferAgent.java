@@ -2,9 +2,10 @@ package net.powermatcher.fpai.agents;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.measure.quantity.Quantity;
 import javax.measure.unit.SI;
@@ -47,9 +48,15 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
 
     private BufferRegistration<Q> registration;
     private Buffer<Q> bufferHelper;
-    private BufferBid lastBid;
+    /** The last bid that has been created, which is only published when the {@link BidUpdatePolicy} allows it */
+    private BufferBid createdBid;
+    private Bid createdBidValue;
+    /** The last bid that has been published, on which the received prices are based */
+    private BufferBid publishedBid;
     private BufferTargetProfileUpdate<Q> lastBufferTargetProfile;
     private BufferSystemDescription lastBufferSystemDescription;
+    /** Created when needed, reset when the target profile or system description changes */
+    private TargetProfileHelper<Q> targetProfileHelper;
 
     /**
      * Constructs an BufferAgent based on the given messageSender.
@@ -88,12 +95,14 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
         if (message instanceof BufferSystemDescription) {
             bufferHelper.processSystemDescription((BufferSystemDescription) message);
             lastBufferSystemDescription = (BufferSystemDescription) message;
+            targetProfileHelper = null;
             // A new SystemDescription does not trigger a bid update.
         } else if (message instanceof BufferStateUpdate) {
             bufferHelper.processStateUpdate((BufferStateUpdate<Q>) message);
             doBidUpdate();
         } else if (message instanceof BufferTargetProfileUpdate) {
             lastBufferTargetProfile = (BufferTargetProfileUpdate<Q>) message;
+            targetProfileHelper = null;
             doBidUpdate();
         } else if (message instanceof BufferUsageForecast) {
             // TODO
@@ -129,6 +138,7 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
     @Override
     public void handleControlSpaceRevoke(ControlSpaceRevoke message) {
         bufferHelper = new Buffer<Q>(registration); // Reset the helper
+        targetProfileHelper = null;
         if (lastBufferSystemDescription != null) {
             bufferHelper.processSystemDescription(lastBufferSystemDescription);
         }
@@ -152,22 +162,68 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
         double soc = bufferHelper.getCurrentFillFraction();
         double priority = calculatePriority(soc);
 
-        // TODO for now we only support one buffer actuator.
-        BufferActuator<Q> actuator = bufferHelper.getElectricalActuators().get(0);
-
+        double fillLevel = bufferHelper.getCurrentFillLevel().doubleValue(registration.getFillLevelUnit());
         Date now = now();
-        Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> runningModes = actuator.getReachableRunningModes(now);
 
-        if (runningModes.isEmpty()) {
-            LOGGER.error("No reachable running mode found, sending must off bid.");
+        List<List<BufferBidElement>> elementsPerActuator = new ArrayList<List<BufferBidElement>>();
+        for (BufferActuator<Q> actuator : bufferHelper.getElectricalActuators()) {
+            List<BufferBidElement> elements = createBidElements(actuator, fillLevel, now);
+            if (elements.isEmpty()) {
+                LOGGER.debug("No reachable running mode found for actuator {}, it is left out of the bid",
+                             actuator.getActuatorId());
+            } else {
+                elementsPerActuator.add(elements);
+            }
+        }
+
+        if (elementsPerActuator.isEmpty()) {
+            LOGGER.error("No reachable running mode was found for any actuator, sending must off bid.");
             return Bid.create(marketBasis).add(new PricePoint(marketBasis, 0, 0)).build();
         }
 
-        double fillLevel = bufferHelper.getCurrentFillLevel().doubleValue(registration.getFillLevelUnit());
+        List<BufferBidElement> elements;
+        if (elementsPerActuator.size() == 1) {
+            elements = elementsPerActuator.get(0);
+        } else {
+            elements = RunningModeCombiner.combine(elementsPerActuator, Math.max(2, marketBasis.getPriceSteps()));
+        }
+
+        createdBid = new BufferBid(marketBasis, elements, priority);
+        createdBidValue = createdBid.toBid();
+        return createdBidValue;
+    }
+
+    @Override
+    protected void bidPublished(Bid bid) {
+        // Zero and must off bids have no running modes, so no allocation can be based on them
+        publishedBid = bid == createdBidValue ? createdBid : null;
+        LOGGER.info("Sent bid");
+    }
+
+    /**
+     * Determines the demand of each of the reachable running modes of an actuator at the current fill level.
+     *
+     * @param actuator
+     *            The electrical actuator
+     * @param currentFillLevel
+     *            The current fill level of the buffer
+     * @param now
+     *            The current time, used to determine which running modes are reachable
+     * @return A {@link BufferBidElement} for each running mode that can be used at the current fill level. This list
+     *         is empty when the actuator has no options.
+     */
+    private List<BufferBidElement> createBidElements(BufferActuator<Q> actuator, double currentFillLevel, Date now) {
+        Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> runningModes = actuator.getReachableRunningModes(now);
+        List<BufferBidElement> elements = new ArrayList<BufferBidElement>(runningModes.size());
+        if (runningModes.isEmpty()) {
+            return elements;
+        }
+
+        double fillLevel = currentFillLevel;
         final double minimum = actuator.getMinimumFillLevel();
         if (fillLevel < minimum) {
             LOGGER.info("Fill level is below minimum of this actuator's running modes. Assuming minimum fill level.");
-            fillLevel = actuator.getMinimumFillLevel();
+            fillLevel = minimum;
         }
 
         final double maximum = actuator.getMaximumFillLevel();
@@ -176,12 +232,8 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
             fillLevel = maximum;
         }
 
-        List<BufferBidElement> elements = new ArrayList<BufferBidElement>();
         for (RunningMode<FillLevelFunction<RunningModeBehaviour>> rm : runningModes) {
             try {
-                if (fillLevel < actuator.getMinimumFillLevel()) {
-                    throw new IllegalArgumentException("The current fill level is below the minimum fill level of this actuator, so this running mode is not an option.");
-                }
                 double demandWatt = rm.getValue()
                                       .getRangeElementForFillLevel(fillLevel)
                                       .getValue()
@@ -189,34 +241,26 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
                                       .get(Commodity.ELECTRICITY)
                                       .doubleValue(SI.WATT);
 
-                BufferBidElement bbe = new BufferBidElement(actuator.getActuatorId(), rm.getId(), demandWatt);
-                elements.add(bbe);
+                elements.add(new BufferBidElement(actuator.getActuatorId(), rm.getId(), demandWatt));
             } catch (IllegalArgumentException e) {
-                // do nothing and continue.
+                // The running mode is not defined for this fill level, do nothing and continue.
             }
         }
-
-        if (elements.isEmpty()) {
-            LOGGER.debug("Due to fill level no reachable running mode was found, sending must off bid.");
-            return Bid.create(marketBasis).add(new PricePoint(marketBasis, 0, 0)).build();
-        }
-
-        // TODO: Check for concurrency problems with lastBid...
-        lastBid = new BufferBid(marketBasis, elements, priority);
-        LOGGER.info("Sending bid");
-        return lastBid.toBid();
+        return elements;
     }
 
     private double calculatePriority(double soc) {
         if (lastBufferTargetProfile != null) {
-            TargetProfileHelper<Q> target = new TargetProfileHelper<Q>(lastBufferTargetProfile,
-                                                                       lastBufferTargetProfile.getTargetProfile(),
-                                                                       registration,
-                                                                       lastBufferSystemDescription,
-                                                                       bufferHelper);
+            if (targetProfileHelper == null) {
+                targetProfileHelper = new TargetProfileHelper<Q>(lastBufferTargetProfile,
+                                                                 lastBufferTargetProfile.getTargetProfile(),
+                                                                 registration,
+                                                                 lastBufferSystemDescription,
+                                                                 bufferHelper);
+            }
             Date now = now();
-            if (target.targetIsValid(now)) {
-                return target.calculatePriority(now);
+            if (targetProfileHelper.targetIsValid(now)) {
+                return targetProfileHelper.calculatePriority(now);
             } else {
                 LOGGER.warn("Target is not valid, using normal bidding strategy");
             }
@@ -227,16 +271,19 @@ public class BufferAgent<Q extends Quantity> extends FpaiAgent {
 
     @Override
     protected void handlePriceUpdate(Price newPrice) {
-        if (lastBid != null && lastBufferSystemDescription != null) {
-            BufferBidElement runningMode = lastBid.runningModeForPrice(newPrice);
+        if (publishedBid != null && lastBufferSystemDescription != null) {
+            BufferBidElement runningModes = publishedBid.runningModeForPrice(newPrice);
             Date now = now();
-            ActuatorAllocation actuatorAllocation = new ActuatorAllocation(runningMode.getActuatorId(),
-                                                                           runningMode.getRunningModeId(),
-                                                                           now);
+            Set<ActuatorAllocation> actuatorAllocations = new HashSet<ActuatorAllocation>();
+            for (int i = 0; i < runningModes.getActuatorCount(); i++) {
+                actuatorAllocations.add(new ActuatorAllocation(runningModes.getActuatorId(i),
+                                                               runningModes.getRunningModeId(i),
+                                                               now));
+            }
             BufferAllocation allocation = new BufferAllocation(lastBufferSystemDescription,
                                                                now,
                                                                false,
-                                                               Collections.singleton(actuatorAllocation));
+                                                               actuatorAllocations);
             LOGGER.info("Sending allocation " + allocation);
             messageSender.sendMessage(allocation);
         } else {
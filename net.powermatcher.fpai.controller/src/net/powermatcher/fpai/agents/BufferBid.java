@@ -1,5 +1,6 @@
 package net.powermatcher.fpai.agents;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.TreeSet;
@@ -15,33 +16,76 @@ import net.powermatcher.api.data.Price;
 public class BufferBid {
 
     /**
-     * An inner class describing elements of the bid. It has one actuator, the runningmode the pricefraction and the
-     * demand.
+     * An inner class describing elements of the bid. It has one or more actuators, the runningmode that each of them
+     * should go to and the total demand.
      */
     protected static class BufferBidElement implements Comparable<BufferBidElement> {
 
-        private final int actuatorId;
-        private final int runningModeId;
+        private final int[] actuatorIds;
+        private final int[] runningModeIds;
         private final double demandWatt;
 
         public BufferBidElement(int actuatorId, int runningModeId, double demandWatt) {
-            this.actuatorId = actuatorId;
-            this.runningModeId = runningModeId;
+            this(new int[] { actuatorId }, new int[] { runningModeId }, demandWatt);
+        }
+
+        private BufferBidElement(int[] actuatorIds, int[] runningModeIds, double demandWatt) {
+            this.actuatorIds = actuatorIds;
+            this.runningModeIds = runningModeIds;
             this.demandWatt = demandWatt;
         }
 
+        /**
+         * @return The identifier of the (first) actuator of this element
+         */
         public int getActuatorId() {
-            return actuatorId;
+            return actuatorIds[0];
         }
 
+        /**
+         * @return The runningmode of the (first) actuator of this element
+         */
         public int getRunningModeId() {
-            return runningModeId;
+            return runningModeIds[0];
+        }
+
+        /**
+         * @return The number of actuators that are combined in this element
+         */
+        public int getActuatorCount() {
+            return actuatorIds.length;
+        }
+
+        public int getActuatorId(int index) {
+            return actuatorIds[index];
+        }
+
+        public int getRunningModeId(int index) {
+            return runningModeIds[index];
         }
 
         public double getDemandWatt() {
             return demandWatt;
         }
 
+        /**
+         * Combines this element with the element of another actuator. The result has the runningmodes of both and the
+         * sum of their demand.
+         *
+         * @param other
+         *            The element of the other actuator(s)
+         * @return The combined element
+         */
+        public BufferBidElement combine(BufferBidElement other) {
+            int[] ids = new int[actuatorIds.length + other.actuatorIds.length];
+            int[] modes = new int[ids.length];
+            System.arraycopy(actuatorIds, 0, ids, 0, actuatorIds.length);
+            System.arraycopy(other.actuatorIds, 0, ids, actuatorIds.length, other.actuatorIds.length);
+            System.arraycopy(runningModeIds, 0, modes, 0, runningModeIds.length);
+            System.arraycopy(other.runningModeIds, 0, modes, runningModeIds.length, other.runningModeIds.length);
+            return new BufferBidElement(ids, modes, demandWatt + other.demandWatt);
+        }
+
         @Override
         public int compareTo(BufferBidElement o) {
             // Sort from high demand to low demand
@@ -50,23 +94,32 @@ public class BufferBid {
 
         @Override
         public String toString() {
-            return "BufferBidElement [actuatorId=" + actuatorId
-                   + ", runningModeId="
-                   + runningModeId
-                   + ", demandWatt="
-                   + demandWatt
-                   + "]";
+            if (actuatorIds.length == 1) {
+                return "BufferBidElement [actuatorId=" + actuatorIds[0]
+                       + ", runningModeId="
+                       + runningModeIds[0]
+                       + ", demandWatt="
+                       + demandWatt
+                       + "]";
+            } else {
+                return "BufferBidElement [actuatorIds=" + Arrays.toString(actuatorIds)
+                       + ", runningModeIds="
+                       + Arrays.toString(runningModeIds)
+                       + ", demandWatt="
+                       + demandWatt
+                       + "]";
+            }
         }
 
         @Override
         public int hashCode() {
             final int prime = 31;
             int result = 1;
-            result = prime * result + actuatorId;
+            result = prime * result + Arrays.hashCode(actuatorIds);
             long temp;
             temp = Double.doubleToLongBits(demandWatt);
             result = prime * result + (int) (temp ^ (temp >>> 32));
-            result = prime * result + runningModeId;
+            result = prime * result + Arrays.hashCode(runningModeIds);
             return result;
         }
 
@@ -82,13 +135,13 @@ public class BufferBid {
                 return false;
             }
             BufferBidElement other = (BufferBidElement) obj;
-            if (actuatorId != other.actuatorId) {
+            if (!Arrays.equals(actuatorIds, other.actuatorIds)) {
                 return false;
             }
             if (Double.doubleToLongBits(demandWatt) != Double.doubleToLongBits(other.demandWatt)) {
                 return false;
             }
-            if (runningModeId != other.runningModeId) {
+            if (!Arrays.equals(runningModeIds, other.runningModeIds)) {
                 return false;
             }
             return true;
@@ -97,7 +150,11 @@ public class BufferBid {
 
     private final TreeSet<BufferBidElement> elements;
     private final MarketBasis marketBasis;
+    /** The elements sorted from high to low demand, with their demand in a separate primitive array */
+    private final BufferBidElement[] sortedElements;
+    private final double[] sortedDemand;
     private BufferBidElement[] bufferBid;
+    private double[] demand;
     private final double priority;
 
     /**
@@ -136,6 +193,11 @@ public class BufferBid {
         }
         this.elements = new TreeSet<BufferBidElement>();
         this.elements.addAll(elements);
+        sortedElements = this.elements.toArray(new BufferBidElement[this.elements.size()]);
+        sortedDemand = new double[sortedElements.length];
+        for (int i = 0; i < sortedElements.length; i++) {
+            sortedDemand[i] = sortedElements[i].demandWatt;
+        }
         this.priority = Math.pow(priority, 3); // TODO is this a good value?
         this.marketBasis = marketBasis;
         constructBid();
@@ -143,8 +205,8 @@ public class BufferBid {
 
     private void constructBid() {
         Bid rawBid;
-        double maxDemand = elements.first().demandWatt;
-        double minDemand = elements.last().demandWatt;
+        double maxDemand = sortedDemand[0];
+        double minDemand = sortedDemand[sortedDemand.length - 1];
 
         if (priority >= 1.0) {
             rawBid = Bid.flatDemand(marketBasis, maxDemand);
@@ -169,27 +231,17 @@ public class BufferBid {
                         .build();
         }
 
-        // Now construct actual bid
+        // Now construct actual bid, by snapping each price step to the closest running mode
         double[] rawDemand = rawBid.getDemand();
+        int[] closest = DemandLookup.closestIndices(sortedDemand, rawDemand);
         bufferBid = new BufferBidElement[rawDemand.length];
+        demand = new double[rawDemand.length];
         for (int i = 0; i < rawDemand.length; i++) {
-            bufferBid[i] = getClosest(rawDemand[i]);
+            bufferBid[i] = sortedElements[closest[i]];
+            demand[i] = sortedDemand[closest[i]];
         }
     }
 
-    private BufferBidElement getClosest(double demandWatt) {
-        BufferBidElement best = null;
-        double bestDistance = Double.MAX_VALUE;
-        for (BufferBidElement e : elements) {
-            double distance = Math.abs(demandWatt - e.demandWatt);
-            if (best == null || distance < bestDistance) {
-                best = e;
-                bestDistance = distance;
-            }
-        }
-        return best;
-    }
-
     /**
      * Returns the index that comes closest to the price
      *
@@ -203,15 +255,11 @@ public class BufferBid {
     }
 
     public Bid toBid() {
-        double[] demand = new double[bufferBid.length];
-        for (int i = 0; i < bufferBid.length; i++) {
-            demand[i] = bufferBid[i].demandWatt;
-        }
-        return new Bid(marketBasis, demand);
+        return new Bid(marketBasis, demand.clone());
     }
 
     /**
-     * Given a PriceInfo object, the BufferBidElement is returned that expresses which actuator should go into which
+     * Given a PriceInfo object, the BufferBidElement is returned that expresses which actuators should go into which
      * RunningMode.
      *
      * @param price
@@ -0,0 +1,47 @@
+package net.powermatcher.fpai.agents;
+
+/**
+ * Helper for mapping the demand values of a continuous bid curve onto a discrete set of demand values (e.g. the
+ * demand of the available running modes).
+ */
+final class DemandLookup {
+
+    private DemandLookup() {
+        // Utility class
+    }
+
+    /**
+     * Finds for every value in <code>demand</code> the index of the closest value in <code>sortedDemand</code>. When
+     * two values are equally close, the one with the lowest index (the highest demand) is chosen.
+     * <p>
+     * The demand array of a {@link net.powermatcher.api.data.Bid} is non-increasing, so the closest index can only
+     * move forward. This makes the lookup a single sweep over both arrays, which runs in
+     * O(demand.length + sortedDemand.length). Should the demand increase anyway, the sweep restarts at the first
+     * value, which still gives the correct answer.
+     *
+     * @param sortedDemand
+     *            The discrete demand values, sorted from high to low without duplicates. May not be empty.
+     * @param demand
+     *            The demand values that should be looked up
+     * @return An array with the same length as <code>demand</code>, containing indexes in <code>sortedDemand</code>
+     */
+    static int[] closestIndices(double[] sortedDemand, double[] demand) {
+        int[] result = new int[demand.length];
+        int last = sortedDemand.length - 1;
+        int index = 0;
+        double previous = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < demand.length; i++) {
+            double value = demand[i];
+            if (!(value <= previous)) {
+                // Not sorted (or NaN), start looking from the beginning again
+                index = 0;
+            }
+            while (index < last && Math.abs(value - sortedDemand[index + 1]) < Math.abs(value - sortedDemand[index])) {
+                index++;
+            }
+            result[i] = index;
+            previous = value;
+        }
+        return result;
+    }
+}
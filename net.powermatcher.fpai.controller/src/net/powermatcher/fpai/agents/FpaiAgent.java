@@ -1,11 +1,17 @@
 package net.powermatcher.fpai.agents;
 
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
 import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.Price;
 import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.messages.PriceUpdate;
 import net.powermatcher.core.BaseAgentEndpoint;
+import net.powermatcher.fpai.controller.AgentMailbox;
 import net.powermatcher.fpai.controller.AgentMessageSender;
 
 import org.flexiblepower.ral.messages.AllocationStatusUpdate;
@@ -17,11 +23,39 @@ import org.flexiblepower.ral.messages.ControlSpaceUpdate;
  * Provides the common logic, interfaces and fields for all types of FpaiAgents, like Buffer agents and Unconstrained
  * agents.
  *
+ * When an {@link AgentMailbox} has been set, price updates and scheduled bid updates are executed through it, in the
+ * same lane as the EFI messages. The agent itself is therefore never accessed by more than one thread at a time and
+ * does not need any locking. Without a mailbox (e.g. in tests) everything is executed directly.
+ *
+ * Which of the created bids are actually sent is determined by the {@link BidUpdatePolicy} of the agent.
  */
 public abstract class FpaiAgent extends BaseAgentEndpoint implements Comparable<FpaiAgent> {
 
+    /** Key for coalescing requested bid updates in the mailbox */
+    private static final Object BID_UPDATE_KEY = new Object();
+
+    /** Key for coalescing the flushes of held back bids in the mailbox */
+    private static final Object BID_FLUSH_KEY = new Object();
+
     final AgentMessageSender messageSender;
 
+    private volatile AgentMailbox mailbox;
+
+    private volatile BidUpdatePolicy bidUpdatePolicy = BidUpdatePolicy.IMMEDIATE;
+
+    /** Time in milliseconds at which the last bid has been sent */
+    private long lastBidTime;
+
+    /**
+     * Future of the flush of a bid that has been held back because of the minimum interval. Volatile, because without
+     * a mailbox the flush runs on the thread of the scheduler.
+     */
+    private volatile ScheduledFuture<?> bidFlush = null;
+
+    // Only written from within the mailbox, read by the statistics
+    private volatile long sentBids = 0;
+    private volatile long suppressedBids = 0;
+
     /**
      * Constructs an FpaiAgent based on the given messageSender.
      *
@@ -75,22 +109,167 @@ public abstract class FpaiAgent extends BaseAgentEndpoint implements Comparable<
 
     protected abstract Bid createBid(AgentEndpoint.Status currentStatus);
 
-    protected synchronized void doBidUpdate() {
+    /**
+     * Is called after a bid has been published, which may be an earlier bid than the last one created by
+     * {@link #createBid(AgentEndpoint.Status)}, or none at all, because of the {@link BidUpdatePolicy}. Agents that
+     * translate prices into allocations should use the bid that has been published here, as that is the bid the
+     * prices are based on.
+     *
+     * @param bid
+     *            The bid that has been published
+     */
+    protected void bidPublished(Bid bid) {
+    }
+
+    /**
+     * Sets the mailbox through which price updates and requested bid updates are executed. This should be set before
+     * the agent is made available to the PowerMatcher.
+     *
+     * @param mailbox
+     *            The mailbox of this agent
+     */
+    public void setMailbox(AgentMailbox mailbox) {
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * Executes the task in the mailbox of this agent, or directly when there is no mailbox.
+     *
+     * @param key
+     *            The key that is used for coalescing the task with a waiting task, may be <code>null</code>
+     * @param task
+     *            The task that should be executed
+     */
+    protected void execute(Object key, Runnable task) {
+        AgentMailbox currentMailbox = mailbox;
+        if (currentMailbox == null) {
+            task.run();
+        } else {
+            currentMailbox.post(key, task);
+        }
+    }
+
+    /**
+     * Requests a bid update from outside the mailbox (e.g. from a scheduled task). Multiple requests that are waiting
+     * are combined into one.
+     */
+    protected void requestBidUpdate() {
+        execute(BID_UPDATE_KEY, new Runnable() {
+            @Override
+            public void run() {
+                doBidUpdate();
+            }
+        });
+    }
+
+    /**
+     * Sets the policy that determines which of the created bids are sent.
+     *
+     * @param bidUpdatePolicy
+     *            The new policy
+     */
+    public void setBidUpdatePolicy(BidUpdatePolicy bidUpdatePolicy) {
+        if (bidUpdatePolicy == null) {
+            throw new NullPointerException("bidUpdatePolicy");
+        }
+        this.bidUpdatePolicy = bidUpdatePolicy;
+    }
+
+    public BidUpdatePolicy getBidUpdatePolicy() {
+        return bidUpdatePolicy;
+    }
+
+    /**
+     * @return The number of bids that have been sent
+     */
+    public long getSentBids() {
+        return sentBids;
+    }
+
+    /**
+     * @return The number of created bids that have not been sent, because they did not differ enough from the last bid
+     *         or because they were superseded by a newer bid within the minimum interval
+     */
+    public long getSuppressedBids() {
+        return suppressedBids;
+    }
+
+    protected void doBidUpdate() {
         AgentEndpoint.Status currentStatus = getStatus();
-        if (currentStatus.isConnected()) {
-            Bid bid = createBid(currentStatus);
-            BidUpdate lastBidUpdate = getLastBidUpdate();
-            if (bid != null && (lastBidUpdate == null || !bid.equals(lastBidUpdate.getBid()))) {
-                publishBid(bid);
+        if (!currentStatus.isConnected()) {
+            return;
+        }
+        Bid bid = createBid(currentStatus);
+        if (bid == null) {
+            return;
+        }
+
+        BidUpdatePolicy policy = bidUpdatePolicy;
+        BidUpdate lastBidUpdate = getLastBidUpdate();
+        if (!policy.isChanged(lastBidUpdate == null ? null : lastBidUpdate.getBid(), bid)) {
+            // The last bid still holds, so a bid that was held back is not needed anymore
+            suppressedBids++;
+            cancelBidFlush();
+            return;
+        }
+
+        long now = context == null ? 0 : context.currentTimeMillis();
+        long nextBidTime = lastBidTime + policy.getMinimumInterval();
+        if (lastBidUpdate == null || policy.getMinimumInterval() == 0 || context == null || now >= nextBidTime) {
+            cancelBidFlush();
+            publishBid(bid);
+            lastBidTime = now;
+            sentBids++;
+            bidPublished(bid);
+        } else {
+            // Too soon, the latest bid will be created again at the end of the interval
+            suppressedBids++;
+            if (bidFlush == null) {
+                bidFlush = context.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute(BID_FLUSH_KEY, new Runnable() {
+                            @Override
+                            public void run() {
+                                bidFlush = null;
+                                doBidUpdate();
+                            }
+                        });
+                    }
+                }, Measure.valueOf(nextBidTime - now, SI.MILLI(SI.SECOND)));
             }
         }
     }
 
+    private void cancelBidFlush() {
+        ScheduledFuture<?> flush = bidFlush;
+        if (flush != null) {
+            flush.cancel(false);
+            bidFlush = null;
+        }
+    }
+
+    @Override
+    public void deactivate() {
+        cancelBidFlush();
+        super.deactivate();
+    }
+
     /**
-     * Updates the internal PowerMatcher price field and calls the priceUpdated method to handle the new price.
+     * Updates the internal PowerMatcher price field and calls the priceUpdated method to handle the new price. This is
+     * done in the mailbox of the agent, where a newer price update replaces a waiting one.
      */
     @Override
-    public synchronized final void handlePriceUpdate(PriceUpdate priceUpdate) {
+    public final void handlePriceUpdate(final PriceUpdate priceUpdate) {
+        execute(PriceUpdate.class, new Runnable() {
+            @Override
+            public void run() {
+                processPriceUpdate(priceUpdate);
+            }
+        });
+    }
+
+    private void processPriceUpdate(PriceUpdate priceUpdate) {
         super.handlePriceUpdate(priceUpdate);
         if (getLastBidUpdate() == null) {
             LOGGER.info("Ignoring price update while no bid has been sent");
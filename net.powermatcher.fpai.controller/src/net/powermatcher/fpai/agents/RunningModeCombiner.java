@@ -0,0 +1,95 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import net.powermatcher.fpai.agents.BufferBid.BufferBidElement;
+
+/**
+ * Combines the reachable runningmodes of several actuators of one buffer into {@link BufferBidElement}s that each
+ * describe a runningmode for every actuator.
+ * <p>
+ * The number of combinations grows exponentially with the number of actuators, so after adding each actuator the
+ * combinations are pruned:
+ * <ul>
+ * <li>Only one combination is kept for each total demand. For the bid only the demand matters, so the others are
+ * dominated by it. Of the equivalent combinations the first one (in the order of the given runningmodes) is kept.</li>
+ * <li>When there are still more than the allowed number of combinations, only the combinations closest to evenly
+ * spaced demand values are kept. The combinations with the lowest and highest demand are always kept, so the range of
+ * the bid is not affected.</li>
+ * </ul>
+ */
+final class RunningModeCombiner {
+
+    private RunningModeCombiner() {
+        // Utility class
+    }
+
+    /**
+     * @param elementsPerActuator
+     *            For each actuator the {@link BufferBidElement}s of its reachable runningmodes. Actuators without any
+     *            element should be left out.
+     * @param maximumCombinations
+     *            The maximum number of combinations that is kept, should be at least 2. A sensible value is the number
+     *            of price steps of the market basis, as more distinct demand values cannot be expressed in a bid.
+     * @return The combined elements, sorted from high to low demand
+     */
+    static List<BufferBidElement> combine(List<? extends Collection<BufferBidElement>> elementsPerActuator,
+                                          int maximumCombinations) {
+        if (elementsPerActuator.isEmpty()) {
+            throw new IllegalArgumentException("At least one actuator is needed");
+        }
+        if (maximumCombinations < 2) {
+            throw new IllegalArgumentException("maximumCombinations should be at least 2");
+        }
+
+        List<BufferBidElement> combinations = prune(elementsPerActuator.get(0), maximumCombinations);
+        for (int i = 1; i < elementsPerActuator.size(); i++) {
+            Collection<BufferBidElement> next = elementsPerActuator.get(i);
+            List<BufferBidElement> candidates = new ArrayList<BufferBidElement>(combinations.size() * next.size());
+            for (BufferBidElement combination : combinations) {
+                for (BufferBidElement element : next) {
+                    candidates.add(combination.combine(element));
+                }
+            }
+            combinations = prune(candidates, maximumCombinations);
+        }
+        return combinations;
+    }
+
+    private static List<BufferBidElement> prune(Collection<BufferBidElement> candidates, int maximumCombinations) {
+        // The TreeSet compares on demand only, so this keeps the first combination for each demand value
+        TreeSet<BufferBidElement> distinct = new TreeSet<BufferBidElement>();
+        distinct.addAll(candidates);
+        List<BufferBidElement> sorted = new ArrayList<BufferBidElement>(distinct);
+        if (sorted.size() <= maximumCombinations) {
+            return sorted;
+        }
+
+        double[] sortedDemand = new double[sorted.size()];
+        for (int i = 0; i < sortedDemand.length; i++) {
+            sortedDemand[i] = sorted.get(i).getDemandWatt();
+        }
+        double max = sortedDemand[0];
+        double min = sortedDemand[sortedDemand.length - 1];
+        double[] targets = new double[maximumCombinations];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = max - (max - min) * i / (targets.length - 1);
+        }
+        targets[targets.length - 1] = min;
+
+        int[] closest = DemandLookup.closestIndices(sortedDemand, targets);
+        List<BufferBidElement> result = new ArrayList<BufferBidElement>(maximumCombinations);
+        int previous = -1;
+        for (int index : closest) {
+            // The indexes are non-decreasing, because the targets are
+            if (index != previous) {
+                result.add(sorted.get(index));
+                previous = index;
+            }
+        }
+        return result;
+    }
+}
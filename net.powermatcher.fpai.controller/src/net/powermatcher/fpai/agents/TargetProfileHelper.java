@@ -1,6 +1,5 @@
 package net.powermatcher.fpai.agents;
 
-import java.util.Collection;
 import java.util.Date;
 
 import javax.measure.quantity.Quantity;
@@ -17,35 +16,51 @@ import org.flexiblepower.efi.util.FillLevelFunction.RangeElement;
 import org.flexiblepower.efi.util.RunningMode;
 import org.flexiblepower.ral.values.ConstraintProfile;
 
+/**
+ * Calculates the priority of a buffer that has to reach a target profile. Everything that only depends on the
+ * {@link BufferSystemDescription} and the {@link BufferTargetProfileUpdate} (the bounds of the target and the fastest
+ * net filling rates) is calculated once in the constructor, so an instance should be kept until one of those is
+ * replaced. The current fill level is always taken from the {@link Buffer} helper.
+ *
+ * @param <Q>
+ *            The physical quantity of the fill level of the buffer
+ */
 public class TargetProfileHelper<Q extends Quantity> {
 
     private final Date startDate;
-    private final ConstraintProfile<Q> profile;
     private final BufferRegistration<Q> bufferRegistration;
-    private final BufferSystemDescription bufferSystemDescription;
-    private final ActuatorBehaviour actuator;
     private final Buffer<Q> bufferHelper;
+    private final double targetLowerBound;
+    private final double targetUpperBound;
+    /** Net filling rate (including leakage) of the fastest charging running mode */
+    private final double fastestChargingRate;
+    /** Net filling rate (including leakage) of the fastest discharging running mode */
+    private final double fastestDischargingRate;
 
     public TargetProfileHelper(BufferTargetProfileUpdate<Q> targetProfile,
                                ConstraintProfile<Q> profile,
                                BufferRegistration<Q> bufferRegistration,
                                BufferSystemDescription bufferSystemDescription,
                                Buffer<Q> bufferHelper) {
-        this.profile = profile;
         this.bufferRegistration = bufferRegistration;
-        this.bufferSystemDescription = bufferSystemDescription;
         this.startDate = targetProfile.getValidFrom();
         this.bufferHelper = bufferHelper;
-        // TODO we assume one actuator for now
-        this.actuator = bufferSystemDescription.getActuators().iterator().next();
-    }
+        targetLowerBound = profile.get(0).getValue().getLowerBound().doubleValue(bufferRegistration.getFillLevelUnit());
+        targetUpperBound = profile.get(0).getValue().getUpperBound().doubleValue(bufferRegistration.getFillLevelUnit());
 
-    private double getTargetLowerBound() {
-        return profile.get(0).getValue().getLowerBound().doubleValue(bufferRegistration.getFillLevelUnit());
-    }
-
-    private double getTargetUpperBound() {
-        return profile.get(0).getValue().getUpperBound().doubleValue(bufferRegistration.getFillLevelUnit());
+        // TODO we assume one actuator for now
+        ActuatorBehaviour actuator = bufferSystemDescription.getActuators().iterator().next();
+        double leakage = averageLeakage(bufferSystemDescription.getBufferLeakage());
+        double maximumFillingRate = -Double.MAX_VALUE;
+        double minimumFillingRate = Double.MAX_VALUE;
+        for (RunningMode<FillLevelFunction<RunningModeBehaviour>> rm : actuator.getRunningModes()) {
+            double rate = averageFillingRate(rm);
+            maximumFillingRate = Math.max(maximumFillingRate, rate);
+            minimumFillingRate = Math.min(minimumFillingRate, rate);
+        }
+        // TODO add bufferForecast?
+        fastestChargingRate = maximumFillingRate + leakage;
+        fastestDischargingRate = minimumFillingRate + leakage;
     }
 
     public long timeToTarget(Date now) {
@@ -73,14 +88,13 @@ public class TargetProfileHelper<Q extends Quantity> {
 
     public double getMinimumFillLevelForTarget(Date now) {
         double bufferMinimum = bufferHelper.getMinimumFillLevel();
-        double targetMinimum = getTargetLowerBound();
+        double targetMinimum = targetLowerBound;
         if (targetMinimum <= bufferMinimum) {
             // Target is not restrictive
             return bufferMinimum;
         }
         double toCharge = targetMinimum - bufferMinimum;
-        RunningMode<FillLevelFunction<RunningModeBehaviour>> rm = getFastestChargingRunningMode(actuator.getRunningModes());
-        double fillingRate = netFillingRate(rm, bufferSystemDescription.getBufferLeakage());
+        double fillingRate = fastestChargingRate;
         if (fillingRate <= 0) {
             // The "deadline line" is horizontal
             return targetMinimum;
@@ -104,14 +118,13 @@ public class TargetProfileHelper<Q extends Quantity> {
 
     public double getMaximumFillLevelForTarget(Date now) {
         double bufferMaximum = bufferHelper.getMaximumFillLevel();
-        double targetMaximum = getTargetUpperBound();
+        double targetMaximum = targetUpperBound;
         if (targetMaximum >= bufferMaximum) {
             // Target is not restrictive
             return bufferMaximum;
         }
         double toDischarge = bufferMaximum - targetMaximum;
-        RunningMode<FillLevelFunction<RunningModeBehaviour>> rm = getFastestDischargingRunningMode(actuator.getRunningModes());
-        double fillingRate = netFillingRate(rm, bufferSystemDescription.getBufferLeakage());
+        double fillingRate = fastestDischargingRate;
         if (fillingRate >= 0) {
             // The "deadline line" is horizontal
             return targetMaximum;
@@ -153,39 +166,4 @@ public class TargetProfileHelper<Q extends Quantity> {
         }
         return sum / totalRange;
     }
-
-    private static double netFillingRate(RunningMode<FillLevelFunction<RunningModeBehaviour>> rm,
-                                         FillLevelFunction<LeakageRate> leakage) {
-        // TODO add bufferForecast?
-        return averageFillingRate(rm) + averageLeakage(leakage);
-    }
-
-    private RunningMode<FillLevelFunction<RunningModeBehaviour>>
-            getFastestChargingRunningMode(Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> rms) {
-        RunningMode<FillLevelFunction<RunningModeBehaviour>> best = null;
-        double bestFillingRate = -Double.MAX_VALUE;
-        for (RunningMode<FillLevelFunction<RunningModeBehaviour>> rm : rms) {
-            double rate = netFillingRate(rm, bufferSystemDescription.getBufferLeakage());
-            if (rate > bestFillingRate) {
-                bestFillingRate = rate;
-                best = rm;
-            }
-        }
-        return best;
-    }
-
-    private RunningMode<FillLevelFunction<RunningModeBehaviour>>
-            getFastestDischargingRunningMode(Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> rms) {
-        RunningMode<FillLevelFunction<RunningModeBehaviour>> best = null;
-        double bestFillingRate = Double.MAX_VALUE;
-        for (RunningMode<FillLevelFunction<RunningModeBehaviour>> rm : rms) {
-            double rate = netFillingRate(rm, bufferSystemDescription.getBufferLeakage());
-            if (rate < bestFillingRate) {
-                bestFillingRate = rate;
-                best = rm;
-            }
-        }
-        return best;
-    }
-
 }
@@ -279,7 +279,7 @@ public class TimeshifterAgent extends FpaiAgent implements Runnable {
 
     @Override
     public void run() {
-        doBidUpdate();
+        requestBidUpdate();
     }
 
     private void scheduleBidUpdates(long intervalMs) {
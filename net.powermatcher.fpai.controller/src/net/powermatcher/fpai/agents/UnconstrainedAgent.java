@@ -37,7 +37,11 @@ public class UnconstrainedAgent extends FpaiAgent {
 
     private UnconstrainedRegistration registration;
     private Unconstrained unconstrainedHelper;
-    private BufferBid lastBid;
+    /** The last bid that has been created, which is only published when the {@link BidUpdatePolicy} allows it */
+    private BufferBid createdBid;
+    private Bid createdBidValue;
+    /** The last bid that has been published, on which the received prices are based */
+    private BufferBid publishedBid;
     private ControlSpaceUpdate lastControlSpaceUpdate;
 
     /**
@@ -138,15 +142,22 @@ public class UnconstrainedAgent extends FpaiAgent {
                                                                .get(Commodity.ELECTRICITY)
                                                                .doubleValue(SI.WATT)));
         }
-        lastBid = new BufferBid(marketBasis, elements, BUFFER_BID_PRIORITY);
-        LOGGER.info("Sending bid");
-        return lastBid.toBid();
+        createdBid = new BufferBid(marketBasis, elements, BUFFER_BID_PRIORITY);
+        createdBidValue = createdBid.toBid();
+        return createdBidValue;
+    }
+
+    @Override
+    protected void bidPublished(Bid bid) {
+        // A must off bid has no running modes, so no allocation can be based on it
+        publishedBid = bid == createdBidValue ? createdBid : null;
+        LOGGER.info("Sent bid");
     }
 
     @Override
     protected void handlePriceUpdate(Price newPrice) {
-        if (lastBid != null && lastControlSpaceUpdate != null) {
-            BufferBidElement runningMode = lastBid.runningModeForPrice(newPrice);
+        if (publishedBid != null && lastControlSpaceUpdate != null) {
+            BufferBidElement runningMode = publishedBid.runningModeForPrice(newPrice);
             Date now = now();
 
             RunningModeSelector runningModeSelector = new RunningModeSelector(runningMode.getRunningModeId(), now);
@@ -80,7 +80,11 @@ public class UnconstrainedBid {
 
     private final MarketBasis marketBasis;
     private UnconstrainedBidElement[] newBid;
+    private double[] demand;
     private final TreeSet<UnconstrainedBidElement> elements;
+    /** The elements sorted from high to low demand, with their demand in a separate primitive array */
+    private final UnconstrainedBidElement[] sortedElements;
+    private final double[] sortedDemand;
 
     /**
      * Creates a simple UnconstrainedBid if you provide one running mode and demand value.
@@ -108,6 +112,11 @@ public class UnconstrainedBid {
         }
         this.elements = new TreeSet<UnconstrainedBidElement>();
         this.elements.addAll(elements);
+        sortedElements = this.elements.toArray(new UnconstrainedBidElement[this.elements.size()]);
+        sortedDemand = new double[sortedElements.length];
+        for (int i = 0; i < sortedElements.length; i++) {
+            sortedDemand[i] = sortedElements[i].demandWatt;
+        }
         this.marketBasis = marketBasis;
         constructBid();
     }
@@ -117,9 +126,9 @@ public class UnconstrainedBid {
      */
     private void constructBid() {
         Bid rawBid;
-        double maxDemand = elements.first().demandWatt;
+        double maxDemand = sortedDemand[0];
         // Minimum demand is also Max Production.
-        double minDemand = elements.last().demandWatt;
+        double minDemand = sortedDemand[sortedDemand.length - 1];
 
         double minPriority = 0.0;
         double maxPriority = 1.0;
@@ -130,34 +139,17 @@ public class UnconstrainedBid {
                     .add(priceOf(maxPriority), minDemand)
                     .build();
 
-        // Now construct actual bid
+        // Now construct actual bid, by snapping each price step to the closest running mode
         double[] rawDemand = rawBid.getDemand();
+        int[] closest = DemandLookup.closestIndices(sortedDemand, rawDemand);
         newBid = new UnconstrainedBidElement[rawDemand.length];
+        demand = new double[rawDemand.length];
         for (int i = 0; i < rawDemand.length; i++) {
-            newBid[i] = getClosest(rawDemand[i]);
+            newBid[i] = sortedElements[closest[i]];
+            demand[i] = sortedDemand[closest[i]];
         }
     }
 
-    /**
-     * Returns the bid element closest to the demand value given as input.
-     *
-     * @param demandWatt
-     *            The demand in Watt.
-     * @return The Bid element (Running Mode and demand) that comes closest to the input.
-     */
-    private UnconstrainedBidElement getClosest(double demandWatt) {
-        UnconstrainedBidElement best = null;
-        double bestDistance = Double.MAX_VALUE;
-        for (UnconstrainedBidElement e : elements) {
-            double distance = Math.abs(demandWatt - e.demandWatt);
-            if (best == null || distance < bestDistance) {
-                best = e;
-                bestDistance = distance;
-            }
-        }
-        return best;
-    }
-
     /**
      * Returns the index that comes closest to the price
      *
@@ -188,11 +180,7 @@ public class UnconstrainedBid {
      * @return The Bid object.
      */
     public Bid toBid() {
-        double[] demand = new double[newBid.length];
-        for (int i = 0; i < newBid.length; i++) {
-            demand[i] = newBid[i].demandWatt;
-        }
-        return new Bid(marketBasis, demand);
+        return new Bid(marketBasis, demand.clone());
     }
 
     @Override
@@ -0,0 +1,203 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serial execution lane of a single agent. All work for an agent (EFI messages, price updates and scheduled bid
+ * updates) is posted to its mailbox and executed one task at a time, in the order in which it was posted, on a thread
+ * of an {@link Executor} that is shared by all agents. This way an agent never needs a lock and a slow or busy agent
+ * does not block the thread that delivers the messages.
+ * <p>
+ * A task can be posted with a key. When a task is posted with the same key as the last waiting task, the waiting task
+ * is replaced by the new one. This is used for messages that completely supersede their predecessor (like state
+ * updates). Only the last waiting task is replaced, so the order relative to other messages is never changed.
+ */
+public class AgentMailbox {
+    private static final Logger logger = LoggerFactory.getLogger(AgentMailbox.class);
+
+    /** Maximum number of tasks that is executed before the thread is handed back to the executor */
+    private static final int MAX_TASKS_PER_RUN = 32;
+
+    private static final class Entry {
+        final Object key;
+        Runnable task;
+
+        Entry(Object key, Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+    }
+
+    private final String name;
+    private final Executor executor;
+    private final Deque<Entry> queue = new ArrayDeque<Entry>();
+
+    // These fields are guarded by the queue
+    private boolean scheduled = false;
+    private boolean closed = false;
+    private int maxQueueDepth = 0;
+    private long postedTasks = 0;
+    private long coalescedTasks = 0;
+    private long executedTasks = 0;
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param name
+     *            The name of the mailbox, used for logging
+     * @param executor
+     *            The (shared) executor that provides the threads
+     */
+    public AgentMailbox(String name, Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.name = name;
+        this.executor = executor;
+    }
+
+    /**
+     * Posts a task that will be executed after all the tasks that have been posted before.
+     *
+     * @param key
+     *            When not <code>null</code> and the last waiting task has an equal key, that task is replaced by this
+     *            one.
+     * @param task
+     *            The task that should be executed
+     */
+    public void post(Object key, Runnable task) {
+        synchronized (queue) {
+            if (closed) {
+                logger.debug("Mailbox {} is closed, dropping task", name);
+                return;
+            }
+            postedTasks++;
+            Entry last = queue.peekLast();
+            if (key != null && last != null && key.equals(last.key)) {
+                last.task = task;
+                coalescedTasks++;
+                return;
+            }
+            queue.addLast(new Entry(key, task));
+            maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Closes the mailbox. Tasks that are still waiting are dropped and new tasks are ignored. A task that is currently
+     * executing will finish normally.
+     */
+    public void close() {
+        synchronized (queue) {
+            closed = true;
+            queue.clear();
+        }
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(drainer);
+        } catch (RejectedExecutionException ex) {
+            logger.warn("Executor rejected the tasks of mailbox " + name + ", dropping them", ex);
+            synchronized (queue) {
+                scheduled = false;
+                queue.clear();
+            }
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+            Entry entry;
+            synchronized (queue) {
+                entry = queue.pollFirst();
+                if (entry == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try {
+                entry.task.run();
+            } catch (RuntimeException ex) {
+                logger.error("Uncaught exception while handling task of " + name + ": " + ex.getMessage(), ex);
+            }
+            synchronized (queue) {
+                executedTasks++;
+            }
+        }
+
+        // Give the other agents a chance, and continue later
+        synchronized (queue) {
+            if (queue.isEmpty()) {
+                scheduled = false;
+                return;
+            }
+        }
+        schedule();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of tasks that are currently waiting
+     */
+    public int getQueueDepth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return The highest number of tasks that have been waiting at the same time
+     */
+    public int getMaxQueueDepth() {
+        synchronized (queue) {
+            return maxQueueDepth;
+        }
+    }
+
+    /**
+     * @return The total number of tasks that have been posted (including the ones that were coalesced)
+     */
+    public long getPostedTasks() {
+        synchronized (queue) {
+            return postedTasks;
+        }
+    }
+
+    /**
+     * @return The number of tasks that have been replaced by a newer task with the same key
+     */
+    public long getCoalescedTasks() {
+        synchronized (queue) {
+            return coalescedTasks;
+        }
+    }
+
+    /**
+     * @return The number of tasks that have been executed
+     */
+    public long getExecutedTasks() {
+        synchronized (queue) {
+            return executedTasks;
+        }
+    }
+}
@@ -2,11 +2,16 @@ package net.powermatcher.fpai.controller;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.Hashtable;
+import java.util.concurrent.Executor;
 
 import net.powermatcher.api.AgentEndpoint;
 import net.powermatcher.api.monitoring.ObservableAgent;
+import net.powermatcher.fpai.agents.BidUpdatePolicy;
 import net.powermatcher.fpai.agents.FpaiAgent;
 
+import org.flexiblepower.efi.buffer.BufferStateUpdate;
+import org.flexiblepower.efi.unconstrained.UnconstrainedStateUpdate;
+import org.flexiblepower.efi.uncontrolled.UncontrolledMeasurement;
 import org.flexiblepower.messaging.Connection;
 import org.flexiblepower.messaging.MessageHandler;
 import org.flexiblepower.ral.messages.AllocationStatusUpdate;
@@ -18,6 +23,11 @@ import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Handles the EFI messages of one resource manager connection and manages the agent that belongs to it. All messages
+ * are handled in the {@link AgentMailbox} of the agent, so the thread that delivers the messages is never blocked by
+ * the agent.
+ */
 public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
     private static final Logger logger = LoggerFactory.getLogger(AgentMessageHandler.class);
 
@@ -26,7 +36,10 @@ public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
     private final Connection connection;
     private final String agentPrefix, desiredParentId;
     private final Class<? extends FpaiAgent> type;
+    private final AgentMailbox mailbox;
+    private final BidUpdatePolicy bidUpdatePolicy;
 
+    // Only changed from within the mailbox, or when the agent is destroyed
     private volatile FpaiAgent agent;
     private volatile ServiceRegistration<?> registration;
 
@@ -35,39 +48,73 @@ public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
                                Connection connection,
                                String agentPrefix,
                                String desiredParentId,
-                               Class<? extends FpaiAgent> type) {
+                               Class<? extends FpaiAgent> type,
+                               Executor executor,
+                               BidUpdatePolicy bidUpdatePolicy) {
         this.bundleContext = bundleContext;
         controller = powerMatcherController;
         this.connection = connection;
         this.agentPrefix = agentPrefix;
         this.desiredParentId = desiredParentId;
         this.type = type;
+        mailbox = new AgentMailbox(agentPrefix + type.getSimpleName(), executor);
+        this.bidUpdatePolicy = bidUpdatePolicy;
 
         agent = null;
         registration = null;
     }
 
+    /**
+     * Determines whether a message completely describes the current state of the resource, which means that a waiting
+     * message of the same type is superseded by it.
+     *
+     * @return The key under which the message can be coalesced, or <code>null</code> when it may not be coalesced
+     */
+    private static Object coalesceKey(Object message) {
+        if (message instanceof BufferStateUpdate
+            || message instanceof UnconstrainedStateUpdate
+            || message instanceof UncontrolledMeasurement) {
+            return message.getClass();
+        } else {
+            return null;
+        }
+    }
+
     @Override
-    public synchronized void handleMessage(Object message) {
-        logger.debug("Handling message for {}: {}", type.getSimpleName(), String.valueOf(message));
+    public void handleMessage(final Object message) {
         if (message == null) {
             logger.error("Received a null message");
-        } else if (message instanceof ControlSpaceRegistration) {
+            return;
+        }
+        mailbox.post(coalesceKey(message), new Runnable() {
+            @Override
+            public void run() {
+                processMessage(message);
+            }
+        });
+    }
+
+    private void processMessage(Object message) {
+        logger.debug("Handling message for {}: {}", type.getSimpleName(), String.valueOf(message));
+        if (message instanceof ControlSpaceRegistration) {
             ControlSpaceRegistration registration = (ControlSpaceRegistration) message;
             createAgent(agentPrefix + registration.getResourceId());
-            agent.handleControlSpaceRegistration(registration);
-        } else if (agent != null) {
-            if (message instanceof ControlSpaceUpdate) {
-                agent.handleControlSpaceUpdate((ControlSpaceUpdate) message);
-            } else if (message instanceof ControlSpaceRevoke) {
-                agent.handleControlSpaceRevoke((ControlSpaceRevoke) message);
-            } else if (message instanceof AllocationStatusUpdate) {
-                agent.handleAllocationStatusUpdate((AllocationStatusUpdate) message);
-            } else {
-                logger.error("Received unknown type of message: " + message);
-            }
-        } else {
+        }
+
+        // Read the agent once, as destroyAgent may clear it at any moment
+        FpaiAgent agent = this.agent;
+        if (agent == null) {
             logger.warn("Received a message before the registration of type {}", message.getClass().getSimpleName());
+        } else if (message instanceof ControlSpaceRegistration) {
+            agent.handleControlSpaceRegistration((ControlSpaceRegistration) message);
+        } else if (message instanceof ControlSpaceUpdate) {
+            agent.handleControlSpaceUpdate((ControlSpaceUpdate) message);
+        } else if (message instanceof ControlSpaceRevoke) {
+            agent.handleControlSpaceRevoke((ControlSpaceRevoke) message);
+        } else if (message instanceof AllocationStatusUpdate) {
+            agent.handleAllocationStatusUpdate((AllocationStatusUpdate) message);
+        } else {
+            logger.error("Received unknown type of message: " + message);
         }
     }
 
@@ -76,6 +123,8 @@ public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
             try {
                 agent = type.getConstructor(AgentMessageSender.class, String.class, String.class)
                             .newInstance(this, agentId, desiredParentId);
+                agent.setMailbox(mailbox);
+                agent.setBidUpdatePolicy(bidUpdatePolicy);
 
                 Hashtable<String, Object> properties = new Hashtable<String, Object>();
                 properties.put("agentId", agentId);
@@ -118,17 +167,33 @@ public class AgentMessageHandler implements MessageHandler, AgentMessageSender {
             registration.unregister();
             registration = null;
         }
+        FpaiAgent agent = this.agent;
         if (agent != null) {
+            this.agent = null;
             agent.deactivate();
-            agent = null;
         }
     }
 
     @Override
     public void disconnected() {
+        mailbox.close();
         controller.removeHandler(this);
     }
 
+    /**
+     * @return The current agent, or <code>null</code> when no agent has been created (yet)
+     */
+    public FpaiAgent getAgent() {
+        return agent;
+    }
+
+    /**
+     * @return The mailbox in which the messages for the agent are handled, e.g. for inspecting its queue depth
+     */
+    public AgentMailbox getMailbox() {
+        return mailbox;
+    }
+
     /*
      * (non-Javadoc)
      *
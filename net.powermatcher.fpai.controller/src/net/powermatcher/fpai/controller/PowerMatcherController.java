@@ -1,16 +1,23 @@
 package net.powermatcher.fpai.controller;
 
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import net.powermatcher.fpai.agents.BidUpdatePolicy;
 import net.powermatcher.fpai.agents.BufferAgent;
 import net.powermatcher.fpai.agents.FpaiAgent;
 import net.powermatcher.fpai.agents.TimeshifterAgent;
 import net.powermatcher.fpai.agents.UnconstrainedAgent;
 import net.powermatcher.fpai.agents.UncontrolledAgent;
 import net.powermatcher.fpai.controller.PowerMatcherController.Config;
+import net.powermatcher.fpai.observations.MailboxObservationProvider;
 
 import org.flexiblepower.efi.EfiControllerManager;
 import org.flexiblepower.messaging.Connection;
@@ -33,6 +40,18 @@ public class PowerMatcherController implements EfiControllerManager {
 
         @Meta.AD(deflt = "fpai-agent-")
         String agentIdPrefix();
+
+        @Meta.AD(deflt = "2", description = "Number of threads that handle the messages of all the agents")
+        int agentThreads();
+
+        @Meta.AD(deflt = "60", description = "Interval in seconds for publishing mailbox statistics (0 to disable)")
+        int mailboxStatisticsInterval();
+
+        @Meta.AD(deflt = "0", description = "Changes in demand (in W) up to this value do not cause a new bid")
+        double bidDemandTolerance();
+
+        @Meta.AD(deflt = "0", description = "Minimum time in milliseconds between two bids of an agent")
+        long minimumBidInterval();
     }
 
     private BundleContext bundleContext;
@@ -45,12 +64,40 @@ public class PowerMatcherController implements EfiControllerManager {
 
     private String desiredParent;
 
+    private BidUpdatePolicy bidUpdatePolicy;
+
+    /** Provides the threads for the mailboxes of all agents */
+    private ScheduledExecutorService executor;
+
+    private MailboxObservationProvider mailboxObservationProvider;
+
     @Activate
     public void activate(BundleContext context, Map<String, Object> properties) throws Exception {
         bundleContext = context;
         Config config = Configurable.createConfigurable(Config.class, properties);
         agentIdPrefix = config.agentIdPrefix();
         desiredParent = config.desiredParent();
+        bidUpdatePolicy = new BidUpdatePolicy(config.bidDemandTolerance(), config.minimumBidInterval());
+
+        final AtomicInteger threadCount = new AtomicInteger(1);
+        executor = Executors.newScheduledThreadPool(Math.max(1, config.agentThreads()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, agentIdPrefix + "mailbox-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (config.mailboxStatisticsInterval() > 0) {
+            mailboxObservationProvider = new MailboxObservationProvider(context);
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    publishMailboxStatistics();
+                }
+            }, config.mailboxStatisticsInterval(), config.mailboxStatisticsInterval(), TimeUnit.SECONDS);
+        }
     }
 
     @Deactivate
@@ -60,6 +107,26 @@ public class PowerMatcherController implements EfiControllerManager {
                 removeHandler(handler);
             }
         }
+        executor.shutdownNow();
+        if (mailboxObservationProvider != null) {
+            mailboxObservationProvider.close();
+            mailboxObservationProvider = null;
+        }
+    }
+
+    private void publishMailboxStatistics() {
+        MailboxObservationProvider provider = mailboxObservationProvider;
+        if (provider != null) {
+            Date now = new Date();
+            synchronized (activeHandlers) {
+                for (AgentMessageHandler handler : activeHandlers) {
+                    FpaiAgent agent = handler.getAgent();
+                    if (agent != null) {
+                        provider.publish(now, agent, handler.getMailbox());
+                    }
+                }
+            }
+        }
     }
 
     @Override
@@ -85,7 +152,9 @@ public class PowerMatcherController implements EfiControllerManager {
                                                                  connection,
                                                                  agentId,
                                                                  desiredParent,
-                                                                 clazz);
+                                                                 clazz,
+                                                                 executor,
+                                                                 bidUpdatePolicy);
         synchronized (activeHandlers) {
             activeHandlers.add(newHandler);
         }
@@ -0,0 +1,96 @@
+package net.powermatcher.fpai.observations;
+
+import java.util.Date;
+
+import net.powermatcher.fpai.agents.FpaiAgent;
+import net.powermatcher.fpai.controller.AgentMailbox;
+
+import org.flexiblepower.observation.Observation;
+import org.flexiblepower.observation.ext.AbstractObservationProvider;
+import org.flexiblepower.observation.ext.ObservationProviderRegistrationHelper;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Publishes the statistics of the {@link AgentMailbox}es of the agents, to see how busy the agents are, together with
+ * the number of bids they have sent and suppressed.
+ */
+public class MailboxObservationProvider extends AbstractObservationProvider<MailboxObservationProvider.State> {
+
+    public static class State {
+        private final Date time;
+        private final String agentId;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final long postedTasks;
+        private final long coalescedTasks;
+        private final long executedTasks;
+        private final long sentBids;
+        private final long suppressedBids;
+
+        public State(Date time, FpaiAgent agent, AgentMailbox mailbox) {
+            this.time = time;
+            agentId = agent.getAgentId();
+            queueDepth = mailbox.getQueueDepth();
+            maxQueueDepth = mailbox.getMaxQueueDepth();
+            postedTasks = mailbox.getPostedTasks();
+            coalescedTasks = mailbox.getCoalescedTasks();
+            executedTasks = mailbox.getExecutedTasks();
+            sentBids = agent.getSentBids();
+            suppressedBids = agent.getSuppressedBids();
+        }
+
+        public Date getTime() {
+            return time;
+        }
+
+        public String getAgentId() {
+            return agentId;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public long getPostedTasks() {
+            return postedTasks;
+        }
+
+        public long getCoalescedTasks() {
+            return coalescedTasks;
+        }
+
+        public long getExecutedTasks() {
+            return executedTasks;
+        }
+
+        public long getSentBids() {
+            return sentBids;
+        }
+
+        public long getSuppressedBids() {
+            return suppressedBids;
+        }
+    }
+
+    private final ServiceRegistration<?> serviceRegistration;
+
+    public MailboxObservationProvider(BundleContext context) {
+        serviceRegistration = new ObservationProviderRegistrationHelper(this, context).observationOf("PowerMatcher")
+                                                                                      .observationType(State.class)
+                                                                                      .observedBy(getClass().getName())
+                                                                                      .register();
+    }
+
+    public void close() {
+        serviceRegistration.unregister();
+    }
+
+    public void publish(Date time, FpaiAgent agent, AgentMailbox mailbox) {
+        publish(Observation.create(time, new State(time, agent, mailbox)));
+    }
+}
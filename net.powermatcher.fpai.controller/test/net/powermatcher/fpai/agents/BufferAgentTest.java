@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.measure.Measure;
@@ -24,6 +25,7 @@ import net.powermatcher.fpai.test.MockAgentSender;
 import net.powermatcher.fpai.test.MockSession;
 
 import org.flexiblepower.efi.buffer.Actuator;
+import org.flexiblepower.efi.buffer.ActuatorAllocation;
 import org.flexiblepower.efi.buffer.ActuatorBehaviour;
 import org.flexiblepower.efi.buffer.ActuatorUpdate;
 import org.flexiblepower.efi.buffer.BufferAllocation;
@@ -46,8 +48,6 @@ import org.flexiblepower.ral.values.ConstraintProfile;
 /**
  * Test suite for BufferAgent
  *
- * TODO: Currently it only tests a single actuator, should be more!
- *
  */
 public class BufferAgentTest extends TestCase {
 
@@ -72,7 +72,45 @@ public class BufferAgentTest extends TestCase {
                                                    Collections.singletonList(actuator));
     }
 
+    private BufferRegistration<Temperature> twoActuatorRegistration() {
+        List<Actuator> actuators = new ArrayList<Actuator>();
+        actuators.add(new Actuator(0, "HeatPump", CommoditySet.onlyElectricity));
+        actuators.add(new Actuator(1, "Boiler", CommoditySet.onlyElectricity));
+        return new BufferRegistration<Temperature>(RESOURCE_ID,
+                                                   context.currentTime(),
+                                                   Measure.zero(SI.SECOND),
+                                                   "Temerature",
+                                                   SI.CELSIUS,
+                                                   actuators);
+    }
+
     private BufferSystemDescription systemDescription(BufferRegistration<Temperature> registration) {
+        FillLevelFunction<LeakageRate> bufferLeakage = FillLevelFunction.<LeakageRate> create(20)
+                                                                        .add(120, new LeakageRate(0.01))
+                                                                        .build();
+        BufferSystemDescription bsd = new BufferSystemDescription(registration,
+                                                                  context.currentTime(),
+                                                                  context.currentTime(),
+                                                                  Collections.singleton(onOffActuatorBehaviour(0)),
+                                                                  bufferLeakage);
+        return bsd;
+    }
+
+    private BufferSystemDescription twoActuatorSystemDescription(BufferRegistration<Temperature> registration) {
+        Set<ActuatorBehaviour> actuators = new HashSet<ActuatorBehaviour>();
+        actuators.add(onOffActuatorBehaviour(0));
+        actuators.add(onOffActuatorBehaviour(1));
+        FillLevelFunction<LeakageRate> bufferLeakage = FillLevelFunction.<LeakageRate> create(20)
+                                                                        .add(120, new LeakageRate(0.01))
+                                                                        .build();
+        return new BufferSystemDescription(registration,
+                                           context.currentTime(),
+                                           context.currentTime(),
+                                           actuators,
+                                           bufferLeakage);
+    }
+
+    private ActuatorBehaviour onOffActuatorBehaviour(int actuatorId) {
         Timer minOnTimer = new Timer(0, "minOnTimer", Measure.valueOf(10, SI.SECOND));
         Timer minOffTimer = new Timer(1, "minOffTimer", Measure.valueOf(10, SI.SECOND));
 
@@ -112,16 +150,7 @@ public class BufferAgentTest extends TestCase {
         Collection<RunningMode<FillLevelFunction<RunningModeBehaviour>>> runningModes = new ArrayList<RunningMode<FillLevelFunction<RunningModeBehaviour>>>();
         runningModes.add(on);
         runningModes.add(off);
-        ActuatorBehaviour ab = new ActuatorBehaviour(0, runningModes);
-        FillLevelFunction<LeakageRate> bufferLeakage = FillLevelFunction.<LeakageRate> create(20)
-                                                                        .add(120, new LeakageRate(0.01))
-                                                                        .build();
-        BufferSystemDescription bsd = new BufferSystemDescription(registration,
-                                                                  context.currentTime(),
-                                                                  context.currentTime(),
-                                                                  Collections.singleton(ab),
-                                                                  bufferLeakage);
-        return bsd;
+        return new ActuatorBehaviour(actuatorId, runningModes);
     }
 
     private BufferSystemDescription producingBufferSystemDescription(BufferRegistration<Temperature> registration) {
@@ -882,4 +911,49 @@ public class BufferAgentTest extends TestCase {
         BidAnalyzer.assertBidsEqual(bidT0.getBid(), bidT3.getBid());
         // Bid T4 is when the target profile has expired, so like T0. Already asserted above.
     }
+
+    /**
+     * Test: Buffer with two identical on/off actuators, both are free to switch.
+     *
+     * Expected behavior: Agent bids the combined flexibility of both actuators and allocates both of them.
+     */
+    public void testTwoActuators() {
+        BufferRegistration<Temperature> registration = twoActuatorRegistration();
+        agentSender.handleMessage(registration);
+
+        agentSender.handleMessage(twoActuatorSystemDescription(registration));
+
+        // Both actuators are off and there are no blocking timers
+        Set<ActuatorUpdate> actuatorUpdates = new HashSet<ActuatorUpdate>();
+        actuatorUpdates.add(new ActuatorUpdate(0, 0, Collections.<TimerUpdate> emptySet()));
+        actuatorUpdates.add(new ActuatorUpdate(1, 0, Collections.<TimerUpdate> emptySet()));
+        agentSender.handleMessage(new BufferStateUpdate<Temperature>(registration,
+                                                                     context.currentTime(),
+                                                                     context.currentTime(),
+                                                                     Measure.valueOf(60, SI.CELSIUS),
+                                                                     actuatorUpdates));
+
+        Bid bid = session.getLastBid().getBid();
+        BidAnalyzer.assertNonFlatBid(bid);
+        Assert.assertEquals(2 * NOMINAL_POWER_ON, bid.getMaximumDemand(), ONE_HUNDREDTH);
+        Assert.assertEquals(NOMINAL_POWER_OFF, bid.getMinimumDemand(), ONE_HUNDREDTH);
+
+        // Minimum price means both go on
+        agent.handlePriceUpdate(new PriceUpdate(new Price(marketBasis, marketBasis.getMinimumPrice()),
+                                                session.getLastBid().getBidNumber()));
+        BufferAllocation allocation = (BufferAllocation) agentSender.getLastMessage();
+        Assert.assertEquals(2, allocation.getActuatorAllocations().size());
+        for (ActuatorAllocation actuatorAllocation : allocation.getActuatorAllocations()) {
+            Assert.assertEquals(1, actuatorAllocation.getRunningModeId());
+        }
+
+        // Maximum price means both go off
+        agent.handlePriceUpdate(new PriceUpdate(new Price(marketBasis, marketBasis.getMaximumPrice()),
+                                                session.getLastBid().getBidNumber()));
+        allocation = (BufferAllocation) agentSender.getLastMessage();
+        Assert.assertEquals(2, allocation.getActuatorAllocations().size());
+        for (ActuatorAllocation actuatorAllocation : allocation.getActuatorAllocations()) {
+            Assert.assertEquals(0, actuatorAllocation.getRunningModeId());
+        }
+    }
 }
@@ -0,0 +1,110 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class DemandLookupTest extends TestCase {
+
+    /**
+     * The reference implementation: a linear search that keeps the first (highest demand) of the closest values. This
+     * is how BufferBid and UnconstrainedBid used to select the running mode for every price step.
+     */
+    private static int linearClosest(double[] sortedDemand, double demand) {
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int i = 0; i < sortedDemand.length; i++) {
+            double distance = Math.abs(demand - sortedDemand[i]);
+            if (best == -1 || distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    private static void assertEquivalent(double[] sortedDemand, double[] demand) {
+        int[] result = DemandLookup.closestIndices(sortedDemand, demand);
+        Assert.assertEquals(demand.length, result.length);
+        for (int i = 0; i < demand.length; i++) {
+            Assert.assertEquals("Wrong index for demand " + demand[i] + " in " + Arrays.toString(sortedDemand),
+                                linearClosest(sortedDemand, demand[i]),
+                                result[i]);
+        }
+    }
+
+    private static double[] randomSortedDemand(Random random, int size) {
+        // Use a coarse grid, so that there are a lot of exact ties halfway between two values
+        TreeSet<Double> values = new TreeSet<Double>();
+        while (values.size() < size) {
+            values.add((random.nextInt(200) - 100) * 25.0);
+        }
+        double[] result = new double[size];
+        int i = 0;
+        for (Double value : values.descendingSet()) {
+            result[i++] = value;
+        }
+        return result;
+    }
+
+    private static double[] linearDemand(double max, double min, int steps) {
+        double[] demand = new double[steps];
+        for (int i = 0; i < steps; i++) {
+            demand[i] = max - (max - min) * i / (steps - 1);
+        }
+        return demand;
+    }
+
+    public void testSingleValue() {
+        assertEquivalent(new double[] { 1000 }, new double[] { 2000, 1000, 500, 0, -1000 });
+    }
+
+    public void testTies() {
+        // 500 is exactly between 1000 and 0, the highest demand should win
+        assertEquivalent(new double[] { 1000, 0 }, new double[] { 1000, 750, 500, 250, 0 });
+        Assert.assertEquals(0, DemandLookup.closestIndices(new double[] { 1000, 0 }, new double[] { 500 })[0]);
+    }
+
+    public void testOutsideRange() {
+        assertEquivalent(new double[] { 1000, 500, 0 }, new double[] { 5000, 1500, -500, -5000 });
+    }
+
+    public void testUnsortedDemand() {
+        assertEquivalent(new double[] { 1000, 500, 0, -500 }, new double[] { -400, 900, 100, 1000, -1000, 480 });
+    }
+
+    public void testNaN() {
+        assertEquivalent(new double[] { 1000, 500, 0 }, new double[] { 700, Double.NaN, 100 });
+    }
+
+    public void testRandomBidCurves() {
+        Random random = new Random(1234);
+        int[] priceSteps = new int[] { 2, 10, 100, 1000 };
+        for (int run = 0; run < 500; run++) {
+            double[] sortedDemand = randomSortedDemand(random, 1 + random.nextInt(60));
+            double max = (random.nextInt(300) - 150) * 25.0;
+            double min = max - random.nextInt(300) * 25.0;
+            for (int steps : priceSteps) {
+                assertEquivalent(sortedDemand, linearDemand(max, min, steps));
+            }
+        }
+    }
+
+    public void testRandomFlatAndStepCurves() {
+        Random random = new Random(4321);
+        for (int run = 0; run < 200; run++) {
+            double[] sortedDemand = randomSortedDemand(random, 1 + random.nextInt(20));
+            double[] demand = new double[100];
+            int step = random.nextInt(100);
+            double high = (random.nextInt(200) - 100) * 25.0;
+            double low = high - random.nextInt(100) * 12.5;
+            for (int i = 0; i < demand.length; i++) {
+                demand[i] = i < step ? high : low;
+            }
+            assertEquivalent(sortedDemand, demand);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.powermatcher.fpai.agents;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import net.powermatcher.fpai.agents.BufferBid.BufferBidElement;
+
+public class RunningModeCombinerTest extends TestCase {
+
+    private static List<BufferBidElement> onOff(int actuatorId, double onDemand) {
+        return Arrays.asList(new BufferBidElement(actuatorId, 0, 0), new BufferBidElement(actuatorId, 1, onDemand));
+    }
+
+    private static double[] demandOf(List<BufferBidElement> elements) {
+        double[] demand = new double[elements.size()];
+        for (int i = 0; i < demand.length; i++) {
+            demand[i] = elements.get(i).getDemandWatt();
+        }
+        return demand;
+    }
+
+    public void testSingleActuator() {
+        List<List<BufferBidElement>> perActuator = new ArrayList<List<BufferBidElement>>();
+        perActuator.add(onOff(0, 1000));
+
+        List<BufferBidElement> result = RunningModeCombiner.combine(perActuator, 100);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(1, result.get(0).getActuatorCount());
+        Assert.assertEquals(1000d, result.get(0).getDemandWatt());
+        Assert.assertEquals(0d, result.get(1).getDemandWatt());
+    }
+
+    public void testTwoActuators() {
+        List<List<BufferBidElement>> perActuator = new ArrayList<List<BufferBidElement>>();
+        perActuator.add(onOff(0, 1000));
+        perActuator.add(onOff(1, 500));
+
+        List<BufferBidElement> result = RunningModeCombiner.combine(perActuator, 100);
+        Assert.assertTrue(Arrays.equals(new double[] { 1500, 1000, 500, 0 }, demandOf(result)));
+
+        BufferBidElement first = result.get(1);
+        Assert.assertEquals(2, first.getActuatorCount());
+        Assert.assertEquals(0, first.getActuatorId(0));
+        Assert.assertEquals(1, first.getRunningModeId(0));
+        Assert.assertEquals(1, first.getActuatorId(1));
+        Assert.assertEquals(0, first.getRunningModeId(1));
+    }
+
+    public void testDominatedCombinationsArePruned() {
+        // Four identical actuators have 16 combinations, but only 5 distinct demand values
+        List<List<BufferBidElement>> perActuator = new ArrayList<List<BufferBidElement>>();
+        for (int i = 0; i < 4; i++) {
+            perActuator.add(onOff(i, 1000));
+        }
+
+        List<BufferBidElement> result = RunningModeCombiner.combine(perActuator, 100);
+        Assert.assertTrue(Arrays.equals(new double[] { 4000, 3000, 2000, 1000, 0 }, demandOf(result)));
+        for (BufferBidElement element : result) {
+            Assert.assertEquals(4, element.getActuatorCount());
+        }
+    }
+
+    public void testMaximumCombinations() {
+        // Ten actuators with different power have 1024 distinct combinations
+        List<List<BufferBidElement>> perActuator = new ArrayList<List<BufferBidElement>>();
+        double total = 0;
+        for (int i = 0; i < 10; i++) {
+            double power = 100 * (1 << i) + i;
+            perActuator.add(onOff(i, power));
+            total += power;
+        }
+
+        List<BufferBidElement> result = RunningModeCombiner.combine(perActuator, 20);
+        Assert.assertTrue(result.size() <= 20);
+        // The extremes are always kept
+        Assert.assertEquals(total, result.get(0).getDemandWatt());
+        Assert.assertEquals(0d, result.get(result.size() - 1).getDemandWatt());
+        for (int i = 1; i < result.size(); i++) {
+            Assert.assertTrue(result.get(i - 1).getDemandWatt() > result.get(i).getDemandWatt());
+        }
+    }
+}
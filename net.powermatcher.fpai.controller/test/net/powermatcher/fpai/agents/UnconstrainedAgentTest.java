@@ -14,6 +14,7 @@ import junit.framework.TestCase;
 import net.powermatcher.api.data.Bid;
 import net.powermatcher.api.data.MarketBasis;
 import net.powermatcher.api.data.Price;
+import net.powermatcher.api.messages.BidUpdate;
 import net.powermatcher.api.messages.PriceUpdate;
 import net.powermatcher.fpai.test.BidAnalyzer;
 import net.powermatcher.fpai.test.MockAgentSender;
@@ -368,6 +369,45 @@ public class UnconstrainedAgentTest extends TestCase {
 
     }
 
+    /**
+     * Test: Agent has a minimum bid interval, publishes a must-run bid and then creates a flexible bid within the
+     * interval, which is held back. A price for the published bid arrives.
+     *
+     * Expected behavior: The allocation is based on the published must-run bid, not on the bid that was held back.
+     */
+    public void testAllocationFollowsPublishedBid() {
+        agent.setBidUpdatePolicy(new BidUpdatePolicy(0, 1000));
+        UnconstrainedRegistration registration = unconstrainedRegistration();
+        agentSender.handleMessage(registration);
+        agentSender.handleMessage(systemDescription(registration));
+
+        TimerUpdate minOnTimer = new TimerUpdate(0, new Date(context.currentTimeMillis() + 5000)); // blocking
+        agentSender.handleMessage(new UnconstrainedStateUpdate(RESOURCE_ID,
+                                                               context.currentTime(),
+                                                               context.currentTime(),
+                                                               1,
+                                                               Collections.singleton(minOnTimer)));
+        BidUpdate published = session.getLastBid();
+        BidAnalyzer.assertFlatBidWithValue(published.getBid(), Measure.valueOf(1000, SI.WATT));
+
+        context.jump(200);
+        TimerUpdate expiredMinOnTimer = new TimerUpdate(0, new Date(context.currentTimeMillis() - 50));
+        agentSender.handleMessage(new UnconstrainedStateUpdate(RESOURCE_ID,
+                                                               context.currentTime(),
+                                                               context.currentTime(),
+                                                               1,
+                                                               Collections.singleton(expiredMinOnTimer)));
+        assertSame(published, session.getLastBid());
+        assertEquals(1, agent.getSuppressedBids());
+
+        // The flexible bid would go off at the maximum price, the published one keeps running
+        agent.handlePriceUpdate(new PriceUpdate(new Price(marketBasis, marketBasis.getMaximumPrice()),
+                                                published.getBidNumber()));
+        Assert.assertEquals(Collections.<RunningModeSelector> singleton(new RunningModeSelector(1,
+                                                                                                context.currentTime())),
+                            (((UnconstrainedAllocation) (agentSender.getLastMessage())).getRunningModeSelectors()));
+    }
+
     /**
      * Test: not implemented yet...
      */
@@ -151,4 +151,72 @@ public class UncontrolledAgentTest extends TestCase {
         }
 
     }
+
+    private void sendElectricityMeasurement(double demand) {
+        Date now = context.currentTime();
+        CommodityMeasurables commodityMeasurables = CommodityMeasurables.create()
+                                                                        .electricity(Measure.valueOf(demand, SI.WATT))
+                                                                        .build();
+        agentSender.handleMessage(new UncontrolledMeasurement("resourceId", now, now, commodityMeasurables));
+    }
+
+    /**
+     * Test: Agent has a demand tolerance and receives measurements that differ less and more than the tolerance
+     *
+     * Expected behavior: Agent only publishes a new bid when the demand differs more than the tolerance
+     */
+    public void testDemandTolerance() {
+        agent.setBidUpdatePolicy(new BidUpdatePolicy(10, 0));
+        agentSender.handleMessage(new UncontrolledRegistration("resourceId",
+                                                               new Date(),
+                                                               Measure.zero(SI.SECOND),
+                                                               CommoditySet.onlyElectricity,
+                                                               ConstraintListMap.EMPTY));
+
+        sendElectricityMeasurement(100);
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(100, SI.WATT));
+        sendElectricityMeasurement(105);
+        sendElectricityMeasurement(95);
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(100, SI.WATT));
+        sendElectricityMeasurement(111);
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(111, SI.WATT));
+
+        assertEquals(2, agent.getSentBids());
+        assertEquals(2, agent.getSuppressedBids());
+    }
+
+    /**
+     * Test: Agent has a minimum bid interval and receives multiple measurements within that interval
+     *
+     * Expected behavior: Agent publishes the first bid directly and the latest bid at the end of the interval
+     */
+    public void testMinimumBidInterval() {
+        agent.setBidUpdatePolicy(new BidUpdatePolicy(0, 1000));
+        agentSender.handleMessage(new UncontrolledRegistration("resourceId",
+                                                               new Date(),
+                                                               Measure.zero(SI.SECOND),
+                                                               CommoditySet.onlyElectricity,
+                                                               ConstraintListMap.EMPTY));
+
+        sendElectricityMeasurement(100);
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(100, SI.WATT));
+
+        context.jump(200);
+        sendElectricityMeasurement(200);
+        context.jump(200);
+        sendElectricityMeasurement(300);
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(100, SI.WATT));
+        assertEquals(context.currentTimeMillis() + 600, context.getScheduleTime());
+
+        context.jump(599);
+        context.doTaskIfTimeIsRight();
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(100, SI.WATT));
+
+        context.jump(1);
+        context.doTaskIfTimeIsRight();
+        assertFlatBidWithValue(session.getLastBid().getBid(), Measure.valueOf(300, SI.WATT));
+
+        assertEquals(2, agent.getSentBids());
+        assertEquals(2, agent.getSuppressedBids());
+    }
 }
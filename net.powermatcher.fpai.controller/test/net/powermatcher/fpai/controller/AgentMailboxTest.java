@@ -0,0 +1,163 @@
+package net.powermatcher.fpai.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class AgentMailboxTest extends TestCase {
+
+    /** Executor that only runs the tasks when asked to */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        public void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private static class Recorder implements Runnable {
+        private final List<String> log;
+        private final String name;
+
+        public Recorder(List<String> log, String name) {
+            this.log = log;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            log.add(name);
+        }
+    }
+
+    public void testOrder() {
+        ManualExecutor executor = new ManualExecutor();
+        AgentMailbox mailbox = new AgentMailbox("test", executor);
+        List<String> log = new ArrayList<String>();
+
+        mailbox.post(null, new Recorder(log, "a"));
+        mailbox.post(null, new Recorder(log, "b"));
+        mailbox.post(null, new Recorder(log, "c"));
+
+        // Only one drain task is scheduled
+        Assert.assertEquals(1, executor.tasks.size());
+        Assert.assertEquals(3, mailbox.getQueueDepth());
+
+        executor.runAll();
+        Assert.assertEquals("[a, b, c]", log.toString());
+        Assert.assertEquals(0, mailbox.getQueueDepth());
+        Assert.assertEquals(3, mailbox.getMaxQueueDepth());
+        Assert.assertEquals(3, mailbox.getExecutedTasks());
+    }
+
+    public void testCoalescing() {
+        ManualExecutor executor = new ManualExecutor();
+        AgentMailbox mailbox = new AgentMailbox("test", executor);
+        List<String> log = new ArrayList<String>();
+
+        mailbox.post("state", new Recorder(log, "state1"));
+        mailbox.post("state", new Recorder(log, "state2"));
+        mailbox.post(null, new Recorder(log, "other"));
+        // Not coalesced with state2, because that would change the order
+        mailbox.post("state", new Recorder(log, "state3"));
+        mailbox.post("state", new Recorder(log, "state4"));
+
+        executor.runAll();
+        Assert.assertEquals("[state2, other, state4]", log.toString());
+        Assert.assertEquals(5, mailbox.getPostedTasks());
+        Assert.assertEquals(2, mailbox.getCoalescedTasks());
+        Assert.assertEquals(3, mailbox.getExecutedTasks());
+    }
+
+    public void testExceptionDoesNotStopMailbox() {
+        ManualExecutor executor = new ManualExecutor();
+        AgentMailbox mailbox = new AgentMailbox("test", executor);
+        List<String> log = new ArrayList<String>();
+
+        mailbox.post(null, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Expected exception");
+            }
+        });
+        mailbox.post(null, new Recorder(log, "a"));
+
+        executor.runAll();
+        Assert.assertEquals("[a]", log.toString());
+    }
+
+    public void testClose() {
+        ManualExecutor executor = new ManualExecutor();
+        AgentMailbox mailbox = new AgentMailbox("test", executor);
+        List<String> log = new ArrayList<String>();
+
+        mailbox.post(null, new Recorder(log, "a"));
+        mailbox.close();
+        mailbox.post(null, new Recorder(log, "b"));
+
+        executor.runAll();
+        Assert.assertTrue(log.isEmpty());
+    }
+
+    public void testSingleConsumer() throws Exception {
+        final int threads = 8;
+        final int tasksPerThread = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final AgentMailbox mailbox = new AgentMailbox("test", executor);
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger overlaps = new AtomicInteger();
+            final AtomicInteger executed = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(threads * tasksPerThread);
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    if (running.incrementAndGet() != 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    executed.incrementAndGet();
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            };
+
+            List<Thread> producers = new ArrayList<Thread>();
+            for (int i = 0; i < threads; i++) {
+                Thread producer = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < tasksPerThread; j++) {
+                            mailbox.post(null, task);
+                        }
+                    }
+                };
+                producers.add(producer);
+                producer.start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals(0, overlaps.get());
+            Assert.assertEquals(threads * tasksPerThread, executed.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}